@@ -0,0 +1,160 @@
+package audio;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Buffer de entrada de una llamada, en el cliente o en cada participante de una conferencia.
+ * Ordena los paquetes por numero de secuencia y los entrega uno por trama al ritmo de quien
+ * los consume (el altavoz o el mezclador), reteniendo al principio tantas tramas como pida
+ * el jitter medido (estimador de RFC 3550) para absorber las variaciones de la red.
+ *
+ * El retardo se adapta en los dos sentidos: si el buffer se vacia la trama esperada no se da
+ * por perdida sino que se espera una trama mas (el retardo crece), y si durante un rato acumula
+ * mas de lo que hace falta se descarta la trama mas antigua (el retardo baja). Un hueco con paquetes
+ * posteriores ya recibidos si es una perdida, y lo oculta quien consume.
+ *
+ * insertar lo llama el hilo que lee el socket y tomar el que escribe en el altavoz o mezcla.
+ */
+public class BufferJitter {
+    private static final int CAPACIDAD = 64;
+    // Tramas seguidas por encima del objetivo antes de descartar una: los picos pasajeros no cuentan
+    private static final int EXCESO_TOLERADO = 10;
+
+    private final double msPorTrama;
+    private final int frecuencia;
+    private final int minimoTramas;
+    private final int maximoTramas;
+    private final PaqueteVoz[] ranuras = new PaqueteVoz[CAPACIDAD];
+    private final long[] secuencias = new long[CAPACIDAD];
+
+    // Secuencias extendidas a 64 bits; -1 hasta el primer paquete
+    private long siguiente = -1;
+    private long maxima = -1;
+    private boolean reproduciendo;
+    private int vaciosSeguidos;
+    private int excesoSeguido;
+
+    private double jitterMs;
+    private long llegadaAnterior;
+    private long marcaAnterior = -1;
+
+    private long recibidos;
+    private long tardios;
+    private long duplicados;
+    private long perdidos;
+    private long descartados;
+    private long vacios;
+
+    public BufferJitter(int msPorTrama, int frecuencia, int minimoTramas, int maximoTramas) {
+        this.msPorTrama = msPorTrama;
+        this.frecuencia = frecuencia;
+        this.minimoTramas = minimoTramas;
+        this.maximoTramas = Math.min(maximoTramas, CAPACIDAD / 2);
+    }
+
+    public synchronized void insertar(PaqueteVoz paquete, long llegadaNanos) {
+        actualizarJitter(paquete.getMarcaTiempo(), llegadaNanos);
+        long secuencia = extender(paquete.getSecuencia());
+        if (siguiente < 0) {
+            siguiente = secuencia;
+            maxima = secuencia;
+        }
+        if (secuencia < siguiente) {
+            tardios++;
+            return;
+        }
+        if (secuencia - siguiente >= CAPACIDAD) {
+            // El emisor salto muy adelante (p. ej. volvio tras un corte): se empieza de nuevo
+            Arrays.fill(ranuras, null);
+            siguiente = secuencia;
+            reproduciendo = false;
+        }
+        int ranura = (int) (secuencia % CAPACIDAD);
+        if (ranuras[ranura] != null && secuencias[ranura] == secuencia) {
+            duplicados++;
+            return;
+        }
+        ranuras[ranura] = paquete;
+        secuencias[ranura] = secuencia;
+        maxima = Math.max(maxima, secuencia);
+        recibidos++;
+    }
+
+    /**
+     * La trama que toca reproducir, o null si no hay: todavia se esta llenando el buffer, el
+     * paquete se perdio o aun no llego.
+     */
+    public synchronized PaqueteVoz tomar() {
+        if (siguiente < 0) return null;
+        long profundidad = maxima - siguiente + 1;
+        if (!reproduciendo) {
+            if (profundidad < getObjetivoTramas()) return null;
+            reproduciendo = true;
+        }
+        if (profundidad <= 0) {
+            vacios++;
+            // Mucho tiempo sin nada: se vuelve a llenar hasta el objetivo antes de seguir
+            if (++vaciosSeguidos >= maximoTramas) reproduciendo = false;
+            return null;
+        }
+        vaciosSeguidos = 0;
+        if (profundidad <= getObjetivoTramas()) {
+            excesoSeguido = 0;
+        } else if (++excesoSeguido >= EXCESO_TOLERADO) {
+            excesoSeguido = 0;
+            sacar();
+            descartados++;
+        }
+        PaqueteVoz paquete = sacar();
+        if (paquete == null) perdidos++;
+        return paquete;
+    }
+
+    private PaqueteVoz sacar() {
+        int ranura = (int) (siguiente % CAPACIDAD);
+        PaqueteVoz paquete = secuencias[ranura] == siguiente ? ranuras[ranura] : null;
+        ranuras[ranura] = null;
+        siguiente++;
+        return paquete;
+    }
+
+    // La secuencia de 16 bits mas cercana a la ultima recibida
+    private long extender(int secuencia) {
+        if (maxima < 0) return secuencia;
+        return maxima + (short) (secuencia - (int) (maxima & 0xFFFF));
+    }
+
+    // J += (|D| - J) / 16, con D la diferencia entre lo que tardaron en llegar dos paquetes
+    // seguidos y lo que los separa su marca de tiempo
+    private void actualizarJitter(long marcaTiempo, long llegadaNanos) {
+        if (marcaAnterior >= 0) {
+            double transcurrido = (llegadaNanos - llegadaAnterior) / 1e6;
+            double esperado = (int) (marcaTiempo - marcaAnterior) * 1000.0 / frecuencia;
+            jitterMs += (Math.abs(transcurrido - esperado) - jitterMs) / 16;
+        }
+        llegadaAnterior = llegadaNanos;
+        marcaAnterior = marcaTiempo;
+    }
+
+    /** Tramas que se retienen antes de reproducir: el triple del jitter mas una. */
+    public synchronized int getObjetivoTramas() {
+        int tramas = (int) Math.ceil(3 * jitterMs / msPorTrama) + 1;
+        return Math.max(minimoTramas, Math.min(maximoTramas, tramas));
+    }
+
+    public synchronized double getJitterMs() {
+        return jitterMs;
+    }
+
+    /** Retardo que anade el buffer ahora mismo. */
+    public synchronized double getRetardoMs() {
+        return siguiente < 0 ? 0 : Math.max(0, maxima - siguiente + 1) * msPorTrama;
+    }
+
+    public synchronized String resumen() {
+        return String.format(Locale.ROOT,
+                "recibidos=%d perdidos=%d tardios=%d duplicados=%d descartados=%d vacios=%d jitter=%.1fms objetivo=%d tramas",
+                recibidos, perdidos, tardios, duplicados, descartados, vacios, jitterMs, getObjetivoTramas());
+    }
+}
@@ -0,0 +1,50 @@
+package audio;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Cabecera de 8 bytes al principio de una nota de voz:
+ * "CMA", version, id del codec, reservado y frecuencia de muestreo (2 bytes, big endian).
+ * Las notas de clientes anteriores no la tienen y se tratan como PCM sin comprimir. Las
+ * llamadas no la usan: cada PaqueteVoz lleva su codec.
+ */
+public final class CabeceraAudio {
+    public static final int LONGITUD = 8;
+    private static final int VERSION = 1;
+
+    private final CodecAudio codec;
+    private final int frecuencia;
+
+    public CabeceraAudio(CodecAudio codec, int frecuencia) {
+        this.codec = codec;
+        this.frecuencia = frecuencia;
+    }
+
+    public CodecAudio getCodec() {
+        return codec;
+    }
+
+    public int getFrecuencia() {
+        return frecuencia;
+    }
+
+    public byte[] comoBytes() {
+        return new byte[]{'C', 'M', 'A', VERSION, (byte) codec.getId(), 0,
+                (byte) (frecuencia >> 8), (byte) frecuencia};
+    }
+
+    public void escribir(OutputStream salida) throws IOException {
+        salida.write(comoBytes());
+    }
+
+    /** La cabecera al principio de datos, o null si no la tiene o usa un codec desconocido. */
+    public static CabeceraAudio leer(byte[] datos) {
+        if (datos.length < LONGITUD || datos[0] != 'C' || datos[1] != 'M' || datos[2] != 'A' || datos[3] != VERSION) {
+            return null;
+        }
+        CodecAudio codec = CodecAudio.porId(datos[4] & 0xFF);
+        if (codec == null) return null;
+        return new CabeceraAudio(codec, ((datos[6] & 0xFF) << 8) | (datos[7] & 0xFF));
+    }
+}
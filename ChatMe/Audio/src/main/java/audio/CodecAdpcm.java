@@ -0,0 +1,158 @@
+package audio;
+
+/**
+ * IMA ADPCM: cada muestra de 16 bits se codifica en 4 bits como la diferencia con una
+ * prediccion, con un paso que se adapta a la senal (4:1). Dos muestras por byte, la primera
+ * en el nibble bajo. El estado (prediccion e indice de paso) pasa de un trozo al siguiente.
+ */
+public class CodecAdpcm implements CodecAudio {
+    private static final int[] INDICES = {-1, -1, -1, -1, 2, 4, 6, 8, -1, -1, -1, -1, 2, 4, 6, 8};
+    private static final int[] PASOS = {
+            7, 8, 9, 10, 11, 12, 13, 14, 16, 17, 19, 21, 23, 25, 28, 31, 34, 37, 41, 45,
+            50, 55, 60, 66, 73, 80, 88, 97, 107, 118, 130, 143, 157, 173, 190, 209, 230, 253, 279, 307,
+            337, 371, 408, 449, 494, 544, 598, 658, 724, 796, 876, 963, 1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066,
+            2272, 2499, 2749, 3024, 3327, 3660, 4026, 4428, 4871, 5358, 5894, 6484, 7132, 7845, 8630, 9493, 10442, 11487, 12635, 13899,
+            15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767
+    };
+
+    @Override
+    public int getId() {
+        return 2;
+    }
+
+    @Override
+    public String getNombre() {
+        return "adpcm";
+    }
+
+    @Override
+    public int maximoCodificado(int pcmBytes) {
+        return pcmBytes / 4 + 2;
+    }
+
+    @Override
+    public int maximoDecodificado(int datosBytes) {
+        return datosBytes * 4;
+    }
+
+    // Prediccion e indice de paso; codificador y decodificador los actualizan igual
+    private static final class Estado {
+        int prediccion;
+        int indice;
+
+        int comoEntero() {
+            return ((prediccion & 0xFFFF) << 8) | indice;
+        }
+
+        void desde(int estado) {
+            prediccion = (short) (estado >> 8);
+            indice = Math.max(0, Math.min(PASOS.length - 1, estado & 0xFF));
+        }
+
+        // Aplica un nibble y devuelve la muestra reconstruida
+        int aplicar(int nibble) {
+            int paso = PASOS[indice];
+            int diferencia = paso >> 3;
+            if ((nibble & 4) != 0) diferencia += paso;
+            if ((nibble & 2) != 0) diferencia += paso >> 1;
+            if ((nibble & 1) != 0) diferencia += paso >> 2;
+            prediccion += (nibble & 8) != 0 ? -diferencia : diferencia;
+            prediccion = Math.max(-32768, Math.min(32767, prediccion));
+            indice = Math.max(0, Math.min(PASOS.length - 1, indice + INDICES[nibble]));
+            return prediccion;
+        }
+
+        int codificar(int muestra) {
+            int paso = PASOS[indice];
+            int diferencia = muestra - prediccion;
+            int nibble = 0;
+            if (diferencia < 0) {
+                nibble = 8;
+                diferencia = -diferencia;
+            }
+            if (diferencia >= paso) {
+                nibble |= 4;
+                diferencia -= paso;
+            }
+            if (diferencia >= paso >> 1) {
+                nibble |= 2;
+                diferencia -= paso >> 1;
+            }
+            if (diferencia >= paso >> 2) nibble |= 1;
+            aplicar(nibble);
+            return nibble;
+        }
+    }
+
+    @Override
+    public Codificador nuevoCodificador() {
+        return new Codificador() {
+            private final Estado estado = new Estado();
+            // Byte bajo de una muestra partida entre trozos, o -1
+            private int bytePendiente = -1;
+            // Nibble de la primera muestra de un byte que aun no se completo, o -1
+            private int nibblePendiente = -1;
+
+            @Override
+            public int codificar(byte[] pcm, int desde, int longitud, byte[] destino) {
+                int escritos = 0;
+                int i = desde;
+                int fin = desde + longitud;
+                while (i < fin) {
+                    int muestra;
+                    if (bytePendiente >= 0) {
+                        muestra = (short) ((pcm[i++] << 8) | bytePendiente);
+                        bytePendiente = -1;
+                    } else if (i + 1 < fin) {
+                        muestra = (short) ((pcm[i + 1] << 8) | (pcm[i] & 0xFF));
+                        i += 2;
+                    } else {
+                        bytePendiente = pcm[i++] & 0xFF;
+                        break;
+                    }
+                    int nibble = estado.codificar(muestra);
+                    if (nibblePendiente < 0) {
+                        nibblePendiente = nibble;
+                    } else {
+                        destino[escritos++] = (byte) (nibblePendiente | (nibble << 4));
+                        nibblePendiente = -1;
+                    }
+                }
+                return escritos;
+            }
+
+            // Con una muestra a medias el estado no sirve para empezar un paquete; las llamadas usan trozos pares
+            @Override
+            public int getEstado() {
+                return estado.comoEntero();
+            }
+        };
+    }
+
+    @Override
+    public Decodificador nuevoDecodificador() {
+        return new Decodificador() {
+            private final Estado estado = new Estado();
+
+            @Override
+            public int decodificar(byte[] datos, int desde, int longitud, byte[] destino) {
+                int escritos = 0;
+                for (int i = desde; i < desde + longitud; i++) {
+                    int b = datos[i] & 0xFF;
+                    int primera = estado.aplicar(b & 0x0F);
+                    destino[escritos++] = (byte) primera;
+                    destino[escritos++] = (byte) (primera >> 8);
+                    int segunda = estado.aplicar(b >> 4);
+                    destino[escritos++] = (byte) segunda;
+                    destino[escritos++] = (byte) (segunda >> 8);
+                }
+                return escritos;
+            }
+
+            @Override
+            public void setEstado(int valor) {
+                estado.desde(valor);
+            }
+        };
+    }
+}
@@ -0,0 +1,66 @@
+package audio;
+
+import java.util.List;
+
+/**
+ * Codec de audio para notas de voz, llamadas y el mezclador de conferencias del servidor. La
+ * entrada y la salida son PCM de 16 bits con signo, little endian, mono. Codificador y
+ * decodificador guardan estado entre llamadas, asi que cada flujo (una nota, un sentido de una
+ * llamada) usa los suyos y se le pueden pasar trozos de cualquier tamano a medida que se graban
+ * o llegan.
+ *
+ * Para agregar un codec basta con implementarlo y sumarlo a DISPONIBLES con un id nuevo.
+ */
+public interface CodecAudio {
+
+    List<CodecAudio> DISPONIBLES = List.of(new CodecAdpcm(), new CodecMuLaw(), new CodecPcm());
+
+    // Id de un byte que viaja en CabeceraAudio
+    int getId();
+
+    // Nombre con el que se negocia ("adpcm", "mulaw", "pcm")
+    String getNombre();
+
+    // Bytes codificados como maximo para pcmBytes bytes de PCM, para dimensionar el destino
+    int maximoCodificado(int pcmBytes);
+
+    // Bytes de PCM como maximo para datosBytes bytes codificados
+    int maximoDecodificado(int datosBytes);
+
+    Codificador nuevoCodificador();
+
+    Decodificador nuevoDecodificador();
+
+    interface Codificador {
+        /** Codifica pcm[desde, desde+longitud) en destino y devuelve cuantos bytes escribio. */
+        int codificar(byte[] pcm, int desde, int longitud, byte[] destino);
+
+        /** Estado interno antes del proximo byte, para que un paquete se decodifique aunque se pierda el anterior. */
+        default int getEstado() {
+            return 0;
+        }
+    }
+
+    interface Decodificador {
+        /** Decodifica datos[desde, desde+longitud) a PCM en destino y devuelve cuantos bytes escribio. */
+        int decodificar(byte[] datos, int desde, int longitud, byte[] destino);
+
+        /** Continua desde un estado de Codificador.getEstado(); los codecs sin estado lo ignoran. */
+        default void setEstado(int estado) {
+        }
+    }
+
+    static CodecAudio porNombre(String nombre) {
+        for (CodecAudio codec : DISPONIBLES) {
+            if (codec.getNombre().equalsIgnoreCase(nombre.trim())) return codec;
+        }
+        return null;
+    }
+
+    static CodecAudio porId(int id) {
+        for (CodecAudio codec : DISPONIBLES) {
+            if (codec.getId() == id) return codec;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,91 @@
+package audio;
+
+/**
+ * G.711 mu-law: cada muestra de 16 bits pasa a 8 bits con escala logaritmica (2:1). Sin
+ * estado entre muestras salvo el byte impar que quede al final de un trozo.
+ */
+public class CodecMuLaw implements CodecAudio {
+    private static final int SESGO = 0x84;
+    private static final int MAXIMO = 32635;
+    private static final short[] DECODIFICADOS = new short[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int u = ~i & 0xFF;
+            int exponente = (u >> 4) & 0x07;
+            int magnitud = ((u & 0x0F) << 3) + SESGO;
+            magnitud <<= exponente;
+            DECODIFICADOS[i] = (short) ((u & 0x80) != 0 ? SESGO - magnitud : magnitud - SESGO);
+        }
+    }
+
+    @Override
+    public int getId() {
+        return 1;
+    }
+
+    @Override
+    public String getNombre() {
+        return "mulaw";
+    }
+
+    @Override
+    public int maximoCodificado(int pcmBytes) {
+        return pcmBytes / 2 + 1;
+    }
+
+    @Override
+    public int maximoDecodificado(int datosBytes) {
+        return datosBytes * 2;
+    }
+
+    static int codificarMuestra(int muestra) {
+        int signo = (muestra >> 8) & 0x80;
+        if (signo != 0) muestra = -muestra;
+        if (muestra > MAXIMO) muestra = MAXIMO;
+        muestra += SESGO;
+        int exponente = 7;
+        for (int mascara = 0x4000; (muestra & mascara) == 0 && exponente > 0; mascara >>= 1) {
+            exponente--;
+        }
+        int mantisa = (muestra >> (exponente + 3)) & 0x0F;
+        return ~(signo | (exponente << 4) | mantisa) & 0xFF;
+    }
+
+    @Override
+    public Codificador nuevoCodificador() {
+        return new Codificador() {
+            // Byte bajo de una muestra partida entre dos trozos, o -1
+            private int pendiente = -1;
+
+            @Override
+            public int codificar(byte[] pcm, int desde, int longitud, byte[] destino) {
+                int escritos = 0;
+                int i = desde;
+                int fin = desde + longitud;
+                if (pendiente >= 0 && i < fin) {
+                    destino[escritos++] = (byte) codificarMuestra((short) ((pcm[i++] << 8) | pendiente));
+                    pendiente = -1;
+                }
+                for (; i + 1 < fin; i += 2) {
+                    destino[escritos++] = (byte) codificarMuestra((short) ((pcm[i + 1] << 8) | (pcm[i] & 0xFF)));
+                }
+                if (i < fin) pendiente = pcm[i] & 0xFF;
+                return escritos;
+            }
+        };
+    }
+
+    @Override
+    public Decodificador nuevoDecodificador() {
+        return (datos, desde, longitud, destino) -> {
+            int escritos = 0;
+            for (int i = desde; i < desde + longitud; i++) {
+                short muestra = DECODIFICADOS[datos[i] & 0xFF];
+                destino[escritos++] = (byte) muestra;
+                destino[escritos++] = (byte) (muestra >> 8);
+            }
+            return escritos;
+        };
+    }
+}
@@ -0,0 +1,41 @@
+package audio;
+
+/** Sin compresion: copia el PCM tal cual. */
+public class CodecPcm implements CodecAudio {
+
+    @Override
+    public int getId() {
+        return 0;
+    }
+
+    @Override
+    public String getNombre() {
+        return "pcm";
+    }
+
+    @Override
+    public int maximoCodificado(int pcmBytes) {
+        return pcmBytes;
+    }
+
+    @Override
+    public int maximoDecodificado(int datosBytes) {
+        return datosBytes;
+    }
+
+    @Override
+    public Codificador nuevoCodificador() {
+        return (pcm, desde, longitud, destino) -> {
+            System.arraycopy(pcm, desde, destino, 0, longitud);
+            return longitud;
+        };
+    }
+
+    @Override
+    public Decodificador nuevoDecodificador() {
+        return (datos, desde, longitud, destino) -> {
+            System.arraycopy(datos, desde, destino, 0, longitud);
+            return longitud;
+        };
+    }
+}
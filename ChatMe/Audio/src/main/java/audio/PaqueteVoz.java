@@ -0,0 +1,145 @@
+package audio;
+
+/**
+ * Datagrama de una llamada, con la cabecera de RTP (RFC 3550) y un campo mas: version 2,
+ * tipo de carga 96 + id del codec (RUIDO_CONFORT en los silencios, FIN al colgar), numero
+ * de secuencia de 16 bits, marca de tiempo en muestras, SSRC del emisor y el estado del
+ * codificador al empezar el paquete. Con ese estado el receptor decodifica cada paquete
+ * aunque haya perdido el anterior.
+ */
+public final class PaqueteVoz {
+    public static final int CABECERA = 16;
+    public static final int FIN = 127;
+    // Tipo estatico de RTP para ruido de confort (RFC 3389): reemplaza las tramas de silencio
+    public static final int RUIDO_CONFORT = 13;
+    private static final int VERSION_RTP = 0x80;
+    private static final int TIPO_DINAMICO = 96;
+
+    private final int tipo;
+    private final int secuencia;
+    private final long marcaTiempo;
+    private final int ssrc;
+    private final int estadoCodec;
+    private final byte[] datos;
+    private final int longitud;
+
+    private PaqueteVoz(int tipo, int secuencia, long marcaTiempo, int ssrc, int estadoCodec, byte[] datos, int longitud) {
+        this.tipo = tipo;
+        this.secuencia = secuencia;
+        this.marcaTiempo = marcaTiempo;
+        this.ssrc = ssrc;
+        this.estadoCodec = estadoCodec;
+        this.datos = datos;
+        this.longitud = longitud;
+    }
+
+    public static PaqueteVoz audio(CodecAudio codec, int secuencia, long marcaTiempo, int ssrc, int estadoCodec,
+                                   byte[] datos, int longitud) {
+        return new PaqueteVoz(TIPO_DINAMICO + codec.getId(), secuencia & 0xFFFF, marcaTiempo & 0xFFFFFFFFL, ssrc,
+                estadoCodec, datos, longitud);
+    }
+
+    public static PaqueteVoz fin(int secuencia, int ssrc) {
+        return new PaqueteVoz(FIN, secuencia & 0xFFFF, 0, ssrc, 0, new byte[0], 0);
+    }
+
+    // Un byte de carga: el nivel del ruido de fondo en -dBov
+    public static PaqueteVoz ruidoConfort(int secuencia, long marcaTiempo, int ssrc, int nivel) {
+        return new PaqueteVoz(RUIDO_CONFORT, secuencia & 0xFFFF, marcaTiempo & 0xFFFFFFFFL, ssrc, 0,
+                new byte[]{(byte) (nivel & 0x7F)}, 1);
+    }
+
+    public boolean esFin() {
+        return tipo == FIN;
+    }
+
+    public boolean esRuidoConfort() {
+        return tipo == RUIDO_CONFORT;
+    }
+
+    // Nivel en -dBov del ruido de confort; sin carga, el mas bajo
+    public int getNivelRuido() {
+        return longitud > 0 ? datos[0] & 0x7F : 127;
+    }
+
+    // null si es FIN, ruido de confort o un codec desconocido
+    public CodecAudio getCodec() {
+        return esFin() || esRuidoConfort() ? null : CodecAudio.porId(tipo - TIPO_DINAMICO);
+    }
+
+    public int getSecuencia() {
+        return secuencia;
+    }
+
+    public long getMarcaTiempo() {
+        return marcaTiempo;
+    }
+
+    public int getSsrc() {
+        return ssrc;
+    }
+
+    public int getEstadoCodec() {
+        return estadoCodec;
+    }
+
+    public byte[] getDatos() {
+        return datos;
+    }
+
+    public int getLongitud() {
+        return longitud;
+    }
+
+    /** Escribe el paquete en destino y devuelve su longitud. */
+    public int escribir(byte[] destino) {
+        escribirCabecera(destino, tipo, secuencia, marcaTiempo, ssrc, estadoCodec);
+        System.arraycopy(datos, 0, destino, CABECERA, longitud);
+        return CABECERA + longitud;
+    }
+
+    /**
+     * Solo la cabecera de un paquete de audio, para quien codifica directamente detras de ella
+     * (el mezclador de conferencias) sin crear un PaqueteVoz por envio.
+     */
+    public static void escribirCabeceraAudio(byte[] destino, CodecAudio codec, int secuencia, long marcaTiempo,
+                                             int ssrc, int estadoCodec) {
+        escribirCabecera(destino, TIPO_DINAMICO + codec.getId(), secuencia & 0xFFFF, marcaTiempo, ssrc, estadoCodec);
+    }
+
+    private static void escribirCabecera(byte[] destino, int tipo, int secuencia, long marcaTiempo, int ssrc,
+                                         int estadoCodec) {
+        destino[0] = (byte) VERSION_RTP;
+        destino[1] = (byte) tipo;
+        destino[2] = (byte) (secuencia >> 8);
+        destino[3] = (byte) secuencia;
+        escribirEntero(destino, 4, (int) marcaTiempo);
+        escribirEntero(destino, 8, ssrc);
+        escribirEntero(destino, 12, estadoCodec);
+    }
+
+    /** El paquete en datagrama[0, longitud), o null si no es un paquete de voz valido. */
+    public static PaqueteVoz leer(byte[] datagrama, int longitud) {
+        if (longitud < CABECERA || (datagrama[0] & 0xC0) != VERSION_RTP) return null;
+        int tipo = datagrama[1] & 0x7F;
+        if (tipo != FIN && tipo != RUIDO_CONFORT && CodecAudio.porId(tipo - TIPO_DINAMICO) == null) return null;
+        int secuencia = ((datagrama[2] & 0xFF) << 8) | (datagrama[3] & 0xFF);
+        long marcaTiempo = leerEntero(datagrama, 4) & 0xFFFFFFFFL;
+        byte[] datos = new byte[longitud - CABECERA];
+        System.arraycopy(datagrama, CABECERA, datos, 0, datos.length);
+        return new PaqueteVoz(tipo, secuencia, marcaTiempo, leerEntero(datagrama, 8), leerEntero(datagrama, 12),
+                datos, datos.length);
+    }
+
+    private static void escribirEntero(byte[] destino, int posicion, int valor) {
+        destino[posicion] = (byte) (valor >> 24);
+        destino[posicion + 1] = (byte) (valor >> 16);
+        destino[posicion + 2] = (byte) (valor >> 8);
+        destino[posicion + 3] = (byte) valor;
+    }
+
+    private static int leerEntero(byte[] origen, int posicion) {
+        return ((origen[posicion] & 0xFF) << 24) | ((origen[posicion + 1] & 0xFF) << 16)
+                | ((origen[posicion + 2] & 0xFF) << 8) | (origen[posicion + 3] & 0xFF);
+    }
+}
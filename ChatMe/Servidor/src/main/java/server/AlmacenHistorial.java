@@ -0,0 +1,369 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Historial en segmentos de solo anexado ("segmento-00000001.log", ...) con un indice en
+ * memoria por conversacion y por tiempo. El indice guarda como mucho los ultimos
+ * maxPorConversacion registros de cada conversacion; los anteriores siguen en disco pero ya
+ * no se consultan. Ademas recuerda en que conversaciones se envio cada nota de voz, para
+ * decidir quien puede volver a pedirla. Cada registro es
+ * [longitud del cuerpo: int][crc32 del cuerpo: int][timestamp: long][conversacion: short + UTF-8][texto: UTF-8].
+ *
+ * El indice se reconstruye al abrir leyendo los segmentos en orden; un registro incompleto al
+ * final del ultimo segmento (caida a mitad de escritura) se trunca. Solo un hilo anexa (el
+ * escritor de HistorialAsincrono); las consultas pueden llegar desde cualquier hilo.
+ */
+public class AlmacenHistorial {
+    private static final String PREFIJO = "segmento-";
+    private static final String EXTENSION = ".log";
+    private static final int ENCABEZADO = 8;
+    private static final int MAX_CUERPO = 1024 * 1024;
+    // La posicion de un registro se guarda en un long: segmento en los bits altos, offset en los 40 bajos
+    private static final int BITS_OFFSET = 40;
+
+    private final Path directorio;
+    private final long maxSegmento;
+    private final int maxPorConversacion;
+    private final List<Segmento> segmentos = new ArrayList<>();
+    private final Map<String, IndiceConversacion> indices = new ConcurrentHashMap<>();
+    // Id de nota -> conversaciones de sus registros de voz; una entrada chica por nota
+    private final Map<String, Set<String>> conversacionesNota = new ConcurrentHashMap<>();
+    private final ByteBuffer escritura = ByteBuffer.allocate(64 * 1024);
+    private final CRC32 crc = new CRC32();
+    private Segmento activo;
+
+    private static final class Segmento {
+        final int numero;
+        final FileChannel canal;
+        volatile long tamano;
+
+        Segmento(int numero, FileChannel canal, long tamano) {
+            this.numero = numero;
+            this.canal = canal;
+            this.tamano = tamano;
+        }
+    }
+
+    // Posiciones y timestamps de una conversacion en orden de llegada, hasta maximo
+    private static final class IndiceConversacion {
+        private final int maximo;
+        private long[] posiciones;
+        private long[] timestamps;
+        private int cantidad;
+
+        IndiceConversacion(int maximo) {
+            this.maximo = maximo;
+            this.posiciones = new long[Math.min(16, maximo)];
+            this.timestamps = new long[posiciones.length];
+        }
+
+        synchronized void agregar(long posicion, long timestamp) {
+            if (cantidad == maximo) {
+                // Lleno: se olvida el cuarto mas antiguo de una vez, asi el corrimiento se amortiza
+                int olvidar = Math.max(1, maximo / 4);
+                System.arraycopy(posiciones, olvidar, posiciones, 0, cantidad - olvidar);
+                System.arraycopy(timestamps, olvidar, timestamps, 0, cantidad - olvidar);
+                cantidad -= olvidar;
+            } else if (cantidad == posiciones.length) {
+                int capacidad = Math.min(maximo, cantidad * 2);
+                posiciones = Arrays.copyOf(posiciones, capacidad);
+                timestamps = Arrays.copyOf(timestamps, capacidad);
+            }
+            posiciones[cantidad] = posicion;
+            timestamps[cantidad] = timestamp;
+            cantidad++;
+        }
+
+        synchronized long[] ultimas(int n) {
+            int desde = Math.max(0, cantidad - n);
+            return Arrays.copyOfRange(posiciones, desde, cantidad);
+        }
+
+        synchronized long[] desde(long timestamp, int max) {
+            int inicio = Arrays.binarySearch(timestamps, 0, cantidad, timestamp);
+            if (inicio < 0) {
+                inicio = -inicio - 1;
+            } else {
+                while (inicio > 0 && timestamps[inicio - 1] == timestamp) inicio--;
+            }
+            return Arrays.copyOfRange(posiciones, inicio, Math.min(cantidad, inicio + max));
+        }
+
+        synchronized int cantidad() {
+            return cantidad;
+        }
+    }
+
+    public AlmacenHistorial(Path directorio, long maxSegmento, int maxPorConversacion) throws IOException {
+        this.directorio = directorio;
+        this.maxSegmento = maxSegmento;
+        this.maxPorConversacion = maxPorConversacion;
+        Files.createDirectories(directorio);
+        abrirSegmentos();
+    }
+
+    private void abrirSegmentos() throws IOException {
+        List<Integer> numeros = new ArrayList<>();
+        try (DirectoryStream<Path> archivos = Files.newDirectoryStream(directorio, PREFIJO + "*" + EXTENSION)) {
+            for (Path archivo : archivos) {
+                String nombre = archivo.getFileName().toString();
+                try {
+                    numeros.add(Integer.parseInt(nombre.substring(PREFIJO.length(), nombre.length() - EXTENSION.length())));
+                } catch (NumberFormatException e) {
+                    System.err.println("Archivo ignorado en el historial: " + nombre);
+                }
+            }
+        }
+        Collections.sort(numeros);
+
+        for (int i = 0; i < numeros.size(); i++) {
+            Segmento segmento = abrir(numeros.get(i));
+            segmentos.add(segmento);
+            indexar(segmento, i == numeros.size() - 1);
+        }
+        if (segmentos.isEmpty()) {
+            segmentos.add(abrir(1));
+        }
+        activo = segmentos.get(segmentos.size() - 1);
+    }
+
+    private Segmento abrir(int numero) throws IOException {
+        Path archivo = directorio.resolve(String.format("%s%08d%s", PREFIJO, numero, EXTENSION));
+        FileChannel canal = FileChannel.open(archivo, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new Segmento(numero, canal, canal.size());
+    }
+
+    // Recorre el segmento y agrega sus registros al indice; en el ultimo segmento trunca la cola danada
+    private void indexar(Segmento segmento, boolean ultimo) throws IOException {
+        long offset = 0;
+        // El flujo no se cierra: cerrarlo cerraria tambien el canal del segmento
+        DataInputStream entrada = new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(segmento.canal.position(0)), 64 * 1024));
+        byte[] cuerpo = new byte[256];
+        while (offset + ENCABEZADO <= segmento.tamano) {
+            int longitud = entrada.readInt();
+            int crcEsperado = entrada.readInt();
+            if (longitud < 10 || longitud > MAX_CUERPO || offset + ENCABEZADO + longitud > segmento.tamano) break;
+            if (cuerpo.length < longitud) cuerpo = new byte[longitud];
+            entrada.readFully(cuerpo, 0, longitud);
+            crc.reset();
+            crc.update(cuerpo, 0, longitud);
+            if ((int) crc.getValue() != crcEsperado) break;
+
+            ByteBuffer lectura = ByteBuffer.wrap(cuerpo, 0, longitud);
+            long timestamp = lectura.getLong();
+            int longitudConversacion = lectura.getShort() & 0xFFFF;
+            String conversacion = new String(cuerpo, 10, longitudConversacion, StandardCharsets.UTF_8);
+            indexarRegistro(segmento, offset, timestamp, conversacion);
+            // El texto solo se decodifica en los registros de voz
+            int inicioTexto = 10 + longitudConversacion;
+            if (longitud - inicioTexto >= 4 && cuerpo[inicioTexto] == '[' && cuerpo[inicioTexto + 1] == 'V') {
+                String texto = new String(cuerpo, inicioTexto, longitud - inicioTexto, StandardCharsets.UTF_8);
+                indexarNota(RegistroHistorial.idNota(texto), conversacion);
+            }
+            offset += ENCABEZADO + longitud;
+        }
+
+        if (offset < segmento.tamano) {
+            if (ultimo) {
+                System.err.println("Historial: se descartan " + (segmento.tamano - offset)
+                        + " bytes incompletos al final del segmento " + segmento.numero);
+                segmento.canal.truncate(offset);
+                segmento.tamano = offset;
+            } else {
+                System.err.println("Historial: segmento " + segmento.numero + " danado a partir del byte " + offset);
+            }
+        }
+    }
+
+    private void indexarRegistro(Segmento segmento, long offset, long timestamp, String conversacion) {
+        long posicion = ((long) segmento.numero << BITS_OFFSET) | offset;
+        indices.computeIfAbsent(conversacion, c -> new IndiceConversacion(maxPorConversacion)).agregar(posicion, timestamp);
+    }
+
+    private void indexarNota(String idNota, String conversacion) {
+        if (idNota != null) conversacionesNota.computeIfAbsent(idNota, id -> ConcurrentHashMap.newKeySet()).add(conversacion);
+    }
+
+    /** Anexa un lote de registros con el menor numero de escrituras posible. Solo desde un hilo. */
+    public void anexar(List<RegistroHistorial> lote) throws IOException {
+        // Posiciones calculadas mientras se arma el buffer; se indexan cuando el buffer ya esta en disco
+        long[] offsets = new long[lote.size()];
+        Segmento[] destinos = new Segmento[lote.size()];
+        int indexados = 0;
+
+        for (int i = 0; i < lote.size(); i++) {
+            RegistroHistorial registro = lote.get(i);
+            byte[] conversacion = registro.getConversacion().getBytes(StandardCharsets.UTF_8);
+            byte[] texto = registro.getTexto().getBytes(StandardCharsets.UTF_8);
+            int longitud = 10 + conversacion.length + texto.length;
+            if (conversacion.length > 0xFFFF || longitud > MAX_CUERPO) {
+                System.err.println("Registro de historial demasiado grande, se omite");
+                continue;
+            }
+            int total = ENCABEZADO + longitud;
+
+            if (activo.tamano + escritura.position() + total > maxSegmento && activo.tamano + escritura.position() > 0) {
+                volcar();
+                indexados = indexarPendientes(lote, offsets, destinos, indexados, i);
+                rotar();
+            }
+            if (total > escritura.remaining()) {
+                volcar();
+                indexados = indexarPendientes(lote, offsets, destinos, indexados, i);
+            }
+
+            offsets[i] = activo.tamano + escritura.position();
+            destinos[i] = activo;
+            if (total > escritura.capacity()) {
+                ByteBuffer grande = ByteBuffer.allocate(total);
+                serializar(grande, registro.getTimestamp(), conversacion, texto);
+                grande.flip();
+                while (grande.hasRemaining()) activo.canal.write(grande, activo.tamano + grande.position());
+                activo.tamano += total;
+            } else {
+                serializar(escritura, registro.getTimestamp(), conversacion, texto);
+            }
+        }
+        volcar();
+        indexarPendientes(lote, offsets, destinos, indexados, lote.size());
+    }
+
+    private int indexarPendientes(List<RegistroHistorial> lote, long[] offsets, Segmento[] destinos, int desde, int hasta) {
+        for (int i = desde; i < hasta; i++) {
+            if (destinos[i] != null) {
+                RegistroHistorial registro = lote.get(i);
+                indexarRegistro(destinos[i], offsets[i], registro.getTimestamp(), registro.getConversacion());
+                indexarNota(RegistroHistorial.idNota(registro.getTexto()), registro.getConversacion());
+            }
+        }
+        return hasta;
+    }
+
+    private void serializar(ByteBuffer destino, long timestamp, byte[] conversacion, byte[] texto) {
+        int inicio = destino.position();
+        int longitud = 10 + conversacion.length + texto.length;
+        destino.putInt(longitud);
+        destino.putInt(0);
+        destino.putLong(timestamp);
+        destino.putShort((short) conversacion.length);
+        destino.put(conversacion);
+        destino.put(texto);
+
+        crc.reset();
+        ByteBuffer cuerpo = destino.duplicate();
+        cuerpo.position(inicio + ENCABEZADO).limit(inicio + ENCABEZADO + longitud);
+        crc.update(cuerpo);
+        destino.putInt(inicio + 4, (int) crc.getValue());
+    }
+
+    private void volcar() throws IOException {
+        escritura.flip();
+        while (escritura.hasRemaining()) {
+            activo.tamano += activo.canal.write(escritura, activo.tamano);
+        }
+        escritura.clear();
+    }
+
+    private void rotar() throws IOException {
+        activo.canal.force(false);
+        Segmento nuevo = abrir(activo.numero + 1);
+        synchronized (segmentos) {
+            segmentos.add(nuevo);
+        }
+        activo = nuevo;
+    }
+
+    public void forzar() throws IOException {
+        activo.canal.force(false);
+    }
+
+    /** Ultimos n mensajes de la conversacion, del mas antiguo al mas reciente. */
+    public List<RegistroHistorial> ultimos(String conversacion, int n) throws IOException {
+        IndiceConversacion indice = indices.get(conversacion);
+        if (indice == null || n <= 0) return Collections.emptyList();
+        return leer(conversacion, indice.ultimas(n));
+    }
+
+    /** Hasta max mensajes de la conversacion registrados desde timestamp (inclusive). */
+    public List<RegistroHistorial> desde(String conversacion, long timestamp, int max) throws IOException {
+        IndiceConversacion indice = indices.get(conversacion);
+        if (indice == null || max <= 0) return Collections.emptyList();
+        return leer(conversacion, indice.desde(timestamp, max));
+    }
+
+    /** Conversaciones en las que se envio la nota; vacio si el historial no la registra. */
+    public Set<String> conversacionesDeNota(String idNota) {
+        return conversacionesNota.getOrDefault(idNota, Collections.emptySet());
+    }
+
+    public int cantidadMensajes(String conversacion) {
+        IndiceConversacion indice = indices.get(conversacion);
+        return indice == null ? 0 : indice.cantidad();
+    }
+
+    public boolean estaVacio() {
+        return indices.isEmpty();
+    }
+
+    private List<RegistroHistorial> leer(String conversacion, long[] posiciones) throws IOException {
+        Map<Integer, Segmento> porNumero = new HashMap<>();
+        synchronized (segmentos) {
+            for (Segmento segmento : segmentos) porNumero.put(segmento.numero, segmento);
+        }
+        List<RegistroHistorial> resultado = new ArrayList<>(posiciones.length);
+        for (long posicion : posiciones) {
+            Segmento segmento = porNumero.get((int) (posicion >>> BITS_OFFSET));
+            if (segmento == null) continue;
+            RegistroHistorial registro = leerRegistro(segmento, posicion & ((1L << BITS_OFFSET) - 1), conversacion);
+            if (registro != null) resultado.add(registro);
+        }
+        return resultado;
+    }
+
+    // Lectura posicional: no mueve la posicion del canal y puede hacerse en paralelo a la escritura
+    private RegistroHistorial leerRegistro(Segmento segmento, long offset, String conversacion) throws IOException {
+        ByteBuffer encabezado = ByteBuffer.allocate(ENCABEZADO);
+        if (!leerCompleto(segmento.canal, encabezado, offset)) return null;
+        int longitud = encabezado.getInt(0);
+        if (longitud < 10 || longitud > MAX_CUERPO) return null;
+
+        ByteBuffer cuerpo = ByteBuffer.allocate(longitud);
+        if (!leerCompleto(segmento.canal, cuerpo, offset + ENCABEZADO)) return null;
+        long timestamp = cuerpo.getLong(0);
+        int longitudConversacion = cuerpo.getShort(8) & 0xFFFF;
+        byte[] bytes = cuerpo.array();
+        int inicioTexto = 10 + longitudConversacion;
+        String texto = new String(bytes, inicioTexto, longitud - inicioTexto, StandardCharsets.UTF_8);
+        return new RegistroHistorial(timestamp, conversacion, texto);
+    }
+
+    private static boolean leerCompleto(FileChannel canal, ByteBuffer destino, long offset) throws IOException {
+        while (destino.hasRemaining()) {
+            int leidos = canal.read(destino, offset + destino.position());
+            if (leidos < 0) return false;
+        }
+        return true;
+    }
+
+    public void cerrar() {
+        synchronized (segmentos) {
+            for (Segmento segmento : segmentos) {
+                try {
+                    segmento.canal.close();
+                } catch (IOException e) {
+                    System.err.println("Error al cerrar segmento de historial: " + e.getMessage());
+                }
+            }
+        }
+    }
+}
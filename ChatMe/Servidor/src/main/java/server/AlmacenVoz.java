@@ -0,0 +1,236 @@
+package server;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Notas de voz direccionadas por contenido: el id es el SHA-256 del audio (los primeros 16
+ * bytes en hexadecimal), asi que la misma nota enviada a un grupo o reenviada se guarda una
+ * sola vez. El audio se copia a segmentos "voz-00000001.dat" mapeados en memoria con el
+ * formato [longitud: int][hash: 16 bytes][audio].
+ *
+ * La longitud se escribe despues del audio: un registro a medio escribir queda con longitud 0
+ * y al reabrir marca el final del segmento. Las notas que llegan por partes (reservar) ocupan
+ * su espacio con la longitud en negativo hasta completarse; si el remitente se corta, el
+ * registro queda asi y al reabrir se salta. Cuando el total supera el maximo configurado se
+ * borran los segmentos mas antiguos completos.
+ */
+public class AlmacenVoz {
+    private static final String PREFIJO = "voz-";
+    private static final String EXTENSION = ".dat";
+    private static final int BYTES_HASH = 16;
+    private static final int ENCABEZADO = 4 + BYTES_HASH;
+
+    private final Path directorio;
+    private final int tamanoSegmento;
+    private final long maxBytes;
+    private final Map<String, NotaVoz> notas = new ConcurrentHashMap<>();
+    private final Deque<Segmento> segmentos = new ArrayDeque<>();
+    private Segmento activo;
+    private long totalBytes;
+
+    static final class Segmento {
+        final int numero;
+        final Path archivo;
+        final FileChannel canal;
+        final MappedByteBuffer mapa;
+        final List<String> ids = new ArrayList<>();
+        int posicion;
+
+        Segmento(int numero, Path archivo, FileChannel canal, MappedByteBuffer mapa) {
+            this.numero = numero;
+            this.archivo = archivo;
+            this.canal = canal;
+            this.mapa = mapa;
+        }
+    }
+
+    public AlmacenVoz(Path directorio, int tamanoSegmento, long maxBytes) throws IOException {
+        this.directorio = directorio;
+        this.tamanoSegmento = tamanoSegmento;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(directorio);
+        abrirSegmentos();
+    }
+
+    private void abrirSegmentos() throws IOException {
+        List<Integer> numeros = new ArrayList<>();
+        try (DirectoryStream<Path> archivos = Files.newDirectoryStream(directorio, PREFIJO + "*" + EXTENSION)) {
+            for (Path archivo : archivos) {
+                String nombre = archivo.getFileName().toString();
+                try {
+                    numeros.add(Integer.parseInt(nombre.substring(PREFIJO.length(), nombre.length() - EXTENSION.length())));
+                } catch (NumberFormatException e) {
+                    System.err.println("Archivo ignorado en el almacen de voz: " + nombre);
+                }
+            }
+        }
+        Collections.sort(numeros);
+
+        for (int numero : numeros) {
+            Segmento segmento = abrir(numero, 0);
+            indexar(segmento);
+            segmentos.addLast(segmento);
+            totalBytes += segmento.mapa.capacity();
+        }
+        if (!segmentos.isEmpty()) {
+            activo = segmentos.peekLast();
+        }
+    }
+
+    // Con tamano 0 se mapea el archivo existente completo
+    private Segmento abrir(int numero, int tamano) throws IOException {
+        Path archivo = directorio.resolve(String.format("%s%08d%s", PREFIJO, numero, EXTENSION));
+        FileChannel canal = FileChannel.open(archivo, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long capacidad = tamano > 0 ? tamano : canal.size();
+        MappedByteBuffer mapa = canal.map(FileChannel.MapMode.READ_WRITE, 0, capacidad);
+        return new Segmento(numero, archivo, canal, mapa);
+    }
+
+    private void indexar(Segmento segmento) {
+        MappedByteBuffer mapa = segmento.mapa;
+        int posicion = 0;
+        while (posicion + ENCABEZADO <= mapa.capacity()) {
+            int longitud = mapa.getInt(posicion);
+            if (longitud < 0 && posicion + ENCABEZADO - (long) longitud <= mapa.capacity()) {
+                // Nota por partes que no llego a completarse
+                posicion += ENCABEZADO - longitud;
+                continue;
+            }
+            if (longitud <= 0 || posicion + ENCABEZADO + longitud > mapa.capacity()) break;
+            byte[] hash = new byte[BYTES_HASH];
+            mapa.get(posicion + 4, hash);
+            String id = HexFormat.of().formatHex(hash);
+            notas.putIfAbsent(id, new NotaVoz(id, segmento.canal, mapa, posicion + ENCABEZADO, longitud));
+            segmento.ids.add(id);
+            posicion += ENCABEZADO + longitud;
+        }
+        segmento.posicion = posicion;
+    }
+
+    /** Guarda el audio si no estaba ya y devuelve su nota. */
+    public synchronized NotaVoz guardar(byte[] audio) throws IOException {
+        byte[] hash = hash(audio);
+        String id = HexFormat.of().formatHex(hash);
+        NotaVoz existente = notas.get(id);
+        if (existente != null) return existente;
+
+        int total = ENCABEZADO + audio.length;
+        if (activo == null || activo.posicion + total > activo.mapa.capacity()) {
+            rotar(total);
+        }
+
+        int inicio = activo.posicion;
+        activo.mapa.put(inicio + 4, hash);
+        activo.mapa.put(inicio + ENCABEZADO, audio);
+        activo.mapa.putInt(inicio, audio.length);
+        activo.posicion += total;
+
+        NotaVoz nota = new NotaVoz(id, activo.canal, activo.mapa, inicio + ENCABEZADO, audio.length);
+        activo.ids.add(id);
+        notas.put(id, nota);
+        return nota;
+    }
+
+    /** Reserva espacio para una nota que se recibira por partes, sin copiarla al heap. */
+    public synchronized FlujoVoz reservar(int longitud) throws IOException {
+        int total = ENCABEZADO + longitud;
+        if (activo == null || activo.posicion + total > activo.mapa.capacity()) {
+            rotar(total);
+        }
+        int inicio = activo.posicion;
+        activo.mapa.putInt(inicio, -longitud);
+        activo.posicion += total;
+        return new FlujoVoz(this, activo, inicio + ENCABEZADO, longitud);
+    }
+
+    // Llamado por FlujoVoz cuando llego todo el audio
+    synchronized NotaVoz confirmar(Segmento segmento, int offset, int longitud, byte[] hash) {
+        String id = HexFormat.of().formatHex(hash);
+        int inicio = offset - ENCABEZADO;
+        segmento.mapa.put(inicio + 4, hash);
+        segmento.mapa.putInt(inicio, longitud);
+
+        NotaVoz existente = notas.get(id);
+        if (existente != null) return existente;
+        NotaVoz nota = new NotaVoz(id, segmento.canal, segmento.mapa, offset, longitud);
+        // Si la retencion ya borro el segmento la nota se entrega igual, pero no se indexa
+        if (segmentos.contains(segmento)) {
+            segmento.ids.add(id);
+            notas.put(id, nota);
+        }
+        return nota;
+    }
+
+    public NotaVoz buscar(String id) {
+        return notas.get(id);
+    }
+
+    // Una nota mayor que el tamano de segmento recibe un segmento propio de su tamano exacto
+    private void rotar(int necesario) throws IOException {
+        if (activo != null) {
+            activo.mapa.force();
+        }
+        int numero = activo == null ? 1 : activo.numero + 1;
+        activo = abrir(numero, Math.max(tamanoSegmento, necesario));
+        segmentos.addLast(activo);
+        totalBytes += activo.mapa.capacity();
+        aplicarRetencion();
+    }
+
+    private void aplicarRetencion() {
+        while (totalBytes > maxBytes && segmentos.size() > 1) {
+            Segmento antiguo = segmentos.pollFirst();
+            totalBytes -= antiguo.mapa.capacity();
+            // Como cada audio se guarda una sola vez, sus ids no aparecen en otros segmentos
+            for (String id : antiguo.ids) {
+                notas.remove(id);
+            }
+            try {
+                // Las notas que aun esperan en colas de salida siguen leyendo del mapeo
+                antiguo.canal.close();
+                Files.deleteIfExists(antiguo.archivo);
+                System.out.println("Almacen de voz: segmento " + antiguo.numero + " eliminado por retencion");
+            } catch (IOException e) {
+                System.err.println("Error al eliminar segmento de voz " + antiguo.numero + ": " + e.getMessage());
+            }
+        }
+    }
+
+    static byte[] recortarHash(byte[] sha256) {
+        return Arrays.copyOf(sha256, BYTES_HASH);
+    }
+
+    private static byte[] hash(byte[] audio) {
+        try {
+            return Arrays.copyOf(MessageDigest.getInstance("SHA-256").digest(audio), BYTES_HASH);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 no disponible", e);
+        }
+    }
+
+    public int cantidadNotas() {
+        return notas.size();
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public synchronized void cerrar() {
+        for (Segmento segmento : segmentos) {
+            try {
+                segmento.mapa.force();
+                segmento.canal.close();
+            } catch (IOException e) {
+                System.err.println("Error al cerrar segmento de voz: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package server;
+
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registro de eventos del servidor en lineas clave=valor ("ts=... evento=mensaje_privado
+ * de=ana a=luis"), con un tope de lineas por segundo para cada evento. Lo que pasa del tope
+ * no se imprime ni se formatea; la primera linea del segundo siguiente lleva "suprimidos=N".
+ *
+ * Sustituye a los println por mensaje del camino caliente: con miles de mensajes por segundo
+ * escribir cada uno en la consola costaba mas que enrutarlo.
+ */
+public final class Bitacora {
+
+    private static final class Limite {
+        final AtomicLong segundo = new AtomicLong();
+        final AtomicInteger emitidas = new AtomicInteger();
+        final AtomicInteger suprimidas = new AtomicInteger();
+    }
+
+    private static final int MAX_POR_SEGUNDO = ConfiguracionServidor.leerEntero("chatme.log.maxPorSegundo", 20);
+    private static final Map<String, Limite> limites = new ConcurrentHashMap<>();
+
+    private Bitacora() {
+    }
+
+    /** campos alterna nombre y valor: info("llamada_conectada", "de", a, "a", b). */
+    public static void info(String evento, Object... campos) {
+        int suprimidas = admitir(evento);
+        if (suprimidas < 0) return;
+        System.out.println(formatear(evento, suprimidas, campos));
+    }
+
+    public static void error(String evento, Object... campos) {
+        int suprimidas = admitir(evento);
+        if (suprimidas < 0) return;
+        System.err.println(formatear(evento, suprimidas, campos));
+    }
+
+    // -1 si el evento ya agoto su cupo en este segundo; si no, cuantas lineas se suprimieron antes
+    private static int admitir(String evento) {
+        Limite limite = limites.computeIfAbsent(evento, e -> new Limite());
+        long ahora = System.currentTimeMillis() / 1000;
+        long segundo = limite.segundo.get();
+        if (segundo != ahora && limite.segundo.compareAndSet(segundo, ahora)) {
+            limite.emitidas.set(0);
+        }
+        if (limite.emitidas.incrementAndGet() > MAX_POR_SEGUNDO) {
+            limite.suprimidas.incrementAndGet();
+            Metricas metricas = Server.getMetricas();
+            if (metricas != null) metricas.lineaSuprimida();
+            return -1;
+        }
+        return limite.suprimidas.getAndSet(0);
+    }
+
+    private static String formatear(String evento, int suprimidas, Object[] campos) {
+        StringBuilder linea = new StringBuilder(64);
+        linea.append("ts=").append(Instant.now()).append(" evento=").append(evento);
+        for (int i = 0; i + 1 < campos.length; i += 2) {
+            linea.append(' ').append(campos[i]).append('=');
+            String valor = String.valueOf(campos[i + 1]);
+            if (valor.indexOf(' ') >= 0 || valor.indexOf('"') >= 0 || valor.isEmpty()) {
+                linea.append('"').append(valor.replace("\"", "\\\"")).append('"');
+            } else {
+                linea.append(valor);
+            }
+        }
+        if (suprimidas > 0) linea.append(" suprimidos=").append(suprimidas);
+        return linea.toString();
+    }
+}
@@ -0,0 +1,100 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Trama de voz codificada una sola vez (linea de texto seguida del audio) en un buffer del
+ * pool, compartida por todos los destinatarios de un grupo. Cada destinatario que la encola
+ * toma una referencia y la suelta cuando su escritor termino de enviarla (o la descarto); con
+ * la ultima el buffer vuelve al pool.
+ *
+ * Si alguna referencia no se suelta el buffer simplemente no se reutiliza y lo recoge el GC,
+ * por eso ante la duda es preferible no liberar a liberar de mas.
+ */
+public class BufferCompartido {
+    private final ByteBuffer buffer;
+    private final int inicioAudio;
+    private final PoolBuffers pool;
+    private final AtomicInteger referencias = new AtomicInteger(1);
+
+    private BufferCompartido(ByteBuffer buffer, int inicioAudio, PoolBuffers pool) {
+        this.buffer = buffer;
+        this.inicioAudio = inicioAudio;
+        this.pool = pool;
+    }
+
+    public int getLongitudAudio() {
+        return buffer.limit() - inicioAudio;
+    }
+
+    /** Trama completa del protocolo de texto: encabezado y audio. Cada llamada da su propia posicion. */
+    public ByteBuffer vista() {
+        return buffer.duplicate();
+    }
+
+    /** Solo el audio, para las conexiones v2 que escriben su propio encabezado. */
+    public ByteBuffer vistaAudio() {
+        return buffer.duplicate().position(inicioAudio);
+    }
+
+    public void retener() {
+        int actual;
+        do {
+            actual = referencias.get();
+            if (actual <= 0) throw new IllegalStateException("Buffer compartido ya liberado");
+        } while (!referencias.compareAndSet(actual, actual + 1));
+    }
+
+    public void liberar() {
+        int restantes = referencias.decrementAndGet();
+        if (restantes == 0 && pool != null) {
+            pool.devolver(buffer);
+        } else if (restantes < 0) {
+            System.err.println("Buffer compartido liberado de mas");
+        }
+    }
+
+    /**
+     * Pools por tamano, de 64 KB a 16 MB multiplicando por 4; las tramas mas grandes usan un
+     * buffer propio que no vuelve al pool. Se retienen menos buffers libres cuanto mas grandes son.
+     */
+    public static class Pool {
+        private static final int TAMANO_MINIMO = 64 * 1024;
+        private static final int CLASES = 5;
+
+        private final PoolBuffers[] pools = new PoolBuffers[CLASES];
+        private final boolean directos;
+
+        public Pool(boolean directos) {
+            this.directos = directos;
+            for (int i = 0, tamano = TAMANO_MINIMO; i < CLASES; i++, tamano *= 4) {
+                pools[i] = new PoolBuffers(tamano, 16 >> i, directos);
+            }
+        }
+
+        /** Copia la trama (encabezado de texto y audio en memoria) a un buffer del pool. */
+        public BufferCompartido codificar(Trama trama) {
+            byte[] linea = trama.lineaTexto();
+            byte[] audio = trama.getAudio();
+            int total = linea.length + audio.length;
+
+            PoolBuffers pool = poolPara(total);
+            ByteBuffer buffer;
+            if (pool != null) {
+                buffer = pool.tomar();
+            } else {
+                buffer = directos ? ByteBuffer.allocateDirect(total) : ByteBuffer.allocate(total);
+            }
+            buffer.put(linea).put(audio).flip();
+            return new BufferCompartido(buffer, linea.length, pool);
+        }
+
+        private PoolBuffers poolPara(int tamano) {
+            for (PoolBuffers pool : pools) {
+                if (tamano <= pool.getTamanoBuffer()) return pool;
+            }
+            return null;
+        }
+    }
+}
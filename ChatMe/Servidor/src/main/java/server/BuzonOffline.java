@@ -0,0 +1,385 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+/**
+ * Buzon por usuario para los mensajes que llegan cuando el destinatario no esta conectado.
+ * En memoria guarda las tramas tal cual (las notas de voz apuntan a AlmacenVoz, no copian el
+ * audio); en disco, un diario de solo anexado "buzon.log" con dos operaciones, AGREGAR y
+ * ENTREGADO, que se vuelve a aplicar al arrancar y se compacta cuando crece demasiado.
+ *
+ * Cada usuario tiene un maximo de mensajes: al superarlo se descarta el mas antiguo y se le
+ * avisa al entregar. El limite se aplica igual al leer el diario, asi que no hace falta
+ * registrar los descartes.
+ *
+ * Los registros se codifican sin candados y el diario se escribe fuera del monitor global:
+ * un mensaje de grupo para varios desconectados es una sola escritura. El orden por usuario lo
+ * da su candado, tomado durante toda la operacion. El diario se fuerza a disco segun la misma
+ * politica de fsync que el historial.
+ */
+public class BuzonOffline {
+    private static final byte AGREGAR = 1;
+    private static final byte ENTREGADO = 2;
+    private static final int CANDADOS = 64;
+    private static final int MAX_REGISTRO = 1024 * 1024;
+
+    private final Path archivo;
+    private final int maxPorUsuario;
+    private final int maxUsuarios;
+    private final Function<String, NotaVoz> buscarNota;
+    private final HistorialAsincrono.PoliticaFsync politicaFsync;
+    private final long intervaloFsyncNanos;
+    // Los buzones en memoria van con el monitor del objeto; el diario, con candadoDiario. Un
+    // registro se aplica en memoria antes de escribirse: si entre tanto una compactacion ya lo
+    // copio (generacion distinta), no se vuelve a escribir
+    private final Map<String, Pendientes> buzones = new HashMap<>();
+    private long pendientesTotales;
+    private long generacion;
+    private final Object candadoDiario = new Object();
+    private FileChannel diario;
+    private long registrosDiario;
+    private long generacionDiario;
+    private long ultimoFsync = System.nanoTime();
+    // Un candado por franja de usuarios: ordena la entrega contra los envios al mismo usuario.
+    // Quien toma varios los toma en orden creciente
+    private final ReentrantLock[] candados = new ReentrantLock[CANDADOS];
+
+    private static final class Pendientes {
+        final ArrayDeque<Trama> tramas = new ArrayDeque<>();
+        int descartados;
+    }
+
+    public BuzonOffline(Path directorio, int maxPorUsuario, int maxUsuarios, Function<String, NotaVoz> buscarNota,
+                        HistorialAsincrono.PoliticaFsync politicaFsync, int intervaloFsyncMs) throws IOException {
+        this.archivo = directorio.resolve("buzon.log");
+        this.maxPorUsuario = maxPorUsuario;
+        this.maxUsuarios = maxUsuarios;
+        this.buscarNota = buscarNota;
+        this.politicaFsync = politicaFsync;
+        this.intervaloFsyncNanos = TimeUnit.MILLISECONDS.toNanos(intervaloFsyncMs);
+        for (int i = 0; i < CANDADOS; i++) candados[i] = new ReentrantLock();
+        Files.createDirectories(directorio);
+        if (Files.exists(archivo)) {
+            reproducirDiario();
+        }
+        synchronized (this) {
+            compactar();
+        }
+    }
+
+    private static int franja(String usuario) {
+        return (usuario.hashCode() & 0x7FFFFFFF) % CANDADOS;
+    }
+
+    /**
+     * Guarda la trama para cada usuario que siga desconectado. La comprobacion se repite con los
+     * candados de los usuarios tomados, en orden, para no dejar mensajes en el buzon de quien
+     * acaba de entrar: a ese se le envia directamente. Los registros de todos van al diario en
+     * una sola escritura. Devuelve los usuarios que no se pudieron guardar por el maximo de buzones.
+     */
+    public List<String> guardarOEnviarTodos(Collection<String> usuarios, Trama trama,
+                                            Function<String, Sesion> sesionActual) {
+        boolean[] franjas = new boolean[CANDADOS];
+        for (String usuario : usuarios) franjas[franja(usuario)] = true;
+        for (int i = 0; i < CANDADOS; i++) {
+            if (franjas[i]) candados[i].lock();
+        }
+        try {
+            List<String> desconectados = new ArrayList<>(usuarios.size());
+            for (String usuario : usuarios) {
+                Sesion sesion = sesionActual.apply(usuario);
+                if (sesion != null) {
+                    sesion.enviar(trama);
+                } else {
+                    desconectados.add(usuario);
+                }
+            }
+            if (desconectados.isEmpty()) return List.of();
+
+            List<String> rechazados = new ArrayList<>();
+            long generacionLote;
+            synchronized (this) {
+                compactarSiHaceFalta();
+                for (Iterator<String> it = desconectados.iterator(); it.hasNext(); ) {
+                    String usuario = it.next();
+                    if (!buzones.containsKey(usuario) && buzones.size() >= maxUsuarios) {
+                        rechazados.add(usuario);
+                        it.remove();
+                        continue;
+                    }
+                    agregar(usuario, trama);
+                }
+                generacionLote = generacion;
+            }
+            if (!desconectados.isEmpty()) {
+                anexar(codificarLote(desconectados, trama), desconectados.size(), generacionLote);
+            }
+            return rechazados;
+        } finally {
+            for (int i = 0; i < CANDADOS; i++) {
+                if (franjas[i]) candados[i].unlock();
+            }
+        }
+    }
+
+    /**
+     * Entrega todo lo pendiente a la sesion en una sola pasada y, con el candado aun tomado,
+     * la registra con alRegistrar; asi ningun mensaje nuevo se adelanta a los guardados.
+     * Si {@code admitir} da false no se entrega nada y devuelve -1.
+     */
+    public int entregar(Sesion sesion, BooleanSupplier admitir, Runnable alRegistrar) {
+        String usuario = sesion.getNombreUsuario();
+        ReentrantLock candado = candados[franja(usuario)];
+        candado.lock();
+        try {
+            if (!admitir.getAsBoolean()) return -1;
+            Pendientes pendientes;
+            long generacionEntrega;
+            synchronized (this) {
+                compactarSiHaceFalta();
+                pendientes = buzones.remove(usuario);
+                if (pendientes != null) pendientesTotales -= pendientes.tramas.size();
+                generacionEntrega = generacion;
+            }
+            if (pendientes != null) anexar(codificar(ENTREGADO, usuario, null), 1, generacionEntrega);
+            if (pendientes == null) {
+                alRegistrar.run();
+                return 0;
+            }
+
+            List<Trama> lote = new ArrayList<>(pendientes.tramas.size() + 2);
+            lote.add(Trama.aviso("Tienes " + pendientes.tramas.size() + " mensajes recibidos sin conexion"
+                    + (pendientes.descartados > 0 ? " (" + pendientes.descartados + " antiguos descartados)" : "") + ":"));
+            lote.addAll(pendientes.tramas);
+            sesion.enviarTodas(lote);
+            alRegistrar.run();
+            return pendientes.tramas.size();
+        } finally {
+            candado.unlock();
+        }
+    }
+
+    public synchronized int pendientes(String usuario) {
+        Pendientes pendientes = buzones.get(usuario);
+        return pendientes == null ? 0 : pendientes.tramas.size();
+    }
+
+    // Los metodos siguientes se llaman con el monitor tomado
+    private void agregar(String usuario, Trama trama) {
+        if (!buzones.containsKey(usuario) && buzones.size() >= maxUsuarios) return;
+        Pendientes pendientes = buzones.computeIfAbsent(usuario, u -> new Pendientes());
+        pendientes.tramas.addLast(trama);
+        pendientesTotales++;
+        if (pendientes.tramas.size() > maxPorUsuario) {
+            pendientes.tramas.pollFirst();
+            pendientes.descartados++;
+            pendientesTotales--;
+        }
+    }
+
+    // El diario se reescribe cuando la mayor parte de sus registros ya no sirve
+    private void compactarSiHaceFalta() {
+        long registros;
+        synchronized (candadoDiario) {
+            registros = registrosDiario;
+        }
+        if (registros <= 1024 || registros <= 4 * pendientesTotales) return;
+        try {
+            compactar();
+        } catch (IOException e) {
+            System.err.println("Error al compactar el buzon offline: " + e.getMessage());
+        }
+    }
+
+    // Fuera del monitor: solo el candado del diario. Lo que una compactacion ya copio se omite
+    private void anexar(ByteBuffer registros, int cantidad, long generacionRegistros) {
+        synchronized (candadoDiario) {
+            if (generacionRegistros != generacionDiario) return;
+            try {
+                while (registros.hasRemaining()) diario.write(registros);
+                registrosDiario += cantidad;
+                long ahora = System.nanoTime();
+                if (politicaFsync == HistorialAsincrono.PoliticaFsync.LOTE
+                        || (politicaFsync == HistorialAsincrono.PoliticaFsync.INTERVALO
+                        && ahora - ultimoFsync >= intervaloFsyncNanos)) {
+                    diario.force(false);
+                    ultimoFsync = ahora;
+                }
+            } catch (IOException e) {
+                System.err.println("Error al escribir el buzon offline: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Reescribe el diario con solo los mensajes pendientes y lo reemplaza de forma atomica. Se
+     * llama con el monitor tomado; los registros aplicados antes y aun sin escribir quedan en
+     * la copia y su escritura se omite al cambiar la generacion.
+     */
+    private void compactar() throws IOException {
+        synchronized (candadoDiario) {
+            compactarDiario();
+        }
+    }
+
+    private void compactarDiario() throws IOException {
+        Path temporal = archivo.resolveSibling("buzon.log.tmp");
+        long registros = 0;
+        try (FileChannel nuevo = FileChannel.open(temporal, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Map.Entry<String, Pendientes> buzon : buzones.entrySet()) {
+                for (Trama trama : buzon.getValue().tramas) {
+                    ByteBuffer registro = codificar(AGREGAR, buzon.getKey(), trama);
+                    while (registro.hasRemaining()) nuevo.write(registro);
+                    registros++;
+                }
+            }
+            nuevo.force(true);
+        }
+        if (diario != null) diario.close();
+        Files.move(temporal, archivo, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        diario = FileChannel.open(archivo, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        registrosDiario = registros;
+        generacionDiario = ++generacion;
+    }
+
+    private void reproducirDiario() throws IOException {
+        int leidos = 0;
+        try (DataInputStream entrada = new DataInputStream(new BufferedInputStream(Files.newInputStream(archivo)))) {
+            CRC32 crc = new CRC32();
+            while (true) {
+                int longitud;
+                try {
+                    longitud = entrada.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                int crcEsperado = entrada.readInt();
+                if (longitud <= 0 || longitud > MAX_REGISTRO) break;
+                byte[] cuerpo = new byte[longitud];
+                entrada.readFully(cuerpo);
+                crc.reset();
+                crc.update(cuerpo);
+                if ((int) crc.getValue() != crcEsperado) break;
+                aplicar(new DataInputStream(new ByteArrayInputStream(cuerpo)));
+                leidos++;
+            }
+        } catch (EOFException e) {
+            System.err.println("Buzon offline: registro incompleto al final del diario, se descarta");
+        }
+        System.out.println("Buzon offline: " + leidos + " registros leidos, " + pendientesTotales + " mensajes pendientes");
+    }
+
+    private void aplicar(DataInputStream entrada) throws IOException {
+        byte operacion = entrada.readByte();
+        String usuario = leerTexto(entrada);
+        if (operacion == ENTREGADO) {
+            Pendientes pendientes = buzones.remove(usuario);
+            if (pendientes != null) pendientesTotales -= pendientes.tramas.size();
+            return;
+        }
+
+        Trama.Tipo tipo = Trama.Tipo.valueOf(leerTexto(entrada));
+        String grupo = leerTexto(entrada);
+        String remitente = leerTexto(entrada);
+        String texto = leerTexto(entrada);
+        String idNota = leerTexto(entrada);
+        Trama trama = switch (tipo) {
+            case PRIVADO -> Trama.privado(remitente, texto);
+            case GRUPO -> Trama.grupo(grupo, remitente, texto);
+            case VOZ, VOZ_GRUPO -> {
+                NotaVoz nota = buscarNota.apply(idNota);
+                if (nota == null) {
+                    yield Trama.aviso("Nota de voz de " + remitente + (grupo != null ? " en el grupo " + grupo : "")
+                            + " ya no disponible");
+                }
+                yield tipo == Trama.Tipo.VOZ ? Trama.vozGuardada(remitente, nota) : Trama.vozGrupoGuardada(grupo, remitente, nota);
+            }
+            default -> Trama.aviso(texto);
+        };
+        agregar(usuario, trama);
+    }
+
+    // Los registros AGREGAR de la misma trama para varios usuarios, seguidos en un buffer
+    private static ByteBuffer codificarLote(List<String> usuarios, Trama trama) {
+        if (usuarios.size() == 1) return codificar(AGREGAR, usuarios.get(0), trama);
+        ByteBuffer[] registros = new ByteBuffer[usuarios.size()];
+        int total = 0;
+        for (int i = 0; i < registros.length; i++) {
+            registros[i] = codificar(AGREGAR, usuarios.get(i), trama);
+            total += registros[i].remaining();
+        }
+        ByteBuffer lote = ByteBuffer.allocate(total);
+        for (ByteBuffer registro : registros) lote.put(registro);
+        return lote.flip();
+    }
+
+    private static ByteBuffer codificar(byte operacion, String usuario, Trama trama) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream salida = new DataOutputStream(bytes);
+        try {
+            salida.writeInt(0);
+            salida.writeInt(0);
+            salida.writeByte(operacion);
+            escribirTexto(salida, usuario);
+            if (operacion == AGREGAR) {
+                escribirTexto(salida, trama.getTipo().name());
+                escribirTexto(salida, trama.getGrupo());
+                escribirTexto(salida, trama.getRemitente());
+                escribirTexto(salida, trama.getTexto());
+                escribirTexto(salida, trama.getNota() != null ? trama.getNota().getId() : null);
+            }
+        } catch (IOException e) {
+            // Un ByteArrayOutputStream no falla al escribir
+            throw new UncheckedIOException(e);
+        }
+
+        ByteBuffer registro = ByteBuffer.wrap(bytes.toByteArray());
+        int longitud = registro.remaining() - 8;
+        CRC32 crc = new CRC32();
+        crc.update(registro.array(), 8, longitud);
+        registro.putInt(0, longitud);
+        registro.putInt(4, (int) crc.getValue());
+        return registro;
+    }
+
+    // Longitud -1 para null
+    private static void escribirTexto(DataOutputStream salida, String texto) throws IOException {
+        if (texto == null) {
+            salida.writeInt(-1);
+            return;
+        }
+        byte[] bytes = texto.getBytes(StandardCharsets.UTF_8);
+        salida.writeInt(bytes.length);
+        salida.write(bytes);
+    }
+
+    private static String leerTexto(DataInputStream entrada) throws IOException {
+        int longitud = entrada.readInt();
+        if (longitud < 0) return null;
+        byte[] bytes = new byte[longitud];
+        entrada.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public void cerrar() {
+        synchronized (candadoDiario) {
+            try {
+                diario.force(true);
+                diario.close();
+            } catch (IOException e) {
+                System.err.println("Error al cerrar el buzon offline: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -2,234 +2,307 @@ package server;
 
 import java.io.*;
 import java.net.*;
-import java.util.*;
-import java.util.concurrent.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class ClienteHandler implements Runnable, Sesion {
+        // Tramas que el escritor agrupa como maximo en una sola descarga al socket
+        private static final int MAX_LOTE = 64;
 
-public class ClienteHandler implements Runnable {
         private Socket socket;
-        private BufferedReader entrada;
-        private PrintWriter salida;
+        private LectorLineas entrada;
+        private BufferedOutputStream salida;
         private String nombreUsuario;
         private String direccionIP;
+        // Solo con clientes que negociaron el protocolo v2; lo usa unicamente el hilo escritor
+        private ProtocoloBinario.Escritor escritorBinario;
         private InputStream inputStream;
         private OutputStream outputStream;
+        // Destino de las notas guardadas: el SocketChannel si el socket lo tiene (transferTo sin copias)
+        private WritableByteChannel canalSalida;
         private int puertoLlamada;
-
-        public ClienteHandler(Socket socket) {
+        private volatile List<String> codecs = List.of();
+        private final Executor ejecutor;
+        private final ColaSalida colaSalida;
+        private final Runnable alCerrar;
+        private final AtomicBoolean cerrado = new AtomicBoolean(false);
+        private volatile long ultimaActividad = System.currentTimeMillis();
+
+        // El escritor de la cola de salida corre en el mismo ejecutor que el propio handler.
+        // alCerrar se ejecuta una sola vez al cerrar la conexion (p. ej. liberar el cupo de admision)
+        public ClienteHandler(Socket socket, Executor ejecutor, Runnable alCerrar) {
             this.socket = socket;
             this.direccionIP = socket.getInetAddress().getHostAddress();
+            this.ejecutor = ejecutor;
+            this.alCerrar = alCerrar;
+
+            ConfiguracionServidor configuracion = Server.getConfiguracion();
+            this.colaSalida = new ColaSalida(configuracion.getCapacidadColaSalida(),
+                    configuracion.getPoliticaDesborde(), configuracion.getTimeoutBloqueoMs(), this::desconectarPorLentitud);
         }
         
         public Socket getSocket() {
             return socket;
         }
         
-        public int getPuertoLlamada() {
-            return puertoLlamada;
+        @Override
+        public String getNombreUsuario() {
+            return nombreUsuario;
         }
 
         @Override
-        public void run() {
-            try {
-                inputStream = socket.getInputStream();
-                outputStream = socket.getOutputStream();
-                entrada = new BufferedReader(new InputStreamReader(inputStream));
-                salida = new PrintWriter(outputStream, true);
+        public String getDireccionIP() {
+            return direccionIP;
+        }
 
-                nombreUsuario = entrada.readLine();
-                Server.getClientesConectados().put(nombreUsuario, this);
-                System.out.println("Usuario conectado: " + nombreUsuario + " (" + direccionIP + ")");
+        @Override
+        public int getPuertoLlamada() {
+            return puertoLlamada;
+        }
 
-                String linea;
-                while ((linea = entrada.readLine()) != null) {
-                    if (linea.equalsIgnoreCase("exit")) break;
+        @Override
+        public void setPuertoLlamada(int puertoLlamada) {
+            this.puertoLlamada = puertoLlamada;
+        }
 
-                    // Comandos de configuración
-                    if (linea.startsWith("@config|")) {
-                        manejarConfiguracion(linea);
-                        continue;
-                    }
+        @Override
+        public List<String> getCodecs() {
+            return codecs;
+        }
 
-                    // Comandos de llamada
-                    if (linea.startsWith("@llamada|")) {
-                        manejarComandoLlamada(linea);
-                        continue;
-                    }
+        @Override
+        public void setCodecs(List<String> codecs) {
+            this.codecs = codecs;
+        }
 
-                    // Comandos de grupo
-                    if (linea.startsWith("@grupo|")) {
-                        manejarComandoGrupo(linea);
-                        continue;
+        @Override
+        public void run() {
+            try {
+                Metricas metricas = Server.getMetricas();
+                inputStream = metricas.contarEntrada(socket.getInputStream());
+                outputStream = metricas.contarSalida(socket.getOutputStream());
+                entrada = new LectorLineas(inputStream, Server.getConfiguracion().getMaxLinea());
+                // Sin autoflush: el escritor descarga una vez por lote, y sin Nagle para no retrasar ese lote
+                socket.setTcpNoDelay(true);
+                // Para los clientes sin latidos de aplicacion queda al menos el keepalive de TCP
+                socket.setKeepAlive(true);
+                salida = new BufferedOutputStream(outputStream, 16 * 1024);
+                // Sin pasar por el contador de outputStream: lo que va por el canal se cuenta aparte
+                canalSalida = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(socket.getOutputStream());
+
+                String saludo = entrada.leerLinea();
+                if (saludo == null) return;
+                nombreUsuario = ProtocoloBinario.nombreDeSaludo(saludo);
+                if (nombreUsuario == null || nombreUsuario.isEmpty()) return;
+                boolean binario = negociarProtocolo(saludo);
+
+                // El escritor arranca despues del registro: lo pendiente del buzon ya espera en la cola
+                if (!Server.registrarSesion(this)) {
+                    Bitacora.info("sesion_rechazada", "usuario", nombreUsuario, "motivo", "duplicada");
+                    escribirTrama(Trama.aviso("El usuario " + nombreUsuario + " ya está conectado."));
+                    salida.flush();
+                    return;
+                }
+                ejecutor.execute(this::escribirPendientes);
+                Bitacora.info("usuario_conectado", "usuario", nombreUsuario, "ip", direccionIP,
+                        "protocolo", binario ? 2 : 1);
+
+                if (binario) {
+                    ProtocoloBinario.Lector lector = new ProtocoloBinario.Lector(entrada.getFlujo(),
+                            Server.getConfiguracion().getMaxLinea());
+                    while (lector.procesarSiguiente(this)) {
+                        // cada trama se despacha dentro del lector
+                        ultimaActividad = System.currentTimeMillis();
                     }
+                    return;
+                }
 
-                    // Mensajes de voz
-                    if (linea.startsWith("@voz|")) {
-                        manejarVozPrivada(linea);
-                        continue;
-                    }
+                String linea;
+                while ((linea = entrada.leerLinea()) != null) {
+                    ultimaActividad = System.currentTimeMillis();
+                    if (linea.equalsIgnoreCase("exit")) break;
 
-                    if (linea.startsWith("@vozgrupo|")) {
-                        manejarVozGrupo(linea);
-                        continue;
+                    EncabezadoVoz encabezado = ProcesadorComandos.procesarLinea(this, linea);
+                    if (encabezado != null) {
+                        RelayVoz.recibir(this, encabezado.getDestino(), encabezado.esGrupo(), encabezado.getTamano(),
+                                entrada.getFlujo());
                     }
-
-                    // Mensaje privado normal
-                    String[] partes = linea.split("\\|", 2);
-                    if (partes.length < 2) continue;
-
-                    String destino = partes[0];
-                    String mensaje = partes[1];
-                    String registro = "[" + nombreUsuario + " -> " + destino + "] " + mensaje;
-
-                    System.out.println(registro);
-                    Server.guardarHistorial(registro);
-
-                    Server.enviarMensaje(destino, "De " + nombreUsuario + ": " + mensaje);
                 }
 
             } catch (IOException e) {
-                System.err.println("Error con el cliente " + nombreUsuario + ": " + e.getMessage());
+                // Si el cierre lo hizo el servidor (expulsion, latido vencido) la lectura falla sin que sea un error
+                if (!cerrado.get()) {
+                    System.err.println("Error con el cliente " + nombreUsuario + ": " + e.getMessage());
+                }
             } finally {
                 cerrarConexion();
             }
         }
 
-        private void manejarConfiguracion(String comando) {
-            String[] partes = comando.split("\\|");
-            if (partes.length < 3) return;
-            
-            String tipo = partes[1];
-            String valor = partes[2];
-            
-            if (tipo.equals("puerto_llamada")) {
-                try {
-                    puertoLlamada = Integer.parseInt(valor);
-                    System.out.println("Usuario " + nombreUsuario + " configurado para llamadas en puerto: " + puertoLlamada);
-                } catch (NumberFormatException e) {
-                    System.err.println("Puerto de llamada inválido: " + valor);
-                }
-            }
+        // El escritor de este handler puede bloquearse esperando el audio de una nota en curso.
+        // Los clientes sin codecs reciben la nota completa, para decodificarla antes
+        @Override
+        public boolean admiteAudioEnCurso() {
+            return !codecs.isEmpty();
         }
 
-        private void manejarComandoLlamada(String comando) {
-            String[] partes = comando.split("\\|");
-            if (partes.length < 3) return;
+        @Override
+        public void enviar(Trama trama) {
+            colaSalida.encolar(trama.paraCodecs(codecs));
+        }
 
-            String accion = partes[1];
-            String destino = partes[2];
+        @Override
+        public boolean enviarSinEsperar(Trama trama) {
+            return colaSalida.encolarSinEsperar(trama.paraCodecs(codecs));
+        }
+
+        @Override
+        public long getUltimaActividad() {
+            return ultimaActividad;
+        }
+
+        // El escritor envia lo pendiente y el aviso, y al terminar cierra la conexion
+        @Override
+        public void desconectar(String motivo) {
+            colaSalida.encolar(Trama.aviso(motivo));
+            colaSalida.cerrarTrasPendientes();
+        }
 
-            switch (accion.toLowerCase()) {
-                case "solicitar" -> Server.manejarSolicitudLlamada(nombreUsuario, destino);
-                case "aceptar" -> Server.manejarAceptacionLlamada(destino, nombreUsuario);
-                case "rechazar" -> Server.manejarRechazoLlamada(destino, nombreUsuario);
+        @Override
+        public void desconectarSinEsperar(String motivo) {
+            if (colaSalida.encolarSinEsperar(Trama.aviso(motivo))) {
+                colaSalida.cerrarTrasPendientes();
+            } else {
+                cerrarAhora();
             }
         }
 
-        private void manejarComandoGrupo(String comando) {
-            String[] partes = comando.split("\\|");
-            if (partes.length < 3) return;
+        @Override
+        public int getProfundidadCola() {
+            return colaSalida.getProfundidad();
+        }
 
-            String accion = partes[1];
-            String nombreGrupo = partes[2];
+        @Override
+        public void cerrarAhora() {
+            cerrarConexion();
+        }
 
-            switch (accion.toLowerCase()) {
-                case "crear" -> {
-                    Server.getGrupos().putIfAbsent(nombreGrupo, ConcurrentHashMap.newKeySet());
-                    Server.getGrupos().get(nombreGrupo).add(nombreUsuario);
-                    salida.println("Grupo '" + nombreGrupo + "' creado y unido correctamente.");
-                }
-                case "unir" -> {
-                    Server.getGrupos().putIfAbsent(nombreGrupo, ConcurrentHashMap.newKeySet());
-                    Server.getGrupos().get(nombreGrupo).add(nombreUsuario);
-                    salida.println("Te uniste al grupo '" + nombreGrupo + "'.");
-                }
-                case "salir" -> {
-                    Set<String> miembros = Server.getGrupos().get(nombreGrupo);
-                    if (miembros != null) {
-                        miembros.remove(nombreUsuario);
-                        salida.println("Saliste del grupo '" + nombreGrupo + "'.");
-                    }
-                }
-                case "enviar" -> {
-                    if (partes.length < 4) {
-                        salida.println("Formato inválido. Usa: @grupo|enviar|nombreGrupo|mensaje");
-                        return;
-                    }
-                    String mensaje = comando.split("\\|", 4)[3];
-                    Server.enviarAGrupo(nombreGrupo, mensaje, nombreUsuario);
-                    Server.guardarHistorial("[Grupo " + nombreGrupo + "] " + nombreUsuario + ": " + mensaje);
-                }
-                default -> salida.println("Comando de grupo no reconocido.");
-            }
+        // Responde al saludo "@protocolo|n|nombre"; los clientes antiguos envian solo el nombre
+        private boolean negociarProtocolo(String saludo) throws IOException {
+            if (!saludo.startsWith(ProtocoloBinario.SALUDO)) return false;
+            boolean binario = ProtocoloBinario.versionDeSaludo(saludo) >= ProtocoloBinario.VERSION;
+            int version = binario ? ProtocoloBinario.VERSION : 1;
+            salida.write((ProtocoloBinario.SALUDO + version + "\n").getBytes(StandardCharsets.UTF_8));
+            salida.flush();
+            if (binario) escritorBinario = new ProtocoloBinario.Escritor();
+            return binario;
+        }
+
+        public ColaSalida getColaSalida() {
+            return colaSalida;
         }
 
-        private void manejarVozPrivada(String metadata) {
+        // Unico hilo que escribe en el socket: cada trama se escribe completa (metadatos y audio
+        // juntos) y todas las que esperan en la cola salen con un solo flush
+        private void escribirPendientes() {
+            List<Trama> lote = new ArrayList<>(MAX_LOTE);
             try {
-                String[] partes = metadata.split("\\|");
-                String destino = partes[1];
-                int tamanoAudio = Integer.parseInt(partes[2]);
-
-                byte[] audioData = new byte[tamanoAudio];
-                int bytesRead = 0;
-                while (bytesRead < tamanoAudio) {
-                    int result = inputStream.read(audioData, bytesRead, tamanoAudio - bytesRead);
-                    if (result == -1) break;
-                    bytesRead += result;
+                while (colaSalida.tomarLote(lote, MAX_LOTE)) {
+                    escribirLote(lote);
+                    salida.flush();
+                    lote.clear();
                 }
-
-                Server.enviarAudio(destino, audioData, "@voz|" + nombreUsuario + "|" + audioData.length);
-                Server.guardarHistorial("[Voz] " + nombreUsuario + " -> " + destino);
-                System.out.println("Nota de voz enviada de " + nombreUsuario + " a " + destino);
-        
+                // La cola se cerro: si fue un cierre ordenado, el socket sigue abierto
+                cerrarConexion();
             } catch (IOException e) {
-                System.err.println("Error al manejar voz privada: " + e.getMessage());
+                System.err.println("Error al enviar a " + nombreUsuario + ": " + e.getMessage());
+                cerrarConexion();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
         }
 
-        private void manejarVozGrupo(String metadata) {
+        // Cada trama suelta su buffer compartido al escribirse; si el socket falla, tambien las que quedaban
+        private void escribirLote(List<Trama> lote) throws IOException {
+            int tomadas = 0;
             try {
-                String[] partes = metadata.split("\\|");
-                String grupo = partes[1];
-                int tamanoAudio = Integer.parseInt(partes[2]);
-
-                byte[] audioData = new byte[tamanoAudio];
-                int bytesRead = 0;
-                while (bytesRead < tamanoAudio) {
-                    int result = inputStream.read(audioData, bytesRead, tamanoAudio - bytesRead);
-                    if (result == -1) break;
-                    bytesRead += result;
+                for (Trama trama : lote) {
+                    tomadas++;
+                    try {
+                        escribirTrama(trama);
+                    } finally {
+                        trama.liberar();
+                    }
+                }
+            } finally {
+                for (int i = tomadas; i < lote.size(); i++) {
+                    lote.get(i).liberar();
                 }
-
-                Server.enviarAudioAGrupo(grupo, audioData, nombreUsuario);
-                Server.guardarHistorial("[Voz-Grupo " + grupo + "] " + nombreUsuario);
-                System.out.println("Nota de voz enviada al grupo " + grupo + " por " + nombreUsuario);
-            } catch (IOException e) {
-                System.err.println("Error al manejar voz grupal: " + e.getMessage());
             }
         }
 
-        public void enviar(String mensaje) {
-            salida.println(mensaje);
+        private void escribirTrama(Trama trama) throws IOException {
+            if (trama.getCompartido() != null) {
+                // Trama de grupo codificada una vez: v1 la envia entera y v2 solo su audio tras el encabezado propio
+                ByteBuffer buffer;
+                if (escritorBinario != null) {
+                    escritorBinario.escribir(trama, salida);
+                    buffer = trama.getCompartido().vistaAudio();
+                } else {
+                    buffer = trama.getCompartido().vista();
+                }
+                salida.flush();
+                // El canal del socket no pasa por el flujo que cuenta los bytes
+                Server.getMetricas().bytesSalida(buffer.remaining());
+                while (buffer.hasRemaining()) canalSalida.write(buffer);
+                return;
+            }
+            if (escritorBinario != null) {
+                escritorBinario.escribir(trama, salida);
+            } else {
+                salida.write(trama.lineaTexto());
+                if (trama.getAudio() != null) {
+                    salida.write(trama.getAudio());
+                }
+            }
+            if (trama.getNota() != null) {
+                // El encabezado debe llegar antes que el audio que se envia por el canal
+                salida.flush();
+                trama.getNota().transferirA(canalSalida);
+                Server.getMetricas().bytesSalida(trama.getLongitudAudio());
+            } else if (trama.getFlujo() != null) {
+                salida.flush();
+                Server.getMetricas().bytesSalida(trama.getLongitudAudio());
+                if (!trama.getFlujo().transferirA(canalSalida, Server.getConfiguracion().getTimeoutVozMs())) {
+                    escribirTrama(Trama.aviso("La nota de voz de " + trama.getRemitente() + " se interrumpio"));
+                }
+            }
         }
 
-        public void enviarAudio(String destino, byte[] audioData, String metadata) {
-            try {
-                salida.println(metadata);
-                outputStream.write(audioData);
-                outputStream.flush();
-            } catch (IOException e) {
-                System.err.println("Error al enviar audio: " + e.getMessage());
-            }
+        private void desconectarPorLentitud() {
+            System.err.println("Cola de salida llena para " + nombreUsuario + ", desconectando");
+            cerrarConexion();
         }
 
         private void cerrarConexion() {
+            if (!cerrado.compareAndSet(false, true)) return;
             try {
                 if (nombreUsuario != null) {
-                    System.out.println("Usuario desconectado: " + nombreUsuario);
+                    Bitacora.info("usuario_desconectado", "usuario", nombreUsuario);
                 }
+                Server.eliminarSesion(this);
+                colaSalida.cerrar();
                 socket.close();
             } catch (IOException e) {
                 System.err.println("Error al cerrar conexión: " + e.getMessage());
+            } finally {
+                alCerrar.run();
             }
         }
     }
\ No newline at end of file
@@ -0,0 +1,207 @@
+package server;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cola acotada de tramas pendientes de un destinatario. Los remitentes solo encolan; el hilo
+ * escritor del destinatario es el unico que toca el socket, asi un receptor lento no frena
+ * a quien le escribe. Cuando la cola se llena se aplica la politica de desborde configurada.
+ */
+public class ColaSalida {
+
+    public enum PoliticaDesborde {
+        // Se descarta la trama mas antigua para hacer sitio a la nueva
+        DESCARTAR_ANTIGUO,
+        // Se desconecta al consumidor lento
+        DESCONECTAR,
+        // El remitente espera hasta el timeout y, si sigue llena, se descarta la trama nueva
+        BLOQUEAR
+    }
+
+    private static final Trama FIN = Trama.aviso(null);
+
+    private static final LongAdder totalEncoladas = new LongAdder();
+    private static final LongAdder totalDescartadas = new LongAdder();
+    private static final LongAdder totalDesconexiones = new LongAdder();
+
+    private final BlockingQueue<Trama> cola;
+    private final PoliticaDesborde politica;
+    private final long timeoutBloqueoMs;
+    private final Runnable alDesbordar;
+    private final AtomicLong descartadas = new AtomicLong();
+    private volatile boolean cerrada;
+    // Lo usa solo el escritor: ya tomo el FIN de un cierre
+    private boolean finTomado;
+
+    // alDesbordar se invoca con la politica DESCONECTAR para cerrar la sesion lenta
+    public ColaSalida(int capacidad, PoliticaDesborde politica, long timeoutBloqueoMs, Runnable alDesbordar) {
+        this.cola = new ArrayBlockingQueue<>(capacidad);
+        this.politica = politica;
+        this.timeoutBloqueoMs = timeoutBloqueoMs;
+        this.alDesbordar = alDesbordar;
+    }
+
+    public void encolar(Trama trama) {
+        encolar(trama, timeoutBloqueoMs);
+    }
+
+    /**
+     * Como encolar, pero con la politica BLOQUEAR descarta en lugar de esperar. Para el hilo de
+     * un selector, que es a la vez quien vacia la cola y no puede quedarse esperando a si mismo,
+     * y para las tareas de la rueda de temporizadores. false si la trama no entro en la cola.
+     */
+    public boolean encolarSinEsperar(Trama trama) {
+        return encolar(trama, 0);
+    }
+
+    private boolean encolar(Trama trama, long esperaMs) {
+        if (cerrada) {
+            trama.liberar();
+            return false;
+        }
+        if (cola.offer(trama)) {
+            totalEncoladas.increment();
+            return true;
+        }
+
+        switch (politica) {
+            case DESCARTAR_ANTIGUO -> {
+                while (!cola.offer(trama)) {
+                    Trama antigua = cola.poll();
+                    if (antigua == FIN) {
+                        // La cola se cerro mientras tanto: el FIN no se descarta nunca, o el
+                        // escritor no terminaria; vuelve a la cola y la trama nueva sobra
+                        devolverFin();
+                        descartar(trama);
+                        return false;
+                    }
+                    if (antigua != null) descartar(antigua);
+                    if (cerrada) {
+                        descartar(trama);
+                        return false;
+                    }
+                }
+                totalEncoladas.increment();
+                return true;
+            }
+            case DESCONECTAR -> {
+                descartar(trama);
+                totalDesconexiones.increment();
+                alDesbordar.run();
+                return false;
+            }
+            case BLOQUEAR -> {
+                try {
+                    if (cola.offer(trama, esperaMs, TimeUnit.MILLISECONDS)) {
+                        totalEncoladas.increment();
+                        return true;
+                    }
+                    descartar(trama);
+                    return false;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    descartar(trama);
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Hace sitio al FIN quitando otras tramas si algun remitente rezagado lleno la cola
+    private void devolverFin() {
+        while (!cola.offer(FIN)) {
+            Trama trama = cola.poll();
+            if (trama != null && trama != FIN) descartar(trama);
+        }
+    }
+
+    // La trama descartada suelta su buffer compartido, si lo tiene
+    private void descartar(Trama trama) {
+        trama.liberar();
+        descartadas.incrementAndGet();
+        totalDescartadas.increment();
+    }
+
+    /**
+     * Bloquea hasta que haya al menos una trama y mueve a {@code lote} todas las que ya
+     * esten esperando, hasta {@code max}. Devuelve false cuando la cola se cerro.
+     */
+    public boolean tomarLote(List<Trama> lote, int max) throws InterruptedException {
+        if (finTomado) return false;
+        Trama primera = cola.take();
+        if (primera == FIN) return false;
+        lote.add(primera);
+        cola.drainTo(lote, max - 1);
+        // Tras un cierre ordenado el FIN va detras de las ultimas tramas: se entregan y la proxima
+        // llamada termina. Lo que un remitente rezagado encolo detras del FIN no se envia
+        for (int i = 0; i < lote.size(); i++) {
+            if (lote.get(i) == FIN) {
+                List<Trama> sobrantes = lote.subList(i, lote.size());
+                for (int j = 1; j < sobrantes.size(); j++) sobrantes.get(j).liberar();
+                sobrantes.clear();
+                finTomado = true;
+                break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Siguiente trama sin esperar, para un escritor no bloqueante. null si no hay ninguna o si se
+     * llego al FIN de un cierre; en ese caso terminada() pasa a ser true.
+     */
+    public Trama tomar() {
+        if (finTomado) return null;
+        Trama trama = cola.poll();
+        if (trama != FIN) return trama;
+        finTomado = true;
+        return null;
+    }
+
+    /** true cuando el escritor ya tomo el FIN: no queda nada mas que enviar. */
+    public boolean terminada() {
+        return finTomado;
+    }
+
+    // Despierta al escritor; las tramas que quedaban se descartan
+    public void cerrar() {
+        cerrada = true;
+        Trama trama;
+        do {
+            while ((trama = cola.poll()) != null) trama.liberar();
+        } while (!cola.offer(FIN));
+    }
+
+    /** No admite tramas nuevas; el escritor termina despues de enviar las que ya estaban. */
+    public void cerrarTrasPendientes() {
+        cerrada = true;
+        // Con la cola llena el cliente ya va atrasado: se cierra sin esperar
+        if (!cola.offer(FIN)) cerrar();
+    }
+
+    public int getProfundidad() {
+        return cola.size();
+    }
+
+    public long getDescartadas() {
+        return descartadas.get();
+    }
+
+    public static long getTotalEncoladas() {
+        return totalEncoladas.sum();
+    }
+
+    public static long getTotalDescartadas() {
+        return totalDescartadas.sum();
+    }
+
+    public static long getTotalDesconexiones() {
+        return totalDesconexiones.sum();
+    }
+}
@@ -0,0 +1,379 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Conexion atendida por ServidorNio. Lee con una maquina de estados: primero el nombre de
+ * usuario, luego lineas de comando y, tras un encabezado @voz/@vozgrupo, el cuerpo de audio
+ * de longitud conocida. Solo el hilo del selector lee y escribe en el canal; los demas hilos
+ * encolan tramas en la misma ColaSalida acotada que usa ClienteHandler, con su politica de
+ * desborde, y piden la escritura al servidor.
+ */
+public class ConexionNio implements Sesion {
+    // Buffers que una escritura agrupada envia como maximo de una vez
+    private static final int MAX_LOTE = 64;
+
+    private enum Estado {
+        NOMBRE,
+        LINEA,
+        AUDIO
+    }
+
+    private final SocketChannel canal;
+    private final ServidorNio servidor;
+    private final Runnable alCerrar;
+    private final String direccionIP;
+    private final int maxLinea;
+    private SelectionKey clave;
+    private String nombreUsuario;
+    private volatile int puertoLlamada;
+    private volatile List<String> codecs = List.of();
+
+    private Estado estado = Estado.NOMBRE;
+    // Linea parcial pendiente de un '\n'; se crea solo cuando una lectura corta una linea
+    private byte[] linea;
+    private int longitudLinea;
+    private RelayVoz relayVoz;
+
+    // Las tramas se encolan enteras; el hilo del selector las pasa a enVuelo en orden y envia
+    // varias tramas pendientes con una sola escritura agrupada
+    private final ColaSalida colaSalida;
+    private final ArrayDeque<ByteBuffer> enVuelo = new ArrayDeque<>();
+    // Tramas en enVuelo con buffer compartido, en orden; se liberan al salir su ultimo buffer
+    private final ArrayDeque<Pendiente> porLiberar = new ArrayDeque<>();
+    private final ByteBuffer[] lote = new ByteBuffer[MAX_LOTE];
+    private final AtomicBoolean escrituraSolicitada = new AtomicBoolean(false);
+    private final AtomicBoolean cerrado = new AtomicBoolean(false);
+    // Cierre ordenado pedido: no se leen mas comandos y se cierra al vaciar la salida
+    private volatile boolean cerrarAlVaciar;
+    private volatile long ultimaActividad = System.currentTimeMillis();
+
+    private static final class Pendiente {
+        final ByteBuffer[] buffers;
+        final BufferCompartido compartido;
+
+        Pendiente(ByteBuffer[] buffers, BufferCompartido compartido) {
+            this.buffers = buffers;
+            this.compartido = compartido;
+        }
+
+        ByteBuffer ultimo() {
+            return buffers[buffers.length - 1];
+        }
+    }
+
+    ConexionNio(SocketChannel canal, ServidorNio servidor, Runnable alCerrar) throws IOException {
+        this.canal = canal;
+        this.servidor = servidor;
+        this.alCerrar = alCerrar;
+        this.direccionIP = canal.socket().getInetAddress().getHostAddress();
+        ConfiguracionServidor configuracion = servidor.getConfiguracion();
+        this.maxLinea = configuracion.getMaxLinea();
+        this.colaSalida = new ColaSalida(configuracion.getCapacidadColaSalida(),
+                configuracion.getPoliticaDesborde(), configuracion.getTimeoutBloqueoMs(), this::desconectarPorLentitud);
+    }
+
+    void setClave(SelectionKey clave) {
+        this.clave = clave;
+    }
+
+    @Override
+    public String getNombreUsuario() {
+        return nombreUsuario;
+    }
+
+    @Override
+    public String getDireccionIP() {
+        return direccionIP;
+    }
+
+    @Override
+    public int getPuertoLlamada() {
+        return puertoLlamada;
+    }
+
+    @Override
+    public void setPuertoLlamada(int puertoLlamada) {
+        this.puertoLlamada = puertoLlamada;
+    }
+
+    @Override
+    public List<String> getCodecs() {
+        return codecs;
+    }
+
+    @Override
+    public void setCodecs(List<String> codecs) {
+        this.codecs = codecs;
+    }
+
+    void leer(PoolBuffers pool) throws IOException {
+        ByteBuffer buffer = pool.tomar();
+        try {
+            int leidos = canal.read(buffer);
+            if (leidos == -1) {
+                cerrar();
+                return;
+            }
+            ultimaActividad = System.currentTimeMillis();
+            Server.getMetricas().bytesEntrada(leidos);
+            buffer.flip();
+            while (buffer.hasRemaining() && !cerrado.get() && !cerrarAlVaciar) {
+                if (estado == Estado.AUDIO) {
+                    consumirAudio(buffer);
+                } else {
+                    consumirLinea(buffer);
+                }
+            }
+        } finally {
+            pool.devolver(buffer);
+        }
+    }
+
+    private void consumirLinea(ByteBuffer buffer) throws IOException {
+        int inicio = buffer.position();
+        int fin = inicio;
+        int limite = buffer.limit();
+        while (fin < limite && buffer.get(fin) != '\n') fin++;
+
+        acumular(buffer, fin - inicio);
+        if (fin == limite) return;
+
+        // Saltar el '\n'
+        buffer.get();
+        int longitud = longitudLinea;
+        if (longitud > 0 && linea[longitud - 1] == '\r') longitud--;
+        String texto = new String(linea, 0, longitud, StandardCharsets.UTF_8);
+        longitudLinea = 0;
+        procesarLinea(texto);
+    }
+
+    private void acumular(ByteBuffer buffer, int cantidad) throws IOException {
+        if (cantidad == 0) return;
+        int necesario = longitudLinea + cantidad;
+        if (necesario > maxLinea) {
+            throw new IOException("Linea demasiado larga (max " + maxLinea + " bytes)");
+        }
+        if (linea == null || linea.length < necesario) {
+            byte[] mayor = new byte[Math.min(maxLinea, Math.max(256, necesario * 2))];
+            if (linea != null) System.arraycopy(linea, 0, mayor, 0, longitudLinea);
+            linea = mayor;
+        }
+        buffer.get(linea, longitudLinea, cantidad);
+        longitudLinea = necesario;
+    }
+
+    private void procesarLinea(String texto) throws IOException {
+        if (estado == Estado.NOMBRE) {
+            nombreUsuario = ProtocoloBinario.nombreDeSaludo(texto);
+            if (nombreUsuario == null || nombreUsuario.isEmpty()) {
+                cerrar();
+                return;
+            }
+            // Este front end solo habla el protocolo de texto: a un saludo v2 se responde con v1
+            if (texto.startsWith(ProtocoloBinario.SALUDO)) {
+                enviar(Trama.aviso(ProtocoloBinario.SALUDO + "1"));
+            }
+            if (!Server.registrarSesion(this)) {
+                Bitacora.info("sesion_rechazada", "usuario", nombreUsuario, "motivo", "duplicada");
+                desconectar("El usuario " + nombreUsuario + " ya está conectado.");
+                return;
+            }
+            Bitacora.info("usuario_conectado", "usuario", nombreUsuario, "ip", direccionIP, "protocolo", 1);
+            estado = Estado.LINEA;
+            return;
+        }
+
+        if (texto.equalsIgnoreCase("exit")) {
+            cerrar();
+            return;
+        }
+
+        EncabezadoVoz encabezado = ProcesadorComandos.procesarLinea(this, texto);
+        if (encabezado != null) {
+            // Lanza IOException si supera el maximo; el selector cierra la conexion
+            relayVoz = RelayVoz.iniciar(this, encabezado.getDestino(), encabezado.esGrupo(), encabezado.getTamano());
+            estado = Estado.AUDIO;
+            if (relayVoz.faltan() == 0) terminarAudio();
+        }
+    }
+
+    // El audio pasa del buffer del pool al almacen de voz a medida que llega
+    private void consumirAudio(ByteBuffer buffer) throws IOException {
+        relayVoz.escribir(buffer);
+        if (relayVoz.faltan() == 0) terminarAudio();
+    }
+
+    private void terminarAudio() {
+        RelayVoz relay = relayVoz;
+        relayVoz = null;
+        estado = Estado.LINEA;
+        relay.terminar();
+    }
+
+    @Override
+    public void enviar(Trama trama) {
+        encolar(trama);
+        servidor.solicitarEscritura(this);
+    }
+
+    @Override
+    public boolean enviarSinEsperar(Trama trama) {
+        boolean encolada = colaSalida.encolarSinEsperar(trama.paraCodecs(codecs));
+        servidor.solicitarEscritura(this);
+        return encolada;
+    }
+
+    @Override
+    public long getUltimaActividad() {
+        return ultimaActividad;
+    }
+
+    @Override
+    public void desconectar(String motivo) {
+        encolar(Trama.aviso(motivo));
+        colaSalida.cerrarTrasPendientes();
+        cerrarAlVaciar = true;
+        servidor.solicitarEscritura(this);
+    }
+
+    @Override
+    public void desconectarSinEsperar(String motivo) {
+        if (!colaSalida.encolarSinEsperar(Trama.aviso(motivo))) {
+            cerrarAhora();
+            return;
+        }
+        colaSalida.cerrarTrasPendientes();
+        cerrarAlVaciar = true;
+        servidor.solicitarEscritura(this);
+    }
+
+    @Override
+    public int getProfundidadCola() {
+        return colaSalida.getProfundidad();
+    }
+
+    @Override
+    public void cerrarAhora() {
+        servidor.solicitarCierre(this);
+    }
+
+    // Se encolan todas y se pide una sola escritura, que las envia agrupadas
+    @Override
+    public void enviarTodas(List<Trama> tramas) {
+        for (Trama trama : tramas) {
+            encolar(trama);
+        }
+        servidor.solicitarEscritura(this);
+    }
+
+    private static ByteBuffer[] buffers(Trama trama) {
+        if (trama.getCompartido() != null) {
+            // Encabezado y audio ya codificados una vez para todo el grupo
+            return new ByteBuffer[] { trama.getCompartido().vista() };
+        }
+        ByteBuffer linea = ByteBuffer.wrap(trama.lineaTexto());
+        if (trama.getNota() != null) {
+            // El audio guardado sale directamente del segmento mapeado, sin copiarlo al heap
+            return new ByteBuffer[] { linea, trama.getNota().comoBuffer() };
+        } else if (trama.esAudio()) {
+            return new ByteBuffer[] { linea, ByteBuffer.wrap(trama.getAudio()) };
+        }
+        return new ByteBuffer[] { linea };
+    }
+
+    // El selector no puede esperar a que se vacie una cola que solo el mismo vacia
+    private void encolar(Trama original) {
+        Trama trama = original.paraCodecs(codecs);
+        if (servidor.esHiloSelector()) {
+            colaSalida.encolarSinEsperar(trama);
+        } else {
+            colaSalida.encolar(trama);
+        }
+    }
+
+    private void desconectarPorLentitud() {
+        System.err.println("Cola de salida llena para " + nombreUsuario + ", desconectando");
+        servidor.solicitarCierre(this);
+    }
+
+    // Solo desde el hilo del selector
+    void escribir() throws IOException {
+        if (cerrado.get()) return;
+        while (true) {
+            Trama trama;
+            while (enVuelo.size() < MAX_LOTE && (trama = colaSalida.tomar()) != null) {
+                ByteBuffer[] buffers = buffers(trama);
+                Collections.addAll(enVuelo, buffers);
+                if (trama.getCompartido() != null) porLiberar.addLast(new Pendiente(buffers, trama.getCompartido()));
+            }
+            if (enVuelo.isEmpty()) break;
+
+            int cantidad = 0;
+            for (ByteBuffer buffer : enVuelo) {
+                if (cantidad == MAX_LOTE) break;
+                lote[cantidad++] = buffer;
+            }
+            Server.getMetricas().bytesSalida(canal.write(lote, 0, cantidad));
+            boolean completo = !lote[cantidad - 1].hasRemaining();
+            Arrays.fill(lote, 0, cantidad, null);
+            while (!enVuelo.isEmpty() && !enVuelo.peekFirst().hasRemaining()) {
+                ByteBuffer enviado = enVuelo.pollFirst();
+                if (!porLiberar.isEmpty() && porLiberar.peekFirst().ultimo() == enviado) {
+                    porLiberar.pollFirst().compartido.liberar();
+                }
+            }
+
+            if (!completo) {
+                // El buffer de envio del socket esta lleno: continuar cuando vuelva a ser escribible
+                clave.interestOps(clave.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+        if (colaSalida.terminada()) {
+            cerrar();
+            return;
+        }
+        clave.interestOps(clave.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+
+    boolean marcarEscrituraSolicitada() {
+        return escrituraSolicitada.compareAndSet(false, true);
+    }
+
+    void limpiarEscrituraSolicitada() {
+        escrituraSolicitada.set(false);
+    }
+
+    void cerrar() {
+        if (!cerrado.compareAndSet(false, true)) return;
+        try {
+            if (nombreUsuario != null) {
+                Bitacora.info("usuario_desconectado", "usuario", nombreUsuario);
+            }
+            Server.eliminarSesion(this);
+            if (relayVoz != null) relayVoz.abortar();
+            if (clave != null) clave.cancel();
+            canal.close();
+        } catch (IOException e) {
+            System.err.println("Error al cerrar conexión: " + e.getMessage());
+        } finally {
+            colaSalida.cerrar();
+            Pendiente trama;
+            while ((trama = porLiberar.poll()) != null) {
+                trama.compartido.liberar();
+            }
+            enVuelo.clear();
+            alCerrar.run();
+        }
+    }
+}
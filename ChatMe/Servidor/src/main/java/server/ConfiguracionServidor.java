@@ -0,0 +1,336 @@
+package server;
+
+/**
+ * Parametros de ejecucion del servidor. Se leen de propiedades del sistema
+ * (-Dchatme.xxx=valor) y algunos pueden sobreescribirse desde los argumentos de main.
+ */
+public class ConfiguracionServidor {
+    // El mayor segmento de voz cuyo tamano en bytes cabe en un int
+    static final int MAX_SEGMENTO_VOZ_MB = Integer.MAX_VALUE / (1024 * 1024);
+
+    public enum MotorConexiones {
+        // Un hilo de plataforma por cliente (pool cacheado)
+        PLATAFORMA,
+        // Un hilo virtual por cliente (Java 21+)
+        VIRTUAL
+    }
+
+    public enum FrontEnd {
+        // Un ClienteHandler bloqueante por conexion, ejecutado por el motor de conexiones
+        BLOQUEANTE,
+        // Un unico hilo con Selector y ConexionNio no bloqueantes
+        NIO
+    }
+
+    private int puerto;
+    private MotorConexiones motor;
+    private FrontEnd frontEnd;
+    private int maxConexiones;
+    private int backlog;
+    private int maxLinea;
+    private int tamanoBufferLectura;
+    private int capacidadColaSalida;
+    private ColaSalida.PoliticaDesborde politicaDesborde;
+    private int timeoutBloqueoMs;
+    private int intervaloHistorialMs;
+    private int maxLoteHistorial;
+    private HistorialAsincrono.PoliticaFsync fsyncHistorial;
+    private int intervaloFsyncMs;
+    private String directorioHistorial;
+    private int tamanoSegmentoHistorial;
+    private String directorioVoz;
+    private int maxIndiceHistorial;
+    private int tamanoSegmentoVozMB;
+    private int maxVozMB;
+    private int maxNotaVoz;
+    private int ventanaVoz;
+    private int timeoutVozMs;
+    private boolean buffersCompartidosDirectos;
+    private int hilosGrupos;
+    private int umbralParaleloGrupos;
+    private int fragmentoGrupos;
+    private RegistroSesiones.PoliticaDuplicado politicaSesionDuplicada;
+    private int inactividadSesionMs;
+    private int intervaloLatidoMs;
+    private int timeoutLatidoMs;
+    private int tickTemporizadoresMs;
+    private int puertoMetricas;
+    private String directorioBuzon;
+    private int maxBuzonPorUsuario;
+    private int maxBuzones;
+    private HistorialAsincrono.PoliticaFsync fsyncBuzon;
+    private int intervaloFsyncBuzonMs;
+    private int puertoConferencias;
+    private int maxRetardoConferenciaMs;
+    private int puertoRelevo;
+    private int timeoutTimbreMs;
+    private int maxKbpsRelevo;
+
+    public ConfiguracionServidor(int puerto) {
+        this.puerto = puerto;
+        this.motor = leerEnum("chatme.motor", MotorConexiones.class, MotorConexiones.VIRTUAL);
+        this.maxConexiones = leerEntero("chatme.maxConexiones", 10000);
+        this.backlog = leerEntero("chatme.backlog", 1024);
+        this.frontEnd = leerEnum("chatme.frontend", FrontEnd.class, FrontEnd.BLOQUEANTE);
+        this.maxLinea = leerEntero("chatme.maxLinea", 64 * 1024);
+        this.tamanoBufferLectura = leerEntero("chatme.bufferLectura", 16 * 1024);
+        this.capacidadColaSalida = leerEntero("chatme.colaSalida", 1024);
+        this.politicaDesborde = leerEnum("chatme.desborde", ColaSalida.PoliticaDesborde.class,
+                ColaSalida.PoliticaDesborde.DESCONECTAR);
+        this.timeoutBloqueoMs = leerEntero("chatme.desborde.timeoutMs", 2000);
+        this.intervaloHistorialMs = leerEntero("chatme.historial.intervaloMs", 20);
+        this.maxLoteHistorial = leerEntero("chatme.historial.maxLote", 1024);
+        this.fsyncHistorial = leerEnum("chatme.historial.fsync", HistorialAsincrono.PoliticaFsync.class,
+                HistorialAsincrono.PoliticaFsync.INTERVALO);
+        this.intervaloFsyncMs = leerEntero("chatme.historial.fsyncMs", 1000);
+        this.directorioHistorial = System.getProperty("chatme.historial.directorio", "historial");
+        this.tamanoSegmentoHistorial = leerEntero("chatme.historial.segmentoBytes", 16 * 1024 * 1024);
+        this.maxIndiceHistorial = leerEntero("chatme.historial.maxIndice", 10000, 1, Integer.MAX_VALUE);
+        this.directorioVoz = System.getProperty("chatme.voz.directorio", "voz");
+        // Un segmento se mapea entero y un MappedByteBuffer no pasa de 2 GB
+        this.tamanoSegmentoVozMB = leerEntero("chatme.voz.segmentoMB", 64, 1, MAX_SEGMENTO_VOZ_MB);
+        this.maxVozMB = leerEntero("chatme.voz.maxMB", 1024);
+        this.maxNotaVoz = leerEntero("chatme.voz.maxNotaBytes", 8 * 1024 * 1024);
+        this.ventanaVoz = leerEntero("chatme.voz.ventanaBytes", 256 * 1024);
+        this.timeoutVozMs = leerEntero("chatme.voz.timeoutMs", 10000);
+        this.buffersCompartidosDirectos = Boolean.parseBoolean(System.getProperty("chatme.voz.buffersDirectos", "true"));
+        this.hilosGrupos = leerEntero("chatme.grupos.hilos", Runtime.getRuntime().availableProcessors());
+        this.umbralParaleloGrupos = leerEntero("chatme.grupos.umbralParalelo", 512);
+        this.fragmentoGrupos = leerEntero("chatme.grupos.fragmento", 256);
+        this.politicaSesionDuplicada = leerEnum("chatme.sesion.duplicada", RegistroSesiones.PoliticaDuplicado.class,
+                RegistroSesiones.PoliticaDuplicado.REEMPLAZAR);
+        this.inactividadSesionMs = leerEntero("chatme.sesion.inactividadMs", 0);
+        this.intervaloLatidoMs = leerEntero("chatme.latido.intervaloMs", 15000);
+        this.timeoutLatidoMs = leerEntero("chatme.latido.timeoutMs", 10000);
+        this.tickTemporizadoresMs = leerEntero("chatme.temporizadores.tickMs", 100);
+        this.puertoMetricas = leerEntero("chatme.metricas.puerto", 0);
+        this.directorioBuzon = System.getProperty("chatme.buzon.directorio", "buzon");
+        this.maxBuzonPorUsuario = leerEntero("chatme.buzon.maxPorUsuario", 500);
+        this.maxBuzones = leerEntero("chatme.buzon.maxUsuarios", 10000);
+        this.fsyncBuzon = leerEnum("chatme.buzon.fsync", HistorialAsincrono.PoliticaFsync.class,
+                HistorialAsincrono.PoliticaFsync.INTERVALO);
+        this.intervaloFsyncBuzonMs = leerEntero("chatme.buzon.fsyncMs", 1000);
+        // UDP, por defecto el mismo numero que el puerto del chat; negativo las desactiva
+        this.puertoConferencias = leerEntero("chatme.conferencia.puerto", puerto);
+        this.maxRetardoConferenciaMs = leerEntero("chatme.conferencia.maxRetardoMs", 100);
+        // UDP; negativo lo desactiva. El limite es por sentido: 320 kbit/s alcanzan para PCM a 16 kHz
+        this.puertoRelevo = leerEntero("chatme.relevo.puerto", puerto + 1);
+        this.maxKbpsRelevo = leerEntero("chatme.relevo.maxKbps", 320);
+        this.timeoutTimbreMs = leerEntero("chatme.llamada.timbreMs", 30000);
+    }
+
+    public int getPuerto() {
+        return puerto;
+    }
+
+    public MotorConexiones getMotor() {
+        return motor;
+    }
+
+    public void setMotor(MotorConexiones motor) {
+        this.motor = motor;
+    }
+
+    public FrontEnd getFrontEnd() {
+        return frontEnd;
+    }
+
+    public void setFrontEnd(FrontEnd frontEnd) {
+        this.frontEnd = frontEnd;
+    }
+
+    public int getMaxConexiones() {
+        return maxConexiones;
+    }
+
+    public void setMaxConexiones(int maxConexiones) {
+        this.maxConexiones = maxConexiones;
+    }
+
+    public int getBacklog() {
+        return backlog;
+    }
+
+    public int getMaxLinea() {
+        return maxLinea;
+    }
+
+    public int getTamanoBufferLectura() {
+        return tamanoBufferLectura;
+    }
+
+    public int getCapacidadColaSalida() {
+        return capacidadColaSalida;
+    }
+
+    public ColaSalida.PoliticaDesborde getPoliticaDesborde() {
+        return politicaDesborde;
+    }
+
+    public int getTimeoutBloqueoMs() {
+        return timeoutBloqueoMs;
+    }
+
+    public int getIntervaloHistorialMs() {
+        return intervaloHistorialMs;
+    }
+
+    public int getMaxLoteHistorial() {
+        return maxLoteHistorial;
+    }
+
+    public HistorialAsincrono.PoliticaFsync getFsyncHistorial() {
+        return fsyncHistorial;
+    }
+
+    public int getIntervaloFsyncMs() {
+        return intervaloFsyncMs;
+    }
+
+    public String getDirectorioHistorial() {
+        return directorioHistorial;
+    }
+
+    public int getTamanoSegmentoHistorial() {
+        return tamanoSegmentoHistorial;
+    }
+
+    public String getDirectorioVoz() {
+        return directorioVoz;
+    }
+
+    public int getMaxIndiceHistorial() {
+        return maxIndiceHistorial;
+    }
+
+    public int getTamanoSegmentoVozMB() {
+        return tamanoSegmentoVozMB;
+    }
+
+    public int getMaxVozMB() {
+        return maxVozMB;
+    }
+
+    public int getMaxNotaVoz() {
+        return maxNotaVoz;
+    }
+
+    public int getVentanaVoz() {
+        return ventanaVoz;
+    }
+
+    public int getTimeoutVozMs() {
+        return timeoutVozMs;
+    }
+
+    public boolean isBuffersCompartidosDirectos() {
+        return buffersCompartidosDirectos;
+    }
+
+    public int getHilosGrupos() {
+        return hilosGrupos;
+    }
+
+    public int getUmbralParaleloGrupos() {
+        return umbralParaleloGrupos;
+    }
+
+    public int getFragmentoGrupos() {
+        return fragmentoGrupos;
+    }
+
+    public RegistroSesiones.PoliticaDuplicado getPoliticaSesionDuplicada() {
+        return politicaSesionDuplicada;
+    }
+
+    public int getInactividadSesionMs() {
+        return inactividadSesionMs;
+    }
+
+    public int getIntervaloLatidoMs() {
+        return intervaloLatidoMs;
+    }
+
+    public int getTimeoutLatidoMs() {
+        return timeoutLatidoMs;
+    }
+
+    public int getTickTemporizadoresMs() {
+        return tickTemporizadoresMs;
+    }
+
+    public int getPuertoMetricas() {
+        return puertoMetricas;
+    }
+
+    public String getDirectorioBuzon() {
+        return directorioBuzon;
+    }
+
+    public int getMaxBuzonPorUsuario() {
+        return maxBuzonPorUsuario;
+    }
+
+    public int getMaxBuzones() {
+        return maxBuzones;
+    }
+
+    public HistorialAsincrono.PoliticaFsync getFsyncBuzon() {
+        return fsyncBuzon;
+    }
+
+    public int getIntervaloFsyncBuzonMs() {
+        return intervaloFsyncBuzonMs;
+    }
+
+    public int getPuertoConferencias() {
+        return puertoConferencias;
+    }
+
+    public int getMaxRetardoConferenciaMs() {
+        return maxRetardoConferenciaMs;
+    }
+
+    public int getPuertoRelevo() {
+        return puertoRelevo;
+    }
+
+    public int getMaxKbpsRelevo() {
+        return maxKbpsRelevo;
+    }
+
+    public int getTimeoutTimbreMs() {
+        return timeoutTimbreMs;
+    }
+
+    static int leerEntero(String propiedad, int porDefecto) {
+        String valor = System.getProperty(propiedad);
+        if (valor == null || valor.isBlank()) return porDefecto;
+        try {
+            return Integer.parseInt(valor.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Valor invalido para " + propiedad + ": " + valor + ", usando " + porDefecto);
+            return porDefecto;
+        }
+    }
+
+    // Fuera de [minimo, maximo] se avisa y se usa el valor por defecto
+    static int leerEntero(String propiedad, int porDefecto, int minimo, int maximo) {
+        int valor = leerEntero(propiedad, porDefecto);
+        if (valor >= minimo && valor <= maximo) return valor;
+        System.err.println("Valor fuera de rango para " + propiedad + ": " + valor
+                + " (" + minimo + " a " + maximo + "), usando " + porDefecto);
+        return porDefecto;
+    }
+
+    static <E extends Enum<E>> E leerEnum(String propiedad, Class<E> tipo, E porDefecto) {
+        String valor = System.getProperty(propiedad);
+        if (valor == null || valor.isBlank()) return porDefecto;
+        try {
+            return Enum.valueOf(tipo, valor.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Valor invalido para " + propiedad + ": " + valor + ", usando " + porDefecto);
+            return porDefecto;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BiConsumer;
+
+/**
+ * Reparte una trama entre los miembros de un grupo. Los grupos chicos se recorren en el hilo
+ * del remitente; a partir de {@code umbralParalelo} miembros la instantanea de miembros se
+ * divide en fragmentos y cada fragmento se entrega en un ForkJoinPool propio.
+ *
+ * El remitente espera a que terminen todos los fragmentos, asi que dos mensajes seguidos de un
+ * mismo remitente llegan en orden a cada miembro, igual que con el recorrido secuencial. Cada
+ * reparto registra su latencia en el histograma del grupo.
+ */
+public class DespachadorGrupos {
+    private final ForkJoinPool pool;
+    private final int umbralParalelo;
+    private final int tamanoFragmento;
+    private final Map<String, HistogramaLatencia> latencias = new ConcurrentHashMap<>();
+    private final HistogramaLatencia latenciaTotal = new HistogramaLatencia();
+
+    public DespachadorGrupos(int hilos, int umbralParalelo, int tamanoFragmento) {
+        this.pool = new ForkJoinPool(Math.max(1, hilos));
+        this.umbralParalelo = umbralParalelo;
+        this.tamanoFragmento = Math.max(1, tamanoFragmento);
+    }
+
+    /** Entrega la trama a cada miembro salvo al remitente, llamando a {@code entregar(miembro, trama)}. */
+    public void despachar(String grupo, RegistroGrupos.Miembros miembros, Trama trama, String remitente,
+                          BiConsumer<String, Trama> entregar) {
+        long inicio = System.nanoTime();
+        // La linea de texto se codifica aqui una vez, antes de que la lean varios hilos
+        trama.lineaTexto();
+
+        // La instantanea no cambia, asi que los fragmentos la recorren sin copiarla
+        if (miembros.size() < umbralParalelo) {
+            for (int i = 0; i < miembros.size(); i++) {
+                String miembro = miembros.nombre(i);
+                if (!miembro.equals(remitente)) entregar.accept(miembro, trama);
+            }
+        } else {
+            pool.invoke(new Fragmento(miembros, 0, miembros.size(), trama, remitente, entregar));
+        }
+
+        long duracion = System.nanoTime() - inicio;
+        latencias.computeIfAbsent(grupo, g -> new HistogramaLatencia()).registrar(duracion);
+        latenciaTotal.registrar(duracion);
+    }
+
+    /** Histograma de latencias de reparto del grupo, o null si aun no se envio nada. */
+    public HistogramaLatencia getLatencia(String grupo) {
+        return latencias.get(grupo);
+    }
+
+    /** Latencias de reparto de todos los grupos juntos. */
+    public HistogramaLatencia getLatenciaTotal() {
+        return latenciaTotal;
+    }
+
+    public void cerrar() {
+        pool.shutdown();
+    }
+
+    private class Fragmento extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final RegistroGrupos.Miembros miembros;
+        private final int desde;
+        private final int hasta;
+        private final Trama trama;
+        private final String remitente;
+        private final BiConsumer<String, Trama> entregar;
+
+        Fragmento(RegistroGrupos.Miembros miembros, int desde, int hasta, Trama trama, String remitente,
+                  BiConsumer<String, Trama> entregar) {
+            this.miembros = miembros;
+            this.desde = desde;
+            this.hasta = hasta;
+            this.trama = trama;
+            this.remitente = remitente;
+            this.entregar = entregar;
+        }
+
+        @Override
+        protected void compute() {
+            if (hasta - desde <= tamanoFragmento) {
+                for (int i = desde; i < hasta; i++) {
+                    String miembro = miembros.nombre(i);
+                    if (!miembro.equals(remitente)) entregar.accept(miembro, trama);
+                }
+                return;
+            }
+            int medio = (desde + hasta) >>> 1;
+            invokeAll(new Fragmento(miembros, desde, medio, trama, remitente, entregar),
+                    new Fragmento(miembros, medio, hasta, trama, remitente, entregar));
+        }
+    }
+}
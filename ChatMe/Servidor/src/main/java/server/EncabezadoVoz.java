@@ -0,0 +1,51 @@
+package server;
+
+/**
+ * Encabezado de una nota de voz: "@voz|destino|tamano" o "@vozgrupo|grupo|tamano".
+ * Tras la linea llegan exactamente {@code tamano} bytes de audio.
+ */
+public class EncabezadoVoz {
+    private final String destino;
+    private final boolean grupo;
+    private final int tamano;
+
+    private EncabezadoVoz(String destino, boolean grupo, int tamano) {
+        this.destino = destino;
+        this.grupo = grupo;
+        this.tamano = tamano;
+    }
+
+    // Devuelve null si la linea no es un encabezado de voz valido
+    public static EncabezadoVoz leer(String linea) {
+        boolean esGrupo;
+        if (linea.startsWith("@vozgrupo|")) {
+            esGrupo = true;
+        } else if (linea.startsWith("@voz|")) {
+            esGrupo = false;
+        } else {
+            return null;
+        }
+
+        String[] partes = linea.split("\\|");
+        if (partes.length < 3) return null;
+        try {
+            int tamano = Integer.parseInt(partes[2]);
+            if (tamano < 0) return null;
+            return new EncabezadoVoz(partes[1], esGrupo, tamano);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public String getDestino() {
+        return destino;
+    }
+
+    public boolean esGrupo() {
+        return grupo;
+    }
+
+    public int getTamano() {
+        return tamano;
+    }
+}
@@ -0,0 +1,206 @@
+package server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Nota de voz que se esta recibiendo. El remitente copia cada parte directamente a su espacio
+ * reservado en AlmacenVoz y cada destinatario conectado la va enviando con su Lector a medida
+ * que llega, sin que la nota completa pase nunca por el heap.
+ *
+ * Control de flujo: el remitente no puede adelantarse mas de una ventana al destinatario mas
+ * lento. Si ese destinatario no avanza durante el tiempo de espera, se lo deja atras (seguira
+ * enviando desde el archivo a su ritmo) y el remitente continua.
+ */
+public class FlujoVoz {
+    private final AlmacenVoz almacen;
+    private final AlmacenVoz.Segmento segmento;
+    private final int offset;
+    private final int longitud;
+    private final MessageDigest digest;
+
+    private final ReentrantLock candado = new ReentrantLock();
+    private final Condition cambio = candado.newCondition();
+    private final List<Lector> lectores = new ArrayList<>();
+    private int escritos;
+    private boolean completo;
+    private boolean abortado;
+
+    FlujoVoz(AlmacenVoz almacen, AlmacenVoz.Segmento segmento, int offset, int longitud) {
+        this.almacen = almacen;
+        this.segmento = segmento;
+        this.offset = offset;
+        this.longitud = longitud;
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 no disponible", e);
+        }
+    }
+
+    public int getLongitud() {
+        return longitud;
+    }
+
+    /** Un lector por destinatario; debe crearse antes de que empiece a llegar el audio. */
+    public Lector nuevoLector() {
+        candado.lock();
+        try {
+            Lector lector = new Lector();
+            lectores.add(lector);
+            return lector;
+        } finally {
+            candado.unlock();
+        }
+    }
+
+    /**
+     * Agrega una parte recibida. Si la ventana esta llena espera a los destinatarios como
+     * mucho timeoutMs por cada uno que no avance.
+     */
+    public void escribir(byte[] datos, int desde, int cantidad, int ventana, long timeoutMs) throws IOException {
+        segmento.mapa.put(offset + escritos, datos, desde, cantidad);
+        digest.update(datos, desde, cantidad);
+        avanzar(cantidad, ventana, timeoutMs);
+    }
+
+    /** Version para el front end NIO: no espera, el hilo del selector no puede bloquearse. */
+    public void escribir(ByteBuffer datos) throws IOException {
+        int cantidad = datos.remaining();
+        segmento.mapa.put(offset + escritos, datos, datos.position(), cantidad);
+        digest.update(datos);
+        avanzar(cantidad, Integer.MAX_VALUE, 0);
+    }
+
+    private void avanzar(int cantidad, int ventana, long timeoutMs) throws IOException {
+        candado.lock();
+        try {
+            escritos += cantidad;
+            cambio.signalAll();
+
+            long limite = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            Lector lento;
+            while ((lento = masAtrasado(ventana)) != null) {
+                long espera = limite - System.nanoTime();
+                if (espera <= 0) {
+                    lento.rezagado = true;
+                    limite = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+                    continue;
+                }
+                cambio.awaitNanos(espera);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrumpido esperando a los destinatarios");
+        } finally {
+            candado.unlock();
+        }
+    }
+
+    // Con el candado tomado
+    private Lector masAtrasado(int ventana) {
+        Lector lento = null;
+        for (Lector lector : lectores) {
+            if (!lector.rezagado && escritos - lector.enviados > ventana
+                    && (lento == null || lector.enviados < lento.enviados)) {
+                lento = lector;
+            }
+        }
+        return lento;
+    }
+
+    /** Marca la nota como completa, la indexa en el almacen y devuelve su NotaVoz. */
+    public NotaVoz completar() {
+        byte[] hash = AlmacenVoz.recortarHash(digest.digest());
+        NotaVoz nota = almacen.confirmar(segmento, offset, longitud, hash);
+        candado.lock();
+        try {
+            completo = true;
+            cambio.signalAll();
+        } finally {
+            candado.unlock();
+        }
+        return nota;
+    }
+
+    /** El remitente se corto: los lectores completan la trama con silencio. */
+    public void abortar() {
+        candado.lock();
+        try {
+            abortado = true;
+            cambio.signalAll();
+        } finally {
+            candado.unlock();
+        }
+    }
+
+    public class Lector {
+        private int enviados;
+        private boolean rezagado;
+
+        public int getLongitud() {
+            return longitud;
+        }
+
+        /**
+         * Envia el audio a medida que llega. Devuelve false si la nota no se completo; en ese
+         * caso el resto se rellena con ceros para que la trama mantenga su longitud.
+         */
+        public boolean transferirA(WritableByteChannel destino, long timeoutMs) throws IOException {
+            while (true) {
+                int disponible;
+                boolean interrumpida;
+                candado.lock();
+                try {
+                    long espera = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+                    while (enviados == escritos && !completo && !abortado && espera > 0) {
+                        espera = cambio.awaitNanos(espera);
+                    }
+                    disponible = escritos;
+                    // Un remitente que deja de enviar sin cortar la conexion no retiene al destinatario
+                    interrumpida = abortado || (enviados == escritos && !completo);
+                    if (interrumpida) rezagado = true;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrumpido esperando la nota de voz");
+                } finally {
+                    candado.unlock();
+                }
+
+                if (enviados < disponible) {
+                    NotaVoz.transferir(segmento.canal, segmento.mapa, offset + enviados, offset + disponible, destino);
+                    candado.lock();
+                    try {
+                        enviados = disponible;
+                        cambio.signalAll();
+                    } finally {
+                        candado.unlock();
+                    }
+                    continue;
+                }
+                if (interrumpida) {
+                    rellenar(destino, longitud - enviados);
+                    return false;
+                }
+                return true;
+            }
+        }
+
+        private void rellenar(WritableByteChannel destino, int cantidad) throws IOException {
+            ByteBuffer ceros = ByteBuffer.allocate(Math.min(cantidad, 64 * 1024));
+            while (cantidad > 0) {
+                ceros.clear().limit(Math.min(cantidad, ceros.capacity()));
+                while (ceros.hasRemaining()) cantidad -= destino.write(ceros);
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histograma de latencias en nanosegundos, sin bloqueos. Cada potencia de 2 se divide en 8
+ * cubetas lineales, asi que un percentil se conoce con un error menor al 12,5% usando solo
+ * 512 contadores. Se puede registrar desde varios hilos a la vez.
+ */
+public class HistogramaLatencia {
+    private static final int SUBCUBETAS_BITS = 3;
+    private static final int SUBCUBETAS = 1 << SUBCUBETAS_BITS;
+    private static final int CUBETAS = 64 * SUBCUBETAS;
+
+    private final AtomicLongArray cubetas = new AtomicLongArray(CUBETAS);
+    private final LongAdder cantidad = new LongAdder();
+    private final LongAdder suma = new LongAdder();
+    private final AtomicLong maximo = new AtomicLong();
+
+    public void registrar(long nanos) {
+        if (nanos < 0) nanos = 0;
+        cubetas.incrementAndGet(cubeta(nanos));
+        cantidad.increment();
+        suma.add(nanos);
+        long actual;
+        while (nanos > (actual = maximo.get()) && !maximo.compareAndSet(actual, nanos)) {
+            // otro hilo registro un maximo mientras tanto; se vuelve a comparar
+        }
+    }
+
+    // Los valores menores que SUBCUBETAS van a su propia cubeta; el resto, por exponente y 3 bits siguientes
+    private static int cubeta(long valor) {
+        if (valor < SUBCUBETAS) return (int) valor;
+        int exponente = 63 - Long.numberOfLeadingZeros(valor);
+        int sub = (int) (valor >>> (exponente - SUBCUBETAS_BITS)) & (SUBCUBETAS - 1);
+        return (exponente - SUBCUBETAS_BITS + 1) * SUBCUBETAS + sub;
+    }
+
+    // Mayor valor que cae en la cubeta
+    private static long limiteSuperior(int cubeta) {
+        if (cubeta < SUBCUBETAS) return cubeta;
+        int exponente = cubeta / SUBCUBETAS + SUBCUBETAS_BITS - 1;
+        long sub = cubeta % SUBCUBETAS;
+        long inicio = (1L << exponente) | (sub << (exponente - SUBCUBETAS_BITS));
+        return inicio + (1L << (exponente - SUBCUBETAS_BITS)) - 1;
+    }
+
+    /** Percentil (0-100) en nanosegundos; 0 si no hay registros. Nunca supera el maximo visto. */
+    public long percentil(double percentil) {
+        long total = cantidad.sum();
+        if (total == 0) return 0;
+        long objetivo = Math.max(1, (long) Math.ceil(total * percentil / 100.0));
+        long acumulado = 0;
+        for (int i = 0; i < CUBETAS; i++) {
+            acumulado += cubetas.get(i);
+            if (acumulado >= objetivo) return Math.min(limiteSuperior(i), maximo.get());
+        }
+        return maximo.get();
+    }
+
+    public long getCantidad() {
+        return cantidad.sum();
+    }
+
+    public long getSuma() {
+        return suma.sum();
+    }
+
+    public long getMaximo() {
+        return maximo.get();
+    }
+
+    public long getPromedio() {
+        long total = cantidad.sum();
+        return total == 0 ? 0 : suma.sum() / total;
+    }
+
+    /** "n=... p50=... p90=... p99=... max=..." en microsegundos. */
+    public String resumen() {
+        return "n=" + getCantidad()
+                + " p50=" + percentil(50) / 1000 + "us"
+                + " p90=" + percentil(90) / 1000 + "us"
+                + " p99=" + percentil(99) / 1000 + "us"
+                + " max=" + getMaximo() / 1000 + "us";
+    }
+}
@@ -0,0 +1,190 @@
+package server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Historial escrito en segundo plano. Los handlers solo encolan el registro (cola sin bloqueo,
+ * muchos productores y un consumidor); un unico hilo junta lo pendiente cada intervalo de
+ * grupo y lo anexa de una vez al AlmacenHistorial.
+ */
+public class HistorialAsincrono {
+
+    public enum PoliticaFsync {
+        // Se deja la persistencia al sistema operativo
+        NUNCA,
+        // force() despues de cada lote escrito
+        LOTE,
+        // force() como mucho una vez por intervalo de fsync
+        INTERVALO
+    }
+
+    private static final class Pendiente {
+        final RegistroHistorial registro;
+        final long encolado;
+
+        Pendiente(RegistroHistorial registro, long encolado) {
+            this.registro = registro;
+            this.encolado = encolado;
+        }
+    }
+
+    private final ConcurrentLinkedQueue<Pendiente> cola = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendientes = new AtomicInteger();
+    private final AlmacenHistorial almacen;
+    private final List<RegistroHistorial> lote = new ArrayList<>();
+    private final long intervaloNanos;
+    private final int maxLote;
+    private final PoliticaFsync politicaFsync;
+    private final long intervaloFsyncNanos;
+    private final Thread escritor;
+    private volatile boolean activo = true;
+    private long ultimoFsync = System.nanoTime();
+
+    private volatile long ultimoLote;
+    private volatile long maxLoteObservado;
+    private volatile long ultimoLagMicros;
+    private volatile long maxLagMicros;
+    private volatile long totalEscritos;
+    private volatile long totalLotes;
+    // Registros que el escritor ya termino, con el fsync que pida la politica; avanza aunque falle
+    private volatile long totalProcesados;
+    private final HistogramaLatencia latencia = new HistogramaLatencia();
+
+    public HistorialAsincrono(AlmacenHistorial almacen, int intervaloMs, int maxLote, PoliticaFsync politicaFsync,
+                              int intervaloFsyncMs) {
+        this.almacen = almacen;
+        this.intervaloNanos = TimeUnit.MILLISECONDS.toNanos(intervaloMs);
+        this.maxLote = maxLote;
+        this.politicaFsync = politicaFsync;
+        this.intervaloFsyncNanos = TimeUnit.MILLISECONDS.toNanos(intervaloFsyncMs);
+        this.escritor = new Thread(this::escribirEnSegundoPlano, "historial");
+        this.escritor.setDaemon(true);
+        this.escritor.start();
+    }
+
+    public void registrar(RegistroHistorial registro) {
+        if (!activo) return;
+        cola.offer(new Pendiente(registro, System.nanoTime()));
+        // Un lote completo no espera al siguiente intervalo
+        if (pendientes.incrementAndGet() == maxLote) {
+            LockSupport.unpark(escritor);
+        }
+    }
+
+    private void escribirEnSegundoPlano() {
+        while (activo || !cola.isEmpty()) {
+            if (activo && pendientes.get() < maxLote) {
+                LockSupport.parkNanos(this, intervaloNanos);
+            }
+            try {
+                escribirLote();
+            } catch (IOException e) {
+                System.err.println("Error al guardar historial: " + e.getMessage());
+            }
+        }
+    }
+
+    private void escribirLote() throws IOException {
+        Pendiente pendiente;
+        long masAntiguo = 0;
+        lote.clear();
+        while (lote.size() < maxLote && (pendiente = cola.poll()) != null) {
+            if (lote.isEmpty()) masAntiguo = pendiente.encolado;
+            lote.add(pendiente.registro);
+        }
+        int escritos = lote.size();
+        if (escritos == 0) return;
+        pendientes.addAndGet(-escritos);
+        try {
+            almacen.anexar(lote);
+
+            long ahora = System.nanoTime();
+            if (politicaFsync == PoliticaFsync.LOTE
+                    || (politicaFsync == PoliticaFsync.INTERVALO && ahora - ultimoFsync >= intervaloFsyncNanos)) {
+                almacen.forzar();
+                ultimoFsync = ahora;
+            }
+        } finally {
+            totalProcesados += escritos;
+        }
+
+        long lagNanos = System.nanoTime() - masAntiguo;
+        latencia.registrar(lagNanos);
+        long lag = TimeUnit.NANOSECONDS.toMicros(lagNanos);
+        ultimoLote = escritos;
+        maxLoteObservado = Math.max(maxLoteObservado, escritos);
+        ultimoLagMicros = lag;
+        maxLagMicros = Math.max(maxLagMicros, lag);
+        totalEscritos += escritos;
+        totalLotes++;
+    }
+
+    /** Escribe lo pendiente, hace fsync y cierra el almacen. */
+    public void cerrar() {
+        activo = false;
+        LockSupport.unpark(escritor);
+        try {
+            escritor.join(5000);
+            almacen.forzar();
+            almacen.cerrar();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.err.println("Error al cerrar historial: " + e.getMessage());
+        }
+    }
+
+    public AlmacenHistorial getAlmacen() {
+        return almacen;
+    }
+
+    public int getPendientes() {
+        return pendientes.get();
+    }
+
+    public long getUltimoLote() {
+        return ultimoLote;
+    }
+
+    public long getMaxLote() {
+        return maxLoteObservado;
+    }
+
+    public double getLoteMedio() {
+        long lotes = totalLotes;
+        return lotes == 0 ? 0 : (double) totalEscritos / lotes;
+    }
+
+    // Desde que se encolo el registro mas antiguo del lote hasta que quedo escrito
+    public long getUltimoLagMicros() {
+        return ultimoLagMicros;
+    }
+
+    public long getMaxLagMicros() {
+        return maxLagMicros;
+    }
+
+    // El mismo retraso por lote, en un histograma para sacar percentiles
+    public HistogramaLatencia getLatencia() {
+        return latencia;
+    }
+
+    public long getTotalEscritos() {
+        return totalEscritos;
+    }
+
+    /**
+     * Registros que ya pasaron por el escritor: anexados y forzados segun la politica, o
+     * perdidos por un error. A diferencia de getPendientes, no cuenta como hecho lo que el
+     * escritor tomo de la cola y todavia esta escribiendo.
+     */
+    public long getTotalProcesados() {
+        return totalProcesados;
+    }
+}
@@ -0,0 +1,101 @@
+package server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Importa una sola vez el historial de texto plano (historial_chat.txt) al AlmacenHistorial.
+ * El archivo viejo no guarda fechas, asi que todas las lineas reciben la fecha de modificacion
+ * del archivo y conservan su orden. Las lineas que no siguen ningun formato conocido se
+ * guardan en la conversacion "sin-clasificar" para no perder nada.
+ *
+ * Uso: java server.ImportadorHistorial [historial_chat.txt] [directorio del almacen]
+ */
+public class ImportadorHistorial {
+    public static final String SIN_CLASIFICAR = "sin-clasificar";
+
+    private static final Pattern PRIVADO = Pattern.compile("^\\[(.+?) -> (.+?)\\] (.*)$", Pattern.DOTALL);
+    private static final Pattern GRUPO = Pattern.compile("^\\[Grupo (.+?)\\] (.+?): (.*)$", Pattern.DOTALL);
+    private static final Pattern VOZ = Pattern.compile("^\\[Voz\\] (.+) -> (.+?)(?: \\(nota [0-9a-f]+\\))?$");
+    private static final Pattern VOZ_GRUPO = Pattern.compile("^\\[Voz-Grupo (.+?)\\] (.+?)(?: \\(nota [0-9a-f]+\\))?$");
+    private static final int LOTE = 1024;
+
+    private ImportadorHistorial() {
+    }
+
+    /** Importa el archivo y devuelve el numero de lineas guardadas. */
+    public static int importar(Path archivo, AlmacenHistorial almacen) throws IOException {
+        long timestamp = Files.getLastModifiedTime(archivo).toMillis();
+        List<RegistroHistorial> lote = new ArrayList<>(LOTE);
+        int importadas = 0;
+
+        try (BufferedReader lector = Files.newBufferedReader(archivo, StandardCharsets.UTF_8)) {
+            String linea;
+            while ((linea = lector.readLine()) != null) {
+                if (linea.isBlank()) continue;
+                lote.add(new RegistroHistorial(timestamp, conversacionDe(linea), linea));
+                if (lote.size() == LOTE) {
+                    almacen.anexar(lote);
+                    importadas += lote.size();
+                    lote.clear();
+                }
+            }
+        }
+        almacen.anexar(lote);
+        importadas += lote.size();
+        almacen.forzar();
+        return importadas;
+    }
+
+    static String conversacionDe(String linea) {
+        // Los formatos de voz van primero: "[Voz] A -> B" tambien encaja con el patron privado
+        Matcher m = VOZ.matcher(linea);
+        if (m.matches()) return RegistroHistorial.conversacionPrivada(m.group(1), m.group(2));
+        m = VOZ_GRUPO.matcher(linea);
+        if (m.matches()) return RegistroHistorial.conversacionGrupo(m.group(1));
+        m = GRUPO.matcher(linea);
+        if (m.matches()) return RegistroHistorial.conversacionGrupo(m.group(1));
+        m = PRIVADO.matcher(linea);
+        if (m.matches()) return RegistroHistorial.conversacionPrivada(m.group(1), m.group(2));
+        return SIN_CLASIFICAR;
+    }
+
+    /**
+     * Llamado al arrancar el servidor: si el almacen esta vacio y existe el historial viejo, lo
+     * importa y lo renombra a .importado para que no se vuelva a importar.
+     */
+    public static void importarSiHaceFalta(Path archivo, AlmacenHistorial almacen) {
+        if (!almacen.estaVacio() || !Files.isRegularFile(archivo)) return;
+        try {
+            int importadas = importar(archivo, almacen);
+            Files.move(archivo, archivo.resolveSibling(archivo.getFileName() + ".importado"),
+                    StandardCopyOption.REPLACE_EXISTING);
+            System.out.println("Historial importado: " + importadas + " lineas de " + archivo);
+        } catch (IOException e) {
+            System.err.println("No se pudo importar el historial " + archivo + ": " + e.getMessage());
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path archivo = Paths.get(args.length > 0 ? args[0] : "historial_chat.txt");
+        Path directorio = Paths.get(args.length > 1 ? args[1] : "historial");
+        ConfiguracionServidor configuracion = new ConfiguracionServidor(0);
+
+        AlmacenHistorial almacen = new AlmacenHistorial(directorio, configuracion.getTamanoSegmentoHistorial(),
+                configuracion.getMaxIndiceHistorial());
+        try {
+            if (!almacen.estaVacio()) {
+                System.err.println("El almacen " + directorio + " ya tiene mensajes; no se importa de nuevo");
+                return;
+            }
+            System.out.println("Importadas " + importar(archivo, almacen) + " lineas de " + archivo + " en " + directorio);
+        } finally {
+            almacen.cerrar();
+        }
+    }
+}
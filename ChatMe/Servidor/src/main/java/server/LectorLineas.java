@@ -0,0 +1,50 @@
+package server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Lee lineas de texto y cuerpos binarios del mismo flujo. Un BufferedReader encima del
+ * InputStream se queda con bytes del audio en su buffer, por eso ambos se leen desde aqui.
+ */
+public class LectorLineas {
+    private final InputStream entrada;
+    private final int maxLinea;
+    private byte[] linea = new byte[256];
+
+    public LectorLineas(InputStream entrada, int maxLinea) {
+        this.entrada = new BufferedInputStream(entrada);
+        this.maxLinea = maxLinea;
+    }
+
+    // Devuelve null al llegar al fin del flujo
+    public String leerLinea() throws IOException {
+        int longitud = 0;
+        int b;
+        while ((b = entrada.read()) != '\n') {
+            if (b == -1) {
+                return longitud == 0 ? null : decodificar(longitud);
+            }
+            if (longitud == linea.length) {
+                if (longitud >= maxLinea) {
+                    throw new IOException("Linea demasiado larga (max " + maxLinea + " bytes)");
+                }
+                byte[] mayor = new byte[Math.min(maxLinea, longitud * 2)];
+                System.arraycopy(linea, 0, mayor, 0, longitud);
+                linea = mayor;
+            }
+            linea[longitud++] = (byte) b;
+        }
+        return decodificar(longitud);
+    }
+
+    // Flujo con buffer del que leen las lineas, para seguir leyendo en binario tras el saludo
+    public InputStream getFlujo() {
+        return entrada;
+    }
+
+    private String decodificar(int longitud) {
+        if (longitud > 0 && linea[longitud - 1] == '\r') longitud--;
+        return new String(linea, 0, longitud, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,371 @@
+package server;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Contadores y medidores del servidor. Los contadores son LongAdder, asi que sumar desde
+ * muchos hilos a la vez no los hace competir por una misma linea de cache; los medidores
+ * (usuarios, colas, historial) se calculan solo cuando alguien los lee.
+ *
+ * Se exponen por JMX como chatme:type=Metricas y en texto plano con comoTexto(), que sirve
+ * ServidorMetricas. Las tasas por segundo las calcula un temporizador de la rueda cada segundo.
+ */
+public class Metricas implements MetricasMBean {
+
+    public enum TipoMensaje {
+        PRIVADO,
+        GRUPO,
+        VOZ,
+        // Senalizacion de llamadas: solicitar, aceptar, rechazar
+        LLAMADA
+    }
+
+    private static final int COLAS_LISTADAS = 10;
+
+    private final LongAdder[] mensajes = new LongAdder[TipoMensaje.values().length];
+    private final LongAdder bytesEntrada = new LongAdder();
+    private final LongAdder bytesSalida = new LongAdder();
+    private final LongAdder lineasSuprimidas = new LongAdder();
+    private final RuedaTemporizadores rueda;
+    // Solo las toca el temporizador de muestreo
+    private final long[] anteriores = new long[mensajes.length];
+    private long ultimaMuestra = System.nanoTime();
+    private volatile double[] tasas = new double[mensajes.length];
+
+    public Metricas(RuedaTemporizadores rueda) {
+        for (int i = 0; i < mensajes.length; i++) mensajes[i] = new LongAdder();
+        this.rueda = rueda;
+        rueda.programar(1000, this::muestrear);
+    }
+
+    public void mensaje(TipoMensaje tipo) {
+        mensajes[tipo.ordinal()].increment();
+    }
+
+    public void bytesEntrada(long cantidad) {
+        bytesEntrada.add(cantidad);
+    }
+
+    public void bytesSalida(long cantidad) {
+        bytesSalida.add(cantidad);
+    }
+
+    void lineaSuprimida() {
+        lineasSuprimidas.increment();
+    }
+
+    /** Cuenta en bytesEntrada lo que se lee del flujo. */
+    public InputStream contarEntrada(InputStream entrada) {
+        return new FilterInputStream(entrada) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) bytesEntrada.increment();
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int leidos = super.read(b, off, len);
+                if (leidos > 0) bytesEntrada.add(leidos);
+                return leidos;
+            }
+        };
+    }
+
+    /** Cuenta en bytesSalida lo que se escribe en el flujo. */
+    public OutputStream contarSalida(OutputStream salida) {
+        return new FilterOutputStream(salida) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytesSalida.increment();
+            }
+
+            // FilterOutputStream escribiria byte a byte
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                bytesSalida.add(len);
+            }
+        };
+    }
+
+    public void registrarEnJmx() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("chatme:type=Metricas"));
+        } catch (JMException e) {
+            System.err.println("No se pudieron registrar las metricas en JMX: " + e.getMessage());
+        }
+    }
+
+    // En el hilo de la rueda
+    private void muestrear() {
+        long ahora = System.nanoTime();
+        double segundos = (ahora - ultimaMuestra) / 1e9;
+        double[] nuevas = new double[mensajes.length];
+        for (int i = 0; i < mensajes.length; i++) {
+            long total = mensajes[i].sum();
+            nuevas[i] = (total - anteriores[i]) / segundos;
+            anteriores[i] = total;
+        }
+        ultimaMuestra = ahora;
+        tasas = nuevas;
+        rueda.programar(1000, this::muestrear);
+    }
+
+    public long getMensajes(TipoMensaje tipo) {
+        return mensajes[tipo.ordinal()].sum();
+    }
+
+    public double getMensajesPorSegundo(TipoMensaje tipo) {
+        return tasas[tipo.ordinal()];
+    }
+
+    @Override
+    public int getUsuariosConectados() {
+        return Server.getClientesConectados().size();
+    }
+
+    @Override
+    public long getMensajesPrivados() {
+        return getMensajes(TipoMensaje.PRIVADO);
+    }
+
+    @Override
+    public long getMensajesGrupo() {
+        return getMensajes(TipoMensaje.GRUPO);
+    }
+
+    @Override
+    public long getMensajesVoz() {
+        return getMensajes(TipoMensaje.VOZ);
+    }
+
+    @Override
+    public long getMensajesLlamada() {
+        return getMensajes(TipoMensaje.LLAMADA);
+    }
+
+    @Override
+    public double getMensajesPorSegundo() {
+        double total = 0;
+        for (double tasa : tasas) total += tasa;
+        return total;
+    }
+
+    @Override
+    public long getBytesEntrada() {
+        return bytesEntrada.sum();
+    }
+
+    @Override
+    public long getBytesSalida() {
+        return bytesSalida.sum();
+    }
+
+    @Override
+    public long getColaSalidaTotal() {
+        long[] total = new long[1];
+        Server.getClientesConectados().paraCada(sesion -> total[0] += sesion.getProfundidadCola());
+        return total[0];
+    }
+
+    @Override
+    public int getColaSalidaMaxima() {
+        int[] maxima = new int[1];
+        Server.getClientesConectados().paraCada(sesion -> maxima[0] = Math.max(maxima[0], sesion.getProfundidadCola()));
+        return maxima[0];
+    }
+
+    @Override
+    public String[] getColasMasProfundas() {
+        List<Map.Entry<String, Integer>> colas = colasMasProfundas();
+        String[] resultado = new String[colas.size()];
+        for (int i = 0; i < resultado.length; i++) {
+            resultado[i] = colas.get(i).getKey() + "=" + colas.get(i).getValue();
+        }
+        return resultado;
+    }
+
+    // Usuario y profundidad de las colas no vacias, de la mas cargada a la menos, como mucho
+    // COLAS_LISTADAS. Se copia la profundidad antes de ordenar porque sigue cambiando
+    private List<Map.Entry<String, Integer>> colasMasProfundas() {
+        List<Map.Entry<String, Integer>> cargadas = new ArrayList<>();
+        Server.getClientesConectados().paraCada(sesion -> {
+            int profundidad = sesion.getProfundidadCola();
+            if (profundidad > 0) cargadas.add(Map.entry(sesion.getNombreUsuario(), profundidad));
+        });
+        cargadas.sort(Map.Entry.<String, Integer>comparingByValue().reversed());
+        return cargadas.size() > COLAS_LISTADAS ? cargadas.subList(0, COLAS_LISTADAS) : cargadas;
+    }
+
+    @Override
+    public int getHistorialPendientes() {
+        HistorialAsincrono historial = Server.getHistorial();
+        return historial == null ? 0 : historial.getPendientes();
+    }
+
+    @Override
+    public long getLagHistorialP99Micros() {
+        HistorialAsincrono historial = Server.getHistorial();
+        return historial == null ? 0 : historial.getLatencia().percentil(99) / 1000;
+    }
+
+    @Override
+    public long getRepartoGrupoP99Micros() {
+        return Server.getDespachadorGrupos().getLatenciaTotal().percentil(99) / 1000;
+    }
+
+    @Override
+    public long getLineasSuprimidas() {
+        return lineasSuprimidas.sum();
+    }
+
+    @Override
+    public int getLlamadasSonando() {
+        return Server.getLlamadas().getSonando();
+    }
+
+    @Override
+    public int getLlamadasConectadas() {
+        return Server.getLlamadas().getConectadas();
+    }
+
+    @Override
+    public long getLlamadasSolicitadas() {
+        return Server.getLlamadas().getSolicitadas();
+    }
+
+    @Override
+    public long getLlamadasOcupado() {
+        return Server.getLlamadas().getOcupadas();
+    }
+
+    @Override
+    public long getLlamadasSinRespuesta() {
+        return Server.getLlamadas().getSinRespuesta();
+    }
+
+    @Override
+    public int getRelevosActivos() {
+        RelevoLlamadas relevo = Server.getRelevo();
+        return relevo == null ? 0 : relevo.getRelevos();
+    }
+
+    @Override
+    public int getParticipantesConferencia() {
+        ServidorConferencias conferencias = Server.getConferencias();
+        return conferencias == null ? 0 : conferencias.getParticipantes();
+    }
+
+    /** Todas las metricas en el formato de texto de Prometheus. */
+    public String comoTexto() {
+        StringBuilder texto = new StringBuilder(2048);
+        medidor(texto, "chatme_usuarios_conectados", "Sesiones registradas", getUsuariosConectados());
+
+        texto.append("# HELP chatme_mensajes_total Mensajes recibidos de los clientes por tipo\n")
+                .append("# TYPE chatme_mensajes_total counter\n");
+        for (TipoMensaje tipo : TipoMensaje.values()) {
+            texto.append("chatme_mensajes_total{tipo=\"").append(etiqueta(tipo)).append("\"} ")
+                    .append(getMensajes(tipo)).append('\n');
+        }
+        texto.append("# HELP chatme_mensajes_por_segundo Mensajes por tipo en el ultimo segundo\n")
+                .append("# TYPE chatme_mensajes_por_segundo gauge\n");
+        for (TipoMensaje tipo : TipoMensaje.values()) {
+            texto.append("chatme_mensajes_por_segundo{tipo=\"").append(etiqueta(tipo)).append("\"} ")
+                    .append(String.format(Locale.ROOT, "%.2f", getMensajesPorSegundo(tipo))).append('\n');
+        }
+
+        contador(texto, "chatme_bytes_entrada_total", "Bytes leidos de los clientes", getBytesEntrada());
+        contador(texto, "chatme_bytes_salida_total", "Bytes escritos a los clientes", getBytesSalida());
+
+        medidor(texto, "chatme_cola_salida_total", "Tramas en todas las colas de salida", getColaSalidaTotal());
+        medidor(texto, "chatme_cola_salida_maxima", "Cola de salida mas larga", getColaSalidaMaxima());
+        texto.append("# HELP chatme_cola_salida Tramas en cola de los destinatarios mas cargados\n")
+                .append("# TYPE chatme_cola_salida gauge\n");
+        for (Map.Entry<String, Integer> cola : colasMasProfundas()) {
+            texto.append("chatme_cola_salida{usuario=\"");
+            valorEtiqueta(texto, cola.getKey());
+            texto.append("\"} ").append(cola.getValue()).append('\n');
+        }
+
+        medidor(texto, "chatme_historial_pendientes", "Registros de historial sin escribir", getHistorialPendientes());
+        HistorialAsincrono historial = Server.getHistorial();
+        if (historial != null) {
+            resumen(texto, "chatme_historial_lag_segundos", "Retraso de escritura del historial por lote",
+                    historial.getLatencia());
+        }
+        resumen(texto, "chatme_reparto_grupo_segundos", "Duracion del reparto de un mensaje de grupo",
+                Server.getDespachadorGrupos().getLatenciaTotal());
+        contador(texto, "chatme_log_suprimidas_total", "Lineas de bitacora descartadas por el limite",
+                getLineasSuprimidas());
+
+        medidor(texto, "chatme_llamadas_sonando", "Llamadas esperando respuesta", getLlamadasSonando());
+        medidor(texto, "chatme_llamadas_conectadas", "Llamadas en curso", getLlamadasConectadas());
+        contador(texto, "chatme_llamadas_solicitadas_total", "Llamadas que empezaron a sonar", getLlamadasSolicitadas());
+        contador(texto, "chatme_llamadas_ocupado_total", "Solicitudes rechazadas por ocupado", getLlamadasOcupado());
+        contador(texto, "chatme_llamadas_sin_respuesta_total", "Llamadas cuyo timbre vencio", getLlamadasSinRespuesta());
+        medidor(texto, "chatme_relevos_activos", "Llamadas pasando por el relevo del servidor", getRelevosActivos());
+        medidor(texto, "chatme_conferencia_participantes", "Usuarios en conferencias de voz",
+                getParticipantesConferencia());
+        return texto.toString();
+    }
+
+    private static String etiqueta(TipoMensaje tipo) {
+        return tipo.name().toLowerCase(Locale.ROOT);
+    }
+
+    // Los valores de etiqueta van entre comillas: \\, \" y el salto de linea se escapan
+    private static void valorEtiqueta(StringBuilder texto, String valor) {
+        for (int i = 0; i < valor.length(); i++) {
+            char c = valor.charAt(i);
+            switch (c) {
+                case '\\' -> texto.append("\\\\");
+                case '"' -> texto.append("\\\"");
+                case '\n' -> texto.append("\\n");
+                default -> texto.append(c);
+            }
+        }
+    }
+
+    private static void medidor(StringBuilder texto, String nombre, String ayuda, long valor) {
+        texto.append("# HELP ").append(nombre).append(' ').append(ayuda).append('\n')
+                .append("# TYPE ").append(nombre).append(" gauge\n")
+                .append(nombre).append(' ').append(valor).append('\n');
+    }
+
+    private static void contador(StringBuilder texto, String nombre, String ayuda, long valor) {
+        texto.append("# HELP ").append(nombre).append(' ').append(ayuda).append('\n')
+                .append("# TYPE ").append(nombre).append(" counter\n")
+                .append(nombre).append(' ').append(valor).append('\n');
+    }
+
+    private static void resumen(StringBuilder texto, String nombre, String ayuda, HistogramaLatencia histograma) {
+        texto.append("# HELP ").append(nombre).append(' ').append(ayuda).append('\n')
+                .append("# TYPE ").append(nombre).append(" summary\n");
+        for (double cuantil : new double[]{0.5, 0.9, 0.99}) {
+            texto.append(nombre).append("{quantile=\"").append(cuantil).append("\"} ")
+                    .append(segundos(histograma.percentil(cuantil * 100))).append('\n');
+        }
+        texto.append(nombre).append("_sum ").append(segundos(histograma.getSuma()))
+                .append('\n')
+                .append(nombre).append("_count ").append(histograma.getCantidad()).append('\n');
+    }
+
+    private static String segundos(long nanos) {
+        return String.format(Locale.ROOT, "%.6f", nanos / 1e9);
+    }
+}
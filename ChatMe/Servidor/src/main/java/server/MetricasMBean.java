@@ -0,0 +1,50 @@
+package server;
+
+/** Vista JMX de Metricas (chatme:type=Metricas). */
+public interface MetricasMBean {
+
+    int getUsuariosConectados();
+
+    long getMensajesPrivados();
+
+    long getMensajesGrupo();
+
+    long getMensajesVoz();
+
+    long getMensajesLlamada();
+
+    double getMensajesPorSegundo();
+
+    long getBytesEntrada();
+
+    long getBytesSalida();
+
+    long getColaSalidaTotal();
+
+    int getColaSalidaMaxima();
+
+    // "usuario=profundidad" de las colas de salida mas cargadas
+    String[] getColasMasProfundas();
+
+    int getHistorialPendientes();
+
+    long getLagHistorialP99Micros();
+
+    long getRepartoGrupoP99Micros();
+
+    long getLineasSuprimidas();
+
+    int getLlamadasSonando();
+
+    int getLlamadasConectadas();
+
+    long getLlamadasSolicitadas();
+
+    long getLlamadasOcupado();
+
+    long getLlamadasSinRespuesta();
+
+    int getRelevosActivos();
+
+    int getParticipantesConferencia();
+}
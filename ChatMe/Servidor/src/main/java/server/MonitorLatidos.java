@@ -0,0 +1,79 @@
+package server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Latidos de aplicacion para las sesiones que los piden con "@config|latido|1". Cada sesion
+ * tiene un solo temporizador en la rueda: al vencer mira cuanto hace que la sesion no envia
+ * nada; si pasa del intervalo le manda un ping y vuelve a revisar cuando vence el plazo de
+ * respuesta, y si tampoco respondio la desconecta. Cualquier trama del cliente cuenta como
+ * respuesta, asi que una sesion activa nunca recibe pings.
+ *
+ * Las lecturas no tocan la rueda: solo actualizan la ultima actividad de la sesion, y el
+ * temporizador se reprograma a partir de ella cuando vence.
+ */
+public class MonitorLatidos {
+
+    private static final class Latido {
+        final Sesion sesion;
+        volatile RuedaTemporizadores.Temporizador temporizador;
+
+        Latido(Sesion sesion) {
+            this.sesion = sesion;
+        }
+    }
+
+    private final RuedaTemporizadores rueda;
+    private final long intervaloMs;
+    private final long timeoutMs;
+    private final long timeoutCierreMs;
+    private final Map<Sesion, Latido> latidos = new ConcurrentHashMap<>();
+
+    // timeoutCierreMs: cuanto se espera a que el aviso de desconexion salga antes de cerrar el socket
+    public MonitorLatidos(RuedaTemporizadores rueda, long intervaloMs, long timeoutMs, long timeoutCierreMs) {
+        this.rueda = rueda;
+        this.intervaloMs = Math.max(1, intervaloMs);
+        this.timeoutMs = Math.max(1, timeoutMs);
+        this.timeoutCierreMs = timeoutCierreMs;
+    }
+
+    public void activar(Sesion sesion) {
+        Latido latido = new Latido(sesion);
+        if (latidos.putIfAbsent(sesion, latido) != null) return;
+        latido.temporizador = rueda.programar(intervaloMs, () -> revisar(latido));
+    }
+
+    public void desactivar(Sesion sesion) {
+        Latido latido = latidos.remove(sesion);
+        if (latido != null && latido.temporizador != null) latido.temporizador.cancelar();
+    }
+
+    public int size() {
+        return latidos.size();
+    }
+
+    // En el hilo de la rueda: el ping y el aviso se encolan sin esperar lugar en la cola
+    private void revisar(Latido latido) {
+        Sesion sesion = latido.sesion;
+        if (latidos.get(sesion) != latido) return;
+        // Una sesion cerrada o reemplazada ya no esta en el registro y deja de vigilarse
+        if (Server.getClientesConectados().get(sesion.getNombreUsuario()) != sesion) {
+            latidos.remove(sesion, latido);
+            return;
+        }
+
+        long inactivo = System.currentTimeMillis() - sesion.getUltimaActividad();
+        if (inactivo >= intervaloMs + timeoutMs) {
+            latidos.remove(sesion, latido);
+            Bitacora.info("latido_vencido", "usuario", sesion.getNombreUsuario(), "inactivoMs", inactivo);
+            sesion.desconectarSinEsperar("Desconectado: no se recibió respuesta al latido.");
+            rueda.programar(timeoutCierreMs, sesion::cerrarAhora);
+        } else if (inactivo >= intervaloMs) {
+            sesion.enviarSinEsperar(Trama.ping());
+            latido.temporizador = rueda.programar(intervaloMs + timeoutMs - inactivo, () -> revisar(latido));
+        } else {
+            latido.temporizador = rueda.programar(intervaloMs - inactivo, () -> revisar(latido));
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Nota de voz guardada en AlmacenVoz. No copia el audio: apunta a su posicion dentro del
+ * segmento mapeado en memoria, desde donde se envia al socket.
+ */
+public class NotaVoz {
+    private final String id;
+    private final FileChannel canal;
+    private final MappedByteBuffer mapa;
+    private final int offset;
+    private final int longitud;
+
+    NotaVoz(String id, FileChannel canal, MappedByteBuffer mapa, int offset, int longitud) {
+        this.id = id;
+        this.canal = canal;
+        this.mapa = mapa;
+        this.offset = offset;
+        this.longitud = longitud;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public int getLongitud() {
+        return longitud;
+    }
+
+    /** Vista de solo lectura sobre el audio mapeado, para escrituras con gather en NIO. */
+    public ByteBuffer comoBuffer() {
+        return mapa.slice(offset, longitud).asReadOnlyBuffer();
+    }
+
+    public byte[] leer() {
+        byte[] audio = new byte[longitud];
+        mapa.get(offset, audio);
+        return audio;
+    }
+
+    /**
+     * Envia el audio con FileChannel.transferTo, que en un SocketChannel no pasa por el heap.
+     * Si la retencion cerro el segmento mientras la nota esperaba en una cola, el mapeo sigue
+     * siendo valido y se termina de enviar desde ahi.
+     */
+    public void transferirA(WritableByteChannel destino) throws IOException {
+        transferir(canal, mapa, offset, offset + longitud, destino);
+    }
+
+    // Tambien lo usa FlujoVoz para enviar la parte ya recibida de una nota en curso
+    static void transferir(FileChannel canal, MappedByteBuffer mapa, int desde, int hasta, WritableByteChannel destino)
+            throws IOException {
+        long posicion = desde;
+        try {
+            while (posicion < hasta) {
+                posicion += canal.transferTo(posicion, hasta - posicion, destino);
+            }
+        } catch (ClosedChannelException e) {
+            if (canal.isOpen()) throw e;
+            ByteBuffer resto = mapa.slice((int) posicion, (int) (hasta - posicion));
+            while (resto.hasRemaining()) destino.write(resto);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool de ByteBuffers de tamano fijo, directos (lecturas NIO) o en el heap (lecturas de un
+ * InputStream, que necesitan array()). Se conservan como maximo {@code maxRetenidos}
+ * buffers libres; los que sobran al devolverse se dejan al recolector.
+ */
+public class PoolBuffers {
+    private final int tamanoBuffer;
+    private final int maxRetenidos;
+    private final boolean directos;
+    private final Queue<ByteBuffer> libres = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger cantidadLibres = new AtomicInteger();
+
+    public PoolBuffers(int tamanoBuffer, int maxRetenidos) {
+        this(tamanoBuffer, maxRetenidos, true);
+    }
+
+    public PoolBuffers(int tamanoBuffer, int maxRetenidos, boolean directos) {
+        this.tamanoBuffer = tamanoBuffer;
+        this.maxRetenidos = maxRetenidos;
+        this.directos = directos;
+    }
+
+    public ByteBuffer tomar() {
+        ByteBuffer buffer = libres.poll();
+        if (buffer == null) {
+            return directos ? ByteBuffer.allocateDirect(tamanoBuffer) : ByteBuffer.allocate(tamanoBuffer);
+        }
+        cantidadLibres.decrementAndGet();
+        return buffer;
+    }
+
+    public void devolver(ByteBuffer buffer) {
+        if (buffer.capacity() != tamanoBuffer || buffer.isDirect() != directos) return;
+        if (cantidadLibres.incrementAndGet() > maxRetenidos) {
+            cantidadLibres.decrementAndGet();
+            return;
+        }
+        buffer.clear();
+        libres.offer(buffer);
+    }
+
+    public int getTamanoBuffer() {
+        return tamanoBuffer;
+    }
+}
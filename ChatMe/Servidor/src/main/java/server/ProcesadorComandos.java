@@ -0,0 +1,310 @@
+package server;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Interpreta los comandos de los clientes y los enruta con Server. Lo comparten ClienteHandler,
+ * ConexionNio y el lector del protocolo binario para que todos se comporten igual.
+ */
+public final class ProcesadorComandos {
+    private static final int MAX_HISTORIAL = 100;
+
+    private ProcesadorComandos() {
+    }
+
+    /**
+     * Procesa una linea del protocolo de texto. Si la linea es el encabezado de una nota
+     * de voz lo devuelve, y quien llama debe leer el cuerpo y pasarlo a procesarVoz.
+     */
+    public static EncabezadoVoz procesarLinea(Sesion sesion, String linea) {
+        // Comandos de configuración
+        if (linea.startsWith("@config|")) {
+            String[] partes = linea.split("\\|");
+            if (partes.length >= 3) configuracion(sesion, partes[1], partes[2]);
+            return null;
+        }
+
+        // Respuesta al latido: leer la linea ya cuenta como actividad de la sesion
+        if (linea.equals("@pong")) {
+            return null;
+        }
+
+        // Comandos de llamada
+        if (linea.startsWith("@llamada|")) {
+            String[] partes = linea.split("\\|");
+            if (partes.length >= 3) comandoLlamada(sesion, partes[1], partes[2]);
+            return null;
+        }
+
+        // Reproducir una nota de voz guardada
+        if (linea.startsWith("@nota|")) {
+            reproducirNota(sesion, linea.substring("@nota|".length()).trim());
+            return null;
+        }
+
+        // Consulta del historial
+        if (linea.startsWith("@historial|")) {
+            String[] partes = linea.split("\\|");
+            if (partes.length >= 4) {
+                try {
+                    // Un quinto campo pide los mensajes de los ultimos M minutos en lugar de los ultimos N
+                    int minutos = partes.length >= 5 ? Integer.parseInt(partes[4].trim()) : 0;
+                    historial(sesion, partes[1], partes[2], Integer.parseInt(partes[3].trim()), minutos);
+                } catch (NumberFormatException e) {
+                    sesion.enviar("Cantidad o minutos inválidos: " + linea.substring("@historial|".length()));
+                }
+            } else {
+                sesion.enviar("Formato inválido. Usa: @historial|privado|usuario|N o @historial|grupo|nombreGrupo|N"
+                        + " (con |M al final, solo los de los ultimos M minutos)");
+            }
+            return null;
+        }
+
+        // Comandos de grupo
+        if (linea.startsWith("@grupo|")) {
+            String[] partes = linea.split("\\|");
+            // "@grupo|listar|" no lleva nombre de grupo y split descarta el campo vacio
+            if (partes.length == 2 && partes[1].equalsIgnoreCase("listar")) {
+                comandoGrupo(sesion, partes[1], "");
+                return null;
+            }
+            if (partes.length < 3) return null;
+            if (partes[1].equalsIgnoreCase("enviar")) {
+                if (partes.length < 4) {
+                    sesion.enviar("Formato inválido. Usa: @grupo|enviar|nombreGrupo|mensaje");
+                    return null;
+                }
+                mensajeGrupo(sesion, partes[2], linea.split("\\|", 4)[3]);
+            } else {
+                comandoGrupo(sesion, partes[1], partes[2]);
+            }
+            return null;
+        }
+
+        // Mensajes de voz
+        if (linea.startsWith("@voz|") || linea.startsWith("@vozgrupo|")) {
+            EncabezadoVoz encabezado = EncabezadoVoz.leer(linea);
+            if (encabezado == null) {
+                System.err.println("Encabezado de voz inválido de " + sesion.getNombreUsuario() + ": " + linea);
+            }
+            return encabezado;
+        }
+
+        // Mensaje privado normal
+        String[] partes = linea.split("\\|", 2);
+        if (partes.length < 2) return null;
+        mensajePrivado(sesion, partes[0], partes[1]);
+        return null;
+    }
+
+    public static void mensajePrivado(Sesion sesion, String destino, String mensaje) {
+        String nombreUsuario = sesion.getNombreUsuario();
+        RegistroHistorial registro = RegistroHistorial.privado(nombreUsuario, destino, mensaje);
+
+        Server.getMetricas().mensaje(Metricas.TipoMensaje.PRIVADO);
+        Bitacora.info("mensaje_privado", "de", nombreUsuario, "a", destino);
+        Server.guardarHistorial(registro);
+
+        Server.enviarMensaje(destino, Trama.privado(nombreUsuario, mensaje));
+    }
+
+    public static void mensajeGrupo(Sesion sesion, String grupo, String mensaje) {
+        String nombreUsuario = sesion.getNombreUsuario();
+        Server.getMetricas().mensaje(Metricas.TipoMensaje.GRUPO);
+        Server.enviarAGrupo(grupo, mensaje, nombreUsuario);
+        Server.guardarHistorial(RegistroHistorial.grupo(grupo, nombreUsuario, mensaje));
+    }
+
+    public static void procesarVoz(Sesion sesion, String destino, boolean esGrupo, byte[] audioData) {
+        String nombreUsuario = sesion.getNombreUsuario();
+        NotaVoz nota = guardarNota(sesion, audioData);
+        String idNota = nota != null ? nota.getId() : null;
+
+        // Con la nota en el almacen se envia desde ahi, y los destinatarios desconectados la reciben despues
+        if (esGrupo) {
+            Trama trama = nota != null
+                    ? Trama.vozGrupoGuardada(destino, nombreUsuario, nota)
+                    : Trama.vozGrupo(destino, nombreUsuario, audioData);
+            Server.enviarAudioAGrupo(destino, trama, nombreUsuario);
+        } else {
+            Server.enviarAudio(destino, nota != null ? Trama.vozGuardada(nombreUsuario, nota) : Trama.voz(nombreUsuario, audioData));
+        }
+        registrarNotaVoz(sesion, destino, esGrupo, idNota);
+    }
+
+    public static void registrarNotaVoz(Sesion sesion, String destino, boolean esGrupo, String idNota) {
+        String nombreUsuario = sesion.getNombreUsuario();
+        Server.getMetricas().mensaje(Metricas.TipoMensaje.VOZ);
+        if (esGrupo) {
+            Server.guardarHistorial(RegistroHistorial.vozGrupo(destino, nombreUsuario, idNota));
+            Bitacora.info("nota_voz", "de", nombreUsuario, "grupo", destino, "nota", idNota);
+        } else {
+            Server.guardarHistorial(RegistroHistorial.voz(nombreUsuario, destino, idNota));
+            Bitacora.info("nota_voz", "de", nombreUsuario, "a", destino, "nota", idNota);
+        }
+    }
+
+    private static NotaVoz guardarNota(Sesion sesion, byte[] audioData) {
+        AlmacenVoz almacen = Server.getAlmacenVoz();
+        if (almacen == null) return null;
+        try {
+            NotaVoz nota = almacen.guardar(audioData);
+            sesion.enviar("Nota de voz guardada con id " + nota.getId());
+            return nota;
+        } catch (IOException e) {
+            System.err.println("No se pudo guardar la nota de voz de " + sesion.getNombreUsuario() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Solo quien envio o recibio la nota puede pedirla; a los demas se les responde como si no existiera
+    public static void reproducirNota(Sesion sesion, String id) {
+        AlmacenVoz almacen = Server.getAlmacenVoz();
+        NotaVoz nota = almacen == null || !puedePedirNota(sesion.getNombreUsuario(), id) ? null : almacen.buscar(id);
+        if (nota == null) {
+            sesion.enviar("La nota de voz " + id + " no existe o ya fue eliminada.");
+            return;
+        }
+        sesion.enviar(Trama.vozGuardada("nota " + id, nota));
+    }
+
+    // Con las mismas reglas que historial(): ser parte del chat privado o miembro del grupo
+    private static boolean puedePedirNota(String usuario, String id) {
+        HistorialAsincrono historial = Server.getHistorial();
+        if (historial == null) return false;
+        for (String conversacion : historial.getAlmacen().conversacionesDeNota(id)) {
+            String grupo = RegistroHistorial.grupoDeConversacion(conversacion);
+            if (grupo != null ? Server.getGrupos().esMiembro(grupo, usuario)
+                    : RegistroHistorial.participaEnPrivada(conversacion, usuario)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Envia al usuario mensajes de un chat privado suyo o de un grupo al que pertenece: los
+     * ultimos cantidad o, con minutos mayor que 0, hasta cantidad desde hace esos minutos.
+     */
+    public static void historial(Sesion sesion, String tipo, String nombre, int cantidad, int minutos) {
+        String nombreUsuario = sesion.getNombreUsuario();
+        HistorialAsincrono historial = Server.getHistorial();
+        if (historial == null) {
+            sesion.enviar("El historial no está disponible.");
+            return;
+        }
+
+        int n = Math.min(MAX_HISTORIAL, cantidad);
+
+        String conversacion;
+        switch (tipo.toLowerCase()) {
+            case "privado" -> conversacion = RegistroHistorial.conversacionPrivada(nombreUsuario, nombre);
+            case "grupo" -> {
+                if (!Server.getGrupos().esMiembro(nombre, nombreUsuario)) {
+                    sesion.enviar("No perteneces al grupo '" + nombre + "'.");
+                    return;
+                }
+                conversacion = RegistroHistorial.conversacionGrupo(nombre);
+            }
+            default -> {
+                sesion.enviar("Tipo de historial no reconocido: " + tipo);
+                return;
+            }
+        }
+
+        try {
+            AlmacenHistorial almacen = historial.getAlmacen();
+            List<RegistroHistorial> registros = minutos > 0
+                    ? almacen.desde(conversacion, System.currentTimeMillis() - minutos * 60_000L, n)
+                    : almacen.ultimos(conversacion, n);
+            sesion.enviar("--- Historial con " + nombre + " (" + registros.size() + " mensajes) ---");
+            for (RegistroHistorial registro : registros) {
+                sesion.enviar(registro.getTexto());
+            }
+            sesion.enviar("--- Fin del historial ---");
+        } catch (IOException e) {
+            System.err.println("Error al leer historial de " + conversacion + ": " + e.getMessage());
+            sesion.enviar("No se pudo leer el historial.");
+        }
+    }
+
+    public static void configuracion(Sesion sesion, String tipo, String valor) {
+        if (tipo.equals("puerto_llamada")) {
+            try {
+                sesion.setPuertoLlamada(Integer.parseInt(valor));
+                Bitacora.info("puerto_llamada", "usuario", sesion.getNombreUsuario(), "puerto", valor);
+            } catch (NumberFormatException e) {
+                System.err.println("Puerto de llamada inválido: " + valor);
+            }
+        } else if (tipo.equals("codecs")) {
+            // Lista separada por comas, la preferida primero. Con ella el servidor elige el codec de
+            // las llamadas y de la mezcla de una conferencia; sin ninguna, el cliente es anterior a
+            // los codecs: recibe las notas decodificadas a PCM (Trama.paraCodecs) y completas, no
+            // mientras llegan (ClienteHandler.admiteAudioEnCurso)
+            List<String> codecs = new ArrayList<>();
+            for (String codec : valor.split(",")) {
+                if (!codec.isBlank()) codecs.add(codec.trim().toLowerCase());
+            }
+            sesion.setCodecs(List.copyOf(codecs));
+        } else if (tipo.equals("latido")) {
+            if (valor.trim().equals("1")) {
+                Server.getLatidos().activar(sesion);
+            } else {
+                Server.getLatidos().desactivar(sesion);
+            }
+        }
+    }
+
+    public static void comandoLlamada(Sesion sesion, String accion, String destino) {
+        String nombreUsuario = sesion.getNombreUsuario();
+        Server.getMetricas().mensaje(Metricas.TipoMensaje.LLAMADA);
+
+        switch (accion.toLowerCase()) {
+            case "solicitar" -> Server.manejarSolicitudLlamada(nombreUsuario, destino);
+            case "aceptar" -> Server.manejarAceptacionLlamada(destino, nombreUsuario);
+            case "rechazar" -> Server.manejarRechazoLlamada(destino, nombreUsuario);
+            case "colgar" -> Server.manejarColgado(nombreUsuario);
+            // Para las conferencias el parametro es el grupo
+            case "conferencia" -> Server.manejarConferencia(nombreUsuario, destino);
+            case "salir_conferencia" -> Server.manejarSalidaConferencia(nombreUsuario);
+            // Sin conexion directa con el otro extremo de la llamada
+            case "relevo" -> Server.manejarRelevo(nombreUsuario, destino);
+        }
+    }
+
+    public static void comandoGrupo(Sesion sesion, String accion, String nombreGrupo) {
+        String nombreUsuario = sesion.getNombreUsuario();
+
+        switch (accion.toLowerCase()) {
+            case "crear" -> {
+                if (Server.getGrupos().crear(nombreGrupo, nombreUsuario)) {
+                    sesion.enviar("Grupo '" + nombreGrupo + "' creado y unido correctamente.");
+                } else {
+                    sesion.enviar("El grupo '" + nombreGrupo + "' ya existía; te uniste a él.");
+                }
+            }
+            case "unir" -> {
+                Server.getGrupos().unir(nombreGrupo, nombreUsuario);
+                sesion.enviar("Te uniste al grupo '" + nombreGrupo + "'.");
+            }
+            case "salir" -> {
+                if (Server.salirDeGrupo(nombreGrupo, nombreUsuario)) {
+                    sesion.enviar("Saliste del grupo '" + nombreGrupo + "'.");
+                }
+            }
+            case "listar" -> {
+                Set<String> suyos = Server.getGrupos().gruposDe(nombreUsuario);
+                sesion.enviar(suyos.isEmpty() ? "No perteneces a ningún grupo." : "Tus grupos: " + String.join(", ", new TreeSet<>(suyos)));
+            }
+            case "latencia" -> {
+                HistogramaLatencia latencia = Server.getDespachadorGrupos().getLatencia(nombreGrupo);
+                sesion.enviar(latencia == null
+                        ? "Aun no se enviaron mensajes al grupo '" + nombreGrupo + "'."
+                        : "Reparto en el grupo '" + nombreGrupo + "': " + latencia.resumen());
+            }
+            default -> sesion.enviar("Comando de grupo no reconocido.");
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Protocolo v2: tramas binarias [tipo: 1 byte][longitud: varint][cuerpo].
+ *
+ * Los nombres de usuario, grupos y acciones viajan como identificadores internados: la
+ * primera vez se envia el literal y ambos extremos le asignan el siguiente id de su tabla
+ * para esa direccion; despues basta con el varint. Los textos libres llevan longitud varint
+ * y UTF-8, y el audio ocupa el resto del cuerpo, sin encabezado de texto aparte.
+ *
+ * Se negocia con la primera linea "@protocolo|2|nombre"; el servidor responde
+ * "@protocolo|2" y desde ahi ambos sentidos son binarios. Los clientes que envian solo su
+ * nombre siguen con el protocolo de texto. Los valores deben coincidir con client.ProtocoloBinario.
+ */
+public final class ProtocoloBinario {
+
+    public static final int VERSION = 2;
+    public static final String SALUDO = "@protocolo|";
+
+    // Cliente -> servidor
+    public static final int PRIVADO = 1;
+    public static final int MENSAJE_GRUPO = 2;
+    public static final int GRUPO = 3;
+    public static final int VOZ = 4;
+    public static final int VOZ_GRUPO = 5;
+    public static final int LLAMADA = 6;
+    public static final int CONFIG = 7;
+    public static final int SALIR = 8;
+    public static final int HISTORIAL = 9;
+    public static final int NOTA = 10;
+    public static final int PONG = 11;
+
+    // Servidor -> cliente
+    public static final int AVISO = 20;
+    public static final int RECIBIDO_PRIVADO = 21;
+    public static final int RECIBIDO_GRUPO = 22;
+    public static final int RECIBIDO_VOZ = 23;
+    public static final int RECIBIDO_VOZ_GRUPO = 24;
+    public static final int RECIBIDO_LLAMADA = 25;
+    public static final int PING = 26;
+
+    // Referencias de id: 0 = literal que se interna, 1 = literal sin internar (tabla llena), n = id n - 2
+    private static final int REF_NUEVO = 0;
+    private static final int REF_LITERAL = 1;
+    private static final int MAX_IDS = 4096;
+
+    public static final int MAX_TRAMA = 64 * 1024 * 1024;
+
+    private ProtocoloBinario() {
+    }
+
+    /** Codifica tramas hacia un cliente v2. Solo lo usa el hilo escritor de la conexion. */
+    public static class Escritor {
+        private final Map<String, Integer> ids = new HashMap<>();
+        private final Cuerpo cuerpo = new Cuerpo();
+
+        public void escribir(Trama trama, OutputStream salida) throws IOException {
+            cuerpo.reset();
+            int tipo;
+            switch (trama.getTipo()) {
+                case AVISO -> {
+                    tipo = AVISO;
+                    escribirTexto(trama.getTexto());
+                }
+                case PRIVADO -> {
+                    tipo = RECIBIDO_PRIVADO;
+                    escribirId(trama.getRemitente());
+                    escribirTexto(trama.getTexto());
+                }
+                case GRUPO -> {
+                    tipo = RECIBIDO_GRUPO;
+                    escribirId(trama.getGrupo());
+                    escribirId(trama.getRemitente());
+                    escribirTexto(trama.getTexto());
+                }
+                case VOZ -> {
+                    tipo = RECIBIDO_VOZ;
+                    escribirId(trama.getRemitente());
+                }
+                case VOZ_GRUPO -> {
+                    tipo = RECIBIDO_VOZ_GRUPO;
+                    escribirId(trama.getGrupo());
+                    escribirId(trama.getRemitente());
+                }
+                case LLAMADA -> {
+                    tipo = RECIBIDO_LLAMADA;
+                    escribirId(trama.getAccion());
+                    escribirTexto(trama.getTexto());
+                }
+                case PING -> tipo = PING;
+                default -> throw new IOException("Tipo de trama no soportado: " + trama.getTipo());
+            }
+
+            // El audio de una nota guardada o compartida no se escribe aqui: quien llama lo envia despues
+            salida.write(tipo);
+            escribirVarint(salida, cuerpo.size() + trama.getLongitudAudio());
+            cuerpo.writeTo(salida);
+            if (trama.getAudio() != null) {
+                salida.write(trama.getAudio());
+            }
+        }
+
+        private void escribirId(String valor) {
+            Integer id = ids.get(valor);
+            if (id != null) {
+                cuerpo.varint(id + 2);
+                return;
+            }
+            if (ids.size() < MAX_IDS) {
+                ids.put(valor, ids.size());
+                cuerpo.varint(REF_NUEVO);
+            } else {
+                cuerpo.varint(REF_LITERAL);
+            }
+            escribirTexto(valor);
+        }
+
+        private void escribirTexto(String valor) {
+            byte[] bytes = valor.getBytes(StandardCharsets.UTF_8);
+            cuerpo.varint(bytes.length);
+            cuerpo.write(bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * Lee tramas de un cliente v2 y las despacha directamente a ProcesadorComandos, sin pasar
+     * por lineas de texto ni split. Solo lo usa el hilo lector de la conexion.
+     */
+    public static class Lector {
+        private final DataInputStream entrada;
+        private final List<String> ids = new ArrayList<>();
+        private final int maxTexto;
+        private byte[] bytesTexto = new byte[256];
+        // Bytes del cuerpo de la trama actual que aun no se leyeron
+        private int restante;
+
+        public Lector(InputStream entrada, int maxTexto) {
+            this.entrada = new DataInputStream(entrada);
+            this.maxTexto = maxTexto;
+        }
+
+        /** Procesa una trama; devuelve false al llegar al fin del flujo o con SALIR. */
+        public boolean procesarSiguiente(Sesion sesion) throws IOException {
+            int tipo = entrada.read();
+            if (tipo == -1) return false;
+            restante = Integer.MAX_VALUE;
+            int longitud = leerVarint();
+            if (longitud < 0 || longitud > MAX_TRAMA) {
+                throw new IOException("Trama de longitud invalida: " + longitud);
+            }
+            restante = longitud;
+
+            switch (tipo) {
+                case PRIVADO -> {
+                    String destino = leerId();
+                    ProcesadorComandos.mensajePrivado(sesion, destino, leerTexto());
+                }
+                case MENSAJE_GRUPO -> {
+                    String grupo = leerId();
+                    ProcesadorComandos.mensajeGrupo(sesion, grupo, leerTexto());
+                }
+                case GRUPO -> {
+                    String accion = leerId();
+                    ProcesadorComandos.comandoGrupo(sesion, accion, leerId());
+                }
+                case VOZ, VOZ_GRUPO -> {
+                    String destino = leerId();
+                    int tamano = restante;
+                    restante = 0;
+                    RelayVoz.recibir(sesion, destino, tipo == VOZ_GRUPO, tamano, entrada);
+                }
+                case LLAMADA -> {
+                    String accion = leerId();
+                    ProcesadorComandos.comandoLlamada(sesion, accion, leerId());
+                }
+                case CONFIG -> {
+                    String clave = leerId();
+                    ProcesadorComandos.configuracion(sesion, clave, leerTexto());
+                }
+                case HISTORIAL -> {
+                    String tipoHistorial = leerId();
+                    String nombre = leerId();
+                    int cantidad = leerVarint();
+                    // Campo agregado despues: los clientes que no lo envian piden los ultimos N
+                    int minutos = restante > 0 ? leerVarint() : 0;
+                    ProcesadorComandos.historial(sesion, tipoHistorial, nombre, cantidad, minutos);
+                }
+                case NOTA -> ProcesadorComandos.reproducirNota(sesion, leerTexto());
+                // Basta con haberlo leido: la sesion ya registro la actividad
+                case PONG -> {
+                }
+                case SALIR -> {
+                    return false;
+                }
+                default -> System.err.println("Trama desconocida de " + sesion.getNombreUsuario() + ": " + tipo);
+            }
+
+            // Campos que esta version no conoce: se ignoran para poder extender las tramas
+            if (restante > 0) {
+                entrada.skipNBytes(restante);
+            }
+            return true;
+        }
+
+        private String leerId() throws IOException {
+            int ref = leerVarint();
+            if (ref >= 2) {
+                int id = ref - 2;
+                if (id >= ids.size()) throw new IOException("Id desconocido: " + id);
+                return ids.get(id);
+            }
+            String valor = leerTexto();
+            if (ref == REF_NUEVO) {
+                if (ids.size() >= MAX_IDS) throw new IOException("Tabla de ids llena");
+                ids.add(valor);
+            }
+            return valor;
+        }
+
+        private String leerTexto() throws IOException {
+            int longitud = leerVarint();
+            if (longitud < 0 || longitud > maxTexto || longitud > restante) {
+                throw new IOException("Texto de longitud invalida: " + longitud);
+            }
+            if (bytesTexto.length < longitud) {
+                bytesTexto = new byte[Math.max(longitud, bytesTexto.length * 2)];
+            }
+            entrada.readFully(bytesTexto, 0, longitud);
+            restante -= longitud;
+            return new String(bytesTexto, 0, longitud, StandardCharsets.UTF_8);
+        }
+
+        private int leerVarint() throws IOException {
+            int valor = 0;
+            for (int desplazamiento = 0; desplazamiento < 35; desplazamiento += 7) {
+                int b = entrada.read();
+                if (b == -1) throw new EOFException("Trama incompleta");
+                restante--;
+                valor |= (b & 0x7F) << desplazamiento;
+                if ((b & 0x80) == 0) return valor;
+            }
+            throw new IOException("Varint demasiado largo");
+        }
+    }
+
+    /** Devuelve la version pedida en una linea de saludo, o 1 si la linea no es un saludo. */
+    public static int versionDeSaludo(String linea) {
+        if (!linea.startsWith(SALUDO)) return 1;
+        int fin = linea.indexOf('|', SALUDO.length());
+        try {
+            return Integer.parseInt(fin < 0 ? linea.substring(SALUDO.length()) : linea.substring(SALUDO.length(), fin));
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+
+    /** Nombre de usuario de la linea inicial, sea un saludo "@protocolo|n|nombre" o solo el nombre. */
+    public static String nombreDeSaludo(String linea) {
+        if (!linea.startsWith(SALUDO)) return linea;
+        int fin = linea.indexOf('|', SALUDO.length());
+        return fin < 0 ? null : linea.substring(fin + 1);
+    }
+
+    static void escribirVarint(OutputStream salida, int valor) throws IOException {
+        while ((valor & ~0x7F) != 0) {
+            salida.write((valor & 0x7F) | 0x80);
+            valor >>>= 7;
+        }
+        salida.write(valor);
+    }
+
+    // ByteArrayOutputStream sin sincronizacion de los metodos que se usan al codificar
+    private static class Cuerpo extends ByteArrayOutputStream {
+        Cuerpo() {
+            super(256);
+        }
+
+        @Override
+        public void write(int b) {
+            if (count == buf.length) buf = Arrays.copyOf(buf, buf.length * 2);
+            buf[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (count + len > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + len));
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+
+        void varint(int valor) {
+            while ((valor & ~0x7F) != 0) {
+                write((valor & 0x7F) | 0x80);
+                valor >>>= 7;
+            }
+            write(valor);
+        }
+
+        @Override
+        public void writeTo(OutputStream salida) throws IOException {
+            salida.write(buf, 0, count);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package server;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Miembros de cada grupo y grupos de cada usuario. Los nombres de usuario se internan como
+ * enteros; cada grupo guarda una instantanea inmutable de sus miembros (ids ordenados y sus
+ * nombres) que se reemplaza entera al unirse o salir alguien. El reparto de mensajes recorre
+ * la instantanea sin bloqueos y no le afectan las altas y bajas que ocurran mientras tanto.
+ *
+ * Las modificaciones se hacen con el monitor del registro, que mantiene juntos el indice por
+ * grupo y el indice inverso por usuario; las lecturas nunca lo toman.
+ */
+public class RegistroGrupos {
+
+    /** Miembros de un grupo en un momento dado. No cambia nunca. */
+    public static final class Miembros {
+        static final Miembros VACIO = new Miembros(new int[0], new String[0]);
+
+        private final int[] ids;
+        private final String[] nombres;
+
+        private Miembros(int[] ids, String[] nombres) {
+            this.ids = ids;
+            this.nombres = nombres;
+        }
+
+        public int size() {
+            return ids.length;
+        }
+
+        public String nombre(int i) {
+            return nombres[i];
+        }
+
+        public List<String> nombres() {
+            return Collections.unmodifiableList(Arrays.asList(nombres));
+        }
+
+        boolean contieneId(int id) {
+            return Arrays.binarySearch(ids, id) >= 0;
+        }
+
+        Miembros con(int id, String nombre) {
+            int posicion = Arrays.binarySearch(ids, id);
+            if (posicion >= 0) return this;
+            posicion = -posicion - 1;
+            int[] nuevosIds = new int[ids.length + 1];
+            String[] nuevosNombres = new String[ids.length + 1];
+            System.arraycopy(ids, 0, nuevosIds, 0, posicion);
+            System.arraycopy(nombres, 0, nuevosNombres, 0, posicion);
+            nuevosIds[posicion] = id;
+            nuevosNombres[posicion] = nombre;
+            System.arraycopy(ids, posicion, nuevosIds, posicion + 1, ids.length - posicion);
+            System.arraycopy(nombres, posicion, nuevosNombres, posicion + 1, ids.length - posicion);
+            return new Miembros(nuevosIds, nuevosNombres);
+        }
+
+        Miembros sin(int id) {
+            int posicion = Arrays.binarySearch(ids, id);
+            if (posicion < 0) return this;
+            int[] nuevosIds = new int[ids.length - 1];
+            String[] nuevosNombres = new String[ids.length - 1];
+            System.arraycopy(ids, 0, nuevosIds, 0, posicion);
+            System.arraycopy(nombres, 0, nuevosNombres, 0, posicion);
+            System.arraycopy(ids, posicion + 1, nuevosIds, posicion, ids.length - posicion - 1);
+            System.arraycopy(nombres, posicion + 1, nuevosNombres, posicion, ids.length - posicion - 1);
+            return new Miembros(nuevosIds, nuevosNombres);
+        }
+    }
+
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private int siguienteId;
+    // Grupo -> instantanea de miembros; un grupo sin miembros se elimina
+    private final Map<String, Miembros> grupos = new ConcurrentHashMap<>();
+    // Usuario (id) -> grupos a los que pertenece, tambien reemplazado entero en cada cambio
+    private final Map<Integer, Set<String>> gruposPorUsuario = new ConcurrentHashMap<>();
+
+    // Con el monitor tomado
+    private int idDe(String usuario) {
+        Integer id = ids.get(usuario);
+        if (id == null) {
+            id = siguienteId++;
+            ids.put(usuario, id);
+        }
+        return id;
+    }
+
+    /** Crea el grupo y une al usuario. Devuelve false si el grupo ya existia (el usuario se une igual). */
+    public synchronized boolean crear(String grupo, String usuario) {
+        boolean existia = grupos.containsKey(grupo);
+        agregar(grupo, usuario);
+        return !existia;
+    }
+
+    /** Une al usuario, creando el grupo si no existe. Devuelve false si ya era miembro. */
+    public synchronized boolean unir(String grupo, String usuario) {
+        return agregar(grupo, usuario);
+    }
+
+    /** Devuelve false si el grupo no existe o el usuario no era miembro. */
+    public synchronized boolean salir(String grupo, String usuario) {
+        Miembros actuales = grupos.get(grupo);
+        Integer id = ids.get(usuario);
+        if (actuales == null || id == null || !actuales.contieneId(id)) return false;
+
+        Miembros nuevos = actuales.sin(id);
+        if (nuevos.size() == 0) {
+            grupos.remove(grupo);
+        } else {
+            grupos.put(grupo, nuevos);
+        }
+        Set<String> suyos = new HashSet<>(gruposPorUsuario.getOrDefault(id, Set.of()));
+        suyos.remove(grupo);
+        if (suyos.isEmpty()) {
+            gruposPorUsuario.remove(id);
+        } else {
+            gruposPorUsuario.put(id, Collections.unmodifiableSet(suyos));
+        }
+        return true;
+    }
+
+    // Con el monitor tomado
+    private boolean agregar(String grupo, String usuario) {
+        int id = idDe(usuario);
+        Miembros actuales = grupos.getOrDefault(grupo, Miembros.VACIO);
+        Miembros nuevos = actuales.con(id, usuario);
+        if (nuevos == actuales) return false;
+        grupos.put(grupo, nuevos);
+
+        Set<String> suyos = new HashSet<>(gruposPorUsuario.getOrDefault(id, Set.of()));
+        suyos.add(grupo);
+        gruposPorUsuario.put(id, Collections.unmodifiableSet(suyos));
+        return true;
+    }
+
+    /** Instantanea de los miembros, o null si el grupo no existe. */
+    public Miembros miembros(String grupo) {
+        return grupos.get(grupo);
+    }
+
+    public boolean esMiembro(String grupo, String usuario) {
+        Miembros miembros = grupos.get(grupo);
+        Integer id = ids.get(usuario);
+        return miembros != null && id != null && miembros.contieneId(id);
+    }
+
+    /** Grupos del usuario, sin recorrer todos los grupos. */
+    public Set<String> gruposDe(String usuario) {
+        Integer id = ids.get(usuario);
+        return id == null ? Set.of() : gruposPorUsuario.getOrDefault(id, Set.of());
+    }
+}
@@ -0,0 +1,94 @@
+package server;
+
+/**
+ * Entrada del historial: la linea que se muestra ("[A -> B] hola") junto con la conversacion
+ * a la que pertenece y el momento en que se registro.
+ */
+public class RegistroHistorial {
+    private static final String PREFIJO_PRIVADO = "privado:";
+    private static final String PREFIJO_GRUPO = "grupo:";
+    private static final String PREFIJO_VOZ = "[Voz";
+    private static final String REFERENCIA_NOTA = " (nota ";
+
+    private final long timestamp;
+    private final String conversacion;
+    private final String texto;
+
+    public RegistroHistorial(long timestamp, String conversacion, String texto) {
+        this.timestamp = timestamp;
+        this.conversacion = conversacion;
+        this.texto = texto;
+    }
+
+    public static RegistroHistorial privado(String remitente, String destino, String mensaje) {
+        return new RegistroHistorial(System.currentTimeMillis(), conversacionPrivada(remitente, destino),
+                "[" + remitente + " -> " + destino + "] " + mensaje);
+    }
+
+    public static RegistroHistorial grupo(String grupo, String remitente, String mensaje) {
+        return new RegistroHistorial(System.currentTimeMillis(), conversacionGrupo(grupo),
+                "[Grupo " + grupo + "] " + remitente + ": " + mensaje);
+    }
+
+    // idNota es el id en AlmacenVoz, o null si el audio no pudo guardarse
+    public static RegistroHistorial voz(String remitente, String destino, String idNota) {
+        return new RegistroHistorial(System.currentTimeMillis(), conversacionPrivada(remitente, destino),
+                "[Voz] " + remitente + " -> " + destino + referenciaNota(idNota));
+    }
+
+    public static RegistroHistorial vozGrupo(String grupo, String remitente, String idNota) {
+        return new RegistroHistorial(System.currentTimeMillis(), conversacionGrupo(grupo),
+                "[Voz-Grupo " + grupo + "] " + remitente + referenciaNota(idNota));
+    }
+
+    private static String referenciaNota(String idNota) {
+        return idNota == null ? "" : REFERENCIA_NOTA + idNota + ")";
+    }
+
+    /** Id de la nota a la que remite el texto de un registro de voz, o null si no remite a ninguna. */
+    public static String idNota(String texto) {
+        if (!esTextoVoz(texto) || !texto.endsWith(")")) return null;
+        int inicio = texto.lastIndexOf(REFERENCIA_NOTA);
+        return inicio < 0 ? null : texto.substring(inicio + REFERENCIA_NOTA.length(), texto.length() - 1);
+    }
+
+    // Solo los registros de voz empiezan asi: los privados empiezan con "[remitente" y los de grupo con "[Grupo"
+    private static boolean esTextoVoz(String texto) {
+        return texto.startsWith(PREFIJO_VOZ);
+    }
+
+    // Ambos participantes de un chat privado comparten la misma clave, sin importar quien escribe
+    public static String conversacionPrivada(String usuario1, String usuario2) {
+        return usuario1.compareTo(usuario2) <= 0
+                ? PREFIJO_PRIVADO + usuario1 + "|" + usuario2
+                : PREFIJO_PRIVADO + usuario2 + "|" + usuario1;
+    }
+
+    public static String conversacionGrupo(String grupo) {
+        return PREFIJO_GRUPO + grupo;
+    }
+
+    /** El grupo de una conversacion de grupo, o null si es privada. */
+    public static String grupoDeConversacion(String conversacion) {
+        return conversacion.startsWith(PREFIJO_GRUPO) ? conversacion.substring(PREFIJO_GRUPO.length()) : null;
+    }
+
+    /** true si el usuario es uno de los dos de una conversacion privada. */
+    public static boolean participaEnPrivada(String conversacion, String usuario) {
+        if (!conversacion.startsWith(PREFIJO_PRIVADO)) return false;
+        String participantes = conversacion.substring(PREFIJO_PRIVADO.length());
+        return participantes.startsWith(usuario + "|") || participantes.endsWith("|" + usuario);
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getConversacion() {
+        return conversacion;
+    }
+
+    public String getTexto() {
+        return texto;
+    }
+}
@@ -0,0 +1,183 @@
+package server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Llamadas entre dos usuarios que el servidor esta conectando o conecto. Cada llamada es una
+ * maquina de estados sin locks (SONANDO, CONECTADA, TERMINADA) que avanza con compareAndSet,
+ * asi un "aceptar" duplicado, uno que llega despues de un rechazo o uno de quien no fue
+ * llamado no conecta nada. Un usuario esta en a lo sumo una llamada: solicitar reserva a los
+ * dos con putIfAbsent y, si el destino ya tiene una, queda ocupado.
+ *
+ * El timbre vence en la RuedaTemporizadores compartida; alVencer corre en su hilo y solo debe
+ * encolar avisos.
+ */
+public class RegistroLlamadas {
+
+    public enum Estado {
+        SONANDO,
+        CONECTADA,
+        TERMINADA
+    }
+
+    public static final class Llamada {
+        private final String solicitante;
+        private final String destino;
+        private final AtomicReference<Estado> estado = new AtomicReference<>(Estado.SONANDO);
+        private final long inicio = System.currentTimeMillis();
+        private volatile long conectadaEn;
+        private volatile RuedaTemporizadores.Temporizador timbre;
+
+        private Llamada(String solicitante, String destino) {
+            this.solicitante = solicitante;
+            this.destino = destino;
+        }
+
+        public String getSolicitante() {
+            return solicitante;
+        }
+
+        public String getDestino() {
+            return destino;
+        }
+
+        public Estado getEstado() {
+            return estado.get();
+        }
+
+        /** El otro extremo para uno de los dos participantes. */
+        public String otro(String usuario) {
+            return usuario.equals(solicitante) ? destino : solicitante;
+        }
+
+        public boolean fueConectada() {
+            return conectadaEn != 0;
+        }
+
+        // Desde que se conecto, o desde que empezo a sonar si nunca se conecto
+        public long getDuracionMs() {
+            return System.currentTimeMillis() - (conectadaEn != 0 ? conectadaEn : inicio);
+        }
+    }
+
+    private final Map<String, Llamada> porUsuario = new ConcurrentHashMap<>();
+    private final RuedaTemporizadores rueda;
+    private final long timeoutTimbreMs;
+    private final Consumer<Llamada> alVencer;
+    private final AtomicInteger sonando = new AtomicInteger();
+    private final AtomicInteger conectadas = new AtomicInteger();
+    private final LongAdder solicitadas = new LongAdder();
+    private final LongAdder ocupadas = new LongAdder();
+    private final LongAdder sinRespuesta = new LongAdder();
+
+    public RegistroLlamadas(RuedaTemporizadores rueda, long timeoutTimbreMs, Consumer<Llamada> alVencer) {
+        this.rueda = rueda;
+        this.timeoutTimbreMs = timeoutTimbreMs;
+        this.alVencer = alVencer;
+    }
+
+    /** La llamada en que esta el usuario (sonando o conectada), o null. */
+    public Llamada de(String usuario) {
+        return porUsuario.get(usuario);
+    }
+
+    /**
+     * Empieza a sonar una llamada del solicitante al destino. null si alguno de los dos ya esta
+     * en otra llamada.
+     */
+    public Llamada solicitar(String solicitante, String destino) {
+        Llamada llamada = new Llamada(solicitante, destino);
+        if (porUsuario.putIfAbsent(solicitante, llamada) != null) {
+            ocupadas.increment();
+            return null;
+        }
+        if (porUsuario.putIfAbsent(destino, llamada) != null) {
+            porUsuario.remove(solicitante, llamada);
+            ocupadas.increment();
+            return null;
+        }
+        solicitadas.increment();
+        sonando.incrementAndGet();
+        llamada.timbre = rueda.programar(timeoutTimbreMs, () -> {
+            if (terminarDesde(llamada, Estado.SONANDO)) {
+                sinRespuesta.increment();
+                alVencer.accept(llamada);
+            }
+        });
+        return llamada;
+    }
+
+    /** Conecta la llamada que el solicitante le hizo al usuario; null si no hay una sonando. */
+    public Llamada aceptar(String usuario, String solicitante) {
+        Llamada llamada = sonandoPara(usuario, solicitante);
+        if (llamada == null || !llamada.estado.compareAndSet(Estado.SONANDO, Estado.CONECTADA)) return null;
+        llamada.conectadaEn = System.currentTimeMillis();
+        cancelarTimbre(llamada);
+        sonando.decrementAndGet();
+        conectadas.incrementAndGet();
+        return llamada;
+    }
+
+    /** Termina la llamada que el solicitante le hizo al usuario; null si no hay una sonando. */
+    public Llamada rechazar(String usuario, String solicitante) {
+        Llamada llamada = sonandoPara(usuario, solicitante);
+        return llamada != null && terminarDesde(llamada, Estado.SONANDO) ? llamada : null;
+    }
+
+    /** Termina la llamada del usuario, este sonando o conectada; null si no tenia ninguna. */
+    public Llamada colgar(String usuario) {
+        Llamada llamada = porUsuario.get(usuario);
+        if (llamada == null) return null;
+        while (true) {
+            Estado actual = llamada.estado.get();
+            if (actual == Estado.TERMINADA) return null;
+            if (terminarDesde(llamada, actual)) return llamada;
+        }
+    }
+
+    public int getSonando() {
+        return sonando.get();
+    }
+
+    public int getConectadas() {
+        return conectadas.get();
+    }
+
+    public long getSolicitadas() {
+        return solicitadas.sum();
+    }
+
+    public long getOcupadas() {
+        return ocupadas.sum();
+    }
+
+    public long getSinRespuesta() {
+        return sinRespuesta.sum();
+    }
+
+    private Llamada sonandoPara(String usuario, String solicitante) {
+        Llamada llamada = porUsuario.get(usuario);
+        if (llamada == null || !llamada.destino.equals(usuario) || !llamada.solicitante.equals(solicitante)) return null;
+        return llamada;
+    }
+
+    // Solo gana un hilo: el que cambia el estado es quien libera a los dos usuarios
+    private boolean terminarDesde(Llamada llamada, Estado desde) {
+        if (!llamada.estado.compareAndSet(desde, Estado.TERMINADA)) return false;
+        cancelarTimbre(llamada);
+        (desde == Estado.SONANDO ? sonando : conectadas).decrementAndGet();
+        porUsuario.remove(llamada.solicitante, llamada);
+        porUsuario.remove(llamada.destino, llamada);
+        return true;
+    }
+
+    private static void cancelarTimbre(Llamada llamada) {
+        RuedaTemporizadores.Temporizador timbre = llamada.timbre;
+        if (timbre != null) timbre.cancelar();
+    }
+}
@@ -0,0 +1,126 @@
+package server;
+
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sesiones conectadas por nombre de usuario. Cada registro recibe un numero de generacion
+ * creciente y las bajas solo quitan la entrada si sigue siendo la misma, asi el cierre tardio
+ * de una conexion vieja nunca borra a la que la reemplazo.
+ *
+ * Si el usuario ya tiene una sesion, la politica de duplicados decide: REEMPLAZAR desconecta
+ * la anterior con un aviso y RECHAZAR no admite la nueva. Con chatme.sesion.inactividadMs se
+ * desconectan ademas las sesiones que no envian nada durante ese tiempo.
+ */
+public class RegistroSesiones {
+
+    public enum PoliticaDuplicado {
+        // La nueva conexion desplaza a la anterior
+        REEMPLAZAR,
+        // La nueva conexion se rechaza mientras la anterior siga viva
+        RECHAZAR
+    }
+
+    private static final class Entrada {
+        final Sesion sesion;
+        final long generacion;
+
+        Entrada(Sesion sesion, long generacion) {
+            this.sesion = sesion;
+            this.generacion = generacion;
+        }
+    }
+
+    private final Map<String, Entrada> sesiones = new ConcurrentHashMap<>();
+    private final AtomicLong generaciones = new AtomicLong();
+    private final PoliticaDuplicado politica;
+    private final long timeoutCierreMs;
+    private final RuedaTemporizadores rueda;
+
+    // timeoutCierreMs: cuanto se espera a que una sesion desplazada envie su aviso antes de cerrarla
+    public RegistroSesiones(PoliticaDuplicado politica, long inactividadMs, long timeoutCierreMs,
+                            RuedaTemporizadores rueda) {
+        this.politica = politica;
+        this.timeoutCierreMs = timeoutCierreMs;
+        this.rueda = rueda;
+        if (inactividadMs > 0) {
+            long periodo = Math.max(1000, inactividadMs / 4);
+            rueda.programar(periodo, () -> revisarInactivas(inactividadMs, periodo));
+        }
+    }
+
+    public Sesion get(String usuario) {
+        Entrada entrada = sesiones.get(usuario);
+        return entrada == null ? null : entrada.sesion;
+    }
+
+    /** Si la politica permite registrar una sesion nueva para el usuario en este momento. */
+    public boolean admite(String usuario) {
+        return politica == PoliticaDuplicado.REEMPLAZAR || !sesiones.containsKey(usuario);
+    }
+
+    /**
+     * Registra la sesion y devuelve su generacion, o -1 si se rechazo por duplicada. Con
+     * REEMPLAZAR la sesion anterior del usuario recibe un aviso y se desconecta.
+     */
+    public long registrar(Sesion sesion) {
+        String usuario = sesion.getNombreUsuario();
+        long generacion = generaciones.incrementAndGet();
+        Entrada nueva = new Entrada(sesion, generacion);
+        Entrada anterior;
+        if (politica == PoliticaDuplicado.RECHAZAR) {
+            anterior = sesiones.putIfAbsent(usuario, nueva);
+            if (anterior != null) return -1;
+        } else {
+            anterior = sesiones.put(usuario, nueva);
+        }
+
+        if (anterior != null && anterior.sesion != sesion) {
+            Bitacora.info("sesion_reemplazada", "usuario", usuario, "generacion", anterior.generacion,
+                    "nueva", generacion);
+            expulsar(anterior.sesion, "Se inició sesión con tu usuario desde otra conexión.");
+        }
+        return generacion;
+    }
+
+    /** Quita la sesion solo si sigue siendo la registrada para su usuario. */
+    public boolean eliminar(Sesion sesion) {
+        String usuario = sesion.getNombreUsuario();
+        if (usuario == null) return false;
+        Entrada entrada = sesiones.get(usuario);
+        return entrada != null && entrada.sesion == sesion && sesiones.remove(usuario, entrada);
+    }
+
+    public int size() {
+        return sesiones.size();
+    }
+
+    /** Recorre las sesiones registradas sin bloquear las altas y bajas concurrentes. */
+    public void paraCada(Consumer<Sesion> accion) {
+        for (Entrada entrada : sesiones.values()) {
+            accion.accept(entrada.sesion);
+        }
+    }
+
+    // En el hilo de la rueda; se vuelve a programar en cada pasada
+    private void revisarInactivas(long inactividadMs, long periodo) {
+        long limite = System.currentTimeMillis() - inactividadMs;
+        for (Map.Entry<String, Entrada> e : sesiones.entrySet()) {
+            Entrada entrada = e.getValue();
+            if (entrada.sesion.getUltimaActividad() < limite && sesiones.remove(e.getKey(), entrada)) {
+                Bitacora.info("sesion_inactiva", "usuario", e.getKey(), "generacion", entrada.generacion);
+                expulsar(entrada.sesion, "Desconectado por inactividad.");
+            }
+        }
+        rueda.programar(periodo, () -> revisarInactivas(inactividadMs, periodo));
+    }
+
+    // Aviso y cierre ordenado; si el cliente no lo recibe a tiempo se cierra igual. Tambien corre
+    // en el hilo de la rueda: el aviso no espera lugar en la cola y, si no entra, se cierra ya
+    private void expulsar(Sesion sesion, String motivo) {
+        sesion.desconectarSinEsperar(motivo);
+        rueda.programar(timeoutCierreMs, sesion::cerrarAhora);
+    }
+}
@@ -0,0 +1,159 @@
+package server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Recepcion de una nota de voz por partes. El tamano del encabezado se valida contra
+ * chatme.voz.maxNotaBytes antes de reservar nada, y el cuerpo se lee en buffers del pool
+ * y se copia al FlujoVoz reservado en AlmacenVoz. Los destinatarios que lo admiten reciben la
+ * nota mientras llega; los demas (front end NIO, desconectados) la reciben completa desde el
+ * almacen al terminar. Sin almacen de voz se vuelve a juntar el audio en un byte[] acotado.
+ */
+public class RelayVoz {
+    private static final PoolBuffers POOL = new PoolBuffers(16 * 1024, 256, false);
+
+    private final Sesion remitente;
+    private final String destino;
+    private final boolean esGrupo;
+    private final int tamano;
+    private final FlujoVoz flujo;
+    // Destinatarios que reciben la nota completa al terminar
+    private final List<String> pendientes = new ArrayList<>();
+    private byte[] audio;
+    private int recibidos;
+
+    private RelayVoz(Sesion remitente, String destino, boolean esGrupo, int tamano, FlujoVoz flujo) {
+        this.remitente = remitente;
+        this.destino = destino;
+        this.esGrupo = esGrupo;
+        this.tamano = tamano;
+        this.flujo = flujo;
+    }
+
+    /** Valida el tamano y prepara la recepcion. Si es demasiado grande hay que cerrar la conexion. */
+    public static RelayVoz iniciar(Sesion remitente, String destino, boolean esGrupo, int tamano) throws IOException {
+        int maximo = Server.getConfiguracion().getMaxNotaVoz();
+        if (tamano > maximo) {
+            remitente.enviar("Nota de voz demasiado grande (" + tamano + " bytes, maximo " + maximo + ")");
+            throw new IOException("Nota de voz de " + tamano + " bytes supera el maximo de " + maximo);
+        }
+
+        AlmacenVoz almacen = Server.getAlmacenVoz();
+        RelayVoz relay = new RelayVoz(remitente, destino, esGrupo, tamano, almacen != null ? almacen.reservar(tamano) : null);
+        if (relay.flujo == null) {
+            relay.audio = new byte[tamano];
+            return relay;
+        }
+
+        String nombreRemitente = remitente.getNombreUsuario();
+        // La primera trama codifica el encabezado y las demas lo reutilizan con su propio lector
+        Trama primera = null;
+        for (String usuario : destinatarios(nombreRemitente, destino, esGrupo)) {
+            Sesion sesion = Server.getClientesConectados().get(usuario);
+            if (sesion != null && sesion.admiteAudioEnCurso()) {
+                FlujoVoz.Lector lector = relay.flujo.nuevoLector();
+                Trama trama;
+                if (primera == null) {
+                    trama = primera = esGrupo
+                            ? Trama.vozGrupoEnCurso(destino, nombreRemitente, lector)
+                            : Trama.vozEnCurso(nombreRemitente, lector);
+                } else {
+                    trama = primera.conLector(lector);
+                }
+                sesion.enviar(trama);
+            } else {
+                relay.pendientes.add(usuario);
+            }
+        }
+        return relay;
+    }
+
+    private static List<String> destinatarios(String remitente, String destino, boolean esGrupo) {
+        if (!esGrupo) return List.of(destino);
+        RegistroGrupos.Miembros miembros = Server.getGrupos().miembros(destino);
+        if (miembros == null) {
+            Bitacora.info("grupo_inexistente", "grupo", destino);
+            return List.of();
+        }
+        List<String> resultado = new ArrayList<>(miembros.nombres());
+        resultado.remove(remitente);
+        return resultado;
+    }
+
+    /** Lee el cuerpo completo de un flujo bloqueante y entrega la nota. */
+    public static void recibir(Sesion remitente, String destino, boolean esGrupo, int tamano, InputStream entrada)
+            throws IOException {
+        RelayVoz relay = iniciar(remitente, destino, esGrupo, tamano);
+        ByteBuffer buffer = POOL.tomar();
+        try {
+            byte[] parte = buffer.array();
+            while (relay.faltan() > 0) {
+                int leidos = entrada.read(parte, 0, Math.min(parte.length, relay.faltan()));
+                if (leidos < 0) throw new EOFException("Conexion interrumpida durante recepcion de audio");
+                relay.escribir(parte, 0, leidos);
+            }
+        } catch (IOException e) {
+            relay.abortar();
+            throw e;
+        } finally {
+            POOL.devolver(buffer);
+        }
+        relay.terminar();
+    }
+
+    public int faltan() {
+        return tamano - recibidos;
+    }
+
+    public void escribir(byte[] datos, int desde, int cantidad) throws IOException {
+        if (flujo != null) {
+            ConfiguracionServidor configuracion = Server.getConfiguracion();
+            flujo.escribir(datos, desde, cantidad, configuracion.getVentanaVoz(), configuracion.getTimeoutBloqueoMs());
+        } else {
+            System.arraycopy(datos, desde, audio, recibidos, cantidad);
+        }
+        recibidos += cantidad;
+    }
+
+    // Desde el hilo del selector: copia lo que haya en el buffer hasta completar la nota
+    public void escribir(ByteBuffer datos) throws IOException {
+        int cantidad = Math.min(datos.remaining(), faltan());
+        ByteBuffer parte = datos.slice(datos.position(), cantidad);
+        if (flujo != null) {
+            flujo.escribir(parte);
+        } else {
+            parte.get(audio, recibidos, cantidad);
+        }
+        datos.position(datos.position() + cantidad);
+        recibidos += cantidad;
+    }
+
+    public void terminar() {
+        if (flujo == null) {
+            ProcesadorComandos.procesarVoz(remitente, destino, esGrupo, audio);
+            audio = null;
+            return;
+        }
+
+        NotaVoz nota = flujo.completar();
+        String nombreRemitente = remitente.getNombreUsuario();
+        Trama trama = esGrupo
+                ? Trama.vozGrupoGuardada(destino, nombreRemitente, nota)
+                : Trama.vozGuardada(nombreRemitente, nota);
+        for (String usuario : pendientes) {
+            Server.enviarMensaje(usuario, trama);
+        }
+        remitente.enviar("Nota de voz guardada con id " + nota.getId());
+        ProcesadorComandos.registrarNotaVoz(remitente, destino, esGrupo, nota.getId());
+    }
+
+    public void abortar() {
+        if (flujo != null) flujo.abortar();
+        audio = null;
+    }
+}
@@ -0,0 +1,194 @@
+package server;
+
+import audio.PaqueteVoz;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Relevo de llamadas UDP para cuando los clientes no se alcanzan directamente (NAT). Cada
+ * extremo recibe un SSRC y envia sus PaqueteVoz a este puerto; el servidor los reenvia tal
+ * cual al otro extremo, sin decodificarlos: el datagrama se recibe en un buffer directo y se
+ * envia desde el mismo buffer, sin pasar por el heap.
+ *
+ * Cada sentido tiene un limite de ancho de banda (cubeta de fichas); lo que lo supera se
+ * descarta como una perdida en la red. El relevo se cierra con el paquete de fin de
+ * cualquiera de los dos, cuando una de las sesiones se desconecta o tras TIMEOUT_MS sin
+ * paquetes.
+ */
+public class RelevoLlamadas {
+    private static final long TIMEOUT_MS = 30000;
+    private static final long REVISION_MS = 1000;
+    // Rafaga admitida por encima del limite, en ms de trafico al ritmo maximo
+    private static final int RAFAGA_MS = 250;
+
+    private final DatagramChannel canal;
+    private final long bytesPorSegundo;
+    private final Map<Integer, Tramo> porSsrc = new ConcurrentHashMap<>();
+    private final Map<String, Tramo> porUsuario = new ConcurrentHashMap<>();
+    private final Random azar = new Random();
+    private final ScheduledExecutorService revisor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread hilo = new Thread(r, "revisor-relevo");
+        hilo.setDaemon(true);
+        return hilo;
+    });
+
+    public RelevoLlamadas(int puerto, int maxKbps) throws IOException {
+        this.canal = DatagramChannel.open();
+        canal.bind(new InetSocketAddress(puerto));
+        this.bytesPorSegundo = maxKbps * 1000L / 8;
+    }
+
+    public void iniciar() {
+        Thread receptor = new Thread(this::reenviar, "relevo-llamadas");
+        receptor.setDaemon(true);
+        receptor.start();
+        revisor.scheduleWithFixedDelay(this::revisar, REVISION_MS, REVISION_MS, TimeUnit.MILLISECONDS);
+        System.out.println("Relevo de llamadas en el puerto UDP " + getPuerto()
+                + " (max " + bytesPorSegundo * 8 / 1000 + " kbit/s por sentido)");
+    }
+
+    public int getPuerto() {
+        return canal.socket().getLocalPort();
+    }
+
+    /**
+     * Crea el relevo entre las dos sesiones y devuelve los SSRC que debe usar cada una. Si ya
+     * existe uno entre ellas devuelve los mismos, asi no importa cual de las dos lo pida primero.
+     */
+    public synchronized int[] crear(Sesion a, Sesion b) {
+        Tramo actual = porUsuario.get(a.getNombreUsuario());
+        if (actual != null && actual.sesion == a && actual.otro.sesion == b) {
+            return new int[]{actual.ssrc, actual.otro.ssrc};
+        }
+        cerrar(a.getNombreUsuario());
+        cerrar(b.getNombreUsuario());
+        Tramo tramoA = new Tramo(a, nuevoSsrc(), bytesPorSegundo);
+        Tramo tramoB = new Tramo(b, nuevoSsrc(), bytesPorSegundo);
+        tramoA.otro = tramoB;
+        tramoB.otro = tramoA;
+        porSsrc.put(tramoA.ssrc, tramoA);
+        porSsrc.put(tramoB.ssrc, tramoB);
+        porUsuario.put(a.getNombreUsuario(), tramoA);
+        porUsuario.put(b.getNombreUsuario(), tramoB);
+        Bitacora.info("relevo_creado", "a", a.getNombreUsuario(), "b", b.getNombreUsuario());
+        return new int[]{tramoA.ssrc, tramoB.ssrc};
+    }
+
+    /** Cierra el relevo en que esta el usuario, si hay alguno. */
+    public synchronized void cerrar(String usuario) {
+        Tramo tramo = porUsuario.get(usuario);
+        if (tramo == null) return;
+        for (Tramo extremo : new Tramo[]{tramo, tramo.otro}) {
+            porSsrc.remove(extremo.ssrc);
+            porUsuario.remove(extremo.sesion.getNombreUsuario(), extremo);
+        }
+        Bitacora.info("relevo_cerrado", "a", tramo.sesion.getNombreUsuario(), "b", tramo.otro.sesion.getNombreUsuario(),
+                "reenviados", tramo.reenviados + tramo.otro.reenviados,
+                "descartados", tramo.descartados + tramo.otro.descartados);
+    }
+
+    public int getRelevos() {
+        return porUsuario.size() / 2;
+    }
+
+    // Bajo el lock
+    private int nuevoSsrc() {
+        int ssrc;
+        do {
+            ssrc = azar.nextInt();
+        } while (ssrc == 0 || porSsrc.containsKey(ssrc));
+        return ssrc;
+    }
+
+    private void reenviar() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(2048);
+        while (canal.isOpen()) {
+            try {
+                buffer.clear();
+                SocketAddress origen = canal.receive(buffer);
+                buffer.flip();
+                // Solo la cabecera de PaqueteVoz se mira: version en el primer byte y SSRC en el 8
+                if (buffer.remaining() < PaqueteVoz.CABECERA || (buffer.get(0) & 0xC0) != 0x80) continue;
+                Tramo tramo = porSsrc.get(buffer.getInt(8));
+                if (tramo == null || !(origen instanceof InetSocketAddress direccion)
+                        || !tramo.ip.equals(direccion.getAddress())) continue;
+                tramo.direccion = direccion;
+                tramo.ultimaRecepcion = System.currentTimeMillis();
+                boolean fin = (buffer.get(1) & 0x7F) == PaqueteVoz.FIN;
+                if (fin || tramo.admite(buffer.remaining())) {
+                    canal.send(buffer, tramo.otro.direccion);
+                    tramo.reenviados++;
+                } else {
+                    tramo.descartados++;
+                }
+                if (fin) cerrar(tramo.sesion.getNombreUsuario());
+            } catch (IOException e) {
+                if (canal.isOpen()) System.err.println("Error en el relevo de llamadas: " + e.getMessage());
+            }
+        }
+    }
+
+    private void revisar() {
+        long ahora = System.currentTimeMillis();
+        for (Tramo tramo : porUsuario.values()) {
+            boolean sinSesion = Server.getClientesConectados().get(tramo.sesion.getNombreUsuario()) != tramo.sesion;
+            boolean inactivo = ahora - Math.max(tramo.ultimaRecepcion, tramo.otro.ultimaRecepcion) > TIMEOUT_MS;
+            if (sinSesion || inactivo) cerrar(tramo.sesion.getNombreUsuario());
+        }
+    }
+
+    /** Un sentido del relevo: lo que envia la sesion hacia otro. */
+    private static final class Tramo {
+        final Sesion sesion;
+        final int ssrc;
+        final InetAddress ip;
+        Tramo otro;
+        // Su ultimo paquete; hasta entonces, su IP y puerto de llamadas
+        volatile InetSocketAddress direccion;
+        volatile long ultimaRecepcion = System.currentTimeMillis();
+
+        // Cubeta de fichas: solo la usa el hilo que reenvia
+        private final long bytesPorSegundo;
+        private final long capacidad;
+        private long fichas;
+        private long ultimaRecarga = System.nanoTime();
+        long reenviados;
+        long descartados;
+
+        Tramo(Sesion sesion, int ssrc, long bytesPorSegundo) {
+            this.sesion = sesion;
+            this.ssrc = ssrc;
+            this.bytesPorSegundo = bytesPorSegundo;
+            this.capacidad = Math.max(2048, bytesPorSegundo * RAFAGA_MS / 1000);
+            this.fichas = capacidad;
+            InetAddress direccionSesion;
+            try {
+                direccionSesion = InetAddress.getByName(sesion.getDireccionIP());
+            } catch (IOException e) {
+                direccionSesion = InetAddress.getLoopbackAddress();
+            }
+            this.ip = direccionSesion;
+            this.direccion = new InetSocketAddress(direccionSesion, sesion.getPuertoLlamada());
+        }
+
+        boolean admite(int bytes) {
+            long ahora = System.nanoTime();
+            fichas = Math.min(capacidad, fichas + (ahora - ultimaRecarga) * bytesPorSegundo / 1_000_000_000L);
+            ultimaRecarga = ahora;
+            if (fichas < bytes) return false;
+            fichas -= bytes;
+            return true;
+        }
+    }
+}
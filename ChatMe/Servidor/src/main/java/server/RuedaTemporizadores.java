@@ -0,0 +1,144 @@
+package server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rueda de temporizadores con hash: un arreglo circular de ranuras que un solo hilo recorre a
+ * razon de una por tick. Cada temporizador cae en la ranura de su vencimiento y guarda cuantas
+ * vueltas faltan, asi que programar y cancelar cuestan O(1) y miles de sesiones comparten un
+ * solo hilo sin un ScheduledFuture por conexion. La precision es de un tick.
+ *
+ * Las tareas corren en el hilo de la rueda y deben ser cortas (encolar una trama, cerrar un
+ * socket); una tarea lenta retrasa a todas las demas.
+ */
+public class RuedaTemporizadores {
+
+    /** Temporizador programado; cancelar() es seguro desde cualquier hilo. */
+    public static final class Temporizador {
+        private final Runnable tarea;
+        private final long vencimientoNanos;
+        private long vueltas;
+        private volatile boolean cancelado;
+        // Lista doble de la ranura, solo la toca el hilo de la rueda
+        private Temporizador anterior;
+        private Temporizador siguiente;
+
+        private Temporizador(Runnable tarea, long vencimientoNanos) {
+            this.tarea = tarea;
+            this.vencimientoNanos = vencimientoNanos;
+        }
+
+        public void cancelar() {
+            cancelado = true;
+        }
+    }
+
+    private static final class Ranura {
+        Temporizador primero;
+        Temporizador ultimo;
+
+        void agregar(Temporizador t) {
+            t.anterior = ultimo;
+            t.siguiente = null;
+            if (ultimo == null) {
+                primero = t;
+            } else {
+                ultimo.siguiente = t;
+            }
+            ultimo = t;
+        }
+
+        void quitar(Temporizador t) {
+            if (t.anterior == null) primero = t.siguiente; else t.anterior.siguiente = t.siguiente;
+            if (t.siguiente == null) ultimo = t.anterior; else t.siguiente.anterior = t.anterior;
+            t.anterior = t.siguiente = null;
+        }
+    }
+
+    private final Ranura[] ranuras;
+    private final int mascara;
+    private final long tickNanos;
+    // Los temporizadores nuevos esperan aqui hasta el siguiente tick del hilo de la rueda
+    private final Queue<Temporizador> nuevos = new ConcurrentLinkedQueue<>();
+    private final Thread hilo;
+    private final long inicio;
+    private long tick;
+    private volatile boolean detenida;
+
+    /** cantidadRanuras se redondea a la siguiente potencia de 2. */
+    public RuedaTemporizadores(long tickMs, int cantidadRanuras) {
+        int n = Integer.highestOneBit(Math.max(2, cantidadRanuras - 1)) << 1;
+        this.ranuras = new Ranura[n];
+        for (int i = 0; i < n; i++) ranuras[i] = new Ranura();
+        this.mascara = n - 1;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMs));
+        this.inicio = System.nanoTime();
+        this.hilo = new Thread(this::girar, "rueda-temporizadores");
+        hilo.setDaemon(true);
+        hilo.start();
+    }
+
+    public Temporizador programar(long retrasoMs, Runnable tarea) {
+        Temporizador t = new Temporizador(tarea, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, retrasoMs)));
+        nuevos.offer(t);
+        return t;
+    }
+
+    public void detener() {
+        detenida = true;
+        hilo.interrupt();
+    }
+
+    private void girar() {
+        while (!detenida) {
+            long siguienteTick = inicio + (tick + 1) * tickNanos;
+            long espera = siguienteTick - System.nanoTime();
+            if (espera > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(espera);
+                } catch (InterruptedException e) {
+                    if (detenida) return;
+                }
+                continue;
+            }
+            tick++;
+            ubicarNuevos();
+            vencer(ranuras[(int) (tick & mascara)]);
+        }
+    }
+
+    private void ubicarNuevos() {
+        Temporizador t;
+        // Un tope por tick para que una rafaga de altas no retrase el vencimiento de los demas
+        for (int i = 0; i < 100_000 && (t = nuevos.poll()) != null; i++) {
+            if (t.cancelado) continue;
+            long ticksHasta = Math.max(0, (t.vencimientoNanos - inicio + tickNanos - 1) / tickNanos);
+            // Lo que ya vencio sale en el tick actual
+            long destino = Math.max(ticksHasta, tick);
+            t.vueltas = (destino - tick) / ranuras.length;
+            ranuras[(int) (destino & mascara)].agregar(t);
+        }
+    }
+
+    private void vencer(Ranura ranura) {
+        Temporizador t = ranura.primero;
+        while (t != null) {
+            Temporizador siguiente = t.siguiente;
+            if (t.cancelado) {
+                ranura.quitar(t);
+            } else if (t.vueltas <= 0) {
+                ranura.quitar(t);
+                try {
+                    t.tarea.run();
+                } catch (RuntimeException e) {
+                    System.err.println("Error en un temporizador: " + e.getMessage());
+                }
+            } else {
+                t.vueltas--;
+            }
+            t = siguiente;
+        }
+    }
+}
@@ -1,7 +1,12 @@
 package server;
 
+import audio.CodecAudio;
+
 import java.io.*;
+import java.lang.reflect.Method;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.*;
 
@@ -9,145 +14,482 @@ public class Server {
     private int puerto;
     private ServerSocket serverSocket;
     private ExecutorService pool;
-    private static Map<String, ClienteHandler> clientesConectados = new ConcurrentHashMap<>();
-    private static Map<String, Set<String>> grupos;
-    private static File historialMensajes;
-    private static Semaphore semaphore;
+    private static RegistroSesiones clientesConectados;
+    private static RegistroGrupos grupos;
+    private static HistorialAsincrono historial;
+    private static AlmacenVoz almacenVoz;
+    private static BuzonOffline buzon;
+    private static BufferCompartido.Pool buffersCompartidos;
+    private static DespachadorGrupos despachadorGrupos;
+    private static RuedaTemporizadores temporizadores;
+    private static MonitorLatidos latidos;
+    private static Metricas metricas;
+    private static ConfiguracionServidor configuracion;
+    private static ServidorConferencias conferencias;
+    private static RelevoLlamadas relevo;
+    private static RegistroLlamadas llamadas;
+    private Semaphore conexionesDisponibles;
 
     public Server(int puerto) {
-        this.semaphore= new Semaphore(2);
-        this.puerto = puerto;
-        this.grupos = new ConcurrentHashMap<>();
-        this.pool = Executors.newCachedThreadPool();
-        this.historialMensajes = new File("historial_chat.txt");
+        this(new ConfiguracionServidor(puerto));
+    }
+
+    public Server(ConfiguracionServidor configuracion) {
+        this.configuracion = configuracion;
+        this.puerto = configuracion.getPuerto();
+        this.conexionesDisponibles = new Semaphore(configuracion.getMaxConexiones());
+        this.grupos = new RegistroGrupos();
+        // Una sola rueda lleva los plazos de todas las sesiones: latidos, inactividad y cierres diferidos
+        this.temporizadores = new RuedaTemporizadores(configuracion.getTickTemporizadoresMs(), 512);
+        this.clientesConectados = new RegistroSesiones(configuracion.getPoliticaSesionDuplicada(),
+                configuracion.getInactividadSesionMs(), configuracion.getTimeoutBloqueoMs(), temporizadores);
+        this.latidos = new MonitorLatidos(temporizadores, configuracion.getIntervaloLatidoMs(),
+                configuracion.getTimeoutLatidoMs(), configuracion.getTimeoutBloqueoMs());
+        this.llamadas = new RegistroLlamadas(temporizadores, configuracion.getTimeoutTimbreMs(), Server::timbreVencido);
+        this.metricas = new Metricas(temporizadores);
+        metricas.registrarEnJmx();
+        if (configuracion.getPuertoMetricas() > 0) {
+            try {
+                new ServidorMetricas(configuracion.getPuertoMetricas(), metricas).iniciar();
+            } catch (IOException e) {
+                System.err.println("No se pudo abrir el endpoint de metricas: " + e.getMessage());
+            }
+        }
+        this.buffersCompartidos = new BufferCompartido.Pool(configuracion.isBuffersCompartidosDirectos());
+        this.despachadorGrupos = new DespachadorGrupos(configuracion.getHilosGrupos(),
+                configuracion.getUmbralParaleloGrupos(), configuracion.getFragmentoGrupos());
+        try {
+            AlmacenHistorial almacen = new AlmacenHistorial(Paths.get(configuracion.getDirectorioHistorial()),
+                    configuracion.getTamanoSegmentoHistorial(), configuracion.getMaxIndiceHistorial());
+            // El historial de texto de versiones anteriores se pasa al almacen la primera vez
+            ImportadorHistorial.importarSiHaceFalta(Paths.get("historial_chat.txt"), almacen);
+            this.historial = new HistorialAsincrono(almacen, configuracion.getIntervaloHistorialMs(),
+                    configuracion.getMaxLoteHistorial(), configuracion.getFsyncHistorial(), configuracion.getIntervaloFsyncMs());
+            Runtime.getRuntime().addShutdownHook(new Thread(historial::cerrar));
+        } catch (IOException e) {
+            System.err.println("No se pudo abrir el historial: " + e.getMessage());
+        }
+        try {
+            this.almacenVoz = new AlmacenVoz(Paths.get(configuracion.getDirectorioVoz()),
+                    Math.toIntExact((long) configuracion.getTamanoSegmentoVozMB() * 1024 * 1024),
+                    (long) configuracion.getMaxVozMB() * 1024 * 1024);
+            Runtime.getRuntime().addShutdownHook(new Thread(almacenVoz::cerrar));
+        } catch (IOException e) {
+            System.err.println("No se pudo abrir el almacen de voz: " + e.getMessage());
+        }
+        try {
+            this.buzon = new BuzonOffline(Paths.get(configuracion.getDirectorioBuzon()), configuracion.getMaxBuzonPorUsuario(),
+                    configuracion.getMaxBuzones(), id -> almacenVoz == null ? null : almacenVoz.buscar(id),
+                    configuracion.getFsyncBuzon(), configuracion.getIntervaloFsyncBuzonMs());
+            Runtime.getRuntime().addShutdownHook(new Thread(buzon::cerrar));
+        } catch (IOException e) {
+            System.err.println("No se pudo abrir el buzon offline: " + e.getMessage());
+        }
+    }
+
+    // Con hilos virtuales cada ClienteHandler bloqueado en readLine solo ocupa su pila en el heap,
+    // lo que permite mantener decenas de miles de sesiones inactivas sin un hilo del SO por cada una.
+    private static ExecutorService crearPool(ConfiguracionServidor.MotorConexiones motor) {
+        if (motor == ConfiguracionServidor.MotorConexiones.VIRTUAL) {
+            try {
+                // Se resuelve por reflexion para que el proyecto siga compilando con Java 17
+                Method fabrica = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                System.out.println("Motor de conexiones: hilos virtuales");
+                return (ExecutorService) fabrica.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.out.println("Hilos virtuales no disponibles en esta JVM, usando hilos de plataforma");
+            }
+        } else {
+            System.out.println("Motor de conexiones: hilos de plataforma");
+        }
+        return Executors.newCachedThreadPool();
     }
 
     public void iniciar() {
+        if (configuracion.getPuertoConferencias() >= 0) {
+            try {
+                conferencias = new ServidorConferencias(configuracion.getPuertoConferencias(),
+                        configuracion.getMaxRetardoConferenciaMs());
+                conferencias.iniciar();
+            } catch (IOException e) {
+                System.err.println("No se pudo abrir el puerto de conferencias: " + e.getMessage());
+            }
+        }
+        if (configuracion.getPuertoRelevo() >= 0) {
+            try {
+                relevo = new RelevoLlamadas(configuracion.getPuertoRelevo(), configuracion.getMaxKbpsRelevo());
+                relevo.iniciar();
+            } catch (IOException e) {
+                System.err.println("No se pudo abrir el puerto del relevo de llamadas: " + e.getMessage());
+            }
+        }
+        if (configuracion.getFrontEnd() == ConfiguracionServidor.FrontEnd.NIO) {
+            new ServidorNio(configuracion, conexionesDisponibles).iniciar();
+            return;
+        }
+
         try {
-            
-            serverSocket = new ServerSocket(puerto);
-            System.out.println("Servidor de chat iniciado en el puerto " + puerto);
+            this.pool = crearPool(configuracion.getMotor());
+            // Abierto como canal para que cada Socket aceptado tenga su SocketChannel y las notas
+            // de voz guardadas puedan enviarse con transferTo
+            ServerSocketChannel canalServidor = ServerSocketChannel.open();
+            canalServidor.bind(new InetSocketAddress(puerto), configuracion.getBacklog());
+            serverSocket = canalServidor.socket();
+            System.out.println("Servidor de chat iniciado en el puerto " + puerto
+                    + " (max " + configuracion.getMaxConexiones() + " conexiones)");
 
             while (true) {
                 Socket socketCliente = serverSocket.accept();
-                ClienteHandler handler = new ClienteHandler(socketCliente);
-                semaphore.acquire();
-                pool.execute(handler);
+                if (!conexionesDisponibles.tryAcquire()) {
+                    rechazarConexion(socketCliente);
+                    continue;
+                }
+                try {
+                    pool.execute(new ClienteHandler(socketCliente, pool, conexionesDisponibles::release));
+                } catch (RejectedExecutionException e) {
+                    conexionesDisponibles.release();
+                    socketCliente.close();
+                }
             }
         } catch (Exception e) {
             System.err.println("Error en el servidor: " + e.getMessage());
         }
     }
 
-    public static void enviarMensaje(String destino, String mensaje) {
-        ClienteHandler clienteDestino = clientesConectados.get(destino);
-        if (clienteDestino != null) {
-            clienteDestino.enviar(mensaje);
-        } else {
-            System.out.println("No se encontró el destino: " + destino);
+    static String mensajeRechazo() {
+        return "@servidor|rechazado|Servidor lleno (maximo " + configuracion.getMaxConexiones() + " conexiones)";
+    }
+
+    // El mensaje de rechazo cabe en el buffer de envio del socket, asi que no bloquea el accept
+    private void rechazarConexion(Socket socketCliente) {
+        try (socketCliente) {
+            PrintWriter salida = new PrintWriter(socketCliente.getOutputStream(), true);
+            salida.println(mensajeRechazo());
+            Bitacora.info("conexion_rechazada", "ip", socketCliente.getInetAddress().getHostAddress(), "motivo", "limite");
+        } catch (IOException e) {
+            System.err.println("Error al rechazar conexion: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Registra la sesion como conectada. Antes le entrega lo que espera en su buzon offline,
+     * para que los mensajes nuevos no se adelanten a los guardados. Devuelve false si el
+     * usuario ya esta conectado y la politica de duplicados es RECHAZAR; en ese caso el buzon
+     * queda intacto.
+     */
+    public static boolean registrarSesion(Sesion sesion) {
+        if (buzon == null) {
+            return clientesConectados.registrar(sesion) >= 0;
+        }
+        // La comprobacion, la entrega y el registro ocurren con el candado del usuario en el buzon,
+        // asi dos conexiones simultaneas del mismo usuario no pueden pasar las dos
+        int entregados = buzon.entregar(sesion, () -> clientesConectados.admite(sesion.getNombreUsuario()),
+                () -> clientesConectados.registrar(sesion));
+        if (entregados > 0) {
+            Bitacora.info("buzon_entregado", "usuario", sesion.getNombreUsuario(), "mensajes", entregados);
+        }
+        return entregados >= 0;
+    }
+
+    // Solo si sigue registrada esta misma sesion y no una conexion posterior del usuario
+    public static void eliminarSesion(Sesion sesion) {
+        clientesConectados.eliminar(sesion);
+        if (clientesConectados.get(sesion.getNombreUsuario()) == null) {
+            manejarColgado(sesion.getNombreUsuario());
         }
     }
 
-    public static void enviarAudio(String destino, byte[] audioData, String metadata) {
-        ClienteHandler clienteDestino = clientesConectados.get(destino);
+    public static void enviarMensaje(String destino, Trama trama) {
+        Sesion clienteDestino = clientesConectados.get(destino);
         if (clienteDestino != null) {
-            clienteDestino.enviarAudio(destino, audioData, metadata);
+            clienteDestino.enviar(trama);
         } else {
-            System.out.println("No se encontró el destino para audio: " + destino);
+            guardarParaDesconectado(destino, trama);
         }
     }
 
-    public static void enviarAGrupo(String grupo, String mensaje, String remitente) {
-        Set<String> miembros = grupos.get(grupo);
-        if (miembros == null) {
-            System.out.println("El grupo no existe: " + grupo);
-            return;
-        }
+    public static void enviarAudio(String destino, Trama trama) {
+        enviarMensaje(destino, trama);
+    }
 
-        for (String miembro : miembros) {
-            if (!miembro.equals(remitente)) {
-                ClienteHandler destino = clientesConectados.get(miembro);
-                if (destino != null) {
-                    destino.enviar("[Grupo " + grupo + "] " + remitente + ": " + mensaje);
-                }
-            }
+    // Las notas de voz solo se guardan si estan en el almacen de voz; el buzon no copia audio
+    private static void guardarParaDesconectado(String destino, Trama trama) {
+        guardarParaDesconectados(List.of(destino), trama);
+    }
+
+    private static void guardarParaDesconectados(Collection<String> destinos, Trama trama) {
+        Collection<String> perdidos = buzon == null || trama.getAudio() != null || trama.getCompartido() != null
+                ? destinos
+                // Quien se conecto mientras tanto recibe la trama directamente
+                : buzon.guardarOEnviarTodos(destinos, trama, clientesConectados::get);
+        for (String destino : perdidos) {
+            Bitacora.info("destino_inexistente", "usuario", destino);
         }
     }
 
-    public static void enviarAudioAGrupo(String grupo, byte[] audioData, String remitente) {
-        Set<String> miembros = grupos.get(grupo);
+    public static void enviarAGrupo(String grupo, String mensaje, String remitente) {
+        enviarTramaAGrupo(grupo, Trama.grupo(grupo, remitente, mensaje), remitente);
+    }
+
+    public static void enviarAudioAGrupo(String grupo, Trama trama, String remitente) {
+        enviarTramaAGrupo(grupo, trama, remitente);
+    }
+
+    private static void enviarTramaAGrupo(String grupo, Trama trama, String remitente) {
+        RegistroGrupos.Miembros miembros = grupos.miembros(grupo);
         if (miembros == null) {
-            System.out.println("El grupo no existe: " + grupo);
+            Bitacora.info("grupo_inexistente", "grupo", grupo);
             return;
         }
 
-        for (String miembro : miembros) {
-            if (!miembro.equals(remitente)) {
-                ClienteHandler destino = clientesConectados.get(miembro);
+        // El audio en memoria se codifica una sola vez en un buffer del pool; cada miembro toma
+        // una referencia y la suelta su escritor al enviarla
+        if (trama.getAudio() != null && buffersCompartidos != null) {
+            trama = trama.conBufferCompartido(buffersCompartidos.codificar(trama));
+        }
+
+        // La misma trama va a todos los miembros; las conexiones de texto comparten su linea codificada.
+        // Los desconectados se juntan y van a sus buzones con una sola escritura del diario.
+        // Los grupos grandes se reparten en paralelo
+        Queue<String> desconectados = new ConcurrentLinkedQueue<>();
+        try {
+            despachadorGrupos.despachar(grupo, miembros, trama, remitente, (miembro, t) -> {
+                Sesion destino = clientesConectados.get(miembro);
                 if (destino != null) {
-                    destino.enviarAudio(miembro, audioData, "@vozgrupo|" + grupo + "|" + remitente + "|" + audioData.length);
+                    t.retener();
+                    destino.enviar(t);
+                } else {
+                    desconectados.add(miembro);
                 }
-            }
+            });
+            if (!desconectados.isEmpty()) guardarParaDesconectados(desconectados, trama);
+        } finally {
+            trama.liberar();
         }
     }
 
+    public static DespachadorGrupos getDespachadorGrupos() {
+        return despachadorGrupos;
+    }
+
+    public static MonitorLatidos getLatidos() {
+        return latidos;
+    }
+
+    public static Metricas getMetricas() {
+        return metricas;
+    }
+
     // Nuevo método para manejar llamadas
     public static void manejarSolicitudLlamada(String remitente, String destino) {
-        ClienteHandler clienteDestino = clientesConectados.get(destino);
-        ClienteHandler clienteRemitente = clientesConectados.get(remitente);
+        Sesion clienteDestino = clientesConectados.get(destino);
+        Sesion clienteRemitente = clientesConectados.get(remitente);
+        if (clienteRemitente == null) return;
         
         if (clienteDestino == null) {
-            clienteRemitente.enviar("@llamada|no_disponible|" + destino);
+            clienteRemitente.enviar(Trama.llamada("no_disponible", destino));
+            return;
+        }
+        if (llamadas.de(remitente) != null) {
+            clienteRemitente.enviar(Trama.aviso("Ya tienes una llamada en curso. Cuelga primero."));
+            return;
+        }
+        if (llamadas.solicitar(remitente, destino) == null) {
+            clienteRemitente.enviar(Trama.llamada("ocupado", destino));
+            Bitacora.info("llamada_ocupado", "de", remitente, "a", destino);
             return;
         }
         
         // Enviar solicitud al destino
-        clienteDestino.enviar("@llamada|solicitud|" + remitente);
-        System.out.println("Solicitud de llamada de " + remitente + " a " + destino);
+        clienteDestino.enviar(Trama.llamada("solicitud", remitente));
+        Bitacora.info("llamada_solicitada", "de", remitente, "a", destino);
     }
     
+    // remitente es quien llamo y destino quien acepta
     public static void manejarAceptacionLlamada(String remitente, String destino) {
-        ClienteHandler clienteDestino = clientesConectados.get(destino);
-        ClienteHandler clienteRemitente = clientesConectados.get(remitente);
+        Sesion clienteDestino = clientesConectados.get(destino);
+        Sesion clienteRemitente = clientesConectados.get(remitente);
         
-        if (clienteDestino != null && clienteRemitente != null) {
-            // Enviar información de conexión directa
-            String ipRemitente = clienteRemitente.getSocket().getInetAddress().getHostAddress();
-            int puertoRemitente = clienteRemitente.getPuertoLlamada();
-            
-            String ipDestino = clienteDestino.getSocket().getInetAddress().getHostAddress();
-            int puertoDestino = clienteDestino.getPuertoLlamada();
-            
-            // Conectar a remitente con destino
-            clienteRemitente.enviar("@llamada|conectar|" + ipDestino + ":" + puertoDestino);
-            clienteDestino.enviar("@llamada|conectar|" + ipRemitente + ":" + puertoRemitente);
-            
-            System.out.println("Llamada conectada: " + remitente + " <-> " + destino);
+        // Solo conecta una llamada que este sonando entre ellos dos: uno duplicado o tardio no hace nada
+        if (llamadas.aceptar(destino, remitente) == null) {
+            if (clienteDestino != null) clienteDestino.enviar(Trama.llamada("cancelada", remitente));
+            return;
+        }
+        if (clienteDestino == null || clienteRemitente == null) {
+            manejarColgado(destino);
+            return;
         }
+        // Enviar información de conexión directa
+        String ipRemitente = clienteRemitente.getDireccionIP();
+        int puertoRemitente = clienteRemitente.getPuertoLlamada();
+        
+        String ipDestino = clienteDestino.getDireccionIP();
+        int puertoDestino = clienteDestino.getPuertoLlamada();
+        
+        // Con un codec en comun se agrega como tercer campo; los clientes que no declararon
+        // codecs reciben "ip:puerto" como siempre y la llamada va en PCM sin comprimir
+        String codec = codecComun(clienteRemitente, clienteDestino);
+        String sufijo = codec == null ? "" : ":" + codec;
+
+        // Conectar a remitente con destino
+        clienteRemitente.enviar(Trama.llamada("conectar", ipDestino + ":" + puertoDestino + sufijo));
+        clienteDestino.enviar(Trama.llamada("conectar", ipRemitente + ":" + puertoRemitente + sufijo));
+        // Los clientes sin codecs no avisan al colgar: su llamada no se sigue para no dejarlos ocupados
+        if (codec == null) llamadas.colgar(remitente);
+        
+        Bitacora.info("llamada_conectada", "de", remitente, "a", destino, "codec", codec == null ? "ninguno" : codec);
     }
     
+    // El primero de la lista de quien pidio la llamada que el otro tambien admite
+    private static String codecComun(Sesion solicitante, Sesion otro) {
+        for (String codec : solicitante.getCodecs()) {
+            if (otro.getCodecs().contains(codec)) return codec;
+        }
+        return null;
+    }
+
     public static void manejarRechazoLlamada(String remitente, String destino) {
-        ClienteHandler clienteRemitente = clientesConectados.get(remitente);
+        if (llamadas.rechazar(destino, remitente) == null) return;
+        Sesion clienteRemitente = clientesConectados.get(remitente);
         if (clienteRemitente != null) {
-            clienteRemitente.enviar("@llamada|rechazada|" + destino);
+            clienteRemitente.enviar(Trama.llamada("rechazada", destino));
         }
     }
 
-    public synchronized static void guardarHistorial(String registro) {
-        try (FileWriter fw = new FileWriter(historialMensajes, true)) {
-            fw.write(registro + "\n");
-        } catch (IOException e) {
-            System.err.println("Error al guardar historial: " + e.getMessage());
+    /**
+     * Une al usuario a la conferencia de voz del grupo. La respuesta lleva el puerto UDP del
+     * mezclador, el SSRC que debe usar y el codec en que recibira la mezcla: el primero de los
+     * suyos que el servidor conozca.
+     */
+    public static void manejarConferencia(String usuario, String grupo) {
+        Sesion sesion = clientesConectados.get(usuario);
+        if (sesion == null) return;
+        if (conferencias == null) {
+            sesion.enviar(Trama.llamada("conferencia_rechazada", "El servidor no tiene conferencias activas"));
+            return;
+        }
+        if (!grupos.esMiembro(grupo, usuario)) {
+            sesion.enviar(Trama.llamada("conferencia_rechazada", "No perteneces al grupo " + grupo));
+            return;
+        }
+        CodecAudio codec = null;
+        for (String nombre : sesion.getCodecs()) {
+            codec = CodecAudio.porNombre(nombre);
+            if (codec != null) break;
+        }
+        if (codec == null) {
+            sesion.enviar(Trama.llamada("conferencia_rechazada", "Tu cliente no declaro ningun codec de audio"));
+            return;
+        }
+        int ssrc = conferencias.unir(sesion, grupo, codec);
+        sesion.enviar(Trama.llamada("conferencia", conferencias.getPuerto() + ":" + ssrc + ":" + codec.getNombre()));
+        String[] presentes = conferencias.participantes(grupo);
+        for (String presente : presentes) {
+            if (!presente.equals(usuario)) enviarMensaje(presente, Trama.aviso(usuario + " se unio a la conferencia de " + grupo));
+        }
+        Bitacora.info("conferencia_unido", "usuario", usuario, "grupo", grupo, "codec", codec.getNombre(),
+                "participantes", presentes.length);
+    }
+
+    /** Saca al usuario del grupo y, si estaba en la conferencia de ese grupo, tambien de ella. */
+    public static boolean salirDeGrupo(String grupo, String usuario) {
+        if (!grupos.salir(grupo, usuario)) return false;
+        if (conferencias != null) conferencias.expulsar(usuario, grupo);
+        return true;
+    }
+
+    public static void manejarSalidaConferencia(String usuario) {
+        if (conferencias == null) return;
+        String grupo = conferencias.salir(usuario);
+        if (grupo != null) {
+            Bitacora.info("conferencia_salida", "usuario", usuario, "grupo", grupo);
+        }
+    }
+
+    /**
+     * Termina la llamada del usuario, sonando o conectada, y avisa al otro extremo: "cancelada"
+     * si aun no habia contestado, "colgada" si ya hablaban.
+     */
+    public static void manejarColgado(String usuario) {
+        RegistroLlamadas.Llamada llamada = llamadas.colgar(usuario);
+        if (llamada == null) return;
+        if (relevo != null) relevo.cerrar(usuario);
+        String otro = llamada.otro(usuario);
+        Sesion sesionOtro = clientesConectados.get(otro);
+        // Tambien llega aqui desde la rueda, cuando un latido vencido cierra la sesion
+        if (sesionOtro != null) {
+            sesionOtro.enviarSinEsperar(Trama.llamada(llamada.fueConectada() ? "colgada" : "cancelada", usuario));
         }
+        Bitacora.info("llamada_terminada", "por", usuario, "con", otro, "conectada", llamada.fueConectada(),
+                "duracionMs", llamada.getDuracionMs());
     }
 
-    public static Map<String, ClienteHandler> getClientesConectados(){
+    // En el hilo de la rueda de temporizadores: nadie contesto a tiempo. Los avisos no esperan lugar en la cola
+    private static void timbreVencido(RegistroLlamadas.Llamada llamada) {
+        Sesion solicitante = clientesConectados.get(llamada.getSolicitante());
+        if (solicitante != null) solicitante.enviarSinEsperar(Trama.llamada("sin_respuesta", llamada.getDestino()));
+        Sesion destino = clientesConectados.get(llamada.getDestino());
+        if (destino != null) destino.enviarSinEsperar(Trama.llamada("cancelada", llamada.getSolicitante()));
+        Bitacora.info("llamada_sin_respuesta", "de", llamada.getSolicitante(), "a", llamada.getDestino());
+    }
+
+    public static RegistroLlamadas getLlamadas() {
+        return llamadas;
+    }
+
+    /**
+     * Pasa la llamada entre el usuario y su interlocutor por el relevo del servidor. Lo pide
+     * cada extremo que no recibe audio directo; los dos reciben el puerto del relevo y su SSRC.
+     */
+    public static void manejarRelevo(String usuario, String otro) {
+        Sesion sesion = clientesConectados.get(usuario);
+        Sesion sesionOtro = clientesConectados.get(otro);
+        if (sesion == null) return;
+        RegistroLlamadas.Llamada llamada = llamadas.de(usuario);
+        if (relevo == null || sesionOtro == null || llamada == null
+                || llamada.getEstado() != RegistroLlamadas.Estado.CONECTADA || !otro.equals(llamada.otro(usuario))) {
+            sesion.enviar(Trama.llamada("relevo_rechazado", otro));
+            return;
+        }
+        int[] ssrc = relevo.crear(sesion, sesionOtro);
+        sesion.enviar(Trama.llamada("relevo", relevo.getPuerto() + ":" + ssrc[0]));
+        sesionOtro.enviar(Trama.llamada("relevo", relevo.getPuerto() + ":" + ssrc[1]));
+    }
+
+    public static RelevoLlamadas getRelevo() {
+        return relevo;
+    }
+
+    public static ServidorConferencias getConferencias() {
+        return conferencias;
+    }
+
+    // No bloquea: el registro se escribe en el siguiente lote del historial
+    public static void guardarHistorial(RegistroHistorial registro) {
+        if (historial != null) {
+            historial.registrar(registro);
+        }
+    }
+
+    public static AlmacenVoz getAlmacenVoz() {
+        return almacenVoz;
+    }
+
+    public static HistorialAsincrono getHistorial() {
+        return historial;
+    }
+
+    public static RegistroSesiones getClientesConectados() {
         return clientesConectados;
     }
     
     
 
-    public static Map<String, Set<String>> getGrupos() {
+    public static ConfiguracionServidor getConfiguracion() {
+        return configuracion;
+    }
+
+    public static RegistroGrupos getGrupos() {
         return grupos;
     }
 
@@ -155,13 +497,42 @@ public class Server {
         int puerto;
 
         if (args.length > 0) {
-            puerto = Integer.parseInt(args[0]);
+            puerto = argumentoEntero(args[0], "puerto");
         } else {
             puerto = 8080;
             System.out.println("Usando puerto por defecto: " + puerto);
         }
 
-        Server servidor = new Server(puerto);
+        ConfiguracionServidor configuracion = new ConfiguracionServidor(puerto);
+        if (args.length > 1) {
+            try {
+                configuracion.setMotor(ConfiguracionServidor.MotorConexiones.valueOf(args[1].trim().toUpperCase()));
+            } catch (IllegalArgumentException e) {
+                salirConUso("Motor invalido: " + args[1]);
+            }
+        }
+        if (args.length > 2) {
+            configuracion.setMaxConexiones(argumentoEntero(args[2], "maximo de conexiones"));
+        }
+
+        Server servidor = new Server(configuracion);
         servidor.iniciar();
     }
-}
\ No newline at end of file
+
+    private static int argumentoEntero(String valor, String nombre) {
+        try {
+            int entero = Integer.parseInt(valor.trim());
+            if (entero >= 0) return entero;
+        } catch (NumberFormatException e) {
+            // Se informa abajo
+        }
+        salirConUso("Valor invalido para el " + nombre + ": " + valor);
+        return 0;
+    }
+
+    private static void salirConUso(String error) {
+        System.err.println(error);
+        System.err.println("Uso: java -jar Servidor.jar [puerto] [plataforma|virtual] [maxConexiones]");
+        System.exit(2);
+    }
+}
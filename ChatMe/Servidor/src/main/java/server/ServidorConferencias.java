@@ -0,0 +1,323 @@
+package server;
+
+import audio.BufferJitter;
+import audio.CodecAudio;
+import audio.PaqueteVoz;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conferencias de voz de los grupos. Cada participante envia sus tramas de 20 ms (PaqueteVoz)
+ * por UDP a este socket; cada 20 ms el mezclador toma una trama de cada uno, las suma una
+ * sola vez y le devuelve a cada participante la suma menos su propia voz (mezcla N-1),
+ * codificada con su codec. Asi cada cliente envia y recibe un unico flujo aunque la
+ * conferencia crezca.
+ *
+ * Los participantes se identifican por el SSRC que el servidor les asigna al unirse; solo se
+ * aceptan paquetes desde la IP de su sesion. La direccion de respuesta es la de su ultimo
+ * paquete, o la IP y el puerto de llamadas de la sesion mientras no haya enviado nada.
+ *
+ * Solo los miembros del grupo participan: quien sale del grupo sale tambien de su conferencia,
+ * y el mezclador lo vuelve a comprobar periodicamente junto con las sesiones cerradas.
+ */
+public class ServidorConferencias {
+    public static final int FRECUENCIA = 16000;
+    public static final int MS_POR_TRAMA = 20;
+    static final int MUESTRAS_POR_TRAMA = FRECUENCIA / 1000 * MS_POR_TRAMA;
+    // Cada cuantas tramas se sacan los participantes cuya sesion ya no esta o que ya no son del grupo
+    private static final int TRAMAS_REVISION = 50;
+
+    private final DatagramSocket socket;
+    private final int maximoTramas;
+    private final Map<String, Conferencia> conferencias = new ConcurrentHashMap<>();
+    private final Map<Integer, Participante> porSsrc = new ConcurrentHashMap<>();
+    private final Map<String, Participante> porUsuario = new ConcurrentHashMap<>();
+    private final Random azar = new Random();
+    private final ScheduledExecutorService mezclador = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread hilo = new Thread(r, "mezclador-conferencias");
+        hilo.setDaemon(true);
+        return hilo;
+    });
+    private long tramas;
+
+    public ServidorConferencias(int puerto, int maxRetardoMs) throws SocketException {
+        this.socket = new DatagramSocket(puerto);
+        this.maximoTramas = Math.max(1, maxRetardoMs / MS_POR_TRAMA);
+    }
+
+    public void iniciar() {
+        Thread receptor = new Thread(this::recibir, "receptor-conferencias");
+        receptor.setDaemon(true);
+        receptor.start();
+        mezclador.scheduleAtFixedRate(this::mezclarTodas, MS_POR_TRAMA, MS_POR_TRAMA, TimeUnit.MILLISECONDS);
+        System.out.println("Conferencias de voz en el puerto UDP " + socket.getLocalPort());
+    }
+
+    public int getPuerto() {
+        return socket.getLocalPort();
+    }
+
+    public int getParticipantes() {
+        return porUsuario.size();
+    }
+
+    /**
+     * Une la sesion a la conferencia del grupo (creandola si hace falta) y devuelve el SSRC que
+     * debe usar en sus paquetes. Si ya estaba en otra conferencia, sale de ella.
+     */
+    public synchronized int unir(Sesion sesion, String grupo, CodecAudio codec) {
+        salir(sesion.getNombreUsuario());
+        int ssrc;
+        do {
+            ssrc = azar.nextInt();
+        } while (ssrc == 0 || porSsrc.containsKey(ssrc));
+        Conferencia conferencia = conferencias.computeIfAbsent(grupo, Conferencia::new);
+        Participante participante = new Participante(sesion, grupo, ssrc, codec, maximoTramas);
+        conferencia.agregar(participante);
+        porSsrc.put(ssrc, participante);
+        porUsuario.put(sesion.getNombreUsuario(), participante);
+        return ssrc;
+    }
+
+    /** Saca al usuario de su conferencia; devuelve el grupo, o null si no estaba en ninguna. */
+    public synchronized String salir(String usuario) {
+        Participante participante = porUsuario.remove(usuario);
+        if (participante == null) return null;
+        porSsrc.remove(participante.ssrc);
+        Conferencia conferencia = conferencias.get(participante.grupo);
+        if (conferencia != null && conferencia.quitar(participante) == 0) {
+            conferencias.remove(participante.grupo);
+        }
+        return participante.grupo;
+    }
+
+    /**
+     * Saca al usuario si esta en la conferencia de ese grupo y le avisa sin esperar lugar en su
+     * cola, porque tambien se llama desde el mezclador. false si estaba en otra o en ninguna.
+     */
+    public boolean expulsar(String usuario, String grupo) {
+        Participante participante;
+        synchronized (this) {
+            participante = porUsuario.get(usuario);
+            if (participante == null || !participante.grupo.equals(grupo)) return false;
+            salir(usuario);
+        }
+        Bitacora.info("conferencia_salida", "usuario", usuario, "grupo", grupo, "motivo", "fuera_del_grupo");
+        participante.sesion.enviarSinEsperar(Trama.llamada("conferencia_terminada", grupo));
+        return true;
+    }
+
+    /** Usuarios en la conferencia del grupo. */
+    public String[] participantes(String grupo) {
+        Conferencia conferencia = conferencias.get(grupo);
+        if (conferencia == null) return new String[0];
+        Participante[] actuales = conferencia.participantes;
+        String[] nombres = new String[actuales.length];
+        for (int i = 0; i < actuales.length; i++) nombres[i] = actuales[i].sesion.getNombreUsuario();
+        return nombres;
+    }
+
+    private void recibir() {
+        byte[] datos = new byte[2048];
+        DatagramPacket datagrama = new DatagramPacket(datos, datos.length);
+        while (!socket.isClosed()) {
+            try {
+                socket.receive(datagrama);
+                PaqueteVoz paquete = PaqueteVoz.leer(datos, datagrama.getLength());
+                if (paquete == null) continue;
+                Participante participante = porSsrc.get(paquete.getSsrc());
+                if (participante == null || !participante.ip.equals(datagrama.getAddress())) continue;
+                if (paquete.esFin()) {
+                    if (salir(participante.sesion.getNombreUsuario()) != null) {
+                        Bitacora.info("conferencia_salida", "usuario", participante.sesion.getNombreUsuario(),
+                                "grupo", participante.grupo);
+                    }
+                    continue;
+                }
+                participante.direccion = new InetSocketAddress(datagrama.getAddress(), datagrama.getPort());
+                participante.entrada.insertar(paquete, System.nanoTime());
+            } catch (IOException e) {
+                if (!socket.isClosed()) System.err.println("Error en el socket de conferencias: " + e.getMessage());
+            }
+        }
+    }
+
+    // En el hilo del mezclador
+    private void mezclarTodas() {
+        try {
+            for (Conferencia conferencia : conferencias.values()) {
+                conferencia.mezclar(socket);
+            }
+            if (++tramas % TRAMAS_REVISION == 0) revisarParticipantes();
+        } catch (RuntimeException e) {
+            // Una excepcion cancelaria el scheduleAtFixedRate y con el todas las conferencias
+            System.err.println("Error al mezclar conferencias: " + e);
+        }
+    }
+
+    // Saca a las sesiones cerradas y a quien ya no es miembro del grupo
+    private void revisarParticipantes() {
+        for (Participante participante : porUsuario.values()) {
+            String usuario = participante.sesion.getNombreUsuario();
+            if (Server.getClientesConectados().get(usuario) != participante.sesion) {
+                salir(usuario);
+            } else if (!Server.getGrupos().esMiembro(participante.grupo, usuario)) {
+                expulsar(usuario, participante.grupo);
+            }
+        }
+    }
+
+    /** Participantes de un grupo y los buffers de la mezcla, reservados una vez. */
+    private static final class Conferencia {
+        final String grupo;
+        // Copia al escribir: el mezclador recorre una instantanea sin bloquear unir/salir
+        volatile Participante[] participantes = new Participante[0];
+        private final int[] suma = new int[MUESTRAS_POR_TRAMA];
+
+        Conferencia(String grupo) {
+            this.grupo = grupo;
+        }
+
+        // Bajo el lock de ServidorConferencias
+        void agregar(Participante participante) {
+            Participante[] actuales = participantes;
+            Participante[] nuevos = Arrays.copyOf(actuales, actuales.length + 1);
+            nuevos[actuales.length] = participante;
+            participantes = nuevos;
+        }
+
+        // Bajo el lock de ServidorConferencias; devuelve cuantos quedan
+        int quitar(Participante participante) {
+            Participante[] actuales = participantes;
+            Participante[] nuevos = new Participante[Math.max(0, actuales.length - 1)];
+            int j = 0;
+            for (Participante actual : actuales) {
+                if (actual != participante && j < nuevos.length) nuevos[j++] = actual;
+            }
+            participantes = j == nuevos.length ? nuevos : Arrays.copyOf(nuevos, j);
+            return participantes.length;
+        }
+
+        // Suma una vez la voz de todos y a cada uno le resta la suya: N decodificaciones y N
+        // codificaciones por trama en lugar de N * (N - 1) sumas de flujos
+        void mezclar(DatagramSocket socket) {
+            Participante[] actuales = participantes;
+            Arrays.fill(suma, 0);
+            for (Participante participante : actuales) {
+                if (!participante.tomarTrama()) continue;
+                int[] muestras = participante.muestras;
+                for (int i = 0; i < MUESTRAS_POR_TRAMA; i++) suma[i] += muestras[i];
+            }
+            for (Participante participante : actuales) {
+                participante.enviarMezcla(socket, suma);
+            }
+        }
+    }
+
+    /** Un usuario en una conferencia. Sus buffers solo los toca el hilo del mezclador. */
+    private static final class Participante {
+        final Sesion sesion;
+        final String grupo;
+        final int ssrc;
+        final InetAddress ip;
+        final BufferJitter entrada;
+        volatile InetSocketAddress direccion;
+
+        private final CodecAudio codec;
+        private final CodecAudio.Codificador codificador;
+        private final CodecAudio.Decodificador[] decodificadores = new CodecAudio.Decodificador[256];
+        private final int ssrcSalida;
+        private int secuenciaSalida;
+        private long marcaSalida;
+
+        // Ultima trama del participante, decodificada
+        final int[] muestras = new int[MUESTRAS_POR_TRAMA];
+        private boolean hablo;
+        private final byte[] pcm = new byte[MUESTRAS_POR_TRAMA * 2];
+        private final byte[] codificado;
+        private final byte[] salida;
+        private final DatagramPacket datagrama;
+
+        Participante(Sesion sesion, String grupo, int ssrc, CodecAudio codec, int maximoTramas) {
+            this.sesion = sesion;
+            this.grupo = grupo;
+            this.ssrc = ssrc;
+            this.codec = codec;
+            this.codificador = codec.nuevoCodificador();
+            this.entrada = new BufferJitter(MS_POR_TRAMA, FRECUENCIA, 1, maximoTramas);
+            InetAddress direccionSesion;
+            try {
+                direccionSesion = InetAddress.getByName(sesion.getDireccionIP());
+            } catch (IOException e) {
+                direccionSesion = InetAddress.getLoopbackAddress();
+            }
+            this.ip = direccionSesion;
+            this.direccion = new InetSocketAddress(direccionSesion, sesion.getPuertoLlamada());
+            Random azar = new Random();
+            this.ssrcSalida = azar.nextInt();
+            this.secuenciaSalida = azar.nextInt(1 << 16);
+            this.marcaSalida = azar.nextInt() & 0xFFFFFFFFL;
+            this.codificado = new byte[codec.maximoCodificado(pcm.length)];
+            this.salida = new byte[PaqueteVoz.CABECERA + codificado.length];
+            this.datagrama = new DatagramPacket(salida, salida.length);
+        }
+
+        // Decodifica la siguiente trama en muestras; false si no hay (silencio o perdida)
+        boolean tomarTrama() {
+            hablo = false;
+            PaqueteVoz paquete = entrada.tomar();
+            CodecAudio codecPaquete = paquete == null ? null : paquete.getCodec();
+            if (codecPaquete == null) return false;
+            CodecAudio.Decodificador decodificador = decodificadores[codecPaquete.getId()];
+            if (decodificador == null) {
+                decodificador = codecPaquete.nuevoDecodificador();
+                decodificadores[codecPaquete.getId()] = decodificador;
+            }
+            decodificador.setEstado(paquete.getEstadoCodec());
+            // Lo que no cabe en una trama se ignora: un paquete no puede desbordar el buffer
+            int longitud = Math.min(paquete.getLongitud(), pcm.length / codecPaquete.maximoDecodificado(1));
+            int bytes = decodificador.decodificar(paquete.getDatos(), 0, longitud, pcm);
+            Arrays.fill(pcm, bytes, pcm.length, (byte) 0);
+            for (int i = 0; i < MUESTRAS_POR_TRAMA; i++) {
+                muestras[i] = (short) ((pcm[2 * i + 1] << 8) | (pcm[2 * i] & 0xFF));
+            }
+            hablo = true;
+            return true;
+        }
+
+        // La suma sin su propia voz, saturada a 16 bits, codificada y enviada
+        void enviarMezcla(DatagramSocket socket, int[] suma) {
+            for (int i = 0; i < MUESTRAS_POR_TRAMA; i++) {
+                int valor = hablo ? suma[i] - muestras[i] : suma[i];
+                if (valor > Short.MAX_VALUE) valor = Short.MAX_VALUE;
+                else if (valor < Short.MIN_VALUE) valor = Short.MIN_VALUE;
+                pcm[2 * i] = (byte) valor;
+                pcm[2 * i + 1] = (byte) (valor >> 8);
+            }
+            int estado = codificador.getEstado();
+            int bytes = codificador.codificar(pcm, 0, pcm.length, codificado);
+            PaqueteVoz.escribirCabeceraAudio(salida, codec, secuenciaSalida++, marcaSalida, ssrcSalida, estado);
+            System.arraycopy(codificado, 0, salida, PaqueteVoz.CABECERA, bytes);
+            marcaSalida += MUESTRAS_POR_TRAMA;
+            datagrama.setLength(PaqueteVoz.CABECERA + bytes);
+            datagrama.setSocketAddress(direccion);
+            try {
+                socket.send(datagrama);
+            } catch (IOException e) {
+                // Como una perdida en la red: la siguiente trama vuelve a intentarlo
+            }
+        }
+    }
+}
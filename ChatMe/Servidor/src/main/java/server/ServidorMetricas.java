@@ -0,0 +1,48 @@
+package server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Endpoint HTTP de solo lectura que devuelve Metricas.comoTexto() en GET /metricas, para que
+ * un recolector externo lo consulte periodicamente. Usa un unico hilo: cada consulta solo
+ * suma contadores y recorre el registro de sesiones.
+ */
+public class ServidorMetricas {
+    private final HttpServer http;
+
+    public ServidorMetricas(int puerto, Metricas metricas) throws IOException {
+        this.http = HttpServer.create(new InetSocketAddress(puerto), 0);
+        http.createContext("/metricas", intercambio -> responder(intercambio, metricas));
+        http.setExecutor(null);
+    }
+
+    public void iniciar() {
+        http.start();
+        System.out.println("Metricas en http://localhost:" + http.getAddress().getPort() + "/metricas");
+    }
+
+    public void detener() {
+        http.stop(0);
+    }
+
+    private static void responder(HttpExchange intercambio, Metricas metricas) throws IOException {
+        try (intercambio) {
+            if (!"GET".equals(intercambio.getRequestMethod())) {
+                intercambio.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] cuerpo = metricas.comoTexto().getBytes(StandardCharsets.UTF_8);
+            intercambio.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            intercambio.sendResponseHeaders(200, cuerpo.length);
+            try (OutputStream salida = intercambio.getResponseBody()) {
+                salida.write(cuerpo);
+            }
+        }
+    }
+}
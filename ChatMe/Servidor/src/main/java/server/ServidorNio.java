@@ -0,0 +1,173 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Front end alternativo a ClienteHandler: un solo hilo atiende todas las conexiones con un
+ * Selector. Las lineas se interpretan con ProcesadorComandos, asi que el enrutamiento es el
+ * mismo que en el modo bloqueante. Se activa con -Dchatme.frontend=nio.
+ */
+public class ServidorNio {
+    private final ConfiguracionServidor configuracion;
+    private final Semaphore conexionesDisponibles;
+    private final PoolBuffers poolLectura;
+    private final Queue<ConexionNio> pendientesEscritura = new ConcurrentLinkedQueue<>();
+    private final Queue<ConexionNio> pendientesCierre = new ConcurrentLinkedQueue<>();
+    private Selector selector;
+    private volatile Thread hiloSelector;
+
+    public ServidorNio(ConfiguracionServidor configuracion, Semaphore conexionesDisponibles) {
+        this.configuracion = configuracion;
+        this.conexionesDisponibles = conexionesDisponibles;
+        // Solo el hilo del selector lee, pero se retienen algunos buffers para rafagas de lecturas parciales
+        this.poolLectura = new PoolBuffers(configuracion.getTamanoBufferLectura(), 64);
+    }
+
+    public void iniciar() {
+        try (Selector sel = Selector.open(); ServerSocketChannel canalServidor = ServerSocketChannel.open()) {
+            this.selector = sel;
+            this.hiloSelector = Thread.currentThread();
+            canalServidor.bind(new InetSocketAddress(configuracion.getPuerto()), configuracion.getBacklog());
+            canalServidor.configureBlocking(false);
+            canalServidor.register(selector, SelectionKey.OP_ACCEPT);
+            System.out.println("Servidor de chat (NIO) iniciado en el puerto " + configuracion.getPuerto()
+                    + " (max " + configuracion.getMaxConexiones() + " conexiones)");
+
+            while (true) {
+                selector.select();
+                atenderEscriturasPendientes();
+                atenderCierresPendientes();
+
+                Iterator<SelectionKey> claves = selector.selectedKeys().iterator();
+                while (claves.hasNext()) {
+                    SelectionKey clave = claves.next();
+                    claves.remove();
+
+                    if (!clave.isValid()) continue;
+                    if (clave.isAcceptable()) {
+                        aceptar(canalServidor);
+                        continue;
+                    }
+
+                    ConexionNio conexion = (ConexionNio) clave.attachment();
+                    try {
+                        if (clave.isReadable()) conexion.leer(poolLectura);
+                        if (clave.isValid() && clave.isWritable()) conexion.escribir();
+                    } catch (IOException | CancelledKeyException e) {
+                        System.err.println("Error con el cliente " + conexion.getNombreUsuario() + ": " + e.getMessage());
+                        conexion.cerrar();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error en el servidor: " + e.getMessage());
+        }
+    }
+
+    // Un error al aceptar (p. ej. sin descriptores libres) afecta solo a esa conexion; el
+    // selector sigue atendiendo a las demas y reintenta en la siguiente seleccion
+    private void aceptar(ServerSocketChannel canalServidor) {
+        while (true) {
+            SocketChannel canal;
+            try {
+                canal = canalServidor.accept();
+            } catch (IOException e) {
+                System.err.println("Error al aceptar conexion: " + e.getMessage());
+                return;
+            }
+            if (canal == null) return;
+            if (!conexionesDisponibles.tryAcquire()) {
+                rechazar(canal);
+                continue;
+            }
+            try {
+                canal.configureBlocking(false);
+                canal.setOption(java.net.StandardSocketOptions.TCP_NODELAY, true);
+                canal.setOption(java.net.StandardSocketOptions.SO_KEEPALIVE, true);
+                ConexionNio conexion = new ConexionNio(canal, this, conexionesDisponibles::release);
+                conexion.setClave(canal.register(selector, SelectionKey.OP_READ, conexion));
+            } catch (IOException e) {
+                // La conexion no llego a registrarse: su cierre no devolveria el permiso
+                conexionesDisponibles.release();
+                System.err.println("Error al aceptar conexion: " + e.getMessage());
+                try {
+                    canal.close();
+                } catch (IOException ex) {
+                    // Ya no hay nada que liberar
+                }
+            }
+        }
+    }
+
+    private void rechazar(SocketChannel canal) {
+        try (canal) {
+            canal.configureBlocking(false);
+            canal.write(ByteBuffer.wrap((Server.mensajeRechazo() + "\n").getBytes(StandardCharsets.UTF_8)));
+            Bitacora.info("conexion_rechazada", "ip", canal.getRemoteAddress(), "motivo", "limite");
+        } catch (IOException e) {
+            System.err.println("Error al rechazar conexion: " + e.getMessage());
+        }
+    }
+
+    boolean esHiloSelector() {
+        return Thread.currentThread() == hiloSelector;
+    }
+
+    // Las escrituras pedidas desde otros hilos se hacen en el hilo del selector
+    void solicitarEscritura(ConexionNio conexion) {
+        if (Thread.currentThread() == hiloSelector) {
+            intentarEscribir(conexion);
+            return;
+        }
+        if (conexion.marcarEscrituraSolicitada()) {
+            pendientesEscritura.offer(conexion);
+            selector.wakeup();
+        }
+    }
+
+    private void atenderEscriturasPendientes() {
+        ConexionNio conexion;
+        while ((conexion = pendientesEscritura.poll()) != null) {
+            conexion.limpiarEscrituraSolicitada();
+            intentarEscribir(conexion);
+        }
+    }
+
+    // Los cierres pedidos desde otros hilos tambien se hacen en el hilo del selector
+    void solicitarCierre(ConexionNio conexion) {
+        if (Thread.currentThread() == hiloSelector) {
+            conexion.cerrar();
+            return;
+        }
+        pendientesCierre.offer(conexion);
+        selector.wakeup();
+    }
+
+    private void atenderCierresPendientes() {
+        ConexionNio conexion;
+        while ((conexion = pendientesCierre.poll()) != null) {
+            conexion.cerrar();
+        }
+    }
+
+    private void intentarEscribir(ConexionNio conexion) {
+        try {
+            conexion.escribir();
+        } catch (IOException | CancelledKeyException e) {
+            System.err.println("Error al escribir a " + conexion.getNombreUsuario() + ": " + e.getMessage());
+            conexion.cerrar();
+        }
+    }
+
+    ConfiguracionServidor getConfiguracion() {
+        return configuracion;
+    }
+}
@@ -0,0 +1,68 @@
+package server;
+
+import java.util.List;
+
+/**
+ * Conexion de un usuario registrado en el servidor, independiente del front end
+ * (hilo por cliente con ClienteHandler o selector NIO con ConexionNio).
+ */
+public interface Sesion {
+
+    String getNombreUsuario();
+
+    String getDireccionIP();
+
+    int getPuertoLlamada();
+
+    void setPuertoLlamada(int puertoLlamada);
+
+    // Codecs de audio que declaro el cliente con @config|codecs, en su orden de preferencia
+    List<String> getCodecs();
+
+    void setCodecs(List<String> codecs);
+
+    void enviar(Trama trama);
+
+    // Desde las tareas de la rueda de temporizadores, que no pueden esperar: con la politica
+    // BLOQUEAR una cola llena descarta la trama. false si no entro en la cola
+    default boolean enviarSinEsperar(Trama trama) {
+        enviar(trama);
+        return true;
+    }
+
+    // Ultima vez (System.currentTimeMillis) que el cliente envio algo
+    long getUltimaActividad();
+
+    // Envia el aviso y cierra la conexion cuando salga; se puede llamar desde cualquier hilo
+    void desconectar(String motivo);
+
+    // Cierra la conexion sin esperar a las tramas pendientes; desde cualquier hilo
+    void cerrarAhora();
+
+    // Como desconectar pero sin esperar lugar en la cola; si el aviso no entra se cierra ya
+    default void desconectarSinEsperar(String motivo) {
+        desconectar(motivo);
+    }
+
+    // Tramas esperando en la cola de salida, para las metricas
+    default int getProfundidadCola() {
+        return 0;
+    }
+
+    // Si puede recibir tramas de Trama.vozEnCurso, cuyo escritor espera a que llegue el audio
+    default boolean admiteAudioEnCurso() {
+        return false;
+    }
+
+    // Varias tramas seguidas, p. ej. el buzon offline al conectarse; cada front end puede juntarlas
+    default void enviarTodas(List<Trama> tramas) {
+        for (Trama trama : tramas) {
+            enviar(trama);
+        }
+    }
+
+    // Aviso del servidor al propio usuario
+    default void enviar(String mensaje) {
+        enviar(Trama.aviso(mensaje));
+    }
+}
@@ -0,0 +1,241 @@
+package server;
+
+import audio.CabeceraAudio;
+import audio.CodecAudio;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Unidad de salida hacia un cliente. Guarda los campos del mensaje y no su texto, de modo que
+ * cada conexion la codifica segun el protocolo negociado (texto con '|' o binario v2).
+ * Es inmutable y puede encolarse tal cual en varias sesiones.
+ */
+public class Trama {
+
+    public enum Tipo {
+        // Linea informativa del servidor ("Te uniste al grupo ...")
+        AVISO,
+        PRIVADO,
+        GRUPO,
+        VOZ,
+        VOZ_GRUPO,
+        LLAMADA,
+        // Latido del servidor; el cliente responde con un pong
+        PING
+    }
+
+    private final Tipo tipo;
+    private final String accion;
+    private final String grupo;
+    private final String remitente;
+    private final String texto;
+    private final byte[] audio;
+    // Audio guardado en AlmacenVoz; se envia desde el segmento mapeado en lugar de un byte[]
+    private final NotaVoz nota;
+    // Nota que aun se esta recibiendo; la trama es de un solo destinatario porque lleva su lector
+    private final FlujoVoz.Lector flujo;
+    // Trama de grupo ya codificada en un buffer del pool que comparten todos los destinatarios
+    private final BufferCompartido compartido;
+    // Linea del protocolo de texto, calculada la primera vez que una conexion v1 la necesita
+    private volatile byte[] lineaTexto;
+    // La nota decodificada a PCM, calculada la primera vez que la pide un cliente sin codecs
+    private volatile Trama pcm;
+
+    private Trama(Tipo tipo, String accion, String grupo, String remitente, String texto, byte[] audio) {
+        this(tipo, accion, grupo, remitente, texto, audio, null, null, null);
+    }
+
+    private Trama(Tipo tipo, String accion, String grupo, String remitente, String texto, byte[] audio, NotaVoz nota,
+                  FlujoVoz.Lector flujo, BufferCompartido compartido) {
+        this.tipo = tipo;
+        this.accion = accion;
+        this.grupo = grupo;
+        this.remitente = remitente;
+        this.texto = texto;
+        this.audio = audio;
+        this.nota = nota;
+        this.flujo = flujo;
+        this.compartido = compartido;
+    }
+
+    public static Trama aviso(String texto) {
+        return new Trama(Tipo.AVISO, null, null, null, texto, null);
+    }
+
+    public static Trama privado(String remitente, String texto) {
+        return new Trama(Tipo.PRIVADO, null, null, remitente, texto, null);
+    }
+
+    public static Trama grupo(String grupo, String remitente, String texto) {
+        return new Trama(Tipo.GRUPO, null, grupo, remitente, texto, null);
+    }
+
+    public static Trama voz(String remitente, byte[] audio) {
+        return new Trama(Tipo.VOZ, null, null, remitente, null, audio);
+    }
+
+    public static Trama vozGuardada(String remitente, NotaVoz nota) {
+        return new Trama(Tipo.VOZ, null, null, remitente, null, null, nota, null, null);
+    }
+
+    public static Trama vozEnCurso(String remitente, FlujoVoz.Lector flujo) {
+        return new Trama(Tipo.VOZ, null, null, remitente, null, null, null, flujo, null);
+    }
+
+    public static Trama vozGrupoEnCurso(String grupo, String remitente, FlujoVoz.Lector flujo) {
+        return new Trama(Tipo.VOZ_GRUPO, null, grupo, remitente, null, null, null, flujo, null);
+    }
+
+    public static Trama vozGrupoGuardada(String grupo, String remitente, NotaVoz nota) {
+        return new Trama(Tipo.VOZ_GRUPO, null, grupo, remitente, null, null, nota, null, null);
+    }
+
+    public static Trama vozGrupo(String grupo, String remitente, byte[] audio) {
+        return new Trama(Tipo.VOZ_GRUPO, null, grupo, remitente, null, audio);
+    }
+
+    /**
+     * La misma trama con otro lector: las notas en curso de un grupo se crean una vez y se
+     * copian por destinatario, compartiendo la linea de texto ya codificada.
+     */
+    public Trama conLector(FlujoVoz.Lector lector) {
+        Trama copia = new Trama(tipo, accion, grupo, remitente, texto, null, null, lector, null);
+        copia.lineaTexto = lineaTexto();
+        return copia;
+    }
+
+    /** La misma trama con su audio en un buffer compartido, que reemplaza al byte[]. */
+    public Trama conBufferCompartido(BufferCompartido buffer) {
+        Trama copia = new Trama(tipo, accion, grupo, remitente, texto, null, nota, null, buffer);
+        copia.lineaTexto = lineaTexto();
+        return copia;
+    }
+
+    /**
+     * La trama tal como la espera un cliente con esos codecs. Los que no declararon ninguno con
+     * @config|codecs son anteriores a CabeceraAudio y reproducen la nota como PCM de 8 kHz, asi
+     * que a ellos se les envia decodificada y sin cabecera (las notas se graban a 8 kHz). Si la
+     * trama tenia un buffer compartido retenido para esta sesion, la copia lo suelta. Las notas
+     * en curso no se convierten: esas sesiones no las reciben (Sesion.admiteAudioEnCurso).
+     */
+    public Trama paraCodecs(List<String> codecs) {
+        if (!codecs.isEmpty() || !esAudio() || flujo != null) return this;
+        Trama convertida = pcm;
+        if (convertida == null) {
+            convertida = decodificar();
+            pcm = convertida;
+        }
+        if (convertida != this) liberar();
+        return convertida;
+    }
+
+    private Trama decodificar() {
+        byte[] datos;
+        if (audio != null) {
+            datos = audio;
+        } else if (nota != null) {
+            datos = nota.leer();
+        } else {
+            ByteBuffer vista = compartido.vistaAudio();
+            datos = new byte[vista.remaining()];
+            vista.get(datos);
+        }
+        CabeceraAudio cabecera = CabeceraAudio.leer(datos);
+        if (cabecera == null) return this;
+        CodecAudio codec = cabecera.getCodec();
+        int longitud = datos.length - CabeceraAudio.LONGITUD;
+        byte[] destino = new byte[codec.maximoDecodificado(longitud)];
+        int escritos = codec.nuevoDecodificador().decodificar(datos, CabeceraAudio.LONGITUD, longitud, destino);
+        return new Trama(tipo, accion, grupo, remitente, texto, Arrays.copyOf(destino, escritos));
+    }
+
+    public static Trama llamada(String accion, String parametro) {
+        return new Trama(Tipo.LLAMADA, accion, null, null, parametro, null);
+    }
+
+    public static Trama ping() {
+        return new Trama(Tipo.PING, null, null, null, null, null);
+    }
+
+    public Tipo getTipo() {
+        return tipo;
+    }
+
+    public String getAccion() {
+        return accion;
+    }
+
+    public String getGrupo() {
+        return grupo;
+    }
+
+    public String getRemitente() {
+        return remitente;
+    }
+
+    public String getTexto() {
+        return texto;
+    }
+
+    public byte[] getAudio() {
+        return audio;
+    }
+
+    public NotaVoz getNota() {
+        return nota;
+    }
+
+    public FlujoVoz.Lector getFlujo() {
+        return flujo;
+    }
+
+    public BufferCompartido getCompartido() {
+        return compartido;
+    }
+
+    public boolean esAudio() {
+        return audio != null || nota != null || flujo != null || compartido != null;
+    }
+
+    public int getLongitudAudio() {
+        if (audio != null) return audio.length;
+        if (nota != null) return nota.getLongitud();
+        if (compartido != null) return compartido.getLongitudAudio();
+        return flujo != null ? flujo.getLongitud() : 0;
+    }
+
+    // Cada sesion que encola una trama con buffer compartido la retiene y la libera al enviarla
+    public void retener() {
+        if (compartido != null) compartido.retener();
+    }
+
+    public void liberar() {
+        if (compartido != null) compartido.liberar();
+    }
+
+    /** Linea del protocolo de texto, sin el '\n' final; en las notas de voz es el encabezado. */
+    public String comoLinea() {
+        return switch (tipo) {
+            case AVISO -> texto;
+            case PRIVADO -> "De " + remitente + ": " + texto;
+            case GRUPO -> "[Grupo " + grupo + "] " + remitente + ": " + texto;
+            case VOZ -> "@voz|" + remitente + "|" + getLongitudAudio();
+            case VOZ_GRUPO -> "@vozgrupo|" + grupo + "|" + remitente + "|" + getLongitudAudio();
+            case LLAMADA -> "@llamada|" + accion + "|" + texto;
+            case PING -> "@ping";
+        };
+    }
+
+    /** comoLinea() en UTF-8 con el '\n' incluido, compartida por todas las conexiones de texto. */
+    public byte[] lineaTexto() {
+        byte[] linea = lineaTexto;
+        if (linea == null) {
+            linea = (comoLinea() + "\n").getBytes(StandardCharsets.UTF_8);
+            lineaTexto = linea;
+        }
+        return linea;
+    }
+}
@@ -0,0 +1,55 @@
+package client;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Buffer circular de bytes sin bloqueos para un productor y un consumidor: el hilo que lee del
+ * microfono escribe y quien graba (una nota, una llamada) lee. Cada lado solo avanza su propio
+ * contador y publica con setRelease, asi que ninguno espera al otro ni toma un lock.
+ */
+final class AnilloAudio {
+    private final byte[] datos;
+    private final int mascara;
+    private final AtomicLong escritos = new AtomicLong();
+    private final AtomicLong leidos = new AtomicLong();
+
+    // capacidad se redondea a potencia de 2
+    AnilloAudio(int capacidad) {
+        int tamano = Integer.highestOneBit(Math.max(2, capacidad - 1)) << 1;
+        this.datos = new byte[tamano];
+        this.mascara = tamano - 1;
+    }
+
+    /** Solo el productor. Escribe lo que quepa y devuelve cuanto fue. */
+    int escribir(byte[] origen, int desde, int longitud) {
+        long escrito = escritos.get();
+        int cantidad = (int) Math.min(longitud, datos.length - (escrito - leidos.getAcquire()));
+        int posicion = (int) (escrito & mascara);
+        int primera = Math.min(cantidad, datos.length - posicion);
+        System.arraycopy(origen, desde, datos, posicion, primera);
+        System.arraycopy(origen, desde + primera, datos, 0, cantidad - primera);
+        escritos.setRelease(escrito + cantidad);
+        return cantidad;
+    }
+
+    /** Solo el consumidor. Lee lo que haya, hasta longitud, y devuelve cuanto fue. */
+    int leer(byte[] destino, int desde, int longitud) {
+        long leido = leidos.get();
+        int cantidad = (int) Math.min(longitud, escritos.getAcquire() - leido);
+        int posicion = (int) (leido & mascara);
+        int primera = Math.min(cantidad, datos.length - posicion);
+        System.arraycopy(datos, posicion, destino, desde, primera);
+        System.arraycopy(datos, 0, destino, desde + primera, cantidad - primera);
+        leidos.setRelease(leido + cantidad);
+        return cantidad;
+    }
+
+    int disponibles() {
+        return (int) (escritos.getAcquire() - leidos.getAcquire());
+    }
+
+    /** Solo el consumidor: descarta lo pendiente, p. ej. audio viejo al empezar a grabar. */
+    void vaciar() {
+        leidos.setRelease(escritos.getAcquire());
+    }
+}
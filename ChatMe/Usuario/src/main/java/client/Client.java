@@ -1,7 +1,11 @@
 package client;
 
+import audio.CabeceraAudio;
+import audio.CodecAudio;
+
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Scanner;
@@ -10,15 +14,29 @@ import javax.sound.sampled.*;
 public class Client {
     private String nombreUsuario;
     private Socket socket;
-    private BufferedReader entrada;
-    private PrintWriter salida;
+    // Lineas y audio del servidor se leen del mismo flujo con buffer
+    private InputStream entrada;
+    private SalidaServidor servidor;
+    private boolean protocoloBinario;
+    // Respuesta inesperada al saludo (p. ej. un rechazo) que el receptor debe procesar primero
+    private String primeraLinea;
     private Map<String, String> contactos;
-    private DataInputStream dataInput;
-    private OutputStream outputStream;
-    private boolean enLlamada = false;
+    private volatile boolean enLlamada = false;
     private ServerSocket servidorLlamada;
     private Socket socketLlamada;
     private Thread hiloLlamadaEntrante;
+    // Llamadas con clientes que declararon codecs: UDP en el mismo numero de puerto que servidorLlamada
+    private DatagramSocket socketVoz;
+    private volatile LlamadaUdp llamadaUdp;
+    // Grupo de la conferencia en curso (la llamadaUdp va entonces al mezclador del servidor)
+    private volatile String grupoConferencia;
+    // Usuario con quien es la llamada en curso, para pedir el relevo si no hay conexion directa
+    private volatile String interlocutor;
+    private final long esperaDirectaMs = Long.getLong("chatme.llamada.esperaDirectaMs", 2000);
+    // Llamada entrante sin contestar; el servidor la cancela si vence el timbre
+    private volatile String solicitudPendiente;
+    // Microfono y altavoz abiertos una vez para notas y llamadas
+    private final MotorAudio motorAudio = new MotorAudio();
 
     public Client(String nombreUsuario, String direccionServidor, int puerto) {
         this.nombreUsuario = nombreUsuario;
@@ -26,12 +44,15 @@ public class Client {
 
         try {
             socket = new Socket(direccionServidor, puerto);
-            entrada = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            salida = new PrintWriter(socket.getOutputStream(), true);
-            this.dataInput = new DataInputStream(socket.getInputStream());
-            this.outputStream = socket.getOutputStream();
+            entrada = new BufferedInputStream(socket.getInputStream());
             System.out.println("Conectado al servidor en " + direccionServidor + ":" + puerto);
-            salida.println(nombreUsuario);
+            negociarProtocolo();
+            // Sin respuesta del servidor el keepalive de TCP termina detectando la caida
+            socket.setKeepAlive(true);
+            // Pedir latidos: el servidor nos envia pings cuando no le llega nada y corta si no respondemos
+            enviarAlServidor(s -> s.configuracion("latido", "1"));
+            // Codecs de audio que sabemos decodificar; el servidor elige con ellos el de cada llamada
+            enviarAlServidor(s -> s.configuracion("codecs", String.join(",", MotorAudio.codecsPreferidos())));
             // Iniciar servidor para llamadas entrantes
             iniciarServidorLlamadas();
             System.out.println(nombreUsuario);
@@ -49,14 +70,79 @@ public class Client {
         }
     }
 
+    // Pide el protocolo binario v2 (-Dchatme.protocolo=1 para forzar el de texto). Un servidor
+    // que no responde al saludo a tiempo se trata como servidor de texto.
+    private void negociarProtocolo() throws IOException {
+        OutputStream os = socket.getOutputStream();
+        int version = Integer.getInteger("chatme.protocolo", ProtocoloBinario.VERSION);
+        if (version < ProtocoloBinario.VERSION) {
+            os.write((nombreUsuario + "\n").getBytes(StandardCharsets.UTF_8));
+            os.flush();
+            servidor = new SalidaTexto(os);
+            return;
+        }
+
+        os.write((ProtocoloBinario.SALUDO + ProtocoloBinario.VERSION + "|" + nombreUsuario + "\n")
+                .getBytes(StandardCharsets.UTF_8));
+        os.flush();
+
+        String respuesta;
+        socket.setSoTimeout(3000);
+        try {
+            respuesta = leerLinea();
+        } catch (SocketTimeoutException e) {
+            respuesta = null;
+        } finally {
+            socket.setSoTimeout(0);
+        }
+
+        if ((ProtocoloBinario.SALUDO + ProtocoloBinario.VERSION).equals(respuesta)) {
+            protocoloBinario = true;
+            servidor = new ProtocoloBinario.Escritor(os);
+            System.out.println("Usando protocolo binario v2");
+        } else {
+            servidor = new SalidaTexto(os);
+            if (respuesta != null && !respuesta.startsWith(ProtocoloBinario.SALUDO)) {
+                primeraLinea = respuesta;
+            }
+        }
+    }
+
+    // Lee una linea UTF-8 del servidor; devuelve null al cerrarse la conexion
+    private String leerLinea() throws IOException {
+        ByteArrayOutputStream linea = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = entrada.read()) != '\n') {
+            if (b == -1) {
+                return linea.size() == 0 ? null : linea.toString(StandardCharsets.UTF_8);
+            }
+            linea.write(b);
+        }
+        String texto = linea.toString(StandardCharsets.UTF_8);
+        return texto.endsWith("\r") ? texto.substring(0, texto.length() - 1) : texto;
+    }
+
+    // Los comandos al servidor no deben tumbar el menu si la conexion se cae
+    private void enviarAlServidor(ComandoServidor comando) {
+        try {
+            comando.enviar(servidor);
+        } catch (IOException e) {
+            System.err.println("Error al enviar al servidor: " + e.getMessage());
+        }
+    }
+
+    private interface ComandoServidor {
+        void enviar(SalidaServidor servidor) throws IOException;
+    }
+
     // Iniciar servidor para recibir llamadas
     private void iniciarServidorLlamadas() {
         try {
-            servidorLlamada = new ServerSocket(0); // Puerto automático
+            abrirPuertosLlamada();
             int puertoLlamada = servidorLlamada.getLocalPort();
             
             // Enviar información de llamada al servidor
-            salida.println("@config|puerto_llamada|" + puertoLlamada);
+            enviarAlServidor(s -> s.configuracion("puerto_llamada", String.valueOf(puertoLlamada)));
             
             hiloLlamadaEntrante = new Thread(() -> {
                 while (!servidorLlamada.isClosed()) {
@@ -77,6 +163,21 @@ public class Client {
         }
     }
 
+    // TCP para los clientes antiguos y UDP para los nuevos comparten el numero de puerto que se
+    // anuncia al servidor; si el puerto UDP esta ocupado se prueba con otro
+    private void abrirPuertosLlamada() throws IOException {
+        for (int intento = 0; ; intento++) {
+            servidorLlamada = new ServerSocket(0); // Puerto automático
+            try {
+                socketVoz = new DatagramSocket(servidorLlamada.getLocalPort());
+                return;
+            } catch (SocketException e) {
+                servidorLlamada.close();
+                if (intento == 9) throw e;
+            }
+        }
+    }
+
     // Manejar llamada entrante
     private void manejarLlamadaEntrante(Socket socketLlamada) {
         this.socketLlamada = socketLlamada;
@@ -102,11 +203,12 @@ public class Client {
             System.out.println("4. Grupos");
             System.out.println("5. Enviar nota de voz");
             System.out.println("6. Llamadas de voz");
-            System.out.println("7. Salir");
+            System.out.println("7. Ver historial");
+            System.out.println("8. Salir");
             System.out.print("Opcion: ");
             
             try {
-                String input = sc.nextLine().trim();
+                String input = leerLinea(sc).trim();
                 if (input.isEmpty()) {
                     System.out.println("Por favor, ingresa un numero de opcion.");
                     continue;
@@ -121,11 +223,12 @@ public class Client {
                     case 4 -> menuGrupos(sc);
                     case 5 -> menuVoz(sc);
                     case 6 -> menuLlamadas(sc);
-                    case 7 -> { cerrarConexion(); return; }
+                    case 7 -> verHistorial(sc);
+                    case 8 -> { cerrarConexion(); return; }
                     default -> System.out.println("Opcion invalida.");
                 }
             } catch (NumberFormatException e) {
-                System.out.println("Error: Por favor ingresa un numero valido (1-7).");
+                System.out.println("Error: Por favor ingresa un numero valido (1-8).");
             }
         }
     }
@@ -136,11 +239,12 @@ public class Client {
             System.out.println("\n=== Llamadas de Voz ===");
             System.out.println("1. Llamar a usuario");
             System.out.println("2. Colgar llamada actual");
-            System.out.println("3. Volver al menu principal");
+            System.out.println("3. Unirse a la conferencia de un grupo");
+            System.out.println("4. Volver al menu principal");
             System.out.print("Opcion: ");
             
             try {
-                String input = sc.nextLine().trim();
+                String input = leerLinea(sc).trim();
                 if (input.isEmpty()) {
                     System.out.println("Por favor, ingresa un numero de opcion.");
                     continue;
@@ -151,11 +255,12 @@ public class Client {
                 switch (opcion) {
                     case 1 -> iniciarLlamada(sc);
                     case 2 -> colgarLlamada();
-                    case 3 -> { return; }
+                    case 3 -> unirseConferencia(sc);
+                    case 4 -> { return; }
                     default -> System.out.println("Opcion invalida.");
                 }
             } catch (NumberFormatException e) {
-                System.out.println("Error: Por favor ingresa un numero valido (1-3).");
+                System.out.println("Error: Por favor ingresa un numero valido (1-4).");
             }
         }
     }
@@ -168,21 +273,58 @@ public class Client {
         }
 
         System.out.print("Usuario a llamar: ");
-        String destino = sc.nextLine();
+        String destino = leerLinea(sc);
+        interlocutor = destino;
 
         // Solicitar información de llamada al servidor
-        salida.println("@llamada|solicitar|" + destino);
+        enviarAlServidor(s -> s.comandoLlamada("solicitar", destino));
         System.out.println("Solicitando llamada a " + destino + "...");
     }
 
+    // El servidor responde con el puerto de su mezclador, el SSRC y el codec de la mezcla
+    private void unirseConferencia(Scanner sc) {
+        if (enLlamada) {
+            System.out.println("Ya estas en una llamada. Cuelga primero.");
+            return;
+        }
+
+        System.out.print("Grupo: ");
+        String grupo = leerLinea(sc).trim();
+        grupoConferencia = grupo;
+        enviarAlServidor(s -> s.comandoLlamada("conferencia", grupo));
+        System.out.println("Uniendose a la conferencia de " + grupo + "...");
+    }
+
     // Colgar llamada actual
     private void colgarLlamada() {
+        String otro = interlocutor;
         if (!enLlamada) {
-            System.out.println("No hay llamada activa.");
+            if (otro == null) {
+                System.out.println("No hay llamada activa.");
+                return;
+            }
+            // Aun sonando: el servidor le avisa al otro que se cancelo
+            interlocutor = null;
+            enviarAlServidor(s -> s.comandoLlamada("colgar", otro));
+            System.out.println("Llamada a " + otro + " cancelada.");
             return;
         }
 
         try {
+            LlamadaUdp llamada = llamadaUdp;
+            if (llamada != null) {
+                llamada.colgar();
+                llamadaUdp = null;
+            }
+            String grupo = grupoConferencia;
+            if (grupo != null) {
+                // El FIN por UDP puede perderse; por TCP la salida llega seguro
+                grupoConferencia = null;
+                enviarAlServidor(s -> s.comandoLlamada("salir_conferencia", grupo));
+            } else if (otro != null) {
+                interlocutor = null;
+                enviarAlServidor(s -> s.comandoLlamada("colgar", otro));
+            }
             if (socketLlamada != null && !socketLlamada.isClosed()) {
                 socketLlamada.close();
             }
@@ -193,8 +335,13 @@ public class Client {
         }
     }
 
-    // Conectar llamada saliente
-    private void conectarLlamada(String ipDestino, int puertoDestino) {
+    // Conectar llamada saliente. codec es el que eligio el servidor: si lo hay, el otro extremo
+    // es un cliente nuevo y la llamada va por UDP; si no, por TCP con PCM sin comprimir
+    private void conectarLlamada(String ipDestino, int puertoDestino, CodecAudio codec) {
+        if (codec != null) {
+            conectarLlamadaUdp(ipDestino, puertoDestino, codec);
+            return;
+        }
         try {
             socketLlamada = new Socket(ipDestino, puertoDestino);
             enLlamada = true;
@@ -210,7 +357,105 @@ public class Client {
         }
     }
 
-    // Iniciar transmisión de audio
+    private void conectarLlamadaUdp(String ipDestino, int puertoDestino, CodecAudio codec) {
+        LlamadaUdp llamada = new LlamadaUdp(socketVoz, new InetSocketAddress(ipDestino, puertoDestino), codec,
+                MotorAudio.FRECUENCIA, this::llamadaTerminadaPorElOtro);
+        String otro = interlocutor;
+        if (otro != null) {
+            // Detras de NAT el audio directo no llega: se pide al servidor que lo reenvie
+            llamada.alNoConectar(esperaDirectaMs, () -> {
+                System.out.println("\nSin audio directo de " + otro + ", pasando la llamada por el servidor...");
+                enviarAlServidor(s -> s.comandoLlamada("relevo", otro));
+            });
+        }
+        iniciarLlamadaUdp(llamada, "llamada con " + ipDestino + " (UDP, " + codec.getNombre() + ")");
+    }
+
+    // Una conferencia es una llamada UDP con el mezclador, que esta en la IP del servidor de chat
+    private void conectarConferencia(int puertoMezclador, int ssrc, CodecAudio codec) {
+        String grupo = grupoConferencia;
+        if (enLlamada || grupo == null) return;
+        LlamadaUdp llamada = new LlamadaUdp(socketVoz, new InetSocketAddress(socket.getInetAddress(), puertoMezclador),
+                codec, MotorAudio.FRECUENCIA, ssrc, this::llamadaTerminadaPorElOtro);
+        iniciarLlamadaUdp(llamada, "conferencia de " + grupo + " (UDP, " + codec.getNombre() + ")");
+    }
+
+    private void iniciarLlamadaUdp(LlamadaUdp llamada, String descripcion) {
+        try {
+            llamadaUdp = llamada;
+            enLlamada = true;
+            llamada.iniciar();
+            System.out.println("Conectado a " + descripcion);
+
+            new Thread(() -> transmitirUdp(llamada)).start();
+            motorAudio.reproducirLlamada(llamada);
+        } catch (IOException e) {
+            enLlamada = false;
+            llamadaUdp = null;
+            System.err.println("Error al conectar llamada: " + e.getMessage());
+        }
+    }
+
+    // El otro extremo envio FIN o dejo de enviar: se avisa al servidor por si no lo hizo el otro
+    private void llamadaTerminadaPorElOtro() {
+        enLlamada = false;
+        llamadaUdp = null;
+        String grupo = grupoConferencia;
+        String otro = interlocutor;
+        grupoConferencia = null;
+        interlocutor = null;
+        if (grupo != null) {
+            enviarAlServidor(s -> s.comandoLlamada("salir_conferencia", grupo));
+        } else if (otro != null) {
+            enviarAlServidor(s -> s.comandoLlamada("colgar", otro));
+        }
+        System.out.println("\nLlamada terminada.");
+    }
+
+    // Toda la consola se lee aqui: con una llamada entrante sin responder, la linea es la respuesta
+    // y se vuelve a esperar la que pedia el menu. Si la llamada se cancelo antes, la linea es del menu
+    private String leerLinea(Scanner sc) {
+        while (true) {
+            String linea = sc.nextLine();
+            String solicitante = solicitudPendiente;
+            if (solicitante == null) return linea;
+            solicitudPendiente = null;
+            responderSolicitud(solicitante, linea.trim().toLowerCase());
+        }
+    }
+
+    private void responderSolicitud(String solicitante, String respuesta) {
+        if (respuesta.equals("s") || respuesta.equals("si")) {
+            interlocutor = solicitante;
+            enviarAlServidor(s -> s.comandoLlamada("aceptar", solicitante));
+            System.out.println("Llamada aceptada. Conectando...");
+        } else {
+            enviarAlServidor(s -> s.comandoLlamada("rechazar", solicitante));
+            System.out.println("Llamada rechazada.");
+        }
+    }
+
+    // Envia cada trama (20 ms) en cuanto el motor de audio la tiene completa
+    private void transmitirUdp(LlamadaUdp llamada) {
+        if (!motorAudio.empezarCaptura()) return;
+        try {
+            byte[] trama = new byte[llamada.getBytesPorTrama()];
+            System.out.println("Transmitiendo audio... (Presiona Enter en el menu para colgar)");
+            while (llamada.isActiva()) {
+                int leidos = motorAudio.leerCaptura(trama, 0, trama.length);
+                if (leidos == trama.length) llamada.enviar(trama, leidos);
+            }
+        } catch (IOException e) {
+            if (llamada.isActiva()) {
+                System.err.println("Error en transmisión de audio: " + e.getMessage());
+            }
+        } finally {
+            motorAudio.terminarCaptura();
+        }
+    }
+
+    // Iniciar transmisión de audio. Solo la usan las llamadas TCP con clientes sin codecs: PCM
+    // de 44.1 kHz sin cabecera, como lo esperan ellos
     private void iniciarTransmisionAudio(Socket socket) {
         try {
             AudioFormat format = new AudioFormat(44100, 16, 1, true, true);
@@ -245,7 +490,7 @@ public class Client {
         }
     }
 
-    // Iniciar recepción de audio
+    // Iniciar recepción de audio de una llamada TCP: el otro extremo envia PCM de 44.1 kHz sin cabecera
     private void iniciarRecepcionAudio(Socket socket) {
         try {
             AudioFormat format = new AudioFormat(44100, 16, 1, true, true);
@@ -291,11 +536,12 @@ public class Client {
             System.out.println("3. Enviar mensaje a grupo");
             System.out.println("4. Enviar nota de voz a grupo");
             System.out.println("5. Salir de grupo");
-            System.out.println("6. Volver al menu principal");
+            System.out.println("6. Ver mis grupos");
+            System.out.println("7. Volver al menu principal");
             System.out.print("Opcion: ");
             
             try {
-                String input = sc.nextLine().trim();
+                String input = leerLinea(sc).trim();
                 if (input.isEmpty()) {
                     System.out.println("Por favor, ingresa un numero de opcion.");
                     continue;
@@ -309,46 +555,47 @@ public class Client {
                     case 3 -> enviarMensajeGrupo(sc);
                     case 4 -> enviarMensajeVoz(sc, true);
                     case 5 -> salirGrupo(sc);
-                    case 6 -> { return; }
+                    case 6 -> enviarAlServidor(s -> s.comandoGrupo("listar", ""));
+                    case 7 -> { return; }
                     default -> System.out.println("Opcion invalida.");
                 }
             } catch (NumberFormatException e) {
-                System.out.println("Error: Por favor ingresa un numero valido (1-6).");
+                System.out.println("Error: Por favor ingresa un numero valido (1-7).");
             }
         }
     }
 
     private void crearGrupo(Scanner sc) {
         System.out.print("Nombre del grupo a crear: ");
-        String grupo = sc.nextLine();
-        salida.println("@grupo|crear|" + grupo);
+        String grupo = leerLinea(sc);
+        enviarAlServidor(s -> s.comandoGrupo("crear", grupo));
     }
 
     private void unirseGrupo(Scanner sc) {
         System.out.print("Nombre del grupo al que deseas unirte: ");
-        String grupo = sc.nextLine();
-        salida.println("@grupo|unir|" + grupo);
+        String grupo = leerLinea(sc);
+        enviarAlServidor(s -> s.comandoGrupo("unir", grupo));
     }
 
     private void enviarMensajeGrupo(Scanner sc) {
         System.out.print("Nombre del grupo: ");
-        String grupo = sc.nextLine();
+        String grupo = leerLinea(sc);
         System.out.print("Mensaje: ");
-        String mensaje = sc.nextLine();
-        salida.println("@grupo|enviar|" + grupo + "|" + mensaje);
+        String mensaje = leerLinea(sc);
+        enviarAlServidor(s -> s.mensajeGrupo(grupo, mensaje));
     }
 
     private void salirGrupo(Scanner sc) {
         System.out.print("Nombre del grupo del que deseas salir: ");
-        String grupo = sc.nextLine();
-        salida.println("@grupo|salir|" + grupo);
+        String grupo = leerLinea(sc);
+        enviarAlServidor(s -> s.comandoGrupo("salir", grupo));
     }
 
     private void agregarContacto(Scanner sc) {
         System.out.print("Nombre del contacto: ");
-        String nombre = sc.nextLine();
+        String nombre = leerLinea(sc);
         System.out.print("Direccion IP del contacto: ");
-        String ip = sc.nextLine();
+        String ip = leerLinea(sc);
         contactos.put(nombre, ip);
         System.out.println("Contacto agregado correctamente.");
     }
@@ -364,22 +611,53 @@ public class Client {
 
     private void enviarMensaje(Scanner sc) {
         System.out.print("A quien deseas enviar el mensaje? (nombre de usuario): ");
-        String destino = sc.nextLine();
+        String destino = leerLinea(sc);
 
         System.out.print("Mensaje: ");
-        String mensaje = sc.nextLine();
+        String mensaje = leerLinea(sc);
+
+        enviarAlServidor(s -> s.mensajePrivado(destino, mensaje));
+    }
+
+    private void verHistorial(Scanner sc) {
+        System.out.println("\n=== Historial ===");
+        System.out.println("1. Chat privado");
+        System.out.println("2. Grupo");
+        System.out.print("Opcion: ");
+
+        String tipo = switch (leerLinea(sc).trim()) {
+            case "1" -> "privado";
+            case "2" -> "grupo";
+            default -> null;
+        };
+        if (tipo == null) {
+            System.out.println("Opcion invalida.");
+            return;
+        }
 
-        salida.println(destino + "|" + mensaje);
+        System.out.print(tipo.equals("grupo") ? "Nombre del grupo: " : "Nombre del usuario: ");
+        String nombre = leerLinea(sc).trim();
+        System.out.print("Cuantos mensajes? (maximo 100): ");
+        try {
+            int cantidad = Integer.parseInt(leerLinea(sc).trim());
+            System.out.print("De los ultimos cuantos minutos? (vacio = los mas recientes): ");
+            String entradaMinutos = leerLinea(sc).trim();
+            int minutos = entradaMinutos.isEmpty() ? 0 : Integer.parseInt(entradaMinutos);
+            enviarAlServidor(s -> s.historial(tipo, nombre, cantidad, minutos));
+        } catch (NumberFormatException e) {
+            System.out.println("Error: Por favor ingresa un numero valido.");
+        }
     }
 
     private void menuVoz(Scanner sc) {
         System.out.println("\n=== Enviar Nota de Voz ===");
         System.out.println("1. Enviar a un usuario");
         System.out.println("2. Enviar a un grupo");
+        System.out.println("3. Reproducir nota guardada");
         System.out.print("Opcion: ");
         
         try {
-            String input = sc.nextLine().trim();
+            String input = leerLinea(sc).trim();
             if (input.isEmpty()) {
                 System.out.println("Opcion invalida. Volviendo al menu principal.");
                 return;
@@ -390,26 +668,31 @@ public class Client {
             switch (opcion) {
                 case 1 -> enviarMensajeVoz(sc, false);
                 case 2 -> enviarMensajeVoz(sc, true);
+                case 3 -> {
+                    System.out.print("Id de la nota (aparece en el historial): ");
+                    String id = leerLinea(sc).trim();
+                    enviarAlServidor(s -> s.nota(id));
+                }
                 default -> System.out.println("Opcion invalida.");
             }
         } catch (NumberFormatException e) {
-            System.out.println("Error: Por favor ingresa 1 o 2.");
+            System.out.println("Error: Por favor ingresa 1, 2 o 3.");
         }
     }
 
     private void enviarMensajeVoz(Scanner sc, boolean esGrupo) {
         try {
             System.out.print("Duracion de la nota de voz (segundos, maximo 30): ");
-            int duracion = Integer.parseInt(sc.nextLine());
+            int duracion = Integer.parseInt(leerLinea(sc));
             duracion = Math.min(duracion, 30);
 
             String destino;
             if (esGrupo) {
                 System.out.print("Nombre del grupo: ");
-                destino = sc.nextLine();
+                destino = leerLinea(sc);
             } else {
                 System.out.print("A quien deseas enviar la nota de voz? (nombre de usuario): ");
-                destino = sc.nextLine();
+                destino = leerLinea(sc);
             }
 
             byte[] audioData = grabarAudio(duracion);
@@ -418,16 +701,8 @@ public class Client {
                 return;
             }
 
-            if (esGrupo) {
-                salida.println("@vozgrupo|" + destino + "|" + audioData.length);
-            } else {
-                salida.println("@voz|" + destino + "|" + audioData.length);
-            }
-            
-            Thread.sleep(50);
-            
-            outputStream.write(audioData);
-            outputStream.flush();
+            // Encabezado y audio salen en una sola escritura, sin pausas entre ellos
+            servidor.notaVoz(destino, esGrupo, audioData);
             
             System.out.println("Nota de voz enviada correctamente a: " + destino);
             
@@ -436,132 +711,43 @@ public class Client {
         }
     }
 
+    // La nota se codifica mientras se graba, en un buffer del tamano justo para la duracion
     private byte[] grabarAudio(int duracionSegundos) {
-        TargetDataLine microphone = null;
-        try {
-            AudioFormat format = new AudioFormat(8000.0f, 16, 1, true, false);
-            DataLine.Info info = new DataLine.Info(TargetDataLine.class, format);
-            
-            if (!AudioSystem.isLineSupported(info)) {
-                format = new AudioFormat(16000.0f, 16, 1, true, false);
-                info = new DataLine.Info(TargetDataLine.class, format);
-            }
-            
-            microphone = (TargetDataLine) AudioSystem.getLine(info);
-            microphone.open(format);
-            microphone.start();
-            
-            System.out.println("Grabando... (durante " + duracionSegundos + " segundos)");
-            
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            byte[] buffer = new byte[4096];
-            
-            long startTime = System.currentTimeMillis();
-            long endTime = startTime + (duracionSegundos * 1000);
-            
-            Thread progressThread = new Thread(() -> {
-                try {
-                    int progress = 0;
-                    while (progress < 100) {
-                        long currentTime = System.currentTimeMillis();
-                        progress = (int) ((currentTime - startTime) * 100 / (duracionSegundos * 1000));
-                        progress = Math.min(100, progress);
-                        
-                        int bars = progress / 5;
-                        String bar = "[" + "=".repeat(bars) + " ".repeat(20 - bars) + "]";
-                        System.out.print("\rProgreso: " + bar + " " + progress + "%");
-                        
-                        Thread.sleep(100);
-                    }
-                    System.out.println("\rProgreso: [====================] 100% Listo");
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                }
-            });
-            progressThread.start();
-            
-            while (System.currentTimeMillis() < endTime) {
-                int bytesRead = microphone.read(buffer, 0, Math.min(buffer.length, microphone.available()));
-                if (bytesRead > 0) {
-                    baos.write(buffer, 0, bytesRead);
-                }
-            }
-            
-            microphone.stop();
-            microphone.close();
-            progressThread.interrupt();
-            
-            byte[] audioData = baos.toByteArray();
-            System.out.println("Audio grabado: " + audioData.length + " bytes");
-            
-            return audioData;
-            
-        } catch (Exception e) {
-            System.err.println("Error al grabar audio: " + e.getMessage());
+        CodecAudio codec = CodecAudio.porNombre(MotorAudio.codecsPreferidos().get(0));
+        System.out.println("Grabando... (durante " + duracionSegundos + " segundos)");
+        byte[] audioData = motorAudio.grabarNota(duracionSegundos, codec, progreso -> {
+            int bars = progreso / 5;
+            System.out.print("\rProgreso: [" + "=".repeat(bars) + " ".repeat(20 - bars) + "] " + progreso + "%");
+            if (progreso == 100) System.out.println(" Listo");
+        });
+        if (audioData.length == CabeceraAudio.LONGITUD) {
+            // El detector de voz recorto todo: no se envia una nota muda
+            System.out.println("No se detecto voz en la grabacion.");
             return new byte[0];
-        } finally {
-            if (microphone != null) {
-                microphone.close();
-            }
         }
-    }
-
-    private void recibirYReproducirAudio(byte[] audioData) {
-        try {
-            AudioFormat format = new AudioFormat(8000.0f, 16, 1, true, false);
-            
-            DataLine.Info info = new DataLine.Info(SourceDataLine.class, format);
-            SourceDataLine line = (SourceDataLine) AudioSystem.getLine(info);
-            line.open(format);
-            line.start();
-            
-            int bufferSize = 4096;
-            int offset = 0;
-            
-            while (offset < audioData.length) {
-                int remaining = audioData.length - offset;
-                int chunkSize = Math.min(bufferSize, remaining);
-                line.write(audioData, offset, chunkSize);
-                offset += chunkSize;
-            }
-            
-            line.drain();
-            line.close();
-            
-            System.out.println("Audio reproducido exitosamente");
-            
-        } catch (Exception e) {
-            System.err.println("Error al reproducir el audio: " + e.getMessage());
-            
-            try {
-                AudioInputStream ais = AudioSystem.getAudioInputStream(
-                    new ByteArrayInputStream(audioData));
-                Clip clip = AudioSystem.getClip();
-                clip.open(ais);
-                clip.start();
-                
-                while (clip.isRunning()) {
-                    Thread.sleep(100);
-                }
-                clip.close();
-                
-                System.out.println("Audio reproducido (fallback)");
-            } catch (Exception ex) {
-                System.err.println("Error también en fallback: " + ex.getMessage());
-            }
+        if (audioData.length > 0) {
+            System.out.println("Audio grabado: " + audioData.length + " bytes (" + codec.getNombre() + ")");
         }
+        return audioData;
     }
 
     private void cerrarConexion() {
         try {
             enLlamada = false;
+            LlamadaUdp llamada = llamadaUdp;
+            if (llamada != null) {
+                llamada.colgar();
+            }
             if (servidorLlamada != null) {
                 servidorLlamada.close();
             }
+            if (socketVoz != null) {
+                socketVoz.close();
+            }
             if (socketLlamada != null) {
                 socketLlamada.close();
             }
-            salida.println("exit");
+            servidor.salir();
             socket.close();
             System.out.println("Conexion cerrada.");
             System.exit(0);
@@ -570,107 +756,166 @@ public class Client {
         }
     }
 
-    private class Receptor implements Runnable {
+    private class Receptor implements Runnable, ManejadorMensajes {
         @Override
         public void run() {
             try {
-                String mensaje;
-                while ((mensaje = entrada.readLine()) != null) {
-                    if (mensaje.startsWith("@voz|")) {
-                        manejarAudioRecibido(mensaje, false);
-                    } else if (mensaje.startsWith("@vozgrupo|")) {
-                        manejarAudioRecibido(mensaje, true);
-                    } else if (mensaje.startsWith("@llamada|")) {
-                        manejarComandoLlamada(mensaje);
-                    } else {
-                        System.out.println("\n" + mensaje);
+                if (protocoloBinario) {
+                    ProtocoloBinario.Lector lector = new ProtocoloBinario.Lector(entrada);
+                    while (lector.leerSiguiente(this)) {
+                        // cada trama se entrega al manejador dentro del lector
                     }
+                    return;
+                }
+
+                if (primeraLinea != null) {
+                    procesarLinea(primeraLinea);
+                }
+                String mensaje;
+                while ((mensaje = leerLinea()) != null) {
+                    procesarLinea(mensaje);
                 }
             } catch (IOException e) {
                 System.err.println("Conexion terminada: " + e.getMessage());
             }
         }
-        
-        private void manejarAudioRecibido(String metadata, boolean esGrupo) {
-            try {
-                String[] partes = metadata.split("\\|");
-                if (partes.length < (esGrupo ? 4 : 3)) {
-                    System.err.println("Mensaje de audio mal formado: " + metadata);
-                    return;
-                }
-                String remitente = esGrupo ? partes[2] : partes[1];
-                String grupo = esGrupo ? partes[1] : null;
-                int tamanoAudio = Integer.parseInt(partes[esGrupo ? 3 : 2]);
 
-                String contexto = esGrupo ? "en grupo " + grupo + " de " : "de ";
-                System.out.println("\nRecibiendo nota de voz " + contexto + remitente + "...");
+        // Protocolo de texto
+        private void procesarLinea(String mensaje) throws IOException {
+            if (mensaje.startsWith("@voz|")) {
+                manejarAudioRecibido(mensaje, false);
+            } else if (mensaje.startsWith("@vozgrupo|")) {
+                manejarAudioRecibido(mensaje, true);
+            } else if (mensaje.startsWith("@llamada|")) {
+                manejarComandoLlamada(mensaje);
+            } else if (mensaje.equals("@ping")) {
+                ping();
+            } else if (mensaje.startsWith("@servidor|rechazado|")) {
+                System.out.println("\nConexion rechazada por el servidor: " + mensaje.substring(20));
+            } else {
+                mostrar(mensaje);
+            }
+        }
 
-                byte[] audioData = new byte[tamanoAudio];
-                int totalLeido = 0;
-                
-                while (totalLeido < tamanoAudio) {
-                    int bytesLeidos = dataInput.read(audioData, totalLeido, tamanoAudio - totalLeido);
-                    if (bytesLeidos == -1) {
-                        throw new EOFException("Conexion interrumpida durante recepcion de audio");
-                    }
-                    totalLeido += bytesLeidos;
-                }
+        private void manejarAudioRecibido(String metadata, boolean esGrupo) throws IOException {
+            String[] partes = metadata.split("\\|");
+            if (partes.length < (esGrupo ? 4 : 3)) {
+                System.err.println("Mensaje de audio mal formado: " + metadata);
+                return;
+            }
+            String remitente = esGrupo ? partes[2] : partes[1];
+            String grupo = esGrupo ? partes[1] : null;
+            int tamanoAudio;
+            try {
+                tamanoAudio = Integer.parseInt(partes[esGrupo ? 3 : 2]);
+            } catch (NumberFormatException e) {
+                System.err.println("Mensaje de audio mal formado: " + metadata);
+                return;
+            }
 
-                System.out.println("Audio recibido completamente: " + totalLeido + " bytes");
-                
-                new Thread(() -> {
-                    try {
-                        Thread.sleep(100);
-                        System.out.println("Reproduciendo nota de voz...");
-                        recibirYReproducirAudio(audioData);
-                    } catch (Exception e) {
-                        System.err.println("Error en hilo de reproducción: " + e.getMessage());
-                    }
-                }).start();
-                
-            } catch (Exception e) {
-                System.err.println("Error al recibir audio: " + e.getMessage());
+            byte[] audioData = entrada.readNBytes(tamanoAudio);
+            if (audioData.length < tamanoAudio) {
+                throw new EOFException("Conexion interrumpida durante recepcion de audio");
             }
+            notaVoz(grupo, remitente, audioData);
         }
-        
+
+        @Override
+        public void mostrar(String texto) {
+            System.out.println("\n" + texto);
+        }
+
+        @Override
+        public void notaVoz(String grupo, String remitente, byte[] audioData) {
+            String contexto = grupo != null ? "en grupo " + grupo + " de " : "de ";
+            System.out.println("\nNota de voz recibida " + contexto + remitente + ": " + audioData.length + " bytes");
+
+            // Se reproduce en cuanto terminen las notas anteriores, sin abrir otra linea de audio
+            motorAudio.reproducirNota(audioData);
+        }
+
+        @Override
+        public void ping() {
+            enviarAlServidor(SalidaServidor::pong);
+        }
+
         private void manejarComandoLlamada(String comando) {
             String[] partes = comando.split("\\|");
             if (partes.length < 3) return;
-            
-            String accion = partes[1];
-            String parametro = partes[2];
-            
+            llamada(partes[1], partes[2]);
+        }
+
+        @Override
+        public void llamada(String accion, String parametro) {
             switch (accion) {
                 case "solicitud" -> {
                     System.out.println("\nLlamada entrante de: " + parametro);
                     System.out.print("¿Aceptar la llamada? (s/n): ");
-                    
-                    new Thread(() -> {
-                        try {
-                            Scanner sc = new Scanner(System.in);
-                            String respuesta = sc.nextLine().trim().toLowerCase();
-                            
-                            if (respuesta.equals("s") || respuesta.equals("si")) {
-                                salida.println("@llamada|aceptar|" + parametro);
-                                System.out.println("Llamada aceptada. Conectando...");
-                            } else {
-                                salida.println("@llamada|rechazar|" + parametro);
-                                System.out.println("Llamada rechazada.");
-                            }
-                        } catch (Exception e) {
-                            System.err.println("Error al procesar llamada: " + e.getMessage());
-                        }
-                    }).start();
+                    // La respuesta la toma la proxima lectura de la consola del menu
+                    solicitudPendiente = parametro;
+                }
+                case "cancelada" -> {
+                    // Vencio el timbre, el otro colgo antes de que contestaras o la respuesta llego tarde
+                    if (parametro.equals(solicitudPendiente)) solicitudPendiente = null;
+                    if (parametro.equals(interlocutor) && !enLlamada) interlocutor = null;
+                    System.out.println("\nLa llamada de " + parametro + " ya no esta disponible.");
+                }
+                case "colgada" -> {
+                    if (enLlamada && grupoConferencia == null && parametro.equals(interlocutor)) {
+                        interlocutor = null;
+                        colgarLlamada();
+                    }
+                    System.out.println(parametro + " colgo.");
+                }
+                case "ocupado" -> {
+                    interlocutor = null;
+                    System.out.println("\n" + parametro + " esta en otra llamada.");
+                }
+                case "sin_respuesta" -> {
+                    interlocutor = null;
+                    System.out.println("\n" + parametro + " no contesto.");
                 }
                 case "conectar" -> {
+                    // "ip:puerto" o "ip:puerto:codec" si los dos extremos declararon codecs
                     String[] datos = parametro.split(":");
-                    if (datos.length == 2) {
+                    if (datos.length == 2 || datos.length == 3) {
                         String ip = datos[0];
                         int puerto = Integer.parseInt(datos[1]);
-                        conectarLlamada(ip, puerto);
+                        conectarLlamada(ip, puerto, datos.length == 3 ? CodecAudio.porNombre(datos[2]) : null);
+                    }
+                }
+                case "conferencia" -> {
+                    // "puertoUdp:ssrc:codec"
+                    String[] datos = parametro.split(":");
+                    CodecAudio codec = datos.length == 3 ? CodecAudio.porNombre(datos[2]) : null;
+                    if (codec != null) {
+                        conectarConferencia(Integer.parseInt(datos[0]), Integer.parseInt(datos[1]), codec);
                     }
                 }
+                case "relevo" -> {
+                    // "puertoUdp:ssrc" del relevo, en la IP del servidor de chat
+                    String[] datos = parametro.split(":");
+                    LlamadaUdp llamada = llamadaUdp;
+                    if (datos.length == 2 && llamada != null && grupoConferencia == null) {
+                        llamada.redirigir(new InetSocketAddress(socket.getInetAddress(), Integer.parseInt(datos[0])),
+                                Integer.parseInt(datos[1]));
+                        System.out.println("Llamada pasando por el servidor.");
+                    }
+                }
+                case "relevo_rechazado" -> {
+                    System.out.println("El servidor no puede pasar la llamada con " + parametro);
+                }
+                case "conferencia_terminada" -> {
+                    // Saliste del grupo: el servidor ya te saco de su conferencia
+                    if (enLlamada && parametro.equals(grupoConferencia)) colgarLlamada();
+                    System.out.println("Ya no estas en la conferencia de " + parametro + ".");
+                }
+                case "conferencia_rechazada" -> {
+                    grupoConferencia = null;
+                    System.out.println("No se pudo entrar a la conferencia: " + parametro);
+                }
                 case "rechazada" -> {
+                    interlocutor = null;
                     System.out.println("Llamada rechazada por: " + parametro);
                 }
                 case "no_disponible" -> {
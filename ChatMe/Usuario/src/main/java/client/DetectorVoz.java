@@ -0,0 +1,75 @@
+package client;
+
+/**
+ * Detector de actividad de voz trama a trama, por energia y cruces por cero. Una trama es voz
+ * si su energia supera varias veces el ruido de fondo, o algo menos si cruza mucho por cero
+ * (consonantes sordas como la "s", de poca energia). El ruido de fondo se sigue en las tramas
+ * sin voz: baja enseguida y sube despacio, asi un ruido constante termina siendo el fondo.
+ * Tras la ultima trama con voz se siguen dando por voz TRAMAS_COLGADAS mas, para no cortar
+ * los finales de palabra.
+ *
+ * PCM de 16 bits con signo, little endian, mono. Se desactiva con -Dchatme.vad=false.
+ */
+public class DetectorVoz {
+    // 200 ms con tramas de 20 ms
+    private static final int TRAMAS_COLGADAS = 10;
+    // Energia sobre el fondo para ser voz (unos 9.5 dB), o para serlo si cruza mucho por cero
+    private static final double FACTOR_VOZ = 9.0;
+    private static final double FACTOR_SORDA = 3.0;
+    private static final double CRUCES_SORDA = 0.3;
+    // Por debajo de esta energia (valor eficaz 200, unos -44 dBov) nunca es voz
+    private static final double ENERGIA_MINIMA = 200.0 * 200.0;
+    // Seguimiento del fondo por trama: rapido hacia abajo, lento hacia arriba (unos 10 s)
+    private static final double BAJADA_RUIDO = 0.5;
+    private static final double SUBIDA_RUIDO = 0.002;
+
+    private double ruido = ENERGIA_MINIMA / FACTOR_VOZ;
+    private int colgadas;
+
+    public static boolean activado() {
+        return Boolean.parseBoolean(System.getProperty("chatme.vad", "true"));
+    }
+
+    /** true si pcm[desde, desde+longitud) debe enviarse o guardarse como voz. */
+    public boolean esVoz(byte[] pcm, int desde, int longitud) {
+        int muestras = longitud / 2;
+        if (muestras == 0) return colgadas > 0;
+        long suma = 0;
+        int cruces = 0;
+        int anterior = 0;
+        for (int i = desde; i + 1 < desde + longitud; i += 2) {
+            int muestra = (short) ((pcm[i + 1] << 8) | (pcm[i] & 0xFF));
+            suma += (long) muestra * muestra;
+            if ((muestra ^ anterior) < 0) cruces++;
+            anterior = muestra;
+        }
+        double energia = (double) suma / muestras;
+        double tasaCruces = (double) cruces / muestras;
+
+        boolean voz = energia > ENERGIA_MINIMA
+                && (energia > ruido * FACTOR_VOZ || (energia > ruido * FACTOR_SORDA && tasaCruces > CRUCES_SORDA));
+        if (energia < ruido) {
+            ruido += (energia - ruido) * BAJADA_RUIDO;
+        } else if (!voz || energia < ruido * FACTOR_VOZ * FACTOR_VOZ) {
+            // Un ruido constante por encima del umbral acaba siendo el nuevo fondo
+            ruido += (energia - ruido) * SUBIDA_RUIDO;
+        }
+        ruido = Math.max(ruido, 1.0);
+
+        if (voz) {
+            colgadas = TRAMAS_COLGADAS;
+            return true;
+        }
+        if (colgadas > 0) {
+            colgadas--;
+            return true;
+        }
+        return false;
+    }
+
+    /** Nivel del ruido de fondo en -dBov (0 a 127), como lo lleva el ruido de confort del RFC 3389. */
+    public int getNivelRuido() {
+        double dbov = 10 * Math.log10(ruido / (32768.0 * 32768.0));
+        return (int) Math.max(0, Math.min(127, Math.round(-dbov)));
+    }
+}
@@ -0,0 +1,386 @@
+package client;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Cliente de carga sin interfaz: conecta muchos usuarios simulados al servidor, los une a
+ * grupos y envia mensajes privados, de grupo y notas de voz a un ritmo fijo, con el mismo
+ * protocolo que Client. Cada mensaje lleva el instante en que debia salir (System.nanoTime,
+ * valido porque emisor y receptores estan en la misma JVM), y al recibirlo se registra la
+ * latencia de extremo a extremo.
+ *
+ * Los envios siguen un calendario fijo y la latencia se mide desde la hora prevista y no desde
+ * la real, asi que si el generador se atrasa porque el servidor no da abasto, ese atraso cuenta
+ * como latencia en lugar de esconderse.
+ *
+ * Se configura con propiedades del sistema (ver README):
+ * java -Dchatme.carga.usuarios=2000 -cp Usuario.jar client.GeneradorCarga
+ */
+public class GeneradorCarga {
+
+    private enum TipoMensaje {
+        PRIVADO,
+        GRUPO,
+        VOZ
+    }
+
+    // Marca del instante de envio dentro del texto: "lt:<nanos>;"
+    private static final String MARCA = "lt:";
+    // Tope de latencias guardadas por usuario y tipo; las demas solo se cuentan
+    private static final int MAX_MUESTRAS = 1 << 18;
+
+    private final String host = System.getProperty("chatme.carga.host", "localhost");
+    private final int puerto = Integer.getInteger("chatme.carga.puerto", 8080);
+    private final int cantidadUsuarios = Integer.getInteger("chatme.carga.usuarios", 100);
+    private final int cantidadGrupos = Integer.getInteger("chatme.carga.grupos", 10);
+    private final int protocolo = Integer.getInteger("chatme.carga.protocolo", ProtocoloBinario.VERSION);
+    private final int privadosPorSegundo = Integer.getInteger("chatme.carga.privadosPorSegundo", 1000);
+    private final int gruposPorSegundo = Integer.getInteger("chatme.carga.gruposPorSegundo", 100);
+    private final int vozPorSegundo = Integer.getInteger("chatme.carga.vozPorSegundo", 5);
+    private final int bytesTexto = Integer.getInteger("chatme.carga.bytesTexto", 64);
+    private final int bytesVoz = Integer.getInteger("chatme.carga.bytesVoz", 16 * 1024);
+    private final int hilosEnvio = Integer.getInteger("chatme.carga.hilosEnvio", 4);
+    private final int calentamientoS = Integer.getInteger("chatme.carga.calentamientoS", 5);
+    private final int duracionS = Integer.getInteger("chatme.carga.duracionS", 30);
+
+    private final List<UsuarioSimulado> usuarios = new ArrayList<>();
+    private final Map<TipoMensaje, LongAdder> enviados = new EnumMap<>(TipoMensaje.class);
+    private final Map<TipoMensaje, LongAdder> recibidos = new EnumMap<>(TipoMensaje.class);
+    private final LongAdder erroresEnvio = new LongAdder();
+    private volatile long inicioMedicion = Long.MAX_VALUE;
+    private volatile boolean enviando = true;
+
+    public GeneradorCarga() {
+        for (TipoMensaje tipo : TipoMensaje.values()) {
+            enviados.put(tipo, new LongAdder());
+            recibidos.put(tipo, new LongAdder());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new GeneradorCarga().ejecutar();
+    }
+
+    private void ejecutar() throws Exception {
+        ExecutorService receptores = crearEjecutor();
+        System.out.println("Conectando " + cantidadUsuarios + " usuarios a " + host + ":" + puerto + "...");
+        long inicioConexion = System.nanoTime();
+        for (int i = 0; i < cantidadUsuarios; i++) {
+            UsuarioSimulado usuario = new UsuarioSimulado("carga" + i);
+            usuario.conectar();
+            usuarios.add(usuario);
+            receptores.execute(usuario::recibir);
+        }
+        System.out.printf(Locale.ROOT, "Conectados en %.1f s (protocolo %s)%n",
+                (System.nanoTime() - inicioConexion) / 1e9, usuarios.get(0).binario ? "v2" : "texto");
+
+        // Cada usuario se une a un grupo; los mensajes de grupo los envia un miembro al suyo
+        if (cantidadGrupos > 0) {
+            for (int i = 0; i < usuarios.size(); i++) {
+                UsuarioSimulado usuario = usuarios.get(i);
+                usuario.grupo = "carga-g" + (i % cantidadGrupos);
+                usuario.salida.comandoGrupo("unir", usuario.grupo);
+            }
+            Thread.sleep(1000);
+        }
+
+        long inicio = System.nanoTime();
+        inicioMedicion = inicio + TimeUnit.SECONDS.toNanos(calentamientoS);
+        long fin = inicioMedicion + TimeUnit.SECONDS.toNanos(duracionS);
+        List<Thread> emisores = new ArrayList<>();
+        emisores.addAll(iniciarEmisores(TipoMensaje.PRIVADO, privadosPorSegundo, inicio, fin));
+        if (cantidadGrupos > 0) emisores.addAll(iniciarEmisores(TipoMensaje.GRUPO, gruposPorSegundo, inicio, fin));
+        emisores.addAll(iniciarEmisores(TipoMensaje.VOZ, vozPorSegundo, inicio, fin));
+
+        System.out.println("Calentamiento de " + calentamientoS + " s y medicion de " + duracionS + " s");
+        long[] anteriores = new long[TipoMensaje.values().length];
+        while (System.nanoTime() < fin) {
+            Thread.sleep(5000);
+            informarParcial(anteriores);
+        }
+        enviando = false;
+        for (Thread emisor : emisores) emisor.join();
+        // Lo que ya salio tiene un momento para llegar antes del informe
+        Thread.sleep(2000);
+
+        informarFinal();
+        for (UsuarioSimulado usuario : usuarios) usuario.cerrar();
+        receptores.shutdownNow();
+    }
+
+    // El ritmo se reparte entre varios hilos; cada uno sigue su propio calendario
+    private List<Thread> iniciarEmisores(TipoMensaje tipo, int porSegundo, long inicio, long fin) {
+        List<Thread> hilos = new ArrayList<>();
+        if (porSegundo <= 0) return hilos;
+        int cantidad = Math.max(1, Math.min(hilosEnvio, porSegundo));
+        for (int h = 0; h < cantidad; h++) {
+            double ritmo = (double) porSegundo / cantidad;
+            long desfase = (long) (h * 1e9 / porSegundo);
+            Thread hilo = new Thread(() -> emitir(tipo, ritmo, inicio + desfase, fin), "carga-" + tipo + "-" + h);
+            hilo.setDaemon(true);
+            hilo.start();
+            hilos.add(hilo);
+        }
+        return hilos;
+    }
+
+    private void emitir(TipoMensaje tipo, double porSegundo, long inicio, long fin) {
+        long periodo = (long) (1e9 / porSegundo);
+        ThreadLocalRandom azar = ThreadLocalRandom.current();
+        for (long previsto = inicio; enviando && previsto < fin; previsto += periodo) {
+            long espera = previsto - System.nanoTime();
+            if (espera > 0) LockSupport.parkNanos(espera);
+
+            UsuarioSimulado remitente = usuarios.get(azar.nextInt(usuarios.size()));
+            try {
+                switch (tipo) {
+                    case PRIVADO -> remitente.salida.mensajePrivado(otroUsuario(remitente, azar).nombre, texto(previsto));
+                    case GRUPO -> remitente.salida.mensajeGrupo(remitente.grupo, texto(previsto));
+                    case VOZ -> remitente.salida.notaVoz(otroUsuario(remitente, azar).nombre, false, audio(previsto));
+                }
+                enviados.get(tipo).increment();
+            } catch (IOException e) {
+                erroresEnvio.increment();
+            }
+        }
+    }
+
+    private UsuarioSimulado otroUsuario(UsuarioSimulado remitente, ThreadLocalRandom azar) {
+        if (usuarios.size() == 1) return remitente;
+        UsuarioSimulado destino;
+        do {
+            destino = usuarios.get(azar.nextInt(usuarios.size()));
+        } while (destino == remitente);
+        return destino;
+    }
+
+    private String texto(long previsto) {
+        StringBuilder texto = new StringBuilder(bytesTexto).append(MARCA).append(previsto).append(';');
+        while (texto.length() < bytesTexto) texto.append('x');
+        return texto.toString();
+    }
+
+    // Los primeros 8 bytes del audio llevan el instante previsto
+    private byte[] audio(long previsto) {
+        byte[] audio = new byte[Math.max(8, bytesVoz)];
+        ByteBuffer.wrap(audio).putLong(previsto);
+        return audio;
+    }
+
+    private void informarParcial(long[] anteriores) {
+        StringBuilder linea = new StringBuilder();
+        for (TipoMensaje tipo : TipoMensaje.values()) {
+            long total = recibidos.get(tipo).sum();
+            linea.append(String.format(Locale.ROOT, "%s %d/s  ", tipo.name().toLowerCase(Locale.ROOT),
+                    (total - anteriores[tipo.ordinal()]) / 5));
+            anteriores[tipo.ordinal()] = total;
+        }
+        System.out.println("Entregas: " + linea.toString().trim());
+    }
+
+    private void informarFinal() {
+        System.out.println();
+        System.out.println("Resultado (" + duracionS + " s medidos, " + cantidadUsuarios + " usuarios)");
+        System.out.printf(Locale.ROOT, "%-8s %10s %10s %11s %9s %9s %9s %9s %9s%n",
+                "tipo", "enviados", "entregas", "entregas/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        for (TipoMensaje tipo : TipoMensaje.values()) {
+            int total = 0;
+            for (UsuarioSimulado usuario : usuarios) total += usuario.latencias.get(tipo).cantidad;
+            long[] todas = new long[total];
+            int posicion = 0;
+            long medidas = 0;
+            for (UsuarioSimulado usuario : usuarios) {
+                Muestras muestras = usuario.latencias.get(tipo);
+                System.arraycopy(muestras.valores, 0, todas, posicion, muestras.cantidad);
+                posicion += muestras.cantidad;
+                medidas += muestras.vistas;
+            }
+            Arrays.sort(todas);
+            System.out.printf(Locale.ROOT, "%-8s %10d %10d %11.1f %9.2f %9.2f %9.2f %9.2f %9.2f%n",
+                    tipo.name().toLowerCase(Locale.ROOT), enviados.get(tipo).sum(), recibidos.get(tipo).sum(),
+                    (double) medidas / duracionS, ms(percentil(todas, 50)), ms(percentil(todas, 90)),
+                    ms(percentil(todas, 99)), ms(percentil(todas, 99.9)), ms(todas.length == 0 ? 0 : todas[todas.length - 1]));
+        }
+        if (erroresEnvio.sum() > 0) System.out.println("Errores de envio: " + erroresEnvio.sum());
+    }
+
+    private static long percentil(long[] ordenadas, double percentil) {
+        if (ordenadas.length == 0) return 0;
+        int indice = (int) Math.ceil(ordenadas.length * percentil / 100.0) - 1;
+        return ordenadas[Math.max(0, Math.min(indice, ordenadas.length - 1))];
+    }
+
+    private static double ms(long nanos) {
+        return nanos / 1e6;
+    }
+
+    // Hilos virtuales si la JVM los tiene, como en el servidor: miles de receptores bloqueados en read
+    private static ExecutorService crearEjecutor() {
+        try {
+            Method fabrica = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) fabrica.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread hilo = new Thread(null, r, "carga-receptor", 256 * 1024);
+                hilo.setDaemon(true);
+                return hilo;
+            });
+        }
+    }
+
+    // Latencias de un tipo en un usuario; solo las agrega su hilo receptor
+    private static final class Muestras {
+        long[] valores = new long[64];
+        int cantidad;
+        // Incluye las que no se guardaron por el tope
+        long vistas;
+
+        void agregar(long nanos) {
+            vistas++;
+            if (cantidad == valores.length) {
+                if (cantidad == MAX_MUESTRAS) return;
+                valores = Arrays.copyOf(valores, Math.min(MAX_MUESTRAS, cantidad * 2));
+            }
+            valores[cantidad++] = nanos;
+        }
+    }
+
+    private final class UsuarioSimulado implements ManejadorMensajes {
+        final String nombre;
+        final Map<TipoMensaje, Muestras> latencias = new EnumMap<>(TipoMensaje.class);
+        Socket socket;
+        BufferedInputStream entrada;
+        SalidaServidor salida;
+        boolean binario;
+        String grupo;
+
+        UsuarioSimulado(String nombre) {
+            this.nombre = nombre;
+            for (TipoMensaje tipo : TipoMensaje.values()) latencias.put(tipo, new Muestras());
+        }
+
+        // Mismo saludo que Client: v2 si el servidor lo acepta, texto si no
+        void conectar() throws IOException {
+            socket = new Socket(host, puerto);
+            socket.setTcpNoDelay(true);
+            entrada = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+            OutputStream os = new BufferedOutputStream(socket.getOutputStream(), 16 * 1024);
+            if (protocolo < ProtocoloBinario.VERSION) {
+                os.write((nombre + "\n").getBytes(StandardCharsets.UTF_8));
+                os.flush();
+                salida = new SalidaTexto(os);
+                return;
+            }
+            os.write((ProtocoloBinario.SALUDO + ProtocoloBinario.VERSION + "|" + nombre + "\n")
+                    .getBytes(StandardCharsets.UTF_8));
+            os.flush();
+            String respuesta;
+            socket.setSoTimeout(5000);
+            try {
+                respuesta = leerLinea();
+            } catch (SocketTimeoutException e) {
+                respuesta = null;
+            } finally {
+                socket.setSoTimeout(0);
+            }
+            binario = (ProtocoloBinario.SALUDO + ProtocoloBinario.VERSION).equals(respuesta);
+            salida = binario ? new ProtocoloBinario.Escritor(os) : new SalidaTexto(os);
+        }
+
+        void recibir() {
+            try {
+                if (binario) {
+                    ProtocoloBinario.Lector lector = new ProtocoloBinario.Lector(entrada);
+                    while (lector.leerSiguiente(this)) {
+                        // cada trama se entrega al manejador dentro del lector
+                    }
+                    return;
+                }
+                String linea;
+                while ((linea = leerLinea()) != null) {
+                    procesarLinea(linea);
+                }
+            } catch (IOException e) {
+                // Conexion cerrada al terminar la prueba o por el servidor
+            }
+        }
+
+        private void procesarLinea(String linea) throws IOException {
+            if (linea.startsWith("@voz|") || linea.startsWith("@vozgrupo|")) {
+                String[] partes = linea.split("\\|");
+                boolean esGrupo = linea.startsWith("@vozgrupo|");
+                int tamano = Integer.parseInt(partes[esGrupo ? 3 : 2]);
+                byte[] audio = entrada.readNBytes(tamano);
+                if (audio.length < tamano) throw new EOFException();
+                notaVoz(esGrupo ? partes[1] : null, partes[esGrupo ? 2 : 1], audio);
+            } else if (linea.equals("@ping")) {
+                ping();
+            } else {
+                mostrar(linea);
+            }
+        }
+
+        private String leerLinea() throws IOException {
+            ByteArrayOutputStream linea = new ByteArrayOutputStream(128);
+            int b;
+            while ((b = entrada.read()) != '\n') {
+                if (b == -1) return linea.size() == 0 ? null : linea.toString(StandardCharsets.UTF_8);
+                linea.write(b);
+            }
+            return linea.toString(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void mostrar(String texto) {
+            int marca = texto.indexOf(MARCA);
+            if (marca < 0) return;
+            int fin = texto.indexOf(';', marca);
+            if (fin < 0) return;
+            long previsto = Long.parseLong(texto, marca + MARCA.length(), fin, 10);
+            registrar(texto.startsWith("[Grupo ") ? TipoMensaje.GRUPO : TipoMensaje.PRIVADO, previsto);
+        }
+
+        @Override
+        public void notaVoz(String grupo, String remitente, byte[] audio) {
+            if (audio.length >= 8) registrar(TipoMensaje.VOZ, ByteBuffer.wrap(audio).getLong());
+        }
+
+        @Override
+        public void llamada(String accion, String parametro) {
+        }
+
+        @Override
+        public void ping() {
+            try {
+                salida.pong();
+            } catch (IOException e) {
+                // el receptor vera el cierre
+            }
+        }
+
+        private void registrar(TipoMensaje tipo, long previsto) {
+            recibidos.get(tipo).increment();
+            if (previsto >= inicioMedicion) {
+                latencias.get(tipo).agregar(System.nanoTime() - previsto);
+            }
+        }
+
+        void cerrar() {
+            try {
+                salida.salir();
+                socket.close();
+            } catch (IOException e) {
+                // ya estaba cerrada
+            }
+        }
+    }
+}
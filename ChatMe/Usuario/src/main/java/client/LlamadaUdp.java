@@ -0,0 +1,371 @@
+package client;
+
+import audio.BufferJitter;
+import audio.CodecAudio;
+import audio.PaqueteVoz;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Transporte de una llamada por UDP: cada trama de MS_POR_TRAMA ms de audio viaja codificada
+ * en un PaqueteVoz, sin retransmisiones, de modo que un paquete perdido no retrasa a los
+ * siguientes como pasaba con TCP. El receptor los ordena en un BufferJitter y, si falta
+ * alguno al reproducir, repite la ultima trama atenuandola hasta quedar en silencio.
+ *
+ * Las tramas que DetectorVoz considera silencio no se envian: en su lugar va de vez en cuando
+ * un paquete de ruido de confort con el nivel del fondo, que el receptor reproduce hasta que
+ * vuelve la voz.
+ *
+ * Para probar en loopback se pueden simular perdidas y retardos al enviar con
+ * -Dchatme.llamada.perdida (fraccion de paquetes descartados), -Dchatme.llamada.retardoMs y
+ * -Dchatme.llamada.jitterMs (retardo extra aleatorio entre 0 y ese valor, que desordena).
+ */
+public class LlamadaUdp implements MotorAudio.Fuente {
+    public static final int MS_POR_TRAMA = 20;
+    // Sin paquetes del otro extremo durante este tiempo la llamada se da por terminada
+    private static final long TIMEOUT_MS = 5000;
+    // Tramas ocultadas seguidas hasta quedar en silencio
+    private static final int MAX_OCULTADAS = 4;
+    // En silencio se envia un paquete de ruido de confort cada tantas tramas suprimidas (200 ms)
+    private static final int RUIDO_CADA = 10;
+
+    private final DatagramSocket socket;
+    // Cambian si la llamada pasa al relevo del servidor
+    private volatile InetSocketAddress destino;
+    private final CodecAudio codec;
+    private final int bytesPorTrama;
+    private final Runnable alTerminar;
+    private final BufferJitter buffer;
+    private final Random azar = new Random();
+    private final AtomicBoolean terminada = new AtomicBoolean(false);
+
+    // Emisor: solo lo usa el hilo que captura
+    private final CodecAudio.Codificador codificador;
+    private final byte[] codificado;
+    private final byte[] datagrama;
+    private final DatagramPacket paqueteSalida;
+    private volatile int ssrc;
+    private final long marcaInicial = azar.nextInt() & 0xFFFFFFFFL;
+    private int secuencia = azar.nextInt(1 << 16);
+    private long marcaTiempo = marcaInicial;
+    private final DetectorVoz detector = DetectorVoz.activado() ? new DetectorVoz() : null;
+    private int silenciosSeguidos;
+
+    // Receptor: solo lo usa el hilo que reproduce
+    private final CodecAudio.Decodificador[] decodificadores = new CodecAudio.Decodificador[256];
+    private final byte[] ultimaTrama;
+    private int ocultadasSeguidas = MAX_OCULTADAS;
+    private long ultimaMarcaReproducida = -1;
+    private final Random generadorRuido = new Random();
+    private boolean enSilencio;
+    private double amplitudRuido;
+
+    // Simulacion de red
+    private final double perdida = Double.parseDouble(System.getProperty("chatme.llamada.perdida", "0"));
+    private final int retardoMs = Integer.getInteger("chatme.llamada.retardoMs", 0);
+    private final int jitterMs = Integer.getInteger("chatme.llamada.jitterMs", 0);
+    private final ScheduledExecutorService red;
+
+    private volatile long ultimaRecepcion = System.currentTimeMillis();
+    private volatile boolean recibioAlgo;
+    private long esperaDirectaMs;
+    private Runnable alNoConectar;
+    private volatile long enviados;
+    private volatile long perdidosSimulados;
+    private volatile long ocultadas;
+    private volatile long suprimidas;
+    private Thread receptor;
+
+    // alTerminar se ejecuta una vez cuando el otro extremo cuelga o deja de enviar
+    public LlamadaUdp(DatagramSocket socket, InetSocketAddress destino, CodecAudio codec, int frecuencia,
+                      Runnable alTerminar) {
+        this(socket, destino, codec, frecuencia, new Random().nextInt(), alTerminar);
+    }
+
+    // Con el SSRC que asigno el servidor de conferencias, que identifica asi a cada participante
+    public LlamadaUdp(DatagramSocket socket, InetSocketAddress destino, CodecAudio codec, int frecuencia, int ssrc,
+                      Runnable alTerminar) {
+        this.socket = socket;
+        this.ssrc = ssrc;
+        this.destino = destino;
+        this.codec = codec;
+        this.alTerminar = alTerminar;
+        this.bytesPorTrama = frecuencia * MS_POR_TRAMA / 1000 * 2;
+        int maximoTramas = Integer.getInteger("chatme.llamada.maxRetardoMs", 200) / MS_POR_TRAMA;
+        this.buffer = new BufferJitter(MS_POR_TRAMA, frecuencia, 1, maximoTramas);
+        this.codificador = codec.nuevoCodificador();
+        this.codificado = new byte[codec.maximoCodificado(bytesPorTrama)];
+        this.datagrama = new byte[PaqueteVoz.CABECERA + codificado.length];
+        this.paqueteSalida = new DatagramPacket(datagrama, datagrama.length);
+        this.ultimaTrama = new byte[bytesPorTrama];
+        this.red = retardoMs > 0 || jitterMs > 0
+                ? Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread hilo = new Thread(r, "red-simulada");
+                    hilo.setDaemon(true);
+                    return hilo;
+                })
+                : null;
+    }
+
+    /**
+     * accion se ejecuta una vez, en el hilo receptor, si en esperaMs no llega ningun paquete del
+     * otro extremo. Llamar antes de iniciar.
+     */
+    public void alNoConectar(long esperaMs, Runnable accion) {
+        this.esperaDirectaMs = esperaMs;
+        this.alNoConectar = accion;
+    }
+
+    /**
+     * Sigue la llamada a traves de otra direccion (el relevo del servidor) con el SSRC que esta
+     * asigno. La secuencia, el codec y el buffer de jitter continuan.
+     */
+    public void redirigir(InetSocketAddress nuevoDestino, int nuevoSsrc) {
+        ssrc = nuevoSsrc;
+        destino = nuevoDestino;
+        ultimaRecepcion = System.currentTimeMillis();
+    }
+
+    public void iniciar() throws IOException {
+        socket.setSoTimeout(200);
+        receptor = new Thread(this::recibir, "llamada-udp");
+        receptor.setDaemon(true);
+        receptor.start();
+    }
+
+    /** Bytes de PCM de una trama; enviar espera tramas de este tamano. */
+    public int getBytesPorTrama() {
+        return bytesPorTrama;
+    }
+
+    @Override
+    public boolean isActiva() {
+        return !terminada.get();
+    }
+
+    /** Codifica y envia una trama de PCM capturado, o la suprime si es silencio. */
+    public void enviar(byte[] pcm, int longitud) throws IOException {
+        if (detector != null && !detector.esVoz(pcm, 0, longitud)) {
+            enviarSilencio(longitud);
+            return;
+        }
+        silenciosSeguidos = 0;
+        int estado = codificador.getEstado();
+        int bytes = codificador.codificar(pcm, 0, longitud, codificado);
+        int total = PaqueteVoz.audio(codec, secuencia, marcaTiempo, ssrc, estado, codificado, bytes).escribir(datagrama);
+        secuencia++;
+        marcaTiempo += longitud / 2;
+        transmitir(total);
+    }
+
+    // Solo sale ruido de confort al empezar el silencio y cada RUIDO_CADA tramas, lo que mantiene
+    // viva la llamada. La marca de tiempo avanza igual, asi el receptor ubica bien la voz siguiente
+    private void enviarSilencio(int longitud) throws IOException {
+        suprimidas++;
+        if (silenciosSeguidos++ % RUIDO_CADA == 0) {
+            int total = PaqueteVoz.ruidoConfort(secuencia, marcaTiempo, ssrc, detector.getNivelRuido()).escribir(datagrama);
+            secuencia++;
+            transmitir(total);
+        }
+        marcaTiempo += longitud / 2;
+    }
+
+    // Envia los primeros bytes de datagrama. Sin red simulada el paquete se reutiliza en cada
+    // trama; con retardo hace falta una copia porque datagrama se reescribe antes de enviarla
+    private void transmitir(int longitud) throws IOException {
+        enviados++;
+        if (perdida > 0 && azar.nextDouble() < perdida) {
+            perdidosSimulados++;
+            return;
+        }
+        if (red == null) {
+            paqueteSalida.setLength(longitud);
+            paqueteSalida.setSocketAddress(destino);
+            socket.send(paqueteSalida);
+            return;
+        }
+        DatagramPacket paquete = new DatagramPacket(Arrays.copyOf(datagrama, longitud), longitud, destino);
+        long retardo = retardoMs + (jitterMs > 0 ? azar.nextInt(jitterMs + 1) : 0);
+        red.schedule(() -> {
+            try {
+                socket.send(paquete);
+            } catch (IOException e) {
+                // Igual que una perdida en la red
+            }
+        }, retardo, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Llena pcm con la siguiente trama a reproducir (decodificada u ocultada) y devuelve
+     * getBytesPorTrama(). Se llama una vez por trama, al ritmo del altavoz.
+     */
+    @Override
+    public int siguienteTrama(byte[] pcm) {
+        PaqueteVoz paquete = buffer.tomar();
+        if (paquete != null && paquete.esRuidoConfort()) {
+            enSilencio = true;
+            amplitudRuido = 32768 * Math.pow(10, -paquete.getNivelRuido() / 20.0);
+        }
+        CodecAudio codecPaquete = paquete == null ? null : paquete.getCodec();
+        if (codecPaquete == null) {
+            // En un silencio del otro lado no faltan paquetes: suena el ruido de fondo que aviso
+            if (enSilencio) {
+                generarRuido(pcm);
+            } else {
+                ocultar(pcm);
+            }
+            ultimaMarcaReproducida = -1;
+            return bytesPorTrama;
+        }
+        enSilencio = false;
+        CodecAudio.Decodificador decodificador = decodificadores[codecPaquete.getId()];
+        if (decodificador == null) {
+            decodificador = codecPaquete.nuevoDecodificador();
+            decodificadores[codecPaquete.getId()] = decodificador;
+        }
+        decodificador.setEstado(paquete.getEstadoCodec());
+        // Se decodifica directamente en pcm; lo que no cabe en una trama se ignora
+        int longitud = Math.min(paquete.getLongitud(), bytesPorTrama / codecPaquete.maximoDecodificado(1));
+        int bytes = decodificador.decodificar(paquete.getDatos(), 0, longitud, pcm);
+        Arrays.fill(pcm, bytes, bytesPorTrama, (byte) 0);
+        System.arraycopy(pcm, 0, ultimaTrama, 0, bytesPorTrama);
+        ocultadasSeguidas = 0;
+        ultimaMarcaReproducida = paquete.getMarcaTiempo();
+        return bytesPorTrama;
+    }
+
+    // Ruido blanco con el valor eficaz del nivel recibido
+    private void generarRuido(byte[] pcm) {
+        double escala = amplitudRuido * Math.sqrt(3) * 2;
+        for (int i = 0; i + 1 < bytesPorTrama; i += 2) {
+            int muestra = (int) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE,
+                    (generadorRuido.nextDouble() - 0.5) * escala));
+            pcm[i] = (byte) muestra;
+            pcm[i + 1] = (byte) (muestra >> 8);
+        }
+    }
+
+    // Repite la ultima trama buena cada vez mas baja; tras MAX_OCULTADAS, silencio
+    private void ocultar(byte[] pcm) {
+        if (ocultadasSeguidas >= MAX_OCULTADAS) {
+            Arrays.fill(pcm, 0, bytesPorTrama, (byte) 0);
+            return;
+        }
+        ocultadasSeguidas++;
+        ocultadas++;
+        double ganancia = 1.0 - (double) ocultadasSeguidas / (MAX_OCULTADAS + 1);
+        for (int i = 0; i + 1 < bytesPorTrama; i += 2) {
+            int muestra = (int) ((short) ((ultimaTrama[i + 1] << 8) | (ultimaTrama[i] & 0xFF)) * ganancia);
+            pcm[i] = (byte) muestra;
+            pcm[i + 1] = (byte) (muestra >> 8);
+        }
+    }
+
+    private void recibir() {
+        byte[] datos = new byte[2048];
+        DatagramPacket paquete = new DatagramPacket(datos, datos.length);
+        while (!terminada.get()) {
+            try {
+                socket.receive(paquete);
+                // Solo se aceptan paquetes del otro extremo de esta llamada
+                if (!paquete.getAddress().equals(destino.getAddress())) continue;
+                PaqueteVoz voz = PaqueteVoz.leer(datos, paquete.getLength());
+                if (voz == null) continue;
+                ultimaRecepcion = System.currentTimeMillis();
+                recibioAlgo = true;
+                if (voz.esFin()) {
+                    terminar();
+                    return;
+                }
+                buffer.insertar(voz, System.nanoTime());
+            } catch (SocketTimeoutException e) {
+                Runnable accion = alNoConectar;
+                if (accion != null && !recibioAlgo && System.currentTimeMillis() - ultimaRecepcion > esperaDirectaMs) {
+                    alNoConectar = null;
+                    accion.run();
+                }
+                if (System.currentTimeMillis() - ultimaRecepcion > TIMEOUT_MS) {
+                    terminar();
+                    return;
+                }
+            } catch (IOException e) {
+                if (!terminada.get()) terminar();
+                return;
+            }
+        }
+    }
+
+    /** Avisa al otro extremo y deja de recibir. El socket no se cierra: sirve para la siguiente llamada. */
+    public void colgar() {
+        if (!terminada.compareAndSet(false, true)) return;
+        byte[] datos = new byte[PaqueteVoz.CABECERA];
+        int longitud = PaqueteVoz.fin(secuencia, ssrc).escribir(datos);
+        // Sin retransmisiones: se repite por si alguno se pierde; si no, el otro lado corta por timeout
+        for (int i = 0; i < 3; i++) {
+            try {
+                socket.send(new DatagramPacket(datos, longitud, destino));
+            } catch (IOException e) {
+                break;
+            }
+        }
+        detener();
+    }
+
+    private void terminar() {
+        if (!terminada.compareAndSet(false, true)) return;
+        detener();
+        alTerminar.run();
+    }
+
+    // Espera al hilo receptor para que no se quede paquetes de una llamada siguiente
+    private void detener() {
+        if (red != null) red.shutdownNow();
+        if (receptor != null && receptor != Thread.currentThread()) {
+            try {
+                receptor.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public BufferJitter getBuffer() {
+        return buffer;
+    }
+
+    // Para medir la latencia en PruebaLlamada: marca de tiempo de la primera trama enviada
+    long getMarcaInicial() {
+        return marcaInicial;
+    }
+
+    // Marca de tiempo de la ultima trama reproducida, o -1 si fue ocultada
+    long getUltimaMarcaReproducida() {
+        return ultimaMarcaReproducida;
+    }
+
+    public long getEnviados() {
+        return enviados;
+    }
+
+    public long getPerdidosSimulados() {
+        return perdidosSimulados;
+    }
+
+    public long getOcultadas() {
+        return ocultadas;
+    }
+
+    public long getSuprimidas() {
+        return suprimidas;
+    }
+}
@@ -0,0 +1,18 @@
+package client;
+
+/**
+ * Lo que el cliente hace con cada mensaje del servidor, sea cual sea el protocolo con que llego.
+ */
+public interface ManejadorMensajes {
+
+    // Lineas para mostrar tal cual (avisos, mensajes privados y de grupo ya formateados)
+    void mostrar(String texto);
+
+    // grupo es null en las notas de voz privadas
+    void notaVoz(String grupo, String remitente, byte[] audio);
+
+    void llamada(String accion, String parametro);
+
+    // El servidor comprueba que la conexion sigue viva; hay que responder con un pong
+    void ping();
+}
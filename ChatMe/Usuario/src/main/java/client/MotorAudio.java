@@ -0,0 +1,316 @@
+package client;
+
+import audio.CabeceraAudio;
+import audio.CodecAudio;
+import audio.CodecPcm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntConsumer;
+import javax.sound.sampled.*;
+
+/**
+ * Audio del cliente con una linea de captura y una de reproduccion que se abren la primera vez
+ * y quedan abiertas, ambas en PCM de 16 kHz, 16 bits, mono, little endian.
+ *
+ * Captura: un hilo lee del microfono de a una trama (read bloquea al ritmo del hardware) y la
+ * deja en un AnilloAudio; el consumidor (grabarNota o una llamada) la saca de ahi. Sin nadie
+ * grabando la linea se detiene y el hilo queda dormido.
+ *
+ * Reproduccion: un hilo escribe en el altavoz. Si hay una llamada, saca de ella una trama por
+ * vez; si no, reproduce las notas encoladas una tras otra, decodificandolas y remuestreandolas
+ * por trozos en buffers reservados una sola vez.
+ */
+public class MotorAudio {
+    public static final int FRECUENCIA = 16000;
+    public static final int BYTES_POR_TRAMA = FRECUENCIA / 1000 * LlamadaUdp.MS_POR_TRAMA * 2;
+    private static final AudioFormat FORMATO = new AudioFormat(FRECUENCIA, 16, 1, true, false);
+    // Frecuencia de las notas que se graban: la mitad de datos que la linea, suficiente para voz
+    private static final int FRECUENCIA_NOTAS = 8000;
+    // Tramas de silencio que se conservan antes de la primera con voz, para no cortar el ataque
+    private static final int TRAMAS_PREVIAS = 5;
+    // Bytes codificados de una nota que se decodifican de una vez
+    private static final int TROZO_NOTA = 1024;
+    // Se encola para despertar al hilo de reproduccion cuando empieza una llamada
+    private static final byte[] DESPERTAR = new byte[0];
+
+    /** Algo que entrega tramas de BYTES_POR_TRAMA al ritmo del altavoz, como una LlamadaUdp. */
+    public interface Fuente {
+        int siguienteTrama(byte[] pcm);
+
+        boolean isActiva();
+    }
+
+    // Unas 2 s de captura por si el consumidor se atrasa
+    private final AnilloAudio capturado = new AnilloAudio(FRECUENCIA * 4);
+    private final BlockingQueue<byte[]> notas = new LinkedBlockingQueue<>();
+    private final AtomicBoolean capturaOcupada = new AtomicBoolean(false);
+    private volatile boolean capturando;
+    private volatile Thread lectorEsperando;
+    private volatile Fuente llamada;
+
+    private TargetDataLine microfono;
+    private SourceDataLine altavoz;
+    private Thread hiloCaptura;
+    private Thread hiloReproduccion;
+
+    // Solo del hilo de reproduccion
+    private final byte[] trama = new byte[BYTES_POR_TRAMA];
+    private final byte[] pcmNota = new byte[TROZO_NOTA * 4];
+    private final byte[] remuestreado = new byte[TROZO_NOTA * 16 + 4];
+
+    /** Nombres de codecs en orden de preferencia: primero el de -Dchatme.codec (adpcm por defecto). */
+    public static List<String> codecsPreferidos() {
+        CodecAudio preferido = CodecAudio.porNombre(System.getProperty("chatme.codec", "adpcm"));
+        List<String> nombres = new ArrayList<>();
+        if (preferido != null) nombres.add(preferido.getNombre());
+        for (CodecAudio codec : CodecAudio.DISPONIBLES) {
+            if (codec != preferido) nombres.add(codec.getNombre());
+        }
+        return nombres;
+    }
+
+    // ---- Captura ----
+
+    /**
+     * Reserva el microfono para un consumidor y empieza a capturar. false si otro lo esta usando
+     * o no hay microfono.
+     */
+    public boolean empezarCaptura() {
+        if (!capturaOcupada.compareAndSet(false, true)) {
+            System.err.println("El microfono ya esta en uso.");
+            return false;
+        }
+        try {
+            abrirCaptura();
+        } catch (LineUnavailableException | IllegalArgumentException e) {
+            capturaOcupada.set(false);
+            System.err.println("No hay microfono disponible: " + e.getMessage());
+            return false;
+        }
+        microfono.flush();
+        capturado.vaciar();
+        capturando = true;
+        microfono.start();
+        LockSupport.unpark(hiloCaptura);
+        return true;
+    }
+
+    public void terminarCaptura() {
+        capturando = false;
+        if (microfono != null) microfono.stop();
+        capturaOcupada.set(false);
+    }
+
+    /**
+     * Lee exactamente longitud bytes capturados, esperando sin girar a que lleguen. Devuelve
+     * menos solo si se termino la captura.
+     */
+    public int leerCaptura(byte[] destino, int desde, int longitud) {
+        int total = 0;
+        while (total < longitud) {
+            int leidos = capturado.leer(destino, desde + total, longitud - total);
+            total += leidos;
+            if (leidos > 0) continue;
+            if (!capturando) break;
+            lectorEsperando = Thread.currentThread();
+            // Se vuelve a mirar tras anunciarse: lo escrito en medio ya desperto a este hilo
+            if (capturado.disponibles() == 0) LockSupport.parkNanos(100_000_000L);
+            lectorEsperando = null;
+        }
+        return total;
+    }
+
+    private synchronized void abrirCaptura() throws LineUnavailableException {
+        if (microfono != null) return;
+        TargetDataLine linea = (TargetDataLine) AudioSystem.getLine(new DataLine.Info(TargetDataLine.class, FORMATO));
+        linea.open(FORMATO, BYTES_POR_TRAMA * 8);
+        microfono = linea;
+        hiloCaptura = new Thread(this::capturar, "captura-audio");
+        hiloCaptura.setDaemon(true);
+        hiloCaptura.start();
+    }
+
+    private void capturar() {
+        byte[] leida = new byte[BYTES_POR_TRAMA];
+        while (true) {
+            if (!capturando) {
+                LockSupport.park(this);
+                continue;
+            }
+            int leidos = microfono.read(leida, 0, leida.length);
+            // Si el consumidor no da abasto se pierde lo nuevo; el anillo guarda unos 2 s
+            if (leidos > 0) capturado.escribir(leida, 0, leidos);
+            Thread lector = lectorEsperando;
+            if (lector != null) LockSupport.unpark(lector);
+        }
+    }
+
+    /**
+     * Graba duracionSegundos de audio y lo devuelve como nota: CabeceraAudio y el audio
+     * codificado. El buffer de salida se reserva de entrada con el tamano justo, y la duracion
+     * se cuenta en muestras, no con el reloj. progreso recibe el porcentaje cada 5%.
+     *
+     * Con DetectorVoz activo se quitan los silencios del principio y del final: no se codifica
+     * nada hasta la primera trama con voz (salvo las TRAMAS_PREVIAS anteriores) y la nota se
+     * corta tras la ultima. Si no hubo voz queda solo la cabecera.
+     */
+    public byte[] grabarNota(int duracionSegundos, CodecAudio codec, IntConsumer progreso) {
+        if (!empezarCaptura()) return new byte[0];
+        try {
+            int divisor = FRECUENCIA / FRECUENCIA_NOTAS;
+            long pcmTotal = (long) FRECUENCIA * 2 * duracionSegundos;
+            byte[] nota = new byte[CabeceraAudio.LONGITUD + codec.maximoCodificado((int) (pcmTotal / divisor))];
+            System.arraycopy(new CabeceraAudio(codec, FRECUENCIA_NOTAS).comoBytes(), 0, nota, 0, CabeceraAudio.LONGITUD);
+            int escritos = CabeceraAudio.LONGITUD;
+
+            CodecAudio.Codificador codificador = codec.nuevoCodificador();
+            byte[] leida = new byte[BYTES_POR_TRAMA];
+            byte[] reducida = new byte[BYTES_POR_TRAMA / divisor];
+            byte[] codificada = new byte[codec.maximoCodificado(reducida.length)];
+            DetectorVoz detector = DetectorVoz.activado() ? new DetectorVoz() : null;
+            byte[][] previas = new byte[TRAMAS_PREVIAS][reducida.length];
+            int[] longitudesPrevias = new int[TRAMAS_PREVIAS];
+            int guardadas = 0;
+            boolean hayVoz = detector == null;
+            int finVoz = escritos;
+            long grabados = 0;
+            int ultimoAviso = -1;
+            while (grabados < pcmTotal) {
+                int leidos = leerCaptura(leida, 0, (int) Math.min(leida.length, pcmTotal - grabados));
+                if (leidos == 0) break;
+                grabados += leidos;
+                int porcentaje = (int) (grabados * 20 / pcmTotal) * 5;
+                if (porcentaje != ultimoAviso) {
+                    ultimoAviso = porcentaje;
+                    progreso.accept(porcentaje);
+                }
+                int bytes = reducir(leida, leidos, divisor, reducida);
+                boolean voz = detector == null || detector.esVoz(leida, 0, leidos);
+                if (!hayVoz) {
+                    if (!voz) {
+                        int ranura = guardadas++ % TRAMAS_PREVIAS;
+                        System.arraycopy(reducida, 0, previas[ranura], 0, bytes);
+                        longitudesPrevias[ranura] = bytes;
+                        continue;
+                    }
+                    hayVoz = true;
+                    for (int i = Math.max(0, guardadas - TRAMAS_PREVIAS); i < guardadas; i++) {
+                        int ranura = i % TRAMAS_PREVIAS;
+                        escritos += codificar(codificador, previas[ranura], longitudesPrevias[ranura], codificada, nota, escritos);
+                    }
+                }
+                escritos += codificar(codificador, reducida, bytes, codificada, nota, escritos);
+                if (voz) finVoz = escritos;
+            }
+            return finVoz == nota.length ? nota : Arrays.copyOf(nota, finVoz);
+        } finally {
+            terminarCaptura();
+        }
+    }
+
+    private static int codificar(CodecAudio.Codificador codificador, byte[] pcm, int longitud, byte[] codificada,
+                                 byte[] nota, int posicion) {
+        int n = codificador.codificar(pcm, 0, longitud, codificada);
+        System.arraycopy(codificada, 0, nota, posicion, n);
+        return n;
+    }
+
+    // Promedia grupos de divisor muestras: pasa a FRECUENCIA_NOTAS filtrando lo que no cabe en ella
+    private static int reducir(byte[] pcm, int longitud, int divisor, byte[] destino) {
+        int escritos = 0;
+        for (int i = 0; i + 2 * divisor <= longitud; i += 2 * divisor) {
+            int suma = 0;
+            for (int j = 0; j < divisor; j++) {
+                suma += (short) ((pcm[i + 2 * j + 1] << 8) | (pcm[i + 2 * j] & 0xFF));
+            }
+            int valor = suma / divisor;
+            destino[escritos++] = (byte) valor;
+            destino[escritos++] = (byte) (valor >> 8);
+        }
+        return escritos;
+    }
+
+    // ---- Reproduccion ----
+
+    /** Encola una nota (con o sin CabeceraAudio) para reproducirla despues de las anteriores. */
+    public boolean reproducirNota(byte[] nota) {
+        if (!abrirReproduccion()) return false;
+        notas.add(nota);
+        return true;
+    }
+
+    /** La fuente pasa a sonar en lugar de las notas hasta que deje de estar activa. */
+    public boolean reproducirLlamada(Fuente fuente) {
+        if (!abrirReproduccion()) return false;
+        llamada = fuente;
+        notas.add(DESPERTAR);
+        return true;
+    }
+
+    private synchronized boolean abrirReproduccion() {
+        if (altavoz != null) return true;
+        try {
+            SourceDataLine linea = (SourceDataLine) AudioSystem.getLine(new DataLine.Info(SourceDataLine.class, FORMATO));
+            // Pocas tramas de buffer: write bloquea y marca el ritmo de las llamadas sin sumar retardo
+            linea.open(FORMATO, BYTES_POR_TRAMA * 3);
+            linea.start();
+            altavoz = linea;
+        } catch (LineUnavailableException | IllegalArgumentException e) {
+            System.err.println("No hay salida de audio disponible: " + e.getMessage());
+            return false;
+        }
+        hiloReproduccion = new Thread(this::reproducir, "reproduccion-audio");
+        hiloReproduccion.setDaemon(true);
+        hiloReproduccion.start();
+        return true;
+    }
+
+    private void reproducir() {
+        while (true) {
+            Fuente fuente = llamada;
+            if (fuente != null) {
+                if (fuente.isActiva()) {
+                    altavoz.write(trama, 0, fuente.siguienteTrama(trama));
+                    continue;
+                }
+                llamada = null;
+            }
+            try {
+                // Sin nada que reproducir el hilo duerme hasta que llegue una nota o una llamada
+                byte[] nota = notas.take();
+                if (nota != DESPERTAR) sonarNota(nota);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // Decodifica y remuestrea la nota por trozos; una llamada que empieza en medio la corta
+    private void sonarNota(byte[] nota) {
+        CabeceraAudio cabecera = CabeceraAudio.leer(nota);
+        // Las notas sin cabecera son de clientes anteriores: PCM de 8 kHz
+        CodecAudio codec = cabecera == null ? new CodecPcm() : cabecera.getCodec();
+        int frecuencia = cabecera == null ? 8000 : cabecera.getFrecuencia();
+        int desde = cabecera == null ? 0 : CabeceraAudio.LONGITUD;
+        CodecAudio.Decodificador decodificador = codec.nuevoDecodificador();
+        Remuestreador remuestreador = frecuencia == FRECUENCIA ? null : new Remuestreador(frecuencia, FRECUENCIA);
+        if (remuestreador != null && remuestreador.maximoSalida(pcmNota.length) > remuestreado.length) {
+            System.err.println("Frecuencia de nota no admitida: " + frecuencia);
+            return;
+        }
+        for (int i = desde; i < nota.length && llamada == null; i += TROZO_NOTA) {
+            int pcm = decodificador.decodificar(nota, i, Math.min(TROZO_NOTA, nota.length - i), pcmNota);
+            if (remuestreador == null) {
+                altavoz.write(pcmNota, 0, pcm);
+            } else {
+                altavoz.write(remuestreado, 0, remuestreador.convertir(pcmNota, 0, pcm, remuestreado));
+            }
+        }
+    }
+}
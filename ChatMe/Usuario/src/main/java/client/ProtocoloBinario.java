@@ -0,0 +1,303 @@
+package client;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Protocolo v2 del lado del cliente: tramas [tipo: 1 byte][longitud: varint][cuerpo], con
+ * nombres de usuario, grupos y acciones internados por conexion. Los valores deben coincidir
+ * con server.ProtocoloBinario, donde esta descrito el formato completo.
+ */
+public final class ProtocoloBinario {
+
+    public static final int VERSION = 2;
+    public static final String SALUDO = "@protocolo|";
+
+    // Cliente -> servidor
+    static final int PRIVADO = 1;
+    static final int MENSAJE_GRUPO = 2;
+    static final int GRUPO = 3;
+    static final int VOZ = 4;
+    static final int VOZ_GRUPO = 5;
+    static final int LLAMADA = 6;
+    static final int CONFIG = 7;
+    static final int SALIR = 8;
+    static final int HISTORIAL = 9;
+    static final int NOTA = 10;
+    static final int PONG = 11;
+
+    // Servidor -> cliente
+    static final int AVISO = 20;
+    static final int RECIBIDO_PRIVADO = 21;
+    static final int RECIBIDO_GRUPO = 22;
+    static final int RECIBIDO_VOZ = 23;
+    static final int RECIBIDO_VOZ_GRUPO = 24;
+    static final int RECIBIDO_LLAMADA = 25;
+    static final int PING = 26;
+
+    private static final int REF_NUEVO = 0;
+    private static final int REF_LITERAL = 1;
+    private static final int MAX_IDS = 4096;
+    private static final int MAX_TRAMA = 64 * 1024 * 1024;
+
+    private ProtocoloBinario() {
+    }
+
+    /** Codifica los comandos del cliente. Los metodos se sincronizan porque los llaman el menu y el receptor. */
+    public static class Escritor implements SalidaServidor {
+        private final OutputStream salida;
+        private final Map<String, Integer> ids = new HashMap<>();
+        private final Cuerpo cuerpo = new Cuerpo();
+
+        public Escritor(OutputStream salida) {
+            this.salida = new BufferedOutputStream(salida);
+        }
+
+        @Override
+        public synchronized void mensajePrivado(String destino, String mensaje) throws IOException {
+            cuerpo.reset();
+            id(destino);
+            texto(mensaje);
+            enviar(PRIVADO, null);
+        }
+
+        @Override
+        public synchronized void mensajeGrupo(String grupo, String mensaje) throws IOException {
+            cuerpo.reset();
+            id(grupo);
+            texto(mensaje);
+            enviar(MENSAJE_GRUPO, null);
+        }
+
+        @Override
+        public synchronized void comandoGrupo(String accion, String grupo) throws IOException {
+            cuerpo.reset();
+            id(accion);
+            id(grupo);
+            enviar(GRUPO, null);
+        }
+
+        @Override
+        public synchronized void comandoLlamada(String accion, String usuario) throws IOException {
+            cuerpo.reset();
+            id(accion);
+            id(usuario);
+            enviar(LLAMADA, null);
+        }
+
+        @Override
+        public synchronized void configuracion(String clave, String valor) throws IOException {
+            cuerpo.reset();
+            id(clave);
+            texto(valor);
+            enviar(CONFIG, null);
+        }
+
+        @Override
+        public synchronized void notaVoz(String destino, boolean esGrupo, byte[] audio) throws IOException {
+            cuerpo.reset();
+            id(destino);
+            enviar(esGrupo ? VOZ_GRUPO : VOZ, audio);
+        }
+
+        @Override
+        public synchronized void historial(String tipo, String nombre, int cantidad, int minutos) throws IOException {
+            cuerpo.reset();
+            id(tipo);
+            id(nombre);
+            cuerpo.varint(cantidad);
+            if (minutos > 0) cuerpo.varint(minutos);
+            enviar(HISTORIAL, null);
+        }
+
+        @Override
+        public synchronized void nota(String id) throws IOException {
+            cuerpo.reset();
+            texto(id);
+            enviar(NOTA, null);
+        }
+
+        @Override
+        public synchronized void pong() throws IOException {
+            cuerpo.reset();
+            enviar(PONG, null);
+        }
+
+        @Override
+        public synchronized void salir() throws IOException {
+            cuerpo.reset();
+            enviar(SALIR, null);
+        }
+
+        private void enviar(int tipo, byte[] audio) throws IOException {
+            int longitudAudio = audio == null ? 0 : audio.length;
+            salida.write(tipo);
+            escribirVarint(salida, cuerpo.size() + longitudAudio);
+            cuerpo.writeTo(salida);
+            if (audio != null) salida.write(audio);
+            salida.flush();
+        }
+
+        private void id(String valor) {
+            Integer id = ids.get(valor);
+            if (id != null) {
+                cuerpo.varint(id + 2);
+                return;
+            }
+            if (ids.size() < MAX_IDS) {
+                ids.put(valor, ids.size());
+                cuerpo.varint(REF_NUEVO);
+            } else {
+                cuerpo.varint(REF_LITERAL);
+            }
+            texto(valor);
+        }
+
+        private void texto(String valor) {
+            byte[] bytes = valor.getBytes(StandardCharsets.UTF_8);
+            cuerpo.varint(bytes.length);
+            cuerpo.write(bytes, 0, bytes.length);
+        }
+    }
+
+    /** Lee las tramas del servidor y las pasa al manejador. Solo lo usa el hilo receptor. */
+    public static class Lector {
+        private final DataInputStream entrada;
+        private final List<String> ids = new ArrayList<>();
+        private byte[] bytesTexto = new byte[256];
+        private int restante;
+
+        public Lector(InputStream entrada) {
+            this.entrada = new DataInputStream(entrada);
+        }
+
+        /** Procesa una trama; devuelve false al llegar al fin del flujo. */
+        public boolean leerSiguiente(ManejadorMensajes manejador) throws IOException {
+            int tipo = entrada.read();
+            if (tipo == -1) return false;
+            restante = Integer.MAX_VALUE;
+            int longitud = leerVarint();
+            if (longitud < 0 || longitud > MAX_TRAMA) {
+                throw new IOException("Trama de longitud invalida: " + longitud);
+            }
+            restante = longitud;
+
+            switch (tipo) {
+                case AVISO -> manejador.mostrar(leerTexto());
+                case RECIBIDO_PRIVADO -> {
+                    String remitente = leerId();
+                    manejador.mostrar("De " + remitente + ": " + leerTexto());
+                }
+                case RECIBIDO_GRUPO -> {
+                    String grupo = leerId();
+                    String remitente = leerId();
+                    manejador.mostrar("[Grupo " + grupo + "] " + remitente + ": " + leerTexto());
+                }
+                case RECIBIDO_VOZ, RECIBIDO_VOZ_GRUPO -> {
+                    String grupo = tipo == RECIBIDO_VOZ_GRUPO ? leerId() : null;
+                    String remitente = leerId();
+                    byte[] audio = new byte[restante];
+                    entrada.readFully(audio);
+                    restante = 0;
+                    manejador.notaVoz(grupo, remitente, audio);
+                }
+                case RECIBIDO_LLAMADA -> {
+                    String accion = leerId();
+                    manejador.llamada(accion, leerTexto());
+                }
+                case PING -> manejador.ping();
+                default -> System.err.println("Trama desconocida del servidor: " + tipo);
+            }
+
+            if (restante > 0) {
+                entrada.skipNBytes(restante);
+            }
+            return true;
+        }
+
+        private String leerId() throws IOException {
+            int ref = leerVarint();
+            if (ref >= 2) {
+                int id = ref - 2;
+                if (id >= ids.size()) throw new IOException("Id desconocido: " + id);
+                return ids.get(id);
+            }
+            String valor = leerTexto();
+            if (ref == REF_NUEVO && ids.size() < MAX_IDS) {
+                ids.add(valor);
+            }
+            return valor;
+        }
+
+        private String leerTexto() throws IOException {
+            int longitud = leerVarint();
+            if (longitud < 0 || longitud > restante) {
+                throw new IOException("Texto de longitud invalida: " + longitud);
+            }
+            if (bytesTexto.length < longitud) {
+                bytesTexto = new byte[Math.max(longitud, bytesTexto.length * 2)];
+            }
+            entrada.readFully(bytesTexto, 0, longitud);
+            restante -= longitud;
+            return new String(bytesTexto, 0, longitud, StandardCharsets.UTF_8);
+        }
+
+        private int leerVarint() throws IOException {
+            int valor = 0;
+            for (int desplazamiento = 0; desplazamiento < 35; desplazamiento += 7) {
+                int b = entrada.read();
+                if (b == -1) throw new EOFException("Trama incompleta");
+                restante--;
+                valor |= (b & 0x7F) << desplazamiento;
+                if ((b & 0x80) == 0) return valor;
+            }
+            throw new IOException("Varint demasiado largo");
+        }
+    }
+
+    static void escribirVarint(OutputStream salida, int valor) throws IOException {
+        while ((valor & ~0x7F) != 0) {
+            salida.write((valor & 0x7F) | 0x80);
+            valor >>>= 7;
+        }
+        salida.write(valor);
+    }
+
+    // ByteArrayOutputStream que crece sin sincronizacion y sabe escribir varints
+    private static class Cuerpo extends ByteArrayOutputStream {
+        Cuerpo() {
+            super(256);
+        }
+
+        @Override
+        public void write(int b) {
+            if (count == buf.length) buf = Arrays.copyOf(buf, buf.length * 2);
+            buf[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (count + len > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + len));
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+
+        void varint(int valor) {
+            while ((valor & ~0x7F) != 0) {
+                write((valor & 0x7F) | 0x80);
+                valor >>>= 7;
+            }
+            write(valor);
+        }
+
+        @Override
+        public void writeTo(OutputStream salida) throws IOException {
+            salida.write(buf, 0, count);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package client;
+
+import audio.CodecAudio;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Llamada de prueba por loopback sin microfono ni altavoz: un extremo envia un tono (un segundo
+ * si y uno no, con ruido de fondo bajo en las pausas) cada MS_POR_TRAMA ms por LlamadaUdp y
+ * el otro saca una trama del buffer con el mismo ritmo, como haria el altavoz. Al final
+ * imprime perdidas, tramas ocultadas y suprimidas por silencio, jitter y la latencia desde
+ * que se envio cada trama hasta que se reprodujo (sin contar lo que tarda en llenarse la trama).
+ *
+ * Las perdidas y retardos de red se simulan con las propiedades de LlamadaUdp:
+ * java -Dchatme.llamada.perdida=0.05 -Dchatme.llamada.jitterMs=40 -cp Usuario.jar client.PruebaLlamada
+ */
+public class PruebaLlamada {
+    private static final int FRECUENCIA = 16000;
+
+    public static void main(String[] args) throws Exception {
+        int duracionS = Integer.getInteger("chatme.prueba.duracionS", 10);
+        CodecAudio codec = CodecAudio.porNombre(MotorAudio.codecsPreferidos().get(0));
+
+        DatagramSocket socketA = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        DatagramSocket socketB = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        LlamadaUdp emisor = new LlamadaUdp(socketA, new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                socketB.getLocalPort()), codec, FRECUENCIA, () -> { });
+        LlamadaUdp receptor = new LlamadaUdp(socketB, new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                socketA.getLocalPort()), codec, FRECUENCIA, () -> { });
+        receptor.iniciar();
+
+        int tramas = duracionS * 1000 / LlamadaUdp.MS_POR_TRAMA;
+        long[] latencias = new long[tramas];
+        // Instante en que se envio cada trama, por numero de trama
+        long[] enviadas = new long[tramas + 100];
+        int[] medidas = new int[1];
+        byte[] tono = new byte[emisor.getBytesPorTrama()];
+        byte[] altavoz = new byte[receptor.getBytesPorTrama()];
+        long[] muestra = new long[1];
+        Random fondo = new Random();
+
+        System.out.println("Llamada de prueba: " + duracionS + " s con " + codec.getNombre() + " a " + FRECUENCIA + " Hz");
+        ScheduledExecutorService relojes = Executors.newScheduledThreadPool(2);
+        relojes.scheduleAtFixedRate(() -> {
+            for (int i = 0; i < tono.length / 2; i++, muestra[0]++) {
+                boolean habla = muestra[0] / FRECUENCIA % 2 == 0;
+                int valor = habla ? (int) (8000 * Math.sin(2 * Math.PI * 440 * muestra[0] / FRECUENCIA))
+                        : (int) (fondo.nextGaussian() * 30);
+                tono[2 * i] = (byte) valor;
+                tono[2 * i + 1] = (byte) (valor >> 8);
+            }
+            int trama = (int) (muestra[0] / (tono.length / 2)) - 1;
+            if (trama < enviadas.length) enviadas[trama] = System.nanoTime();
+            try {
+                emisor.enviar(tono, tono.length);
+            } catch (Exception e) {
+                System.err.println("Error al enviar: " + e.getMessage());
+            }
+        }, 0, LlamadaUdp.MS_POR_TRAMA, TimeUnit.MILLISECONDS);
+        relojes.scheduleAtFixedRate(() -> {
+            receptor.siguienteTrama(altavoz);
+            long marca = receptor.getUltimaMarcaReproducida();
+            if (marca >= 0 && medidas[0] < latencias.length) {
+                int trama = (int) (((marca - emisor.getMarcaInicial()) & 0xFFFFFFFFL) / (altavoz.length / 2));
+                if (trama < enviadas.length) latencias[medidas[0]++] = System.nanoTime() - enviadas[trama];
+            }
+        }, LlamadaUdp.MS_POR_TRAMA / 2, LlamadaUdp.MS_POR_TRAMA, TimeUnit.MILLISECONDS);
+
+        Thread.sleep(duracionS * 1000L);
+        relojes.shutdownNow();
+        emisor.colgar();
+        receptor.colgar();
+        socketA.close();
+        socketB.close();
+
+        long[] ordenadas = Arrays.copyOf(latencias, medidas[0]);
+        Arrays.sort(ordenadas);
+        System.out.println("Enviados: " + emisor.getEnviados() + " (perdidos por la simulacion: "
+                + emisor.getPerdidosSimulados() + ")");
+        System.out.printf(Locale.ROOT, "Tramas suprimidas por silencio: %d (%.0f%%)%n", emisor.getSuprimidas(),
+                100.0 * emisor.getSuprimidas() / Math.max(1, tramas));
+        System.out.println("Receptor: " + receptor.getBuffer().resumen() + " ocultadas=" + receptor.getOcultadas());
+        if (ordenadas.length > 0) {
+            System.out.printf(Locale.ROOT, "Latencia envio-reproduccion: p50=%.1fms p95=%.1fms max=%.1fms%n",
+                    ms(ordenadas[ordenadas.length / 2]), ms(ordenadas[(int) (ordenadas.length * 0.95)]),
+                    ms(ordenadas[ordenadas.length - 1]));
+        }
+    }
+
+    private static double ms(long nanos) {
+        return nanos / 1e6;
+    }
+}
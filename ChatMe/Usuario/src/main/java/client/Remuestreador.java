@@ -0,0 +1,36 @@
+package client;
+
+/**
+ * Cambia la frecuencia de muestreo de PCM de 16 bits little endian por interpolacion lineal,
+ * por trozos: guarda la ultima muestra y la fase entre llamadas. Basta para llevar notas de
+ * 8 kHz a la linea de 16 kHz del MotorAudio.
+ */
+final class Remuestreador {
+    private final double paso;
+    private int anterior;
+    private double fase;
+
+    Remuestreador(int frecuenciaOrigen, int frecuenciaDestino) {
+        this.paso = (double) frecuenciaOrigen / frecuenciaDestino;
+    }
+
+    /** Bytes de salida como maximo para longitud bytes de entrada. */
+    int maximoSalida(int longitud) {
+        return ((int) Math.ceil(longitud / 2 / paso) + 1) * 2;
+    }
+
+    int convertir(byte[] origen, int desde, int longitud, byte[] destino) {
+        int escritos = 0;
+        for (int i = desde; i + 1 < desde + longitud; i += 2) {
+            int muestra = (short) ((origen[i + 1] << 8) | (origen[i] & 0xFF));
+            for (; fase < 1; fase += paso) {
+                int valor = (int) (anterior + (muestra - anterior) * fase);
+                destino[escritos++] = (byte) valor;
+                destino[escritos++] = (byte) (valor >> 8);
+            }
+            fase -= 1;
+            anterior = muestra;
+        }
+        return escritos;
+    }
+}
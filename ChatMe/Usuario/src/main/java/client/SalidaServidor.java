@@ -0,0 +1,36 @@
+package client;
+
+import java.io.IOException;
+
+/**
+ * Comandos que el cliente envia al servidor, con una implementacion por protocolo
+ * (SalidaTexto para v1 y ProtocoloBinario.Escritor para v2).
+ */
+public interface SalidaServidor {
+
+    void mensajePrivado(String destino, String mensaje) throws IOException;
+
+    void mensajeGrupo(String grupo, String mensaje) throws IOException;
+
+    // accion: crear, unir o salir
+    void comandoGrupo(String accion, String grupo) throws IOException;
+
+    // accion: solicitar, aceptar o rechazar
+    void comandoLlamada(String accion, String usuario) throws IOException;
+
+    void configuracion(String clave, String valor) throws IOException;
+
+    void notaVoz(String destino, boolean esGrupo, byte[] audio) throws IOException;
+
+    // tipo: privado o grupo; con minutos > 0, solo los mensajes de esos ultimos minutos.
+    // El servidor responde con avisos
+    void historial(String tipo, String nombre, int cantidad, int minutos) throws IOException;
+
+    // Pide al servidor una nota de voz guardada por su id
+    void nota(String id) throws IOException;
+
+    // Respuesta a un ping de latido del servidor
+    void pong() throws IOException;
+
+    void salir() throws IOException;
+}
@@ -0,0 +1,74 @@
+package client;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Protocolo v1: comandos separados por '|', un comando por linea. Las notas de voz van como
+ * encabezado "@voz|destino|tamano" seguido del audio en la misma escritura.
+ */
+public class SalidaTexto implements SalidaServidor {
+    private final OutputStream salida;
+
+    public SalidaTexto(OutputStream salida) {
+        this.salida = new BufferedOutputStream(salida);
+    }
+
+    @Override
+    public void mensajePrivado(String destino, String mensaje) throws IOException {
+        linea(destino + "|" + mensaje);
+    }
+
+    @Override
+    public void mensajeGrupo(String grupo, String mensaje) throws IOException {
+        linea("@grupo|enviar|" + grupo + "|" + mensaje);
+    }
+
+    @Override
+    public void comandoGrupo(String accion, String grupo) throws IOException {
+        linea("@grupo|" + accion + "|" + grupo);
+    }
+
+    @Override
+    public void comandoLlamada(String accion, String usuario) throws IOException {
+        linea("@llamada|" + accion + "|" + usuario);
+    }
+
+    @Override
+    public void configuracion(String clave, String valor) throws IOException {
+        linea("@config|" + clave + "|" + valor);
+    }
+
+    @Override
+    public synchronized void notaVoz(String destino, boolean esGrupo, byte[] audio) throws IOException {
+        String encabezado = (esGrupo ? "@vozgrupo|" : "@voz|") + destino + "|" + audio.length + "\n";
+        salida.write(encabezado.getBytes(StandardCharsets.UTF_8));
+        salida.write(audio);
+        salida.flush();
+    }
+
+    @Override
+    public void historial(String tipo, String nombre, int cantidad, int minutos) throws IOException {
+        linea("@historial|" + tipo + "|" + nombre + "|" + cantidad + (minutos > 0 ? "|" + minutos : ""));
+    }
+
+    @Override
+    public void nota(String id) throws IOException {
+        linea("@nota|" + id);
+    }
+
+    @Override
+    public void pong() throws IOException {
+        linea("@pong");
+    }
+
+    @Override
+    public void salir() throws IOException {
+        linea("exit");
+    }
+
+    private synchronized void linea(String texto) throws IOException {
+        salida.write((texto + "\n").getBytes(StandardCharsets.UTF_8));
+        salida.flush();
+    }
+}
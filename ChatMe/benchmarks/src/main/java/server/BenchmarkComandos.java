@@ -0,0 +1,140 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Despacho de un comando desde la linea de texto (split por '|') y desde la trama binaria v2
+ * equivalente. Los destinatarios son sesiones en memoria y el historial esta desactivado, asi
+ * que lo que se mide es el analisis y el enrutado, no el disco ni el socket.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BenchmarkComandos {
+    private EntornoBenchmark entorno;
+    private SesionMemoria ana;
+    private ProtocoloBinario.Lector lectorPrivado;
+    private ProtocoloBinario.Lector lectorGrupo;
+
+    @Setup(Level.Trial)
+    public void preparar() {
+        entorno = EntornoBenchmark.iniciar(false, false, "nunca");
+        List<SesionMemoria> sesiones = entorno.conectar("u", 4);
+        ana = sesiones.get(0);
+        entorno.crearGrupo("g", sesiones);
+
+        // La primera trama declara los ids y las que se repiten ya los referencian
+        lectorPrivado = new ProtocoloBinario.Lector(new FlujoCiclico(
+                tramaTexto(ProtocoloBinario.PRIVADO, "u1", true, "hola que tal"),
+                tramaTexto(ProtocoloBinario.PRIVADO, "u1", false, "hola que tal")), 64 * 1024);
+        lectorGrupo = new ProtocoloBinario.Lector(new FlujoCiclico(
+                tramaTexto(ProtocoloBinario.MENSAJE_GRUPO, "g", true, "hola a todos"),
+                tramaTexto(ProtocoloBinario.MENSAJE_GRUPO, "g", false, "hola a todos")), 64 * 1024);
+    }
+
+    @TearDown(Level.Trial)
+    public void terminar() {
+        entorno.cerrar();
+    }
+
+    @Benchmark
+    public Object textoPrivado() {
+        return ProcesadorComandos.procesarLinea(ana, "u1|hola que tal");
+    }
+
+    @Benchmark
+    public Object textoGrupo() {
+        return ProcesadorComandos.procesarLinea(ana, "@grupo|enviar|g|hola a todos");
+    }
+
+    @Benchmark
+    public Object textoConfiguracion() {
+        return ProcesadorComandos.procesarLinea(ana, "@config|puerto_llamada|5000");
+    }
+
+    @Benchmark
+    public boolean binarioPrivado() throws IOException {
+        return lectorPrivado.procesarSiguiente(ana);
+    }
+
+    @Benchmark
+    public boolean binarioGrupo() throws IOException {
+        return lectorGrupo.procesarSiguiente(ana);
+    }
+
+    // [tipo][longitud][id][texto], con el id como literal nuevo o como referencia al primero de la tabla
+    private static byte[] tramaTexto(int tipo, String id, boolean idNuevo, String texto) {
+        ByteArrayOutputStream cuerpo = new ByteArrayOutputStream();
+        if (idNuevo) {
+            varint(cuerpo, 0);
+            cadena(cuerpo, id);
+        } else {
+            varint(cuerpo, 2);
+        }
+        cadena(cuerpo, texto);
+        ByteArrayOutputStream trama = new ByteArrayOutputStream();
+        trama.write(tipo);
+        varint(trama, cuerpo.size());
+        trama.writeBytes(cuerpo.toByteArray());
+        return trama.toByteArray();
+    }
+
+    private static void cadena(ByteArrayOutputStream salida, String valor) {
+        byte[] bytes = valor.getBytes(StandardCharsets.UTF_8);
+        varint(salida, bytes.length);
+        salida.writeBytes(bytes);
+    }
+
+    private static void varint(ByteArrayOutputStream salida, int valor) {
+        while ((valor & ~0x7F) != 0) {
+            salida.write((valor & 0x7F) | 0x80);
+            valor >>>= 7;
+        }
+        salida.write(valor);
+    }
+
+    // Entrega primero una vez y despues repite para siempre, sin asignar memoria por lectura
+    private static final class FlujoCiclico extends InputStream {
+        private final byte[] primero;
+        private final byte[] repetido;
+        private byte[] actual;
+        private int posicion;
+
+        FlujoCiclico(byte[] primero, byte[] repetido) {
+            this.primero = primero;
+            this.repetido = repetido;
+            this.actual = primero;
+        }
+
+        @Override
+        public int read() {
+            if (posicion == actual.length) siguiente();
+            return actual[posicion++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] destino, int desde, int cantidad) {
+            if (cantidad == 0) return 0;
+            if (posicion == actual.length) siguiente();
+            int n = Math.min(cantidad, actual.length - posicion);
+            System.arraycopy(actual, posicion, destino, desde, n);
+            posicion += n;
+            return n;
+        }
+
+        private void siguiente() {
+            actual = repetido;
+            posicion = 0;
+        }
+    }
+}
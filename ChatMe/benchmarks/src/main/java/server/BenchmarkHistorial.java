@@ -0,0 +1,84 @@
+package server;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Server.guardarHistorial hasta que el escritor en segundo plano deja todo en disco. Cada
+ * invocacion encola un lote y espera a que el escritor lo haya anexado y forzado segun la
+ * politica, asi que el resultado es el ritmo sostenido de escritura y no solo el costo de
+ * encolar y sacar de la cola.
+ *
+ * legado es la linea de base: el historial_chat.txt original, abierto, anexado y cerrado con
+ * un FileWriter por mensaje. Cada variante tiene su estado para que el parametro fsync solo
+ * multiplique las corridas del historial asincrono.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BenchmarkHistorial {
+    // Igual a chatme.historial.maxLote: un lote completo despierta al escritor sin esperar su intervalo
+    private static final int LOTE = 1024;
+
+    @State(Scope.Benchmark)
+    public static class Asincrono {
+        @Param({"nunca", "intervalo", "lote"})
+        public String fsync;
+
+        EntornoBenchmark entorno;
+        int secuencia;
+
+        @Setup(Level.Trial)
+        public void preparar() {
+            entorno = EntornoBenchmark.iniciar(true, false, fsync);
+        }
+
+        @TearDown(Level.Trial)
+        public void terminar() {
+            entorno.cerrar();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Archivo {
+        EntornoBenchmark entorno;
+        File archivo;
+        int secuencia;
+
+        @Setup(Level.Trial)
+        public void preparar() {
+            entorno = EntornoBenchmark.iniciar(false, false, "nunca");
+            archivo = entorno.archivo("historial_chat.txt").toFile();
+        }
+
+        @TearDown(Level.Trial)
+        public void terminar() {
+            entorno.cerrar();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOTE)
+    public void guardar(Asincrono estado) {
+        HistorialAsincrono historial = Server.getHistorial();
+        long objetivo = historial.getTotalProcesados() + LOTE;
+        for (int i = 0; i < LOTE; i++) {
+            Server.guardarHistorial(RegistroHistorial.privado("ana", "luis", "mensaje numero " + estado.secuencia++));
+        }
+        while (historial.getTotalProcesados() < objetivo) {
+            Thread.onSpinWait();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOTE)
+    public void legado(Archivo estado) {
+        for (int i = 0; i < LOTE; i++) {
+            Legado.guardarHistorial(estado.archivo, "[ana -> luis] mensaje numero " + estado.secuencia++);
+        }
+    }
+}
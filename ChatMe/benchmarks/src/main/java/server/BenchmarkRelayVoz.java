@@ -0,0 +1,98 @@
+package server;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * RelayVoz.recibir de una nota completa hacia un grupo de 10 sesiones en memoria, con el
+ * almacen de voz (copia al segmento mapeado y entrega desde ahi) o sin el (audio en un byte[]
+ * que se reparte en un buffer compartido). Cada nota cambia sus primeros bytes para que el
+ * almacen no la reconozca como repetida.
+ *
+ * notaGrupoLegado es la linea de base: la nota entera leida en un byte[] del heap y repartida
+ * con una trama por miembro. Tiene su propio estado para que el parametro almacen no la repita.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BenchmarkRelayVoz {
+
+    @State(Scope.Benchmark)
+    public static class Relay {
+        @Param({"16384", "262144"})
+        public int tamano;
+
+        @Param({"true", "false"})
+        public boolean almacen;
+
+        EntornoBenchmark entorno;
+        SesionMemoria remitente;
+        byte[] audio;
+        long secuencia;
+
+        @Setup(Level.Trial)
+        public void preparar() {
+            entorno = EntornoBenchmark.iniciar(false, almacen, "nunca");
+            List<SesionMemoria> sesiones = entorno.conectar("v", 10);
+            entorno.crearGrupo("g", sesiones);
+            remitente = sesiones.get(0);
+            audio = new byte[tamano];
+        }
+
+        @TearDown(Level.Trial)
+        public void terminar() {
+            entorno.cerrar();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Heap {
+        @Param({"16384", "262144"})
+        public int tamano;
+
+        EntornoBenchmark entorno;
+        String remitente;
+        Set<String> miembros;
+        byte[] audio;
+        long secuencia;
+
+        @Setup(Level.Trial)
+        public void preparar() {
+            entorno = EntornoBenchmark.iniciar(false, false, "nunca");
+            List<SesionMemoria> sesiones = entorno.conectar("v", 10);
+            entorno.crearGrupo("g", sesiones);
+            remitente = sesiones.get(0).getNombreUsuario();
+            miembros = new HashSet<>();
+            for (SesionMemoria sesion : sesiones) miembros.add(sesion.getNombreUsuario());
+            audio = new byte[tamano];
+        }
+
+        @TearDown(Level.Trial)
+        public void terminar() {
+            entorno.cerrar();
+        }
+    }
+
+    @Benchmark
+    public void notaGrupo(Relay estado) throws IOException {
+        long n = estado.secuencia++;
+        for (int i = 0; i < 8; i++) estado.audio[i] = (byte) (n >>> (8 * i));
+        RelayVoz.recibir(estado.remitente, "g", true, estado.tamano, new ByteArrayInputStream(estado.audio));
+    }
+
+    @Benchmark
+    public void notaGrupoLegado(Heap estado) throws IOException {
+        long n = estado.secuencia++;
+        for (int i = 0; i < 8; i++) estado.audio[i] = (byte) (n >>> (8 * i));
+        byte[] nota = Legado.leerNota(new ByteArrayInputStream(estado.audio), estado.tamano);
+        Legado.enviarAudioAGrupo(estado.miembros, "g", nota, estado.remitente);
+    }
+}
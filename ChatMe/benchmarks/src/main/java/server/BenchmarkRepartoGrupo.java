@@ -0,0 +1,70 @@
+package server;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Server.enviarAGrupo con todos los miembros conectados como sesiones en memoria. Con 1000
+ * miembros se supera chatme.grupos.umbralParalelo y el reparto pasa al ForkJoinPool. La
+ * variante de voz mide ademas la codificacion en el buffer compartido del pool.
+ *
+ * Las variantes legado son la linea de base: el recorrido original, secuencial sobre el Set
+ * del grupo, con una linea armada por miembro y, en la voz, una trama por miembro sin buffer
+ * compartido.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BenchmarkRepartoGrupo {
+
+    @Param({"10", "100", "1000"})
+    public int miembros;
+
+    private EntornoBenchmark entorno;
+    private String remitente;
+    private byte[] audio;
+    private Set<String> miembrosLegado;
+
+    @Setup(Level.Trial)
+    public void preparar() {
+        entorno = EntornoBenchmark.iniciar(false, false, "nunca");
+        List<SesionMemoria> sesiones = entorno.conectar("m", miembros);
+        entorno.crearGrupo("g", sesiones);
+        remitente = sesiones.get(0).getNombreUsuario();
+        miembrosLegado = new HashSet<>();
+        for (SesionMemoria sesion : sesiones) miembrosLegado.add(sesion.getNombreUsuario());
+        audio = new byte[16 * 1024];
+    }
+
+    @TearDown(Level.Trial)
+    public void terminar() {
+        entorno.cerrar();
+    }
+
+    @Benchmark
+    public void texto() {
+        Server.enviarAGrupo("g", "hola a todos", remitente);
+    }
+
+    @Benchmark
+    public void voz() {
+        Server.enviarAudioAGrupo("g", Trama.vozGrupo("g", remitente, audio), remitente);
+    }
+
+    @Benchmark
+    public void textoLegado() {
+        Legado.enviarAGrupo(miembrosLegado, "g", "hola a todos", remitente);
+    }
+
+    @Benchmark
+    public void vozLegado() {
+        Legado.enviarAudioAGrupo(miembrosLegado, "g", audio, remitente);
+    }
+}
@@ -0,0 +1,76 @@
+package server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Arranca un Server sin abrir el puerto, con sus almacenes en un directorio temporal, para que
+ * los benchmarks llamen directamente a ProcesadorComandos y Server. Los almacenes que un
+ * benchmark no quiere medir se apuntan a una ruta imposible y quedan desactivados, igual que
+ * cuando el servidor no puede abrirlos.
+ */
+public final class EntornoBenchmark {
+    private final Path directorio;
+
+    private EntornoBenchmark(Path directorio) {
+        this.directorio = directorio;
+    }
+
+    public static EntornoBenchmark iniciar(boolean historial, boolean almacenVoz, String fsync) {
+        try {
+            Path directorio = Files.createTempDirectory("chatme-bench");
+            // Un archivo comun no puede ser el padre de un directorio: el almacen no se abre
+            Path invalido = Files.createFile(directorio.resolve("desactivado")).resolve("x");
+            System.setProperty("chatme.historial.directorio", (historial ? directorio.resolve("historial") : invalido).toString());
+            System.setProperty("chatme.historial.fsync", fsync);
+            System.setProperty("chatme.voz.directorio", (almacenVoz ? directorio.resolve("voz") : invalido).toString());
+            System.setProperty("chatme.voz.segmentoMB", "16");
+            System.setProperty("chatme.voz.maxMB", "128");
+            System.setProperty("chatme.buzon.directorio", invalido.toString());
+            System.setProperty("chatme.log.maxPorSegundo", "1");
+            new Server(new ConfiguracionServidor(0));
+            return new EntornoBenchmark(directorio);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Ruta de un archivo dentro del directorio temporal, que se borra al cerrar. */
+    public Path archivo(String nombre) {
+        return directorio.resolve(nombre);
+    }
+
+    /** Registra n sesiones en memoria llamadas prefijo0..prefijo(n-1). */
+    public List<SesionMemoria> conectar(String prefijo, int n) {
+        List<SesionMemoria> sesiones = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            SesionMemoria sesion = new SesionMemoria(prefijo + i);
+            Server.registrarSesion(sesion);
+            sesiones.add(sesion);
+        }
+        return sesiones;
+    }
+
+    public void crearGrupo(String grupo, List<? extends Sesion> miembros) {
+        for (Sesion miembro : miembros) {
+            Server.getGrupos().unir(grupo, miembro.getNombreUsuario());
+        }
+    }
+
+    // Los almacenes los cierran los ganchos de apagado del propio Server al terminar la JVM
+    public void cerrar() {
+        try (Stream<Path> archivos = Files.walk(directorio)) {
+            for (Path archivo : archivos.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(archivo);
+            }
+        } catch (IOException e) {
+            System.err.println("No se pudo borrar " + directorio + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package server;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Set;
+
+/**
+ * Caminos del servidor original, reproducidos sobre las sesiones en memoria para comparar
+ * con ellos: el historial se abre, se anexa y se cierra con un FileWriter por mensaje, el
+ * reparto a un grupo recorre sus miembros uno por uno y arma la linea para cada uno, y una
+ * nota de voz se lee entera en un byte[] del heap antes de repartirla.
+ */
+final class Legado {
+
+    private Legado() {
+    }
+
+    static synchronized void guardarHistorial(File archivo, String registro) {
+        try (FileWriter fw = new FileWriter(archivo, true)) {
+            fw.write(registro + "\n");
+        } catch (IOException e) {
+            System.err.println("Error al guardar historial: " + e.getMessage());
+        }
+    }
+
+    static void enviarAGrupo(Set<String> miembros, String grupo, String mensaje, String remitente) {
+        for (String miembro : miembros) {
+            if (!miembro.equals(remitente)) {
+                Sesion destino = Server.getClientesConectados().get(miembro);
+                if (destino != null) {
+                    destino.enviar(Trama.aviso("[Grupo " + grupo + "] " + remitente + ": " + mensaje));
+                }
+            }
+        }
+    }
+
+    // Cada miembro recibe su propia trama con el mismo byte[], sin buffer compartido
+    static void enviarAudioAGrupo(Set<String> miembros, String grupo, byte[] audio, String remitente) {
+        for (String miembro : miembros) {
+            if (!miembro.equals(remitente)) {
+                Sesion destino = Server.getClientesConectados().get(miembro);
+                if (destino != null) {
+                    destino.enviar(Trama.vozGrupo(grupo, remitente, audio));
+                }
+            }
+        }
+    }
+
+    static byte[] leerNota(InputStream entrada, int tamano) throws IOException {
+        byte[] audio = new byte[tamano];
+        int leidos = 0;
+        while (leidos < tamano) {
+            int resultado = entrada.read(audio, leidos, tamano - leidos);
+            if (resultado == -1) break;
+            leidos += resultado;
+        }
+        return audio;
+    }
+}
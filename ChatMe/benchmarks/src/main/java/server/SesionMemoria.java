@@ -0,0 +1,73 @@
+package server;
+
+import java.util.List;
+
+/**
+ * Sesion sin socket para los benchmarks: cuenta lo que recibe y suelta los buffers
+ * compartidos, como haria el escritor de una conexion real al terminar de enviar.
+ */
+public class SesionMemoria implements Sesion {
+    private final String nombreUsuario;
+    private long recibidas;
+    private long bytes;
+
+    public SesionMemoria(String nombreUsuario) {
+        this.nombreUsuario = nombreUsuario;
+    }
+
+    @Override
+    public String getNombreUsuario() {
+        return nombreUsuario;
+    }
+
+    @Override
+    public String getDireccionIP() {
+        return "127.0.0.1";
+    }
+
+    @Override
+    public int getPuertoLlamada() {
+        return 0;
+    }
+
+    @Override
+    public void setPuertoLlamada(int puertoLlamada) {
+    }
+
+    @Override
+    public List<String> getCodecs() {
+        return List.of();
+    }
+
+    @Override
+    public void setCodecs(List<String> codecs) {
+    }
+
+    @Override
+    public void enviar(Trama trama) {
+        recibidas++;
+        bytes += trama.getLongitudAudio();
+        trama.liberar();
+    }
+
+    @Override
+    public long getUltimaActividad() {
+        return System.currentTimeMillis();
+    }
+
+    @Override
+    public void desconectar(String motivo) {
+    }
+
+    @Override
+    public void cerrarAhora() {
+    }
+
+    public long getRecibidas() {
+        return recibidas;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+}